@@ -43,6 +43,11 @@ import javax.servlet.http.HttpServletResponse;
  *
  * <p>Individual tasks can be run using "tasks" query parameter. {@link SpannerTasks.Task} lists
  * supported tasks. All tasks are run in order if no parameter or "tasks=all" is provided.
+ * When SPANNER_DATABASE names an existing database, the tasks that create the database and
+ * change its schema are skipped.
+ *
+ * <p>The "stats" query parameter returns the count, average and maximum latency of each task run
+ * so far on this instance.
  */
 // With @WebServlet annotation the webapp/WEB-INF/web.xml is no longer required.
 @WebServlet(value = "/spanner")
@@ -54,11 +59,16 @@ public class SpannerTasksServlet extends HttpServlet {
     resp.setContentType("text");
     PrintWriter pw = resp.getWriter();
     try {
+      if (req.getParameter("stats") != null) {
+        // report latency of the tasks run so far on this instance
+        SpannerTasks.printStats(pw);
+        return;
+      }
       String tasksParam = req.getParameter("tasks");
       List<Task> tasks;
       if (tasksParam == null || tasksParam.equals("all")) {
         // cycle through all operations in order
-        tasks = Arrays.asList(Task.values());
+        tasks = SpannerTasks.getDefaultTasks();
       } else {
         String[] tasksStr = tasksParam.split(",");
         tasks = Arrays.stream(tasksStr).map(Task::valueOf).collect(Collectors.toList());
@@ -19,8 +19,12 @@ package com.example.appengine.spanner;
 import com.google.cloud.spanner.DatabaseAdminClient;
 import com.google.cloud.spanner.DatabaseClient;
 import com.google.cloud.spanner.DatabaseId;
+import com.google.cloud.spanner.ResultSet;
+import com.google.cloud.spanner.SessionPoolOptions;
 import com.google.cloud.spanner.Spanner;
+import com.google.cloud.spanner.SpannerException;
 import com.google.cloud.spanner.SpannerOptions;
+import com.google.cloud.spanner.Statement;
 import java.io.IOException;
 import java.util.UUID;
 import javax.servlet.ServletContext;
@@ -35,6 +39,7 @@ public class SpannerClient implements ServletContextListener {
   private static String PROJECT_ID;
   private static String INSTANCE_ID;
   private static String DATABASE_ID;
+  private static boolean EXISTING_DATABASE;
 
   // The initial connection can be an expensive operation -- We cache this Connection
   // to speed things up.  For this sample, keeping them here is a good idea, for
@@ -43,6 +48,15 @@ public class SpannerClient implements ServletContextListener {
   private static DatabaseAdminClient databaseAdminClient = null;
   private static DatabaseClient databaseClient = null;
 
+  // Sessions are created in the background as soon as the DatabaseClient is created. Keeping a
+  // few of them around means the first request on a freshly started instance does not have to
+  // wait for a session, and capping the pool keeps an autoscaled instance from exhausting the
+  // per-database session limit.
+  private static final int MIN_SESSIONS = 10;
+  private static final int MAX_SESSIONS = 100;
+
+  private static final Statement PREWARM_STATEMENT = Statement.of("SELECT 1");
+
   private static ServletContext sc;
 
   private static void connect() throws IOException {
@@ -52,7 +66,14 @@ public class SpannerClient implements ServletContextListener {
       }
       return;
     }
-    SpannerOptions options = SpannerOptions.newBuilder().build();
+    SpannerOptions options =
+        SpannerOptions.newBuilder()
+            .setSessionPoolOption(
+                SessionPoolOptions.newBuilder()
+                    .setMinSessions(MIN_SESSIONS)
+                    .setMaxSessions(MAX_SESSIONS)
+                    .build())
+            .build();
     PROJECT_ID = options.getProjectId();
     spanner = options.getService();
     databaseAdminClient = spanner.getDatabaseAdminClient();
@@ -76,14 +97,35 @@ public class SpannerClient implements ServletContextListener {
     return databaseAdminClient;
   }
 
-  static DatabaseClient getDatabaseClient() {
-    if (databaseClient == null) {
+  static synchronized DatabaseClient getDatabaseClient() {
+    if (databaseClient == null && spanner != null) {
       databaseClient =
           spanner.getDatabaseClient(DatabaseId.of(PROJECT_ID, INSTANCE_ID, DATABASE_ID));
     }
     return databaseClient;
   }
 
+  /**
+   * Creates the DatabaseClient, which starts filling the session pool, and runs a trivial query so
+   * that the channel and at least one session are ready before the first real request arrives.
+   * Failures are only logged, as the database may not have been created yet.
+   */
+  static void prewarm() {
+    DatabaseClient client = getDatabaseClient();
+    if (client == null) {
+      return;
+    }
+    try (ResultSet resultSet = client.singleUse().executeQuery(PREWARM_STATEMENT)) {
+      while (resultSet.next()) {
+        // Drain the result so the query completes.
+      }
+    } catch (SpannerException e) {
+      if (sc != null) {
+        sc.log("SpannerConnection - prewarm ", e);
+      }
+    }
+  }
+
   @Override
   public void contextInitialized(ServletContextEvent event) {
     if (event != null) {
@@ -97,7 +139,17 @@ public class SpannerClient implements ServletContextListener {
       INSTANCE_ID = System.getProperty("SPANNER_INSTANCE");
     }
 
+    // An existing database can be used by setting SPANNER_DATABASE, in which case the session pool
+    // is prewarmed on startup.
+    if (DATABASE_ID == null && sc != null) {
+      DATABASE_ID = sc.getInitParameter("SPANNER_DATABASE");
+    }
     if (DATABASE_ID == null) {
+      DATABASE_ID = System.getProperty("SPANNER_DATABASE");
+    }
+    if (DATABASE_ID != null) {
+      EXISTING_DATABASE = true;
+    } else {
       DATABASE_ID = "db-" + UUID.randomUUID().toString().substring(0, 25);
     }
 
@@ -112,6 +164,8 @@ public class SpannerClient implements ServletContextListener {
       if (sc != null) {
         sc.log("SpannerConnection - No Connection");
       }
+    } else if (EXISTING_DATABASE) {
+      prewarm();
     }
     if (sc != null) {
       sc.log("ctx Initialized: " + INSTANCE_ID + " " + DATABASE_ID);
@@ -131,4 +185,9 @@ public class SpannerClient implements ServletContextListener {
   static String getDatabaseId() {
     return DATABASE_ID;
   }
+
+  /** Returns true if SPANNER_DATABASE names a database that already exists. */
+  static boolean isExistingDatabase() {
+    return EXISTING_DATABASE;
+  }
 }
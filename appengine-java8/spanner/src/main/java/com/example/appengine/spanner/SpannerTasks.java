@@ -34,9 +34,15 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 class SpannerTasks {
 
@@ -57,6 +63,13 @@ class SpannerTasks {
     readOnlyTransaction
   }
 
+  // Tasks that create the database or change its schema. An existing database already has the
+  // schema, so these are left out of the default task list, where they would fail.
+  private static final Set<Task> SCHEMA_TASKS =
+      Collections.unmodifiableSet(
+          EnumSet.of(
+              Task.createDatabase, Task.addMarketingBudget, Task.addIndex, Task.addStoringIndex));
+
   /**
    * Class to contain singer sample data.
    */
@@ -107,6 +120,70 @@ class SpannerTasks {
 
   private static DatabaseClient databaseClient = null;
 
+  // Statements and column lists are immutable, so they are built once and shared by all requests
+  // instead of being recreated on every call.
+  private static final Statement SELECT_ALBUMS =
+      Statement.of("SELECT SingerId, AlbumId, AlbumTitle FROM Albums");
+
+  private static final Statement SELECT_MARKETING_BUDGET =
+      Statement.of("SELECT SingerId, AlbumId, MarketingBudget FROM Albums");
+
+  // We use FORCE_INDEX hint to specify which index to use. For more details see
+  // https://cloud.google.com/spanner/docs/query-syntax#from-clause
+  // The title range is passed as query parameters so that Cloud Spanner can reuse the query plan.
+  private static final Statement SELECT_ALBUMS_BY_TITLE =
+      Statement.newBuilder(
+              "SELECT AlbumId, AlbumTitle, MarketingBudget\n"
+                  + "FROM Albums@{FORCE_INDEX=AlbumsByAlbumTitle}\n"
+                  + "WHERE AlbumTitle >= @startTitle AND AlbumTitle < @endTitle")
+          .bind("startTitle")
+          .to("Aardvark")
+          .bind("endTitle")
+          .to("Goo")
+          .build();
+
+  private static final List<String> ALBUM_COLUMNS =
+      Collections.unmodifiableList(Arrays.asList("SingerId", "AlbumId", "AlbumTitle"));
+
+  private static final List<String> MARKETING_BUDGET_COLUMN =
+      Collections.singletonList("MarketingBudget");
+
+  /**
+   * Class to accumulate latency of a single task across requests.
+   */
+  static class TaskStats {
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMillis = new LongAdder();
+    private final LongAccumulator maxMillis = new LongAccumulator(Long::max, 0);
+
+    void record(long millis) {
+      count.increment();
+      totalMillis.add(millis);
+      maxMillis.accumulate(millis);
+    }
+
+    long getCount() {
+      return count.sum();
+    }
+
+    long getTotalMillis() {
+      return totalMillis.sum();
+    }
+
+    long getMaxMillis() {
+      return maxMillis.get();
+    }
+  }
+
+  private static final Map<Task, TaskStats> TASK_STATS = new EnumMap<>(Task.class);
+
+  static {
+    for (Task task : Task.values()) {
+      TASK_STATS.put(task, new TaskStats());
+    }
+  }
+
   private static void createDatabase(PrintWriter pw) throws InterruptedException,
       ExecutionException {
     Iterable<String> statements =
@@ -129,13 +206,15 @@ class SpannerTasks {
                 SpannerClient.getInstanceId(), SpannerClient.getDatabaseId(), statements)
             .get();
     pw.println("Created database [" + db.getId() + "]");
+    // Start filling the session pool now that the database exists.
+    SpannerClient.prewarm();
   }
 
   private static void writeExampleData(PrintWriter pw) {
     List<Mutation> mutations = new ArrayList<>();
     for (Singer singer : SINGERS) {
       mutations.add(
-          Mutation.newInsertBuilder("Singers")
+          Mutation.newInsertOrUpdateBuilder("Singers")
               .set("SingerId")
               .to(singer.singerId)
               .set("FirstName")
@@ -146,7 +225,7 @@ class SpannerTasks {
     }
     for (Album album : ALBUMS) {
       mutations.add(
-          Mutation.newInsertBuilder("Albums")
+          Mutation.newInsertOrUpdateBuilder("Albums")
               .set("SingerId")
               .to(album.singerId)
               .set("AlbumId")
@@ -161,9 +240,7 @@ class SpannerTasks {
   private static void query(PrintWriter pw) {
     // singleUse() can be used to execute a single read or query against Cloud Spanner.
     ResultSet resultSet =
-        SpannerClient.getDatabaseClient()
-            .singleUse()
-            .executeQuery(Statement.of("SELECT SingerId, AlbumId, AlbumTitle FROM Albums"));
+        SpannerClient.getDatabaseClient().singleUse().executeQuery(SELECT_ALBUMS);
     while (resultSet.next()) {
       pw.printf("%d %d %s\n", resultSet.getLong(0), resultSet.getLong(1), resultSet.getString(2));
     }
@@ -178,7 +255,7 @@ class SpannerTasks {
                 // KeySet.all() can be used to read all rows in a table. KeySet exposes other
                 // methods to read only a subset of the table.
                 KeySet.all(),
-                Arrays.asList("SingerId", "AlbumId", "AlbumTitle"));
+                ALBUM_COLUMNS);
     while (resultSet.next()) {
       pw.printf("%d %d %s\n", resultSet.getLong(0), resultSet.getLong(1), resultSet.getString(2));
     }
@@ -230,8 +307,7 @@ class SpannerTasks {
               // Transfer marketing budget from one album to another. We do it in a transaction to
               // ensure that the transfer is atomic.
               Struct row =
-                  transactionContext.readRow(
-                      "Albums", Key.of(2, 2), Arrays.asList("MarketingBudget"));
+                  transactionContext.readRow("Albums", Key.of(2, 2), MARKETING_BUDGET_COLUMN);
               long album2Budget = row.getLong(0);
               // Transaction will only be committed if this condition still holds at the time of
               // commit. Otherwise it will be aborted and the callable will be rerun by the
@@ -239,7 +315,7 @@ class SpannerTasks {
               if (album2Budget >= 300000) {
                 long album1Budget =
                     transactionContext
-                        .readRow("Albums", Key.of(1, 1), Arrays.asList("MarketingBudget"))
+                        .readRow("Albums", Key.of(1, 1), MARKETING_BUDGET_COLUMN)
                         .getLong(0);
                 long transfer = 200000;
                 album1Budget += transfer;
@@ -271,9 +347,7 @@ class SpannerTasks {
     // Rows without an explicit value for MarketingBudget will have a MarketingBudget equal to
     // null.
     ResultSet resultSet =
-        SpannerClient.getDatabaseClient()
-            .singleUse()
-            .executeQuery(Statement.of("SELECT SingerId, AlbumId, MarketingBudget FROM Albums"));
+        SpannerClient.getDatabaseClient().singleUse().executeQuery(SELECT_MARKETING_BUDGET);
     while (resultSet.next()) {
       pw.printf(
           "%d %d %s\n",
@@ -299,15 +373,7 @@ class SpannerTasks {
   // "CREATE INDEX AlbumsByAlbumTitle ON Albums(AlbumTitle)".
   private static void queryUsingIndex(PrintWriter pw) {
     ResultSet resultSet =
-        SpannerClient.getDatabaseClient()
-            .singleUse()
-            .executeQuery(
-                // We use FORCE_INDEX hint to specify which index to use. For more details see
-                // https://cloud.google.com/spanner/docs/query-syntax#from-clause
-                Statement.of(
-                    "SELECT AlbumId, AlbumTitle, MarketingBudget\n"
-                        + "FROM Albums@{FORCE_INDEX=AlbumsByAlbumTitle}\n"
-                        + "WHERE AlbumTitle >= 'Aardvark' AND AlbumTitle < 'Goo'"));
+        SpannerClient.getDatabaseClient().singleUse().executeQuery(SELECT_ALBUMS_BY_TITLE);
     while (resultSet.next()) {
       pw.printf(
           "%d %s %s\n",
@@ -369,17 +435,13 @@ class SpannerTasks {
     // We use a try-with-resource block to automatically do so.
     try (ReadOnlyTransaction transaction =
              SpannerClient.getDatabaseClient().readOnlyTransaction()) {
-      ResultSet queryResultSet =
-          transaction.executeQuery(
-              Statement.of("SELECT SingerId, AlbumId, AlbumTitle FROM Albums"));
+      ResultSet queryResultSet = transaction.executeQuery(SELECT_ALBUMS);
       while (queryResultSet.next()) {
         pw.printf(
             "%d %d %s\n",
             queryResultSet.getLong(0), queryResultSet.getLong(1), queryResultSet.getString(2));
       }
-      ResultSet readResultSet =
-          transaction.read(
-              "Albums", KeySet.all(), Arrays.asList("SingerId", "AlbumId", "AlbumTitle"));
+      ResultSet readResultSet = transaction.read("Albums", KeySet.all(), ALBUM_COLUMNS);
       while (readResultSet.next()) {
         pw.printf(
             "%d %d %s\n",
@@ -388,6 +450,18 @@ class SpannerTasks {
     }
   }
 
+  /**
+   * Returns the tasks run when no task is requested: all of them, without the schema tasks when
+   * SPANNER_DATABASE names an existing database.
+   */
+  static List<Task> getDefaultTasks() {
+    List<Task> tasks = new ArrayList<>(Arrays.asList(Task.values()));
+    if (SpannerClient.isExistingDatabase()) {
+      tasks.removeAll(SCHEMA_TASKS);
+    }
+    return tasks;
+  }
+
   static void runTask(Task task, PrintWriter pw) throws ExecutionException, InterruptedException {
     Stopwatch stopwatch = Stopwatch.createStarted();
     switch (task) {
@@ -437,7 +511,22 @@ class SpannerTasks {
         break;
     }
     stopwatch.stop();
+    TASK_STATS.get(task).record(stopwatch.elapsed(TimeUnit.MILLISECONDS));
     pw.println(task + " in milliseconds : " + stopwatch.elapsed(TimeUnit.MILLISECONDS));
     pw.println("====================================================================");
   }
+
+  static void printStats(PrintWriter pw) {
+    pw.println("task count avg_ms max_ms");
+    for (Map.Entry<Task, TaskStats> entry : TASK_STATS.entrySet()) {
+      TaskStats stats = entry.getValue();
+      long count = stats.getCount();
+      if (count == 0) {
+        continue;
+      }
+      pw.printf(
+          "%s %d %d %d\n",
+          entry.getKey(), count, stats.getTotalMillis() / count, stats.getMaxMillis());
+    }
+  }
 }
@@ -136,6 +136,25 @@ public class SpannerGroupWriteIT {
           "--runner=DirectRunner"
         });
 
+    assertUsersBlocked();
+  }
+
+  @Test
+  public void testEndToEndWithSmallBatches() {
+    SpannerGroupWrite.main(
+        new String[] {
+          "--instanceId=" + instanceId,
+          "--databaseId=" + databaseId,
+          "--suspiciousUsersFile=" + tempPath,
+          "--batchSizeBytes=1024",
+          "--maxNumMutations=10",
+          "--runner=DirectRunner"
+        });
+
+    assertUsersBlocked();
+  }
+
+  private void assertUsersBlocked() {
     DatabaseClient dbClient = getDbClient();
     try (ReadContext context = dbClient.singleUse()) {
       ResultSet rs =
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.dlp;
+
+// [START dlp_job_completion_dispatcher]
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.rpc.ApiException;
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.cloud.pubsub.v1.Subscriber;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.privacy.dlp.v2.DlpJob;
+import com.google.privacy.dlp.v2.GetDlpJobRequest;
+import com.google.pubsub.v1.ProjectSubscriptionName;
+import com.google.pubsub.v1.PubsubMessage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Waits for any number of DLP jobs with a single Pub/Sub subscriber.
+ *
+ * <p>When a job with a Pub/Sub action finishes, DLP publishes a message with a {@code DlpJobName}
+ * attribute to the action's topic. The dispatcher receives every message of one subscription and
+ * gets the state of the job it names, completing that job's future once the state is final. A
+ * notification can arrive before {@code getDlpJob} reports the final state, and it can be lost, so
+ * every job is also polled at intervals that double from {@code minPollMillis} to {@code
+ * maxPollMillis}. A notification resets the interval.
+ *
+ * <p>Notifications for jobs that are not being watched are acknowledged, and remembered for a while
+ * in case the job is watched just after it finished.
+ */
+public class JobCompletionDispatcher implements MessageReceiver, AutoCloseable {
+
+  /** Gets the current state of a job. */
+  public interface JobFetcher {
+    ApiFuture<DlpJob> getJob(String jobName);
+  }
+
+  public static final long DEFAULT_MIN_POLL_MILLIS = 500;
+  public static final long DEFAULT_MAX_POLL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  private static final int MAX_EARLY_NOTIFICATIONS = 1000;
+  private static final String JOB_NAME_ATTRIBUTE = "DlpJobName";
+
+  private final JobFetcher fetcher;
+  private final ScheduledExecutorService scheduler;
+  private final boolean ownsScheduler;
+  private final long minPollMillis;
+  private final long maxPollMillis;
+  private final Map<String, Watch> watches = new ConcurrentHashMap<>();
+  // Jobs notified before they were watched, oldest first. Guarded by itself.
+  private final Set<String> earlyNotifications =
+      Collections.newSetFromMap(
+          new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+              return size() > MAX_EARLY_NOTIFICATIONS;
+            }
+          });
+  private final LongAdder notifications = new LongAdder();
+  private final LongAdder polls = new LongAdder();
+  private Subscriber subscriber;
+
+  /**
+   * Creates a dispatcher that gets job states with {@code dlp}, polling with the default
+   * intervals on a scheduler of its own.
+   */
+  public static JobCompletionDispatcher create(DlpServiceClient dlp) {
+    ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "dlp-job-poll");
+              thread.setDaemon(true);
+              return thread;
+            });
+    return new JobCompletionDispatcher(
+        jobName ->
+            dlp.getDlpJobCallable()
+                .futureCall(GetDlpJobRequest.newBuilder().setName(jobName).build()),
+        scheduler,
+        true,
+        DEFAULT_MIN_POLL_MILLIS,
+        DEFAULT_MAX_POLL_MILLIS);
+  }
+
+  /** Creates a dispatcher that polls on {@code scheduler}, which it does not shut down. */
+  public JobCompletionDispatcher(
+      JobFetcher fetcher,
+      ScheduledExecutorService scheduler,
+      long minPollMillis,
+      long maxPollMillis) {
+    this(fetcher, scheduler, false, minPollMillis, maxPollMillis);
+  }
+
+  private JobCompletionDispatcher(
+      JobFetcher fetcher,
+      ScheduledExecutorService scheduler,
+      boolean ownsScheduler,
+      long minPollMillis,
+      long maxPollMillis) {
+    this.fetcher = fetcher;
+    this.scheduler = scheduler;
+    this.ownsScheduler = ownsScheduler;
+    this.minPollMillis = minPollMillis;
+    this.maxPollMillis = maxPollMillis;
+  }
+
+  /**
+   * Starts receiving job notifications from {@code subscription}. Every job watched should publish
+   * to the subscription's topic.
+   */
+  public synchronized void subscribe(ProjectSubscriptionName subscription) {
+    if (subscriber != null) {
+      throw new IllegalStateException("Already subscribed");
+    }
+    subscriber = Subscriber.newBuilder(subscription, this).build();
+    subscriber.startAsync().awaitRunning();
+  }
+
+  /**
+   * Returns a future for {@code jobName} that completes with the job once it is done, failed or
+   * canceled. Watching a job twice returns the same future.
+   */
+  public ApiFuture<DlpJob> watch(String jobName) {
+    Watch watch = new Watch(jobName);
+    Watch existing = watches.putIfAbsent(jobName, watch);
+    if (existing != null) {
+      return existing.result;
+    }
+    boolean notified;
+    synchronized (earlyNotifications) {
+      notified = earlyNotifications.remove(jobName);
+    }
+    if (notified) {
+      watch.notified();
+    } else {
+      watch.reschedule();
+    }
+    return watch.result;
+  }
+
+  @Override
+  public void receiveMessage(PubsubMessage message, AckReplyConsumer consumer) {
+    String jobName = message.getAttributesMap().get(JOB_NAME_ATTRIBUTE);
+    if (jobName != null) {
+      notifications.increment();
+      Watch watch = watches.get(jobName);
+      if (watch != null) {
+        watch.notified();
+      } else {
+        synchronized (earlyNotifications) {
+          earlyNotifications.add(jobName);
+        }
+      }
+    }
+    // Polling finds the job even if this process is not the one waiting for it.
+    consumer.ack();
+  }
+
+  /** Number of job notifications received so far. */
+  public long getNotifications() {
+    return notifications.sum();
+  }
+
+  /** Number of times a job state was requested so far. */
+  public long getPolls() {
+    return polls.sum();
+  }
+
+  /** Stops the subscriber and polling, and cancels the futures of jobs that are not done yet. */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (subscriber != null) {
+        subscriber.stopAsync().awaitTerminated();
+      }
+    }
+    for (Watch watch : new ArrayList<>(watches.values())) {
+      watch.finish(null, new CancellationException("Dispatcher was closed"));
+    }
+    if (ownsScheduler) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  private static boolean isFinal(DlpJob job) {
+    switch (job.getState()) {
+      case DONE:
+      case FAILED:
+      case CANCELED:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private class Watch {
+    final String jobName;
+    final SettableApiFuture<DlpJob> result = SettableApiFuture.create();
+    // Guarded by this.
+    long delayMillis = minPollMillis;
+    ScheduledFuture<?> nextPoll;
+    boolean polling = false;
+
+    Watch(String jobName) {
+      this.jobName = jobName;
+    }
+
+    // The job may be done: poll now, and soon again if it is not.
+    void notified() {
+      synchronized (this) {
+        delayMillis = minPollMillis;
+        if (polling) {
+          // The poll in flight reschedules with the shorter delay.
+          return;
+        }
+        if (nextPoll != null) {
+          nextPoll.cancel(false);
+          nextPoll = null;
+        }
+      }
+      poll();
+    }
+
+    void poll() {
+      synchronized (this) {
+        if (polling || result.isDone()) {
+          return;
+        }
+        polling = true;
+        nextPoll = null;
+      }
+      polls.increment();
+      ApiFuture<DlpJob> future;
+      try {
+        future = fetcher.getJob(jobName);
+      } catch (RuntimeException e) {
+        future = ApiFutures.immediateFailedFuture(e);
+      }
+      ApiFutures.addCallback(
+          future,
+          new ApiFutureCallback<DlpJob>() {
+            @Override
+            public void onSuccess(DlpJob job) {
+              if (isFinal(job)) {
+                finish(job, null);
+              } else {
+                reschedule();
+              }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              if (t instanceof ApiException && !((ApiException) t).isRetryable()) {
+                finish(null, t);
+              } else {
+                reschedule();
+              }
+            }
+          },
+          MoreExecutors.directExecutor());
+    }
+
+    synchronized void reschedule() {
+      polling = false;
+      if (result.isDone()) {
+        return;
+      }
+      long delay = delayMillis;
+      delayMillis = Math.min(delayMillis * 2, maxPollMillis);
+      try {
+        nextPoll = scheduler.schedule(this::poll, delay, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        // The dispatcher was closed.
+      }
+    }
+
+    void finish(DlpJob job, Throwable t) {
+      watches.remove(jobName, this);
+      synchronized (this) {
+        if (nextPoll != null) {
+          nextPoll.cancel(false);
+        }
+      }
+      if (t == null) {
+        result.set(job);
+      } else {
+        result.setException(t);
+      }
+    }
+  }
+}
+// [END dlp_job_completion_dispatcher]
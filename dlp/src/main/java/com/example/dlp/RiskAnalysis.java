@@ -16,9 +16,9 @@
 
 package com.example.dlp;
 
-import com.google.api.core.SettableApiFuture;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
 import com.google.cloud.dlp.v2.DlpServiceClient;
-import com.google.cloud.pubsub.v1.Subscriber;
 import com.google.privacy.dlp.v2.Action;
 import com.google.privacy.dlp.v2.Action.PublishToPubSub;
 import com.google.privacy.dlp.v2.AnalyzeDataSourceRiskDetails;
@@ -36,7 +36,6 @@ import com.google.privacy.dlp.v2.BigQueryTable;
 import com.google.privacy.dlp.v2.CreateDlpJobRequest;
 import com.google.privacy.dlp.v2.DlpJob;
 import com.google.privacy.dlp.v2.FieldId;
-import com.google.privacy.dlp.v2.GetDlpJobRequest;
 import com.google.privacy.dlp.v2.InfoType;
 import com.google.privacy.dlp.v2.PrivacyMetric;
 import com.google.privacy.dlp.v2.PrivacyMetric.CategoricalStatsConfig;
@@ -54,25 +53,34 @@ import com.google.pubsub.v1.ProjectTopicName;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
-import org.apache.commons.cli.OptionGroup;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 public class RiskAnalysis {
 
+  // How long to wait for each job once they have all been started.
+  private static final long JOB_TIMEOUT_MINUTES = 10;
+
   // [START dlp_numerical_stats]
   /**
-   * Calculate numerical statistics for a column in a BigQuery table using the DLP API.
+   * Calculate numerical statistics for a column in a BigQuery table, and print them once the job
+   * completes.
    *
    * @param projectId The Google Cloud Platform project ID to run the API call under.
    * @param datasetId The BigQuery dataset to analyze.
@@ -82,7 +90,7 @@ public class RiskAnalysis {
    * @param subscriptionId The name of the Pub/Sub subscription to use when listening for job
    *     completion status.
    */
-  private static void numericalStatsAnalysis(
+  public static void numericalStatsAnalysis(
       String projectId,
       String datasetId,
       String tableId,
@@ -90,107 +98,122 @@ public class RiskAnalysis {
       String topicId,
       String subscriptionId)
       throws Exception {
-
-    // Instantiates a client
-    try (DlpServiceClient dlpServiceClient = DlpServiceClient.create()) {
-      BigQueryTable bigQueryTable =
-          BigQueryTable.newBuilder()
-              .setTableId(tableId)
-              .setDatasetId(datasetId)
-              .setProjectId(projectId)
-              .build();
-
-      FieldId fieldId = FieldId.newBuilder().setName(columnName).build();
-
-      NumericalStatsConfig numericalStatsConfig =
-          NumericalStatsConfig.newBuilder().setField(fieldId).build();
-
-      PrivacyMetric privacyMetric =
-          PrivacyMetric.newBuilder().setNumericalStatsConfig(numericalStatsConfig).build();
-
-      String topicName = String.format("projects/%s/topics/%s", projectId, topicId);
-
-      PublishToPubSub publishToPubSub = PublishToPubSub.newBuilder().setTopic(topicName).build();
-
-      // Create action to publish job status notifications over Google Cloud Pub/Sub
-      Action action = Action.newBuilder().setPubSub(publishToPubSub).build();
-
-      RiskAnalysisJobConfig riskAnalysisJobConfig =
-          RiskAnalysisJobConfig.newBuilder()
-              .setSourceTable(bigQueryTable)
-              .setPrivacyMetric(privacyMetric)
-              .addActions(action)
-              .build();
-
-      CreateDlpJobRequest createDlpJobRequest =
-          CreateDlpJobRequest.newBuilder()
-              .setParent(ProjectName.of(projectId).toString())
-              .setRiskJob(riskAnalysisJobConfig)
-              .build();
-
-      DlpJob dlpJob = dlpServiceClient.createDlpJob(createDlpJobRequest);
-      String dlpJobName = dlpJob.getName();
-
-      final SettableApiFuture<Boolean> done = SettableApiFuture.create();
-
-      // Set up a Pub/Sub subscriber to listen on the job completion status
-      Subscriber subscriber =
-          Subscriber.newBuilder(
-                  ProjectSubscriptionName.newBuilder()
-                      .setProject(projectId)
-                      .setSubscription(subscriptionId)
-                      .build(),
-            (pubsubMessage, ackReplyConsumer) -> {
-              if (pubsubMessage.getAttributesCount() > 0
-                  && pubsubMessage.getAttributesMap().get("DlpJobName").equals(dlpJobName)) {
-                // notify job completion
-                done.set(true);
-                ackReplyConsumer.ack();
-              }
-            })
-              .build();
-      subscriber.startAsync();
+    // Instantiates a client, and a dispatcher that completes the job's future when it is done
+    try (DlpServiceClient dlpServiceClient = DlpServiceClient.create();
+        JobCompletionDispatcher dispatcher = JobCompletionDispatcher.create(dlpServiceClient)) {
+      // Listen on the job completion status, and poll for jobs whose notification is late
+      dispatcher.subscribe(ProjectSubscriptionName.of(projectId, subscriptionId));
+
+      ApiFuture<DlpJob> job =
+          numericalStatsAnalysis(
+              dlpServiceClient,
+              dispatcher,
+              projectId,
+              datasetId,
+              tableId,
+              columnName,
+              topicId);
 
       // Wait for job completion semi-synchronously
       // For long jobs, consider using a truly asynchronous execution model such as Cloud Functions
       try {
-        done.get(1, TimeUnit.MINUTES);
-        Thread.sleep(500); // Wait for the job to become available
+        printNumericalStats(job.get(10, TimeUnit.MINUTES));
       } catch (TimeoutException e) {
         System.out.println("Unable to verify job completion.");
       }
+    } catch (Exception e) {
+      System.out.println("Error in numericalStatsAnalysis: " + e.getMessage());
+    }
+  }
 
-      // Retrieve completed job status
-      DlpJob completedJob =
-          dlpServiceClient.getDlpJob(GetDlpJobRequest.newBuilder().setName(dlpJobName).build());
+  /**
+   * Calculate numerical statistics for a column in a BigQuery table using the DLP API.
+   *
+   * @param dlpServiceClient The client used to create the job.
+   * @param dispatcher Waits for the job to complete.
+   * @param projectId The Google Cloud Platform project ID to run the API call under.
+   * @param datasetId The BigQuery dataset to analyze.
+   * @param tableId The BigQuery table to analyze.
+   * @param columnName The name of the column to analyze, which must contain only numerical data.
+   * @param topicId The name of the Pub/Sub topic to notify once the job completes
+   * @return A future for the job, which completes when the job is done.
+   */
+  private static ApiFuture<DlpJob> numericalStatsAnalysis(
+      DlpServiceClient dlpServiceClient,
+      JobCompletionDispatcher dispatcher,
+      String projectId,
+      String datasetId,
+      String tableId,
+      String columnName,
+      String topicId) {
+    BigQueryTable bigQueryTable =
+        BigQueryTable.newBuilder()
+            .setTableId(tableId)
+            .setDatasetId(datasetId)
+            .setProjectId(projectId)
+            .build();
 
-      System.out.println("Job status: " + completedJob.getState());
-      AnalyzeDataSourceRiskDetails riskDetails = completedJob.getRiskDetails();
-      AnalyzeDataSourceRiskDetails.NumericalStatsResult result =
-          riskDetails.getNumericalStatsResult();
+    FieldId fieldId = FieldId.newBuilder().setName(columnName).build();
 
-      System.out.printf(
-          "Value range : [%.3f, %.3f]\n",
-          result.getMinValue().getFloatValue(), result.getMaxValue().getFloatValue());
-
-      int percent = 1;
-      Double lastValue = null;
-      for (Value quantileValue : result.getQuantileValuesList()) {
-        Double currentValue = quantileValue.getFloatValue();
-        if (lastValue == null || !lastValue.equals(currentValue)) {
-          System.out.printf("Value at %s %% quantile : %.3f", percent, currentValue);
-        }
-        lastValue = currentValue;
+    NumericalStatsConfig numericalStatsConfig =
+        NumericalStatsConfig.newBuilder().setField(fieldId).build();
+
+    PrivacyMetric privacyMetric =
+        PrivacyMetric.newBuilder().setNumericalStatsConfig(numericalStatsConfig).build();
+
+    String topicName = String.format("projects/%s/topics/%s", projectId, topicId);
+
+    PublishToPubSub publishToPubSub = PublishToPubSub.newBuilder().setTopic(topicName).build();
+
+    // Create action to publish job status notifications over Google Cloud Pub/Sub
+    Action action = Action.newBuilder().setPubSub(publishToPubSub).build();
+
+    RiskAnalysisJobConfig riskAnalysisJobConfig =
+        RiskAnalysisJobConfig.newBuilder()
+            .setSourceTable(bigQueryTable)
+            .setPrivacyMetric(privacyMetric)
+            .addActions(action)
+            .build();
+
+    CreateDlpJobRequest createDlpJobRequest =
+        CreateDlpJobRequest.newBuilder()
+            .setParent(ProjectName.of(projectId).toString())
+            .setRiskJob(riskAnalysisJobConfig)
+            .build();
+
+    DlpJob dlpJob = dlpServiceClient.createDlpJob(createDlpJobRequest);
+
+    // Completes when the job notification arrives, or when polling finds the job done
+    return dispatcher.watch(dlpJob.getName());
+  }
+
+  /** Prints the results of a numerical stats job. */
+  private static void printNumericalStats(DlpJob completedJob) {
+    System.out.println("Job status: " + completedJob.getState());
+    AnalyzeDataSourceRiskDetails riskDetails = completedJob.getRiskDetails();
+    AnalyzeDataSourceRiskDetails.NumericalStatsResult result =
+        riskDetails.getNumericalStatsResult();
+
+    System.out.printf(
+        "Value range : [%.3f, %.3f]\n",
+        result.getMinValue().getFloatValue(), result.getMaxValue().getFloatValue());
+
+    int percent = 1;
+    Double lastValue = null;
+    for (Value quantileValue : result.getQuantileValuesList()) {
+      Double currentValue = quantileValue.getFloatValue();
+      if (lastValue == null || !lastValue.equals(currentValue)) {
+        System.out.printf("Value at %s %% quantile : %.3f", percent, currentValue);
       }
-    } catch (Exception e) {
-      System.out.println("Error in categoricalStatsAnalysis: " + e.getMessage());
+      lastValue = currentValue;
     }
   }
   // [END dlp_numerical_stats]
 
   // [START dlp_categorical_stats]
   /**
-   * Calculate categorical statistics for a column in a BigQuery table using the DLP API.
+   * Calculate categorical statistics for a column in a BigQuery table, and print them once the job
+   * completes.
    *
    * @param projectId The Google Cloud Platform project ID to run the API call under.
    * @param datasetId The BigQuery dataset to analyze.
@@ -200,115 +223,130 @@ public class RiskAnalysis {
    * @param subscriptionId The name of the Pub/Sub subscription to use when listening for job
    *     completion status.
    */
-  private static void categoricalStatsAnalysis(
+  public static void categoricalStatsAnalysis(
       String projectId,
       String datasetId,
       String tableId,
       String columnName,
       String topicId,
-      String subscriptionId) {
-
-    // Instantiates a client
-    try (DlpServiceClient dlpServiceClient = DlpServiceClient.create()) {
-
-      FieldId fieldId = FieldId.newBuilder().setName(columnName).build();
-
-      CategoricalStatsConfig categoricalStatsConfig =
-          CategoricalStatsConfig.newBuilder().setField(fieldId).build();
-
-      BigQueryTable bigQueryTable =
-          BigQueryTable.newBuilder()
-              .setProjectId(projectId)
-              .setDatasetId(datasetId)
-              .setTableId(tableId)
-              .build();
-
-      PrivacyMetric privacyMetric =
-          PrivacyMetric.newBuilder().setCategoricalStatsConfig(categoricalStatsConfig).build();
-
-      ProjectTopicName topicName = ProjectTopicName.of(projectId, topicId);
-
-      PublishToPubSub publishToPubSub =
-          PublishToPubSub.newBuilder().setTopic(topicName.toString()).build();
-
-      // Create action to publish job status notifications over Google Cloud Pub/Sub
-      Action action = Action.newBuilder().setPubSub(publishToPubSub).build();
-
-      RiskAnalysisJobConfig riskAnalysisJobConfig =
-          RiskAnalysisJobConfig.newBuilder()
-              .setSourceTable(bigQueryTable)
-              .setPrivacyMetric(privacyMetric)
-              .addActions(action)
-              .build();
-
-      CreateDlpJobRequest createDlpJobRequest =
-          CreateDlpJobRequest.newBuilder()
-              .setParent(ProjectName.of(projectId).toString())
-              .setRiskJob(riskAnalysisJobConfig)
-              .build();
-
-      DlpJob dlpJob = dlpServiceClient.createDlpJob(createDlpJobRequest);
-      String dlpJobName = dlpJob.getName();
-
-      final SettableApiFuture<Boolean> done = SettableApiFuture.create();
-
-      // Set up a Pub/Sub subscriber to listen on the job completion status
-      Subscriber subscriber =
-          Subscriber.newBuilder(
-                  ProjectSubscriptionName.newBuilder()
-                      .setProject(projectId)
-                      .setSubscription(subscriptionId)
-                      .build(),
-            (pubsubMessage, ackReplyConsumer) -> {
-              if (pubsubMessage.getAttributesCount() > 0
-                  && pubsubMessage.getAttributesMap().get("DlpJobName").equals(dlpJobName)) {
-                // notify job completion
-                done.set(true);
-                ackReplyConsumer.ack();
-              }
-            })
-              .build();
-      subscriber.startAsync();
+      String subscriptionId)
+      throws Exception {
+    // Instantiates a client, and a dispatcher that completes the job's future when it is done
+    try (DlpServiceClient dlpServiceClient = DlpServiceClient.create();
+        JobCompletionDispatcher dispatcher = JobCompletionDispatcher.create(dlpServiceClient)) {
+      // Listen on the job completion status, and poll for jobs whose notification is late
+      dispatcher.subscribe(ProjectSubscriptionName.of(projectId, subscriptionId));
+
+      ApiFuture<DlpJob> job =
+          categoricalStatsAnalysis(
+              dlpServiceClient,
+              dispatcher,
+              projectId,
+              datasetId,
+              tableId,
+              columnName,
+              topicId);
 
       // Wait for job completion semi-synchronously
       // For long jobs, consider using a truly asynchronous execution model such as Cloud Functions
       try {
-        done.get(1, TimeUnit.MINUTES);
-        Thread.sleep(500); // Wait for the job to become available
+        printCategoricalStats(job.get(10, TimeUnit.MINUTES));
       } catch (TimeoutException e) {
         System.out.println("Unable to verify job completion.");
       }
+    } catch (Exception e) {
+      System.out.println("Error in categoricalStatsAnalysis: " + e.getMessage());
+    }
+  }
 
-      // Retrieve completed job status
-      DlpJob completedJob =
-          dlpServiceClient.getDlpJob(GetDlpJobRequest.newBuilder().setName(dlpJobName).build());
+  /**
+   * Calculate categorical statistics for a column in a BigQuery table using the DLP API.
+   *
+   * @param dlpServiceClient The client used to create the job.
+   * @param dispatcher Waits for the job to complete.
+   * @param projectId The Google Cloud Platform project ID to run the API call under.
+   * @param datasetId The BigQuery dataset to analyze.
+   * @param tableId The BigQuery table to analyze.
+   * @param columnName The name of the column to analyze, which need not contain numerical data.
+   * @param topicId The name of the Pub/Sub topic to notify once the job completes
+   * @return A future for the job, which completes when the job is done.
+   */
+  private static ApiFuture<DlpJob> categoricalStatsAnalysis(
+      DlpServiceClient dlpServiceClient,
+      JobCompletionDispatcher dispatcher,
+      String projectId,
+      String datasetId,
+      String tableId,
+      String columnName,
+      String topicId) {
+    FieldId fieldId = FieldId.newBuilder().setName(columnName).build();
 
-      System.out.println("Job status: " + completedJob.getState());
-      AnalyzeDataSourceRiskDetails riskDetails = completedJob.getRiskDetails();
-      AnalyzeDataSourceRiskDetails.CategoricalStatsResult result =
-          riskDetails.getCategoricalStatsResult();
+    CategoricalStatsConfig categoricalStatsConfig =
+        CategoricalStatsConfig.newBuilder().setField(fieldId).build();
 
-      for (CategoricalStatsHistogramBucket bucket :
-          result.getValueFrequencyHistogramBucketsList()) {
-        System.out.printf(
-            "Most common value occurs %d time(s).\n", bucket.getValueFrequencyUpperBound());
+    BigQueryTable bigQueryTable =
+        BigQueryTable.newBuilder()
+            .setProjectId(projectId)
+            .setDatasetId(datasetId)
+            .setTableId(tableId)
+            .build();
+
+    PrivacyMetric privacyMetric =
+        PrivacyMetric.newBuilder().setCategoricalStatsConfig(categoricalStatsConfig).build();
+
+    ProjectTopicName topicName = ProjectTopicName.of(projectId, topicId);
+
+    PublishToPubSub publishToPubSub =
+        PublishToPubSub.newBuilder().setTopic(topicName.toString()).build();
+
+    // Create action to publish job status notifications over Google Cloud Pub/Sub
+    Action action = Action.newBuilder().setPubSub(publishToPubSub).build();
+
+    RiskAnalysisJobConfig riskAnalysisJobConfig =
+        RiskAnalysisJobConfig.newBuilder()
+            .setSourceTable(bigQueryTable)
+            .setPrivacyMetric(privacyMetric)
+            .addActions(action)
+            .build();
+
+    CreateDlpJobRequest createDlpJobRequest =
+        CreateDlpJobRequest.newBuilder()
+            .setParent(ProjectName.of(projectId).toString())
+            .setRiskJob(riskAnalysisJobConfig)
+            .build();
+
+    DlpJob dlpJob = dlpServiceClient.createDlpJob(createDlpJobRequest);
+
+    // Completes when the job notification arrives, or when polling finds the job done
+    return dispatcher.watch(dlpJob.getName());
+  }
+
+  /** Prints the results of a categorical stats job. */
+  private static void printCategoricalStats(DlpJob completedJob) {
+    System.out.println("Job status: " + completedJob.getState());
+    AnalyzeDataSourceRiskDetails riskDetails = completedJob.getRiskDetails();
+    AnalyzeDataSourceRiskDetails.CategoricalStatsResult result =
+        riskDetails.getCategoricalStatsResult();
+
+    for (CategoricalStatsHistogramBucket bucket :
+        result.getValueFrequencyHistogramBucketsList()) {
+      System.out.printf(
+          "Most common value occurs %d time(s).\n", bucket.getValueFrequencyUpperBound());
+      System.out.printf(
+          "Least common value occurs %d time(s).\n", bucket.getValueFrequencyLowerBound());
+      for (ValueFrequency valueFrequency : bucket.getBucketValuesList()) {
         System.out.printf(
-            "Least common value occurs %d time(s).\n", bucket.getValueFrequencyLowerBound());
-        for (ValueFrequency valueFrequency : bucket.getBucketValuesList()) {
-          System.out.printf(
-              "Value %s occurs %d time(s).\n",
-              valueFrequency.getValue().toString(), valueFrequency.getCount());
-        }
+            "Value %s occurs %d time(s).\n",
+            valueFrequency.getValue().toString(), valueFrequency.getCount());
       }
-    } catch (Exception e) {
-      System.out.println("Error in categoricalStatsAnalysis: " + e.getMessage());
     }
   }
   // [END dlp_categorical_stats]
 
   // [START dlp_k_anonymity]
   /**
-   * Calculate k-anonymity for quasi-identifiers in a BigQuery table using the DLP API.
+   * Calculate k-anonymity for quasi-identifiers in a BigQuery table, and print it once the job
+   * completes.
    *
    * @param projectId The Google Cloud Platform project ID to run the API call under.
    * @param datasetId The BigQuery dataset to analyze.
@@ -318,7 +356,7 @@ public class RiskAnalysis {
    * @param subscriptionId The name of the Pub/Sub subscription to use when listening for job
    *     completion status.
    */
-  private static void calculateKAnonymity(
+  public static void calculateKAnonymity(
       String projectId,
       String datasetId,
       String tableId,
@@ -326,115 +364,130 @@ public class RiskAnalysis {
       String topicId,
       String subscriptionId)
       throws Exception {
-    // Instantiates a client
-    try (DlpServiceClient dlpServiceClient = DlpServiceClient.create()) {
-
-      List<FieldId> quasiIdFields =
-          quasiIds
-              .stream()
-              .map(columnName -> FieldId.newBuilder().setName(columnName).build())
-              .collect(Collectors.toList());
-
-      KAnonymityConfig kanonymityConfig =
-          KAnonymityConfig.newBuilder().addAllQuasiIds(quasiIdFields).build();
-
-      BigQueryTable bigQueryTable =
-          BigQueryTable.newBuilder()
-              .setProjectId(projectId)
-              .setDatasetId(datasetId)
-              .setTableId(tableId)
-              .build();
-
-      PrivacyMetric privacyMetric =
-          PrivacyMetric.newBuilder().setKAnonymityConfig(kanonymityConfig).build();
-
-      String topicName = String.format("projects/%s/topics/%s", projectId, topicId);
-
-      PublishToPubSub publishToPubSub = PublishToPubSub.newBuilder().setTopic(topicName).build();
-
-      // Create action to publish job status notifications over Google Cloud Pub/Sub
-      Action action = Action.newBuilder().setPubSub(publishToPubSub).build();
-
-      RiskAnalysisJobConfig riskAnalysisJobConfig =
-          RiskAnalysisJobConfig.newBuilder()
-              .setSourceTable(bigQueryTable)
-              .setPrivacyMetric(privacyMetric)
-              .addActions(action)
-              .build();
-
-      CreateDlpJobRequest createDlpJobRequest =
-          CreateDlpJobRequest.newBuilder()
-              .setParent(ProjectName.of(projectId).toString())
-              .setRiskJob(riskAnalysisJobConfig)
-              .build();
-
-      DlpJob dlpJob = dlpServiceClient.createDlpJob(createDlpJobRequest);
-      String dlpJobName = dlpJob.getName();
-
-      final SettableApiFuture<Boolean> done = SettableApiFuture.create();
-
-      // Set up a Pub/Sub subscriber to listen on the job completion status
-      Subscriber subscriber =
-          Subscriber.newBuilder(
-                  ProjectSubscriptionName.newBuilder()
-                      .setProject(projectId)
-                      .setSubscription(subscriptionId)
-                      .build(),
-            (pubsubMessage, ackReplyConsumer) -> {
-              if (pubsubMessage.getAttributesCount() > 0
-                  && pubsubMessage.getAttributesMap().get("DlpJobName").equals(dlpJobName)) {
-                // notify job completion
-                done.set(true);
-                ackReplyConsumer.ack();
-              }
-            })
-              .build();
-      subscriber.startAsync();
+    // Instantiates a client, and a dispatcher that completes the job's future when it is done
+    try (DlpServiceClient dlpServiceClient = DlpServiceClient.create();
+        JobCompletionDispatcher dispatcher = JobCompletionDispatcher.create(dlpServiceClient)) {
+      // Listen on the job completion status, and poll for jobs whose notification is late
+      dispatcher.subscribe(ProjectSubscriptionName.of(projectId, subscriptionId));
+
+      ApiFuture<DlpJob> job =
+          calculateKAnonymity(
+              dlpServiceClient,
+              dispatcher,
+              projectId,
+              datasetId,
+              tableId,
+              quasiIds,
+              topicId);
 
       // Wait for job completion semi-synchronously
       // For long jobs, consider using a truly asynchronous execution model such as Cloud Functions
       try {
-        done.get(1, TimeUnit.MINUTES);
-        Thread.sleep(500); // Wait for the job to become available
+        printKAnonymity(job.get(10, TimeUnit.MINUTES));
       } catch (TimeoutException e) {
         System.out.println("Unable to verify job completion.");
       }
+    } catch (Exception e) {
+      System.out.println("Error in calculateKAnonymity: " + e.getMessage());
+    }
+  }
 
-      // Retrieve completed job status
-      DlpJob completedJob =
-          dlpServiceClient.getDlpJob(GetDlpJobRequest.newBuilder().setName(dlpJobName).build());
+  /**
+   * Calculate k-anonymity for quasi-identifiers in a BigQuery table using the DLP API.
+   *
+   * @param dlpServiceClient The client used to create the job.
+   * @param dispatcher Waits for the job to complete.
+   * @param projectId The Google Cloud Platform project ID to run the API call under.
+   * @param datasetId The BigQuery dataset to analyze.
+   * @param tableId The BigQuery table to analyze.
+   * @param quasiIds The names of columns that form a composite key ('quasi-identifiers').
+   * @param topicId The name of the Pub/Sub topic to notify once the job completes
+   * @return A future for the job, which completes when the job is done.
+   */
+  private static ApiFuture<DlpJob> calculateKAnonymity(
+      DlpServiceClient dlpServiceClient,
+      JobCompletionDispatcher dispatcher,
+      String projectId,
+      String datasetId,
+      String tableId,
+      List<String> quasiIds,
+      String topicId) {
+    List<FieldId> quasiIdFields =
+        quasiIds
+            .stream()
+            .map(columnName -> FieldId.newBuilder().setName(columnName).build())
+            .collect(Collectors.toList());
+
+    KAnonymityConfig kanonymityConfig =
+        KAnonymityConfig.newBuilder().addAllQuasiIds(quasiIdFields).build();
+
+    BigQueryTable bigQueryTable =
+        BigQueryTable.newBuilder()
+            .setProjectId(projectId)
+            .setDatasetId(datasetId)
+            .setTableId(tableId)
+            .build();
+
+    PrivacyMetric privacyMetric =
+        PrivacyMetric.newBuilder().setKAnonymityConfig(kanonymityConfig).build();
+
+    String topicName = String.format("projects/%s/topics/%s", projectId, topicId);
+
+    PublishToPubSub publishToPubSub = PublishToPubSub.newBuilder().setTopic(topicName).build();
+
+    // Create action to publish job status notifications over Google Cloud Pub/Sub
+    Action action = Action.newBuilder().setPubSub(publishToPubSub).build();
+
+    RiskAnalysisJobConfig riskAnalysisJobConfig =
+        RiskAnalysisJobConfig.newBuilder()
+            .setSourceTable(bigQueryTable)
+            .setPrivacyMetric(privacyMetric)
+            .addActions(action)
+            .build();
+
+    CreateDlpJobRequest createDlpJobRequest =
+        CreateDlpJobRequest.newBuilder()
+            .setParent(ProjectName.of(projectId).toString())
+            .setRiskJob(riskAnalysisJobConfig)
+            .build();
+
+    DlpJob dlpJob = dlpServiceClient.createDlpJob(createDlpJobRequest);
+
+    // Completes when the job notification arrives, or when polling finds the job done
+    return dispatcher.watch(dlpJob.getName());
+  }
 
-      System.out.println("Job status: " + completedJob.getState());
-      AnalyzeDataSourceRiskDetails riskDetails = completedJob.getRiskDetails();
+  /** Prints the results of a k-anonymity job. */
+  private static void printKAnonymity(DlpJob completedJob) {
+    System.out.println("Job status: " + completedJob.getState());
+    AnalyzeDataSourceRiskDetails riskDetails = completedJob.getRiskDetails();
 
-      KAnonymityResult kanonymityResult = riskDetails.getKAnonymityResult();
-      for (KAnonymityHistogramBucket result :
-          kanonymityResult.getEquivalenceClassHistogramBucketsList()) {
-        System.out.printf(
-            "Bucket size range: [%d, %d]\n",
-            result.getEquivalenceClassSizeLowerBound(), result.getEquivalenceClassSizeUpperBound());
-
-        for (KAnonymityEquivalenceClass bucket : result.getBucketValuesList()) {
-          List<String> quasiIdValues =
-              bucket
-                  .getQuasiIdsValuesList()
-                  .stream()
-                  .map(v -> v.toString())
-                  .collect(Collectors.toList());
-
-          System.out.println("\tQuasi-ID values: " + String.join(", ", quasiIdValues));
-          System.out.println("\tClass size: " + bucket.getEquivalenceClassSize());
-        }
+    KAnonymityResult kanonymityResult = riskDetails.getKAnonymityResult();
+    for (KAnonymityHistogramBucket result :
+        kanonymityResult.getEquivalenceClassHistogramBucketsList()) {
+      System.out.printf(
+          "Bucket size range: [%d, %d]\n",
+          result.getEquivalenceClassSizeLowerBound(), result.getEquivalenceClassSizeUpperBound());
+
+      for (KAnonymityEquivalenceClass bucket : result.getBucketValuesList()) {
+        List<String> quasiIdValues =
+            bucket
+                .getQuasiIdsValuesList()
+                .stream()
+                .map(v -> v.toString())
+                .collect(Collectors.toList());
+
+        System.out.println("\tQuasi-ID values: " + String.join(", ", quasiIdValues));
+        System.out.println("\tClass size: " + bucket.getEquivalenceClassSize());
       }
-    } catch (Exception e) {
-      System.out.println("Error in calculateKAnonymity: " + e.getMessage());
     }
   }
   // [END dlp_k_anonymity]
 
   // [START dlp_l_diversity]
   /**
-   * Calculate l-diversity for an attribute relative to quasi-identifiers in a BigQuery table.
+   * Calculate l-diversity for an attribute relative to quasi-identifiers in a BigQuery table, and
+   * print it once the job completes.
    *
    * @param projectId The Google Cloud Platform project ID to run the API call under.
    * @param datasetId The BigQuery dataset to analyze.
@@ -445,7 +498,7 @@ public class RiskAnalysis {
    * @param subscriptionId The name of the Pub/Sub subscription to use when listening for job
    *     completion status.
    */
-  private static void calculateLDiversity(
+  public static void calculateLDiversity(
       String projectId,
       String datasetId,
       String tableId,
@@ -454,116 +507,132 @@ public class RiskAnalysis {
       String topicId,
       String subscriptionId)
       throws Exception {
-
-    // Instantiates a client
-    try (DlpServiceClient dlpServiceClient = DlpServiceClient.create()) {
-
-      FieldId sensitiveAttributeField = FieldId.newBuilder().setName(sensitiveAttribute).build();
-
-      List<FieldId> quasiIdFields =
-          quasiIds
-              .stream()
-              .map(columnName -> FieldId.newBuilder().setName(columnName).build())
-              .collect(Collectors.toList());
-
-      LDiversityConfig ldiversityConfig =
-          LDiversityConfig.newBuilder()
-              .addAllQuasiIds(quasiIdFields)
-              .setSensitiveAttribute(sensitiveAttributeField)
-              .build();
-
-      BigQueryTable bigQueryTable =
-          BigQueryTable.newBuilder()
-              .setProjectId(projectId)
-              .setDatasetId(datasetId)
-              .setTableId(tableId)
-              .build();
-
-      PrivacyMetric privacyMetric =
-          PrivacyMetric.newBuilder().setLDiversityConfig(ldiversityConfig).build();
-
-      String topicName = String.format("projects/%s/topics/%s", projectId, topicId);
-
-      PublishToPubSub publishToPubSub = PublishToPubSub.newBuilder().setTopic(topicName).build();
-
-      // Create action to publish job status notifications over Google Cloud Pub/Sub
-      Action action = Action.newBuilder().setPubSub(publishToPubSub).build();
-
-      RiskAnalysisJobConfig riskAnalysisJobConfig =
-          RiskAnalysisJobConfig.newBuilder()
-              .setSourceTable(bigQueryTable)
-              .setPrivacyMetric(privacyMetric)
-              .addActions(action)
-              .build();
-
-      CreateDlpJobRequest createDlpJobRequest =
-          CreateDlpJobRequest.newBuilder()
-              .setParent(ProjectName.of(projectId).toString())
-              .setRiskJob(riskAnalysisJobConfig)
-              .build();
-
-      DlpJob dlpJob = dlpServiceClient.createDlpJob(createDlpJobRequest);
-      String dlpJobName = dlpJob.getName();
-
-      final SettableApiFuture<Boolean> done = SettableApiFuture.create();
-
-      // Set up a Pub/Sub subscriber to listen on the job completion status
-      Subscriber subscriber =
-          Subscriber.newBuilder(
-                  ProjectSubscriptionName.newBuilder()
-                      .setProject(projectId)
-                      .setSubscription(subscriptionId)
-                      .build(),
-            (pubsubMessage, ackReplyConsumer) -> {
-              if (pubsubMessage.getAttributesCount() > 0
-                  && pubsubMessage.getAttributesMap().get("DlpJobName").equals(dlpJobName)) {
-                // notify job completion
-                done.set(true);
-                ackReplyConsumer.ack();
-              }
-            })
-              .build();
-      subscriber.startAsync();
+    // Instantiates a client, and a dispatcher that completes the job's future when it is done
+    try (DlpServiceClient dlpServiceClient = DlpServiceClient.create();
+        JobCompletionDispatcher dispatcher = JobCompletionDispatcher.create(dlpServiceClient)) {
+      // Listen on the job completion status, and poll for jobs whose notification is late
+      dispatcher.subscribe(ProjectSubscriptionName.of(projectId, subscriptionId));
+
+      ApiFuture<DlpJob> job =
+          calculateLDiversity(
+              dlpServiceClient,
+              dispatcher,
+              projectId,
+              datasetId,
+              tableId,
+              sensitiveAttribute,
+              quasiIds,
+              topicId);
 
       // Wait for job completion semi-synchronously
       // For long jobs, consider using a truly asynchronous execution model such as Cloud Functions
       try {
-        done.get(1, TimeUnit.MINUTES);
-        Thread.sleep(500); // Wait for the job to become available
+        printLDiversity(job.get(10, TimeUnit.MINUTES));
       } catch (TimeoutException e) {
         System.out.println("Unable to verify job completion.");
       }
+    } catch (Exception e) {
+      System.out.println("Error in calculateLDiversity: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Calculate l-diversity for an attribute relative to quasi-identifiers in a BigQuery table.
+   *
+   * @param dlpServiceClient The client used to create the job.
+   * @param dispatcher Waits for the job to complete.
+   * @param projectId The Google Cloud Platform project ID to run the API call under.
+   * @param datasetId The BigQuery dataset to analyze.
+   * @param tableId The BigQuery table to analyze.
+   * @param sensitiveAttribute The name of the attribute to compare the quasi-ID against
+   * @param quasiIds A set of column names that form a composite key ('quasi-identifiers').
+   * @param topicId The name of the Pub/Sub topic to notify once the job completes
+   * @return A future for the job, which completes when the job is done.
+   */
+  private static ApiFuture<DlpJob> calculateLDiversity(
+      DlpServiceClient dlpServiceClient,
+      JobCompletionDispatcher dispatcher,
+      String projectId,
+      String datasetId,
+      String tableId,
+      String sensitiveAttribute,
+      List<String> quasiIds,
+      String topicId) {
+    FieldId sensitiveAttributeField = FieldId.newBuilder().setName(sensitiveAttribute).build();
+
+    List<FieldId> quasiIdFields =
+        quasiIds
+            .stream()
+            .map(columnName -> FieldId.newBuilder().setName(columnName).build())
+            .collect(Collectors.toList());
+
+    LDiversityConfig ldiversityConfig =
+        LDiversityConfig.newBuilder()
+            .addAllQuasiIds(quasiIdFields)
+            .setSensitiveAttribute(sensitiveAttributeField)
+            .build();
+
+    BigQueryTable bigQueryTable =
+        BigQueryTable.newBuilder()
+            .setProjectId(projectId)
+            .setDatasetId(datasetId)
+            .setTableId(tableId)
+            .build();
+
+    PrivacyMetric privacyMetric =
+        PrivacyMetric.newBuilder().setLDiversityConfig(ldiversityConfig).build();
+
+    String topicName = String.format("projects/%s/topics/%s", projectId, topicId);
+
+    PublishToPubSub publishToPubSub = PublishToPubSub.newBuilder().setTopic(topicName).build();
+
+    // Create action to publish job status notifications over Google Cloud Pub/Sub
+    Action action = Action.newBuilder().setPubSub(publishToPubSub).build();
+
+    RiskAnalysisJobConfig riskAnalysisJobConfig =
+        RiskAnalysisJobConfig.newBuilder()
+            .setSourceTable(bigQueryTable)
+            .setPrivacyMetric(privacyMetric)
+            .addActions(action)
+            .build();
+
+    CreateDlpJobRequest createDlpJobRequest =
+        CreateDlpJobRequest.newBuilder()
+            .setParent(ProjectName.of(projectId).toString())
+            .setRiskJob(riskAnalysisJobConfig)
+            .build();
+
+    DlpJob dlpJob = dlpServiceClient.createDlpJob(createDlpJobRequest);
+
+    // Completes when the job notification arrives, or when polling finds the job done
+    return dispatcher.watch(dlpJob.getName());
+  }
 
-      // retrieve completed job status
-      DlpJob completedJob =
-          dlpServiceClient.getDlpJob(GetDlpJobRequest.newBuilder().setName(dlpJobName).build());
-
-      System.out.println("Job status: " + completedJob.getState());
-      AnalyzeDataSourceRiskDetails riskDetails = completedJob.getRiskDetails();
-
-      LDiversityResult ldiversityResult = riskDetails.getLDiversityResult();
-      for (LDiversityHistogramBucket result :
-          ldiversityResult.getSensitiveValueFrequencyHistogramBucketsList()) {
-        for (LDiversityEquivalenceClass bucket : result.getBucketValuesList()) {
-          List<String> quasiIdValues =
-              bucket
-                  .getQuasiIdsValuesList()
-                  .stream()
-                  .map(Value::toString)
-                  .collect(Collectors.toList());
-
-          System.out.println("\tQuasi-ID values: " + String.join(", ", quasiIdValues));
-          System.out.println("\tClass size: " + bucket.getEquivalenceClassSize());
-
-          for (ValueFrequency valueFrequency : bucket.getTopSensitiveValuesList()) {
-            System.out.printf(
-                "\t\tSensitive value %s occurs %d time(s).\n",
-                valueFrequency.getValue().toString(), valueFrequency.getCount());
-          }
+  /** Prints the results of an l-diversity job. */
+  private static void printLDiversity(DlpJob completedJob) {
+    System.out.println("Job status: " + completedJob.getState());
+    AnalyzeDataSourceRiskDetails riskDetails = completedJob.getRiskDetails();
+
+    LDiversityResult ldiversityResult = riskDetails.getLDiversityResult();
+    for (LDiversityHistogramBucket result :
+        ldiversityResult.getSensitiveValueFrequencyHistogramBucketsList()) {
+      for (LDiversityEquivalenceClass bucket : result.getBucketValuesList()) {
+        List<String> quasiIdValues =
+            bucket
+                .getQuasiIdsValuesList()
+                .stream()
+                .map(Value::toString)
+                .collect(Collectors.toList());
+
+        System.out.println("\tQuasi-ID values: " + String.join(", ", quasiIdValues));
+        System.out.println("\tClass size: " + bucket.getEquivalenceClassSize());
+
+        for (ValueFrequency valueFrequency : bucket.getTopSensitiveValuesList()) {
+          System.out.printf(
+              "\t\tSensitive value %s occurs %d time(s).\n",
+              valueFrequency.getValue().toString(), valueFrequency.getCount());
         }
       }
-    } catch (Exception e) {
-      System.out.println("Error in calculateLDiversity: " + e.getMessage());
     }
   }
   // [END dlp_l_diversity]
@@ -571,7 +640,7 @@ public class RiskAnalysis {
   // [START dlp_k_map]
   /**
    * Calculate k-map risk estimation for an attribute relative to quasi-identifiers in a BigQuery
-   * table.
+   * table, and print it once the job completes.
    *
    * @param projectId The Google Cloud Platform project ID to run the API call under.
    * @param datasetId The BigQuery dataset to analyze.
@@ -583,7 +652,7 @@ public class RiskAnalysis {
    * @param subscriptionId The name of the Pub/Sub subscription to use when listening for job
    *     completion status.
    */
-  private static void calculateKMap(
+  public static void calculateKMap(
       String projectId,
       String datasetId,
       String tableId,
@@ -593,158 +662,184 @@ public class RiskAnalysis {
       String topicId,
       String subscriptionId)
       throws Exception {
-
-    // Instantiates a client
-    try (DlpServiceClient dlpServiceClient = DlpServiceClient.create()) {
-
-      Iterator<String> quasiIdsIterator = quasiIds.iterator();
-      Iterator<InfoType> infoTypesIterator = infoTypes.iterator();
-
-      if (quasiIds.size() != infoTypes.size()) {
-        throw new IllegalArgumentException("The numbers of quasi-IDs and infoTypes must be equal!");
-      }
-
-      ArrayList<TaggedField> taggedFields = new ArrayList();
-
-      while (quasiIdsIterator.hasNext() || infoTypesIterator.hasNext()) {
-        taggedFields.add(
-            TaggedField.newBuilder()
-                .setField(FieldId.newBuilder().setName(quasiIdsIterator.next()).build())
-                .setInfoType(infoTypesIterator.next())
-                .build());
-      }
-
-      KMapEstimationConfig kmapConfig =
-          KMapEstimationConfig.newBuilder()
-              .addAllQuasiIds(taggedFields)
-              .setRegionCode(regionCode)
-              .build();
-
-      BigQueryTable bigQueryTable =
-          BigQueryTable.newBuilder()
-              .setProjectId(projectId)
-              .setDatasetId(datasetId)
-              .setTableId(tableId)
-              .build();
-
-      PrivacyMetric privacyMetric =
-          PrivacyMetric.newBuilder().setKMapEstimationConfig(kmapConfig).build();
-
-      String topicName = String.format("projects/%s/topics/%s", projectId, topicId);
-
-      PublishToPubSub publishToPubSub = PublishToPubSub.newBuilder().setTopic(topicName).build();
-
-      // Create action to publish job status notifications over Google Cloud Pub/Sub
-      Action action = Action.newBuilder().setPubSub(publishToPubSub).build();
-
-      RiskAnalysisJobConfig riskAnalysisJobConfig =
-          RiskAnalysisJobConfig.newBuilder()
-              .setSourceTable(bigQueryTable)
-              .setPrivacyMetric(privacyMetric)
-              .addActions(action)
-              .build();
-
-      CreateDlpJobRequest createDlpJobRequest =
-          CreateDlpJobRequest.newBuilder()
-              .setParent(ProjectName.of(projectId).toString())
-              .setRiskJob(riskAnalysisJobConfig)
-              .build();
-
-      DlpJob dlpJob = dlpServiceClient.createDlpJob(createDlpJobRequest);
-      String dlpJobName = dlpJob.getName();
-
-      final SettableApiFuture<Boolean> done = SettableApiFuture.create();
-
-      // Set up a Pub/Sub subscriber to listen on the job completion status
-      Subscriber subscriber =
-          Subscriber.newBuilder(
-                  ProjectSubscriptionName.newBuilder()
-                      .setProject(projectId)
-                      .setSubscription(subscriptionId)
-                      .build(),
-            (pubsubMessage, ackReplyConsumer) -> {
-              if (pubsubMessage.getAttributesCount() > 0
-                  && pubsubMessage.getAttributesMap().get("DlpJobName").equals(dlpJobName)) {
-                // notify job completion
-                done.set(true);
-                ackReplyConsumer.ack();
-              }
-            })
-              .build();
-      subscriber.startAsync();
+    // Instantiates a client, and a dispatcher that completes the job's future when it is done
+    try (DlpServiceClient dlpServiceClient = DlpServiceClient.create();
+        JobCompletionDispatcher dispatcher = JobCompletionDispatcher.create(dlpServiceClient)) {
+      // Listen on the job completion status, and poll for jobs whose notification is late
+      dispatcher.subscribe(ProjectSubscriptionName.of(projectId, subscriptionId));
+
+      ApiFuture<DlpJob> job =
+          calculateKMap(
+              dlpServiceClient,
+              dispatcher,
+              projectId,
+              datasetId,
+              tableId,
+              quasiIds,
+              infoTypes,
+              regionCode,
+              topicId);
 
       // Wait for job completion semi-synchronously
       // For long jobs, consider using a truly asynchronous execution model such as Cloud Functions
       try {
-        done.get(1, TimeUnit.MINUTES);
-        Thread.sleep(500); // Wait for the job to become available
+        printKMap(job.get(10, TimeUnit.MINUTES));
       } catch (TimeoutException e) {
         System.out.println("Unable to verify job completion.");
       }
+    } catch (Exception e) {
+      System.out.println("Error in calculateKMap: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Calculate k-map risk estimation for an attribute relative to quasi-identifiers in a BigQuery
+   * table.
+   *
+   * @param dlpServiceClient The client used to create the job.
+   * @param dispatcher Waits for the job to complete.
+   * @param projectId The Google Cloud Platform project ID to run the API call under.
+   * @param datasetId The BigQuery dataset to analyze.
+   * @param tableId The BigQuery table to analyze.
+   * @param quasiIds A set of column names that form a composite key ('quasi-identifiers').
+   * @param infoTypes The infoTypes corresponding to each quasi-id column
+   * @param regionCode An ISO-3166-1 region code specifying the k-map distribution region
+   * @param topicId The name of the Pub/Sub topic to notify once the job completes
+   * @return A future for the job, which completes when the job is done.
+   */
+  private static ApiFuture<DlpJob> calculateKMap(
+      DlpServiceClient dlpServiceClient,
+      JobCompletionDispatcher dispatcher,
+      String projectId,
+      String datasetId,
+      String tableId,
+      List<String> quasiIds,
+      List<InfoType> infoTypes,
+      String regionCode,
+      String topicId) {
+    Iterator<String> quasiIdsIterator = quasiIds.iterator();
+    Iterator<InfoType> infoTypesIterator = infoTypes.iterator();
+
+    if (quasiIds.size() != infoTypes.size()) {
+      throw new IllegalArgumentException("The numbers of quasi-IDs and infoTypes must be equal!");
+    }
+
+    ArrayList<TaggedField> taggedFields = new ArrayList();
+
+    while (quasiIdsIterator.hasNext() || infoTypesIterator.hasNext()) {
+      taggedFields.add(
+          TaggedField.newBuilder()
+              .setField(FieldId.newBuilder().setName(quasiIdsIterator.next()).build())
+              .setInfoType(infoTypesIterator.next())
+              .build());
+    }
+
+    KMapEstimationConfig kmapConfig =
+        KMapEstimationConfig.newBuilder()
+            .addAllQuasiIds(taggedFields)
+            .setRegionCode(regionCode)
+            .build();
+
+    BigQueryTable bigQueryTable =
+        BigQueryTable.newBuilder()
+            .setProjectId(projectId)
+            .setDatasetId(datasetId)
+            .setTableId(tableId)
+            .build();
+
+    PrivacyMetric privacyMetric =
+        PrivacyMetric.newBuilder().setKMapEstimationConfig(kmapConfig).build();
+
+    String topicName = String.format("projects/%s/topics/%s", projectId, topicId);
+
+    PublishToPubSub publishToPubSub = PublishToPubSub.newBuilder().setTopic(topicName).build();
+
+    // Create action to publish job status notifications over Google Cloud Pub/Sub
+    Action action = Action.newBuilder().setPubSub(publishToPubSub).build();
+
+    RiskAnalysisJobConfig riskAnalysisJobConfig =
+        RiskAnalysisJobConfig.newBuilder()
+            .setSourceTable(bigQueryTable)
+            .setPrivacyMetric(privacyMetric)
+            .addActions(action)
+            .build();
+
+    CreateDlpJobRequest createDlpJobRequest =
+        CreateDlpJobRequest.newBuilder()
+            .setParent(ProjectName.of(projectId).toString())
+            .setRiskJob(riskAnalysisJobConfig)
+            .build();
+
+    DlpJob dlpJob = dlpServiceClient.createDlpJob(createDlpJobRequest);
 
-      // retrieve completed job status
-      DlpJob completedJob =
-          dlpServiceClient.getDlpJob(GetDlpJobRequest.newBuilder().setName(dlpJobName).build());
+    // Completes when the job notification arrives, or when polling finds the job done
+    return dispatcher.watch(dlpJob.getName());
+  }
 
-      System.out.println("Job status: " + completedJob.getState());
-      AnalyzeDataSourceRiskDetails riskDetails = completedJob.getRiskDetails();
+  /** Prints the results of a k-map job. */
+  private static void printKMap(DlpJob completedJob) {
+    System.out.println("Job status: " + completedJob.getState());
+    AnalyzeDataSourceRiskDetails riskDetails = completedJob.getRiskDetails();
 
-      KMapEstimationResult kmapResult = riskDetails.getKMapEstimationResult();
-      for (KMapEstimationHistogramBucket result : kmapResult.getKMapEstimationHistogramList()) {
+    KMapEstimationResult kmapResult = riskDetails.getKMapEstimationResult();
+    for (KMapEstimationHistogramBucket result : kmapResult.getKMapEstimationHistogramList()) {
 
+      System.out.printf(
+          "\tAnonymity range: [%d, %d]\n", result.getMinAnonymity(), result.getMaxAnonymity());
+      System.out.printf("\tSize: %d\n", result.getBucketSize());
+
+      for (KMapEstimationQuasiIdValues valueBucket : result.getBucketValuesList()) {
+        String quasiIdValues =
+            valueBucket
+                .getQuasiIdsValuesList()
+                .stream()
+                .map(
+                    v -> {
+                      String s = v.toString();
+                      return s.substring(s.indexOf(':') + 1).trim();
+                    })
+                .collect(Collectors.joining(", "));
+
+        System.out.printf("\tValues: {%s}\n", quasiIdValues);
         System.out.printf(
-            "\tAnonymity range: [%d, %d]\n", result.getMinAnonymity(), result.getMaxAnonymity());
-        System.out.printf("\tSize: %d\n", result.getBucketSize());
-
-        for (KMapEstimationQuasiIdValues valueBucket : result.getBucketValuesList()) {
-          String quasiIdValues =
-              valueBucket
-                  .getQuasiIdsValuesList()
-                  .stream()
-                  .map(
-                      v -> {
-                        String s = v.toString();
-                        return s.substring(s.indexOf(':') + 1).trim();
-                      })
-                  .collect(Collectors.joining(", "));
-
-          System.out.printf("\tValues: {%s}\n", quasiIdValues);
-          System.out.printf(
-              "\tEstimated k-map anonymity: %d\n", valueBucket.getEstimatedAnonymity());
-        }
+            "\tEstimated k-map anonymity: %d\n", valueBucket.getEstimatedAnonymity());
       }
-    } catch (Exception e) {
-      System.out.println("Error in calculateKMap: " + e.getMessage());
     }
   }
   // [END dlp_k_map]
 
+  // Returns a failed future if the job could not be created, so it is reported with the others.
+  private static ApiFuture<DlpJob> startJob(Supplier<ApiFuture<DlpJob>> start) {
+    try {
+      return start.get();
+    } catch (RuntimeException e) {
+      return ApiFutures.immediateFailedFuture(e);
+    }
+  }
+
   /**
    * Command line application to perform risk analysis using the Data Loss Prevention API. Supported
    * data format: BigQuery tables
    */
   public static void main(String[] args) throws Exception {
 
-    OptionGroup optionsGroup = new OptionGroup();
-    optionsGroup.setRequired(true);
+    // Any number of analyses can be run at once.
+    Options commandLineOptions = new Options();
 
     Option numericalAnalysisOption = new Option("n", "numerical");
-    optionsGroup.addOption(numericalAnalysisOption);
+    commandLineOptions.addOption(numericalAnalysisOption);
 
     Option categoricalAnalysisOption = new Option("c", "categorical");
-    optionsGroup.addOption(categoricalAnalysisOption);
+    commandLineOptions.addOption(categoricalAnalysisOption);
 
     Option kanonymityOption = new Option("a", "kAnonymity");
-    optionsGroup.addOption(kanonymityOption);
+    commandLineOptions.addOption(kanonymityOption);
 
-    Option kmapOption = new Option("m", "kAnonymity");
-    optionsGroup.addOption(kmapOption);
+    Option kmapOption = new Option("m", "kMap");
+    commandLineOptions.addOption(kmapOption);
 
     Option ldiversityOption = new Option("l", "lDiversity");
-    optionsGroup.addOption(ldiversityOption);
-
-    Options commandLineOptions = new Options();
-    commandLineOptions.addOptionGroup(optionsGroup);
+    commandLineOptions.addOption(ldiversityOption);
 
     Option datasetIdOption = Option.builder("datasetId").hasArg(true).required(false).build();
     commandLineOptions.addOption(datasetIdOption);
@@ -787,6 +882,10 @@ public class RiskAnalysis {
 
     try {
       cmd = parser.parse(commandLineOptions, args);
+      if (!(cmd.hasOption("n") || cmd.hasOption("c") || cmd.hasOption("a") || cmd.hasOption("m")
+          || cmd.hasOption("l"))) {
+        throw new ParseException("Missing analysis: one or more of -n, -c, -a, -m, -l");
+      }
     } catch (ParseException e) {
       System.out.println(e.getMessage());
       formatter.printHelp(RiskAnalysis.class.getName(), commandLineOptions);
@@ -814,46 +913,120 @@ public class RiskAnalysis {
       }
     }
 
-    if (cmd.hasOption("n")) {
-      // numerical stats analysis
-      String columnName = cmd.getOptionValue(columnNameOption.getOpt());
-      numericalStatsAnalysis(projectId, datasetId, tableId, columnName, topicId, subscriptionId);
-    } else if (cmd.hasOption("c")) {
-      // categorical stats analysis
-      String columnName = cmd.getOptionValue(columnNameOption.getOpt());
-      categoricalStatsAnalysis(projectId, datasetId, tableId, columnName, topicId, subscriptionId);
-    } else if (cmd.hasOption("a")) {
-      // k-anonymity analysis
-      List<String> quasiIdColumnNames =
-          Arrays.asList(cmd.getOptionValues(quasiIdColumnNamesOption.getOpt()));
-      calculateKAnonymity(
-          projectId, datasetId, tableId, quasiIdColumnNames, topicId, subscriptionId);
-    } else if (cmd.hasOption("m")) {
-      // k-map analysis
-      List<String> quasiIdColumnNames =
-          Arrays.asList(cmd.getOptionValues(quasiIdColumnNamesOption.getOpt()));
-      calculateKMap(
-          projectId,
-          datasetId,
-          tableId,
-          quasiIdColumnNames,
-          infoTypesList,
-          regionCode,
-          topicId,
-          subscriptionId);
-    } else if (cmd.hasOption("l")) {
-      // l-diversity analysis
-      String sensitiveAttribute = cmd.getOptionValue(sensitiveAttributeOption.getOpt());
-      List<String> quasiIdColumnNames =
-          Arrays.asList(cmd.getOptionValues(quasiIdColumnNamesOption.getOpt()));
-      calculateLDiversity(
-          projectId,
-          datasetId,
-          tableId,
-          sensitiveAttribute,
-          quasiIdColumnNames,
-          topicId,
-          subscriptionId);
+    Map<String, ApiFuture<DlpJob>> jobs = new LinkedHashMap<>();
+    Map<String, Consumer<DlpJob>> printers = new HashMap<>();
+    try (DlpServiceClient dlpServiceClient = DlpServiceClient.create();
+        JobCompletionDispatcher dispatcher = JobCompletionDispatcher.create(dlpServiceClient)) {
+      // A single subscriber receives the completion notifications of every job
+      dispatcher.subscribe(ProjectSubscriptionName.of(projectId, subscriptionId));
+
+      // Start every analysis before waiting for any of them, so the jobs run concurrently
+      if (cmd.hasOption("n")) {
+        // numerical stats analysis
+        String columnName = cmd.getOptionValue(columnNameOption.getOpt());
+        jobs.put(
+            "numericalStatsAnalysis",
+            startJob(
+                () ->
+                    numericalStatsAnalysis(
+                        dlpServiceClient,
+                        dispatcher,
+                        projectId,
+                        datasetId,
+                        tableId,
+                        columnName,
+                        topicId)));
+        printers.put("numericalStatsAnalysis", RiskAnalysis::printNumericalStats);
+      }
+      if (cmd.hasOption("c")) {
+        // categorical stats analysis
+        String columnName = cmd.getOptionValue(columnNameOption.getOpt());
+        jobs.put(
+            "categoricalStatsAnalysis",
+            startJob(
+                () ->
+                    categoricalStatsAnalysis(
+                        dlpServiceClient,
+                        dispatcher,
+                        projectId,
+                        datasetId,
+                        tableId,
+                        columnName,
+                        topicId)));
+        printers.put("categoricalStatsAnalysis", RiskAnalysis::printCategoricalStats);
+      }
+      if (cmd.hasOption("a")) {
+        // k-anonymity analysis
+        List<String> quasiIdColumnNames =
+            Arrays.asList(cmd.getOptionValues(quasiIdColumnNamesOption.getOpt()));
+        jobs.put(
+            "calculateKAnonymity",
+            startJob(
+                () ->
+                    calculateKAnonymity(
+                        dlpServiceClient,
+                        dispatcher,
+                        projectId,
+                        datasetId,
+                        tableId,
+                        quasiIdColumnNames,
+                        topicId)));
+        printers.put("calculateKAnonymity", RiskAnalysis::printKAnonymity);
+      }
+      if (cmd.hasOption("m")) {
+        // k-map analysis
+        List<String> quasiIdColumnNames =
+            Arrays.asList(cmd.getOptionValues(quasiIdColumnNamesOption.getOpt()));
+        List<InfoType> infoTypes = infoTypesList;
+        jobs.put(
+            "calculateKMap",
+            startJob(
+                () ->
+                    calculateKMap(
+                        dlpServiceClient,
+                        dispatcher,
+                        projectId,
+                        datasetId,
+                        tableId,
+                        quasiIdColumnNames,
+                        infoTypes,
+                        regionCode,
+                        topicId)));
+        printers.put("calculateKMap", RiskAnalysis::printKMap);
+      }
+      if (cmd.hasOption("l")) {
+        // l-diversity analysis
+        String sensitiveAttribute = cmd.getOptionValue(sensitiveAttributeOption.getOpt());
+        List<String> quasiIdColumnNames =
+            Arrays.asList(cmd.getOptionValues(quasiIdColumnNamesOption.getOpt()));
+        jobs.put(
+            "calculateLDiversity",
+            startJob(
+                () ->
+                    calculateLDiversity(
+                        dlpServiceClient,
+                        dispatcher,
+                        projectId,
+                        datasetId,
+                        tableId,
+                        sensitiveAttribute,
+                        quasiIdColumnNames,
+                        topicId)));
+        printers.put("calculateLDiversity", RiskAnalysis::printLDiversity);
+      }
+
+      // Wait for job completion semi-synchronously
+      // For long jobs, consider using a truly asynchronous execution model such as Cloud Functions
+      for (Map.Entry<String, ApiFuture<DlpJob>> job : jobs.entrySet()) {
+        try {
+          DlpJob completedJob = job.getValue().get(JOB_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+          printers.get(job.getKey()).accept(completedJob);
+        } catch (TimeoutException e) {
+          System.out.println("Unable to verify job completion.");
+        } catch (ExecutionException e) {
+          System.out.println("Error in " + job.getKey() + ": " + e.getCause().getMessage());
+        }
+      }
     }
   }
 }
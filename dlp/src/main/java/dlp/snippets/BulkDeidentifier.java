@@ -0,0 +1,271 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dlp.snippets;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.privacy.dlp.v2.ContentItem;
+import com.google.privacy.dlp.v2.DeidentifyConfig;
+import com.google.privacy.dlp.v2.DeidentifyContentRequest;
+import com.google.privacy.dlp.v2.DeidentifyContentResponse;
+import com.google.privacy.dlp.v2.FieldId;
+import com.google.privacy.dlp.v2.InspectConfig;
+import com.google.privacy.dlp.v2.Table;
+import com.google.protobuf.CodedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * De-identifies a stream of table rows with one {@link DeidentifyConfig}, many rows per request.
+ *
+ * <p>The request, with its de-identify and inspect configurations, is built once. Rows are packed
+ * into table items of up to {@code maxBatchRows} rows, keeping each request under {@code
+ * maxRequestBytes}, and up to {@code maxInFlight} requests are sent at a time without blocking a
+ * thread each. De-identified rows are passed on in input order as soon as every earlier batch has
+ * been written, so only the batches in flight are held in memory.
+ */
+public class BulkDeidentifier {
+
+  // Content requests are limited to 0.5MB. Leave room for the item and table framing.
+  public static final int MAX_REQUEST_BYTES = 480 * 1024;
+  public static final int MAX_BATCH_ROWS = 10000;
+
+  private final DlpServiceClient dlp;
+  private final DeidentifyContentRequest template;
+  private final int maxRequestBytes;
+  private final int maxBatchRows;
+  private final int maxInFlight;
+
+  private final LongAdder rows = new LongAdder();
+  private final LongAdder batches = new LongAdder();
+  private final LongAdder bytesSent = new LongAdder();
+  private final LongAdder elapsedNanos = new LongAdder();
+
+  /**
+   * Creates a de-identifier with the largest batches allowed, sending 8 requests at a time.
+   * {@code inspectConfig} may be null if {@code deidentifyConfig} only has record transformations.
+   */
+  public BulkDeidentifier(
+      DlpServiceClient dlp,
+      String parent,
+      DeidentifyConfig deidentifyConfig,
+      InspectConfig inspectConfig) {
+    this(dlp, parent, deidentifyConfig, inspectConfig, MAX_REQUEST_BYTES, MAX_BATCH_ROWS, 8);
+  }
+
+  /** Creates a de-identifier that sends requests for {@code parent}, a project name. */
+  public BulkDeidentifier(
+      DlpServiceClient dlp,
+      String parent,
+      DeidentifyConfig deidentifyConfig,
+      InspectConfig inspectConfig,
+      int maxRequestBytes,
+      int maxBatchRows,
+      int maxInFlight) {
+    if (maxBatchRows < 1 || maxInFlight < 1) {
+      throw new IllegalArgumentException("maxBatchRows and maxInFlight must be at least 1");
+    }
+    DeidentifyContentRequest.Builder request =
+        DeidentifyContentRequest.newBuilder()
+            .setParent(parent)
+            .setDeidentifyConfig(deidentifyConfig);
+    if (inspectConfig != null) {
+      request.setInspectConfig(inspectConfig);
+    }
+    this.dlp = dlp;
+    this.template = request.build();
+    this.maxRequestBytes = maxRequestBytes;
+    this.maxBatchRows = maxBatchRows;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * De-identifies every row of {@code input}, a table with {@code headers}, and passes the results
+   * to {@code output} in the same order. {@code output} is called from one thread at a time. Stops
+   * at the first failure, and throws it once the requests in flight have completed. Returns the
+   * number of rows written.
+   */
+  public long deidentify(
+      List<FieldId> headers, Iterator<Table.Row> input, Consumer<Table.Row> output)
+      throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    Writer writer = new Writer(output);
+    Table emptyTable = Table.newBuilder().addAllHeaders(headers).build();
+    int baseBytes =
+        CodedOutputStream.computeMessageSize(
+                DeidentifyContentRequest.ITEM_FIELD_NUMBER,
+                ContentItem.newBuilder().setTable(emptyTable).build())
+            + template.getSerializedSize();
+    int sequence = 0;
+    try {
+      Table.Builder batch = emptyTable.toBuilder();
+      int batchBytes = baseBytes;
+      while (input.hasNext() && !writer.hasFailed()) {
+        Table.Row row = input.next();
+        int rowBytes = CodedOutputStream.computeMessageSize(Table.ROWS_FIELD_NUMBER, row);
+        if (batch.getRowsCount() > 0
+            && (batchBytes + rowBytes > maxRequestBytes || batch.getRowsCount() >= maxBatchRows)) {
+          writer.window.acquire();
+          send(sequence++, batch.build(), batchBytes, writer);
+          batch = emptyTable.toBuilder();
+          batchBytes = baseBytes;
+        }
+        batch.addRows(row);
+        batchBytes += rowBytes;
+      }
+      if (batch.getRowsCount() > 0 && !writer.hasFailed()) {
+        writer.window.acquire();
+        send(sequence, batch.build(), batchBytes, writer);
+      }
+    } finally {
+      // Wait for the requests in flight.
+      writer.window.acquire(maxInFlight);
+      elapsedNanos.add(System.nanoTime() - start);
+    }
+    if (writer.failure != null) {
+      throw new IOException("Could not de-identify rows", writer.failure);
+    }
+    return writer.written;
+  }
+
+  /** Number of rows de-identified so far. */
+  public long getRows() {
+    return rows.sum();
+  }
+
+  /** Number of requests sent so far. */
+  public long getBatches() {
+    return batches.sum();
+  }
+
+  /** Number of request bytes sent so far. */
+  public long getBytesSent() {
+    return bytesSent.sum();
+  }
+
+  /** Prints the number of rows and requests, and the throughput. */
+  public void printStats(PrintStream out) {
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos.sum());
+    out.printf(
+        "De-identified %d rows in %d requests (%d bytes) in %d ms: %.0f rows/s\n",
+        getRows(),
+        getBatches(),
+        getBytesSent(),
+        elapsedMillis,
+        elapsedMillis == 0 ? 0.0 : getRows() * 1000.0 / elapsedMillis);
+  }
+
+  private void send(int sequence, Table table, int requestBytes, Writer writer) {
+    DeidentifyContentRequest request =
+        template.toBuilder().setItem(ContentItem.newBuilder().setTable(table)).build();
+    batches.increment();
+    bytesSent.add(requestBytes);
+    ApiFuture<DeidentifyContentResponse> future;
+    try {
+      future = dlp.deidentifyContentCallable().futureCall(request);
+    } catch (RuntimeException e) {
+      future = ApiFutures.immediateFailedFuture(e);
+    }
+    ApiFutures.addCallback(
+        future,
+        new ApiFutureCallback<DeidentifyContentResponse>() {
+          @Override
+          public void onSuccess(DeidentifyContentResponse response) {
+            List<Table.Row> result = response.getItem().getTable().getRowsList();
+            if (result.size() != table.getRowsCount()) {
+              onFailure(
+                  new IllegalStateException(
+                      String.format(
+                          "Expected %d rows, got %d", table.getRowsCount(), result.size())));
+              return;
+            }
+            rows.add(result.size());
+            writer.completed(sequence, result);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            writer.failed(t);
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Writes completed batches in order. Each batch holds a permit of the window until it has been
+   * written or dropped after a failure.
+   */
+  private class Writer {
+    final Semaphore window = new Semaphore(maxInFlight);
+    final Consumer<Table.Row> output;
+    // Guarded by this.
+    final Map<Integer, List<Table.Row>> completed = new HashMap<>();
+    int next = 0;
+    long written = 0;
+    volatile Throwable failure;
+
+    Writer(Consumer<Table.Row> output) {
+      this.output = output;
+    }
+
+    boolean hasFailed() {
+      return failure != null;
+    }
+
+    synchronized void completed(int sequence, List<Table.Row> result) {
+      if (failure != null) {
+        window.release();
+        return;
+      }
+      completed.put(sequence, result);
+      List<Table.Row> batch;
+      while ((batch = completed.remove(next)) != null) {
+        next++;
+        try {
+          for (Table.Row row : batch) {
+            output.accept(row);
+            written++;
+          }
+        } catch (RuntimeException e) {
+          failed(e);
+          return;
+        }
+        window.release();
+      }
+    }
+
+    synchronized void failed(Throwable t) {
+      if (failure == null) {
+        failure = t;
+      }
+      // Later batches will never be written, so give back their permits and this batch's.
+      window.release(completed.size() + 1);
+      completed.clear();
+    }
+  }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dlp.snippets;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.privacy.dlp.v2.ByteContentItem;
+import com.google.privacy.dlp.v2.ByteContentItem.BytesType;
+import com.google.privacy.dlp.v2.ContentItem;
+import com.google.privacy.dlp.v2.Finding;
+import com.google.privacy.dlp.v2.InspectConfig;
+import com.google.privacy.dlp.v2.InspectContentRequest;
+import com.google.privacy.dlp.v2.InspectContentResponse;
+import com.google.privacy.dlp.v2.Location;
+import com.google.privacy.dlp.v2.Range;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Inspects UTF-8 text files of any size, in chunks small enough for a single {@code
+ * inspectContent} request.
+ *
+ * <p>The file is read one chunk at a time. Chunks end on a line boundary where possible, and each
+ * chunk starts with the last {@code overlapBytes} of the previous one, rounded to the start of a
+ * line, so a finding cut by one chunk boundary is seen whole in the next chunk. Up to {@code
+ * maxInFlight} chunks are inspected at a time, which also bounds how much of the file is held in
+ * memory.
+ *
+ * <p>Finding locations are mapped back to byte and codepoint offsets in the whole file. A finding
+ * reported by two overlapping chunks is returned once, and if the two chunks disagree on its
+ * extent, the longer match is kept.
+ *
+ * <p>An inspector can inspect several files at a time, and its statistics are totals over all the
+ * files inspected so far.
+ */
+public class ChunkedTextInspector {
+
+  // inspectContent requests are limited to 0.5MB, including the inspect configuration.
+  public static final int MAX_CHUNK_BYTES = 400 * 1024;
+  public static final int DEFAULT_OVERLAP_BYTES = 1024;
+
+  private final DlpServiceClient dlp;
+  private final String parent;
+  private final InspectConfig config;
+  private final int chunkBytes;
+  private final int overlapBytes;
+  private final int maxInFlight;
+
+  private final LongAdder chunks = new LongAdder();
+  private final LongAdder bytesSent = new LongAdder();
+  private final LongAdder duplicates = new LongAdder();
+
+  private static class Chunk {
+    final int index;
+    final long byteOffset;
+    final long codepointOffset;
+
+    Chunk(int index, long byteOffset, long codepointOffset) {
+      this.index = index;
+      this.byteOffset = byteOffset;
+      this.codepointOffset = codepointOffset;
+    }
+  }
+
+  private static class Located {
+    final Finding finding;
+    final int chunk;
+    final long start;
+    final long end;
+
+    Located(Finding finding, int chunk) {
+      this.finding = finding;
+      this.chunk = chunk;
+      this.start = finding.getLocation().getByteRange().getStart();
+      this.end = finding.getLocation().getByteRange().getEnd();
+    }
+  }
+
+  /** Creates an inspector with the largest chunks allowed, inspecting 4 chunks at a time. */
+  public ChunkedTextInspector(DlpServiceClient dlp, String parent, InspectConfig config) {
+    this(dlp, parent, config, MAX_CHUNK_BYTES, DEFAULT_OVERLAP_BYTES, 4);
+  }
+
+  /**
+   * Creates an inspector that sends requests for {@code parent}, a project name, with {@code
+   * config}. {@code chunkBytes} must be more than twice {@code overlapBytes}.
+   */
+  public ChunkedTextInspector(
+      DlpServiceClient dlp,
+      String parent,
+      InspectConfig config,
+      int chunkBytes,
+      int overlapBytes,
+      int maxInFlight) {
+    if (chunkBytes <= 2 * overlapBytes || chunkBytes > MAX_CHUNK_BYTES) {
+      throw new IllegalArgumentException(
+          "chunkBytes must be more than twice overlapBytes and at most " + MAX_CHUNK_BYTES);
+    }
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1");
+    }
+    this.dlp = dlp;
+    this.parent = parent;
+    this.config = config;
+    this.chunkBytes = chunkBytes;
+    this.overlapBytes = overlapBytes;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Inspects {@code file} and returns its findings in file order, with locations relative to the
+   * start of the file. Fails if any chunk cannot be inspected.
+   */
+  public List<Finding> inspect(Path file) throws IOException, InterruptedException {
+    List<Located> found = Collections.synchronizedList(new ArrayList<>());
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Semaphore window = new Semaphore(maxInFlight);
+    int chunkIndex = 0;
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      long start = 0;
+      long codepoints = 0;
+      while (start < size && failure.get() == null) {
+        byte[] buf = read(channel, start, (int) Math.min(chunkBytes, size - start));
+        boolean last = start + buf.length >= size;
+        int end = last ? buf.length : chunkEnd(buf);
+
+        window.acquire();
+        Chunk chunk = new Chunk(chunkIndex++, start, codepoints);
+        chunks.increment();
+        bytesSent.add(end);
+        send(chunk, ByteString.copyFrom(buf, 0, end), found, failure, window);
+
+        if (last && end == buf.length) {
+          break;
+        }
+        int next = nextStart(buf, end);
+        codepoints += countCodepoints(buf, next);
+        start += next;
+      }
+    } finally {
+      // Wait for the chunks in flight.
+      window.acquire(maxInFlight);
+    }
+    if (failure.get() != null) {
+      throw new IOException("Could not inspect file " + file, failure.get());
+    }
+    return deduplicate(found);
+  }
+
+  /** Number of chunks inspected so far. */
+  public long getChunks() {
+    return chunks.sum();
+  }
+
+  /** Number of bytes sent so far, including overlaps. */
+  public long getBytesSent() {
+    return bytesSent.sum();
+  }
+
+  /** Number of findings reported by two chunks, and returned once, so far. */
+  public long getDuplicates() {
+    return duplicates.sum();
+  }
+
+  private void send(
+      Chunk chunk,
+      ByteString data,
+      List<Located> found,
+      AtomicReference<Throwable> failure,
+      Semaphore window) {
+    ByteContentItem byteItem =
+        ByteContentItem.newBuilder().setType(BytesType.TEXT_UTF8).setData(data).build();
+    InspectContentRequest request =
+        InspectContentRequest.newBuilder()
+            .setParent(parent)
+            .setItem(ContentItem.newBuilder().setByteItem(byteItem))
+            .setInspectConfig(config)
+            .build();
+    ApiFuture<InspectContentResponse> future;
+    try {
+      future = dlp.inspectContentCallable().futureCall(request);
+    } catch (RuntimeException e) {
+      future = ApiFutures.immediateFailedFuture(e);
+    }
+    ApiFutures.addCallback(
+        future,
+        new ApiFutureCallback<InspectContentResponse>() {
+          @Override
+          public void onSuccess(InspectContentResponse response) {
+            for (Finding f : response.getResult().getFindingsList()) {
+              found.add(new Located(relocate(f, chunk), chunk.index));
+            }
+            window.release();
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            failure.compareAndSet(null, t);
+            window.release();
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /** Where a chunk of a full buffer should end: after its last line, or at a character. */
+  private int chunkEnd(byte[] buf) {
+    for (int i = buf.length - 1; i >= overlapBytes; i--) {
+      if (buf[i] == '\n') {
+        return i + 1;
+      }
+    }
+    // A line longer than the chunk. Do not split a multi-byte character.
+    int end = buf.length - 1;
+    while (end > 0 && isContinuation(buf[end])) {
+      end--;
+    }
+    return end;
+  }
+
+  /** Where the next chunk starts: at a line start in the overlap, or at a character. */
+  private int nextStart(byte[] buf, int end) {
+    int from = end - overlapBytes;
+    for (int i = Math.max(from - 1, 0); i < end - 1; i++) {
+      if (buf[i] == '\n') {
+        return i + 1;
+      }
+    }
+    while (from < end && isContinuation(buf[from])) {
+      from++;
+    }
+    return from;
+  }
+
+  private static boolean isContinuation(byte b) {
+    return (b & 0xc0) == 0x80;
+  }
+
+  private static long countCodepoints(byte[] buf, int length) {
+    long count = 0;
+    for (int i = 0; i < length; i++) {
+      if (!isContinuation(buf[i])) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("File changed while it was inspected");
+      }
+    }
+    return buffer.array();
+  }
+
+  private static Finding relocate(Finding finding, Chunk chunk) {
+    Finding.Builder builder = finding.toBuilder();
+    Location.Builder location = builder.getLocationBuilder();
+    Range bytes = location.getByteRange();
+    location.setByteRange(
+        Range.newBuilder()
+            .setStart(bytes.getStart() + chunk.byteOffset)
+            .setEnd(bytes.getEnd() + chunk.byteOffset));
+    Range codepoints = location.getCodepointRange();
+    location.setCodepointRange(
+        Range.newBuilder()
+            .setStart(codepoints.getStart() + chunk.codepointOffset)
+            .setEnd(codepoints.getEnd() + chunk.codepointOffset));
+    return builder.build();
+  }
+
+  private List<Finding> deduplicate(List<Located> found) {
+    List<Located> sorted = new ArrayList<>(found);
+    sorted.sort(
+        Comparator.<Located>comparingLong(l -> l.start)
+            .thenComparingLong(l -> l.end)
+            .thenComparingInt(l -> l.chunk));
+    List<Located> kept = new ArrayList<>();
+    // The last finding kept for each info type, which is the only one a later finding can overlap.
+    Map<String, Integer> lastKept = new HashMap<>();
+    for (Located l : sorted) {
+      String type = l.finding.getInfoType().getName();
+      Integer previousIndex = lastKept.get(type);
+      if (previousIndex != null) {
+        Located previous = kept.get(previousIndex);
+        boolean overlaps = l.start < previous.end;
+        boolean same = l.start == previous.start && l.end == previous.end;
+        if (overlaps && (l.chunk != previous.chunk || same)) {
+          duplicates.increment();
+          if (longerOrLikelier(l, previous)) {
+            kept.set(previousIndex, l);
+          }
+          continue;
+        }
+      }
+      lastKept.put(type, kept.size());
+      kept.add(l);
+    }
+    List<Finding> findings = new ArrayList<>();
+    for (Located l : kept) {
+      findings.add(l.finding);
+    }
+    return findings;
+  }
+
+  private static boolean longerOrLikelier(Located a, Located b) {
+    long lengthA = a.end - a.start;
+    long lengthB = b.end - b.start;
+    if (lengthA != lengthB) {
+      return lengthA > lengthB;
+    }
+    return a.finding.getLikelihoodValue() > b.finding.getLikelihoodValue();
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dlp.snippets;
+
+// [START dlp_deidentify_table_fpe]
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.common.base.Splitter;
+import com.google.common.io.BaseEncoding;
+import com.google.privacy.dlp.v2.CryptoKey;
+import com.google.privacy.dlp.v2.CryptoReplaceFfxFpeConfig;
+import com.google.privacy.dlp.v2.CryptoReplaceFfxFpeConfig.FfxCommonNativeAlphabet;
+import com.google.privacy.dlp.v2.DeidentifyConfig;
+import com.google.privacy.dlp.v2.FieldId;
+import com.google.privacy.dlp.v2.FieldTransformation;
+import com.google.privacy.dlp.v2.KmsWrappedCryptoKey;
+import com.google.privacy.dlp.v2.PrimitiveTransformation;
+import com.google.privacy.dlp.v2.ProjectName;
+import com.google.privacy.dlp.v2.RecordTransformations;
+import com.google.privacy.dlp.v2.Table;
+import com.google.privacy.dlp.v2.Value;
+import com.google.protobuf.ByteString;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class DeIdentifyTableWithFpe {
+
+  public static void deIdentifyTableWithFpe() throws Exception {
+    // TODO(developer): Replace these variables before running the sample.
+    String projectId = "YOUR_PROJECT_ID";
+    Path inputCsvFile = Paths.get("path/to/your/input/file.csv");
+    Path outputCsvFile = Paths.get("path/to/your/output/file.csv");
+    String columnToTokenize = "credit_card";
+    String kmsKeyName =
+        "projects/YOUR_PROJECT/"
+            + "locations/YOUR_KEYRING_REGION/"
+            + "keyRings/YOUR_KEYRING_NAME/"
+            + "cryptoKeys/YOUR_KEY_NAME";
+    String wrappedAesKey = "YOUR_ENCRYPTED_AES_256_KEY";
+    deIdentifyTableWithFpe(
+        projectId, inputCsvFile, outputCsvFile, columnToTokenize, kmsKeyName, wrappedAesKey);
+  }
+
+  // Tokenizes a numeric column of a CSV file of any size, many rows per request.
+  public static void deIdentifyTableWithFpe(
+      String projectId,
+      Path inputCsvFile,
+      Path outputCsvFile,
+      String columnToTokenize,
+      String kmsKeyName,
+      String wrappedAesKey)
+      throws IOException, InterruptedException {
+    // Initialize client that will be used to send requests. This client only needs to be created
+    // once, and can be reused for multiple requests. After completing all of your requests, call
+    // the "close" method on the client to safely clean up any remaining background resources.
+    try (DlpServiceClient dlp = DlpServiceClient.create()) {
+      // Specify an encrypted AES-256 key and the name of the Cloud KMS key that encrypted it
+      KmsWrappedCryptoKey kmsWrappedCryptoKey =
+          KmsWrappedCryptoKey.newBuilder()
+              .setWrappedKey(ByteString.copyFrom(BaseEncoding.base64().decode(wrappedAesKey)))
+              .setCryptoKeyName(kmsKeyName)
+              .build();
+      CryptoKey cryptoKey = CryptoKey.newBuilder().setKmsWrapped(kmsWrappedCryptoKey).build();
+
+      // Specify how the column should be encrypted. The config is built once and sent with every
+      // request.
+      CryptoReplaceFfxFpeConfig cryptoReplaceFfxFpeConfig =
+          CryptoReplaceFfxFpeConfig.newBuilder()
+              .setCryptoKey(cryptoKey)
+              .setCommonAlphabet(FfxCommonNativeAlphabet.NUMERIC)
+              .build();
+      FieldTransformation fieldTransformation =
+          FieldTransformation.newBuilder()
+              .addFields(FieldId.newBuilder().setName(columnToTokenize))
+              .setPrimitiveTransformation(
+                  PrimitiveTransformation.newBuilder()
+                      .setCryptoReplaceFfxFpeConfig(cryptoReplaceFfxFpeConfig))
+              .build();
+      DeidentifyConfig deidentifyConfig =
+          DeidentifyConfig.newBuilder()
+              .setRecordTransformations(
+                  RecordTransformations.newBuilder().addFieldTransformations(fieldTransformation))
+              .build();
+
+      // Pack rows into as few requests as the request size limit allows, and send several at a
+      // time. Record transformations need no inspect config.
+      BulkDeidentifier deidentifier =
+          new BulkDeidentifier(
+              dlp, ProjectName.of(projectId).toString(), deidentifyConfig, null);
+
+      // Stream rows from the input file to the output file, without loading either in memory.
+      try (BufferedReader input = Files.newBufferedReader(inputCsvFile);
+          BufferedWriter output = Files.newBufferedWriter(outputCsvFile)) {
+        String headerLine = input.readLine();
+        if (headerLine == null) {
+          throw new IllegalArgumentException("Input file has no header line: " + inputCsvFile);
+        }
+        List<FieldId> headers =
+            Splitter.on(",").splitToList(headerLine).stream()
+                .map(header -> FieldId.newBuilder().setName(header).build())
+                .collect(Collectors.toList());
+        output.write(headerLine + "\n");
+
+        Iterator<Table.Row> rows =
+            input.lines().map(DeIdentifyTableWithFpe::parseLineAsRow).iterator();
+        deidentifier.deidentify(
+            headers,
+            rows,
+            row -> {
+              try {
+                output.write(joinRow(row) + "\n");
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+      }
+      deidentifier.printStats(System.out);
+      System.out.println("Content written to file: " + outputCsvFile.toString());
+    }
+  }
+
+  public static Table.Row parseLineAsRow(String line) {
+    Table.Row.Builder row = Table.Row.newBuilder();
+    for (String value : Splitter.on(",").split(line)) {
+      row.addValues(Value.newBuilder().setStringValue(value));
+    }
+    return row.build();
+  }
+
+  public static String joinRow(Table.Row row) {
+    return row.getValuesList().stream()
+        .map(Value::getStringValue)
+        .collect(Collectors.joining(","));
+  }
+}
+// [END dlp_deidentify_table_fpe]
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dlp.snippets;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.privacy.dlp.v2.ByteContentItem;
+import com.google.privacy.dlp.v2.ByteContentItem.BytesType;
+import com.google.privacy.dlp.v2.InspectConfig;
+import com.google.privacy.dlp.v2.RedactImageRequest;
+import com.google.privacy.dlp.v2.RedactImageResponse;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Redacts every image of a directory with one client and one inspect configuration.
+ *
+ * <p>Images are read on the calling thread, up to {@code maxInFlight} are redacted at a time
+ * without blocking a thread each, and the redacted images are written on a separate pool, so reads,
+ * requests and writes overlap. The number of images in flight also bounds how many are held in
+ * memory.
+ *
+ * <p>The output directory keeps a manifest of the SHA-256 hash of each image redacted, together
+ * with the configuration. An image whose hash has not changed since its redacted copy was written
+ * is skipped.
+ */
+public class ImageRedactionPipeline {
+
+  /** Name of the manifest file in the output directory. */
+  public static final String MANIFEST = ".redacted-images";
+
+  /** The stages of the pipeline, in order. */
+  public enum Stage {
+    READ,
+    REDACT,
+    WRITE
+  }
+
+  private final DlpServiceClient dlp;
+  private final String parent;
+  private final InspectConfig config;
+  private final int maxInFlight;
+  private final String configHash;
+
+  private final Map<Stage, LongAdder> stageNanos = new EnumMap<>(Stage.class);
+  private final LongAdder images = new LongAdder();
+  private final LongAdder skipped = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder bytesRead = new LongAdder();
+  private long elapsedNanos;
+
+  /**
+   * Creates a pipeline that redacts what {@code config} finds, sending requests for {@code parent},
+   * a project name, with up to {@code maxInFlight} images at a time.
+   */
+  public ImageRedactionPipeline(
+      DlpServiceClient dlp, String parent, InspectConfig config, int maxInFlight) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1");
+    }
+    this.dlp = dlp;
+    this.parent = parent;
+    this.config = config;
+    this.maxInFlight = maxInFlight;
+    this.configHash = sha256(config.toByteArray());
+    for (Stage stage : Stage.values()) {
+      stageNanos.put(stage, new LongAdder());
+    }
+  }
+
+  /**
+   * Writes a redacted copy of every image in {@code inputDir} that changed since the last run, to
+   * a file of the same name in {@code outputDir}. Returns the number of images written. Images that
+   * cannot be redacted are reported and counted as failures.
+   */
+  public long run(Path inputDir, Path outputDir) throws IOException, InterruptedException {
+    List<Path> inputs;
+    try (Stream<Path> paths = Files.list(inputDir)) {
+      inputs =
+          paths
+              .filter(path -> Files.isRegularFile(path) && bytesType(path) != null)
+              .sorted()
+              .collect(Collectors.toList());
+    }
+    Files.createDirectories(outputDir);
+    Map<String, String> manifest = readManifest(outputDir);
+
+    // Writes are blocking file I/O, so they do not run on the client's transport threads.
+    ExecutorService writers = Executors.newFixedThreadPool(Math.min(maxInFlight, 4));
+    Semaphore window = new Semaphore(maxInFlight);
+    long start = System.nanoTime();
+    try {
+      for (Path input : inputs) {
+        String name = input.getFileName().toString();
+        Path output = outputDir.resolve(name);
+        long readStart = System.nanoTime();
+        byte[] data;
+        try {
+          data = Files.readAllBytes(input);
+        } catch (IOException e) {
+          failed(input, e);
+          continue;
+        } finally {
+          stageNanos.get(Stage.READ).add(System.nanoTime() - readStart);
+        }
+        bytesRead.add(data.length);
+        String hash = configHash + ":" + sha256(data);
+        if (hash.equals(manifest.get(name)) && Files.exists(output)) {
+          skipped.increment();
+          continue;
+        }
+        // An image being redacted again is not up to date until it has been written.
+        manifest.remove(name);
+
+        window.acquire();
+        redact(input, ByteString.copyFrom(data))
+            .whenComplete(
+                (redacted, t) -> {
+                  if (t != null) {
+                    window.release();
+                    failed(input, t);
+                    return;
+                  }
+                  writers.execute(
+                      () -> {
+                        long writeStart = System.nanoTime();
+                        try {
+                          Files.write(output, redacted.toByteArray());
+                          manifest.put(name, hash);
+                          images.increment();
+                        } catch (IOException e) {
+                          failed(input, e);
+                        } finally {
+                          stageNanos.get(Stage.WRITE).add(System.nanoTime() - writeStart);
+                          window.release();
+                        }
+                      });
+                });
+      }
+      // Wait for the images in flight.
+      window.acquire(maxInFlight);
+    } finally {
+      writers.shutdown();
+      writers.awaitTermination(1, TimeUnit.MINUTES);
+      elapsedNanos = System.nanoTime() - start;
+      writeManifest(outputDir, manifest);
+    }
+    return images.sum();
+  }
+
+  /** Total time spent in {@code stage}, summed over all images. */
+  public long getStageMillis(Stage stage) {
+    return TimeUnit.NANOSECONDS.toMillis(stageNanos.get(stage).sum());
+  }
+
+  /** Number of redacted images written. */
+  public long getImages() {
+    return images.sum();
+  }
+
+  /** Number of images skipped because they did not change. */
+  public long getSkipped() {
+    return skipped.sum();
+  }
+
+  /** Number of images that could not be redacted. */
+  public long getFailures() {
+    return failures.sum();
+  }
+
+  /** Prints throughput and the time spent in each stage. */
+  public void printStats(PrintStream out) {
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    out.printf(
+        "Redacted %d images (%d unchanged, %d failed) in %d ms: %.2f images/s, %.2f MB/s read\n",
+        getImages(),
+        getSkipped(),
+        getFailures(),
+        elapsedMillis,
+        elapsedMillis == 0 ? 0.0 : getImages() * 1000.0 / elapsedMillis,
+        elapsedMillis == 0 ? 0.0 : bytesRead.sum() / 1024.0 / 1024.0 * 1000 / elapsedMillis);
+    for (Stage stage : Stage.values()) {
+      out.printf("\t%s: %d ms\n", stage, getStageMillis(stage));
+    }
+  }
+
+  private CompletableFuture<ByteString> redact(Path input, ByteString data) {
+    RedactImageRequest request =
+        RedactImageRequest.newBuilder()
+            .setParent(parent)
+            .setByteItem(ByteContentItem.newBuilder().setType(bytesType(input)).setData(data))
+            .setInspectConfig(config)
+            .build();
+    CompletableFuture<ByteString> redacted = new CompletableFuture<>();
+    long redactStart = System.nanoTime();
+    ApiFuture<RedactImageResponse> future;
+    try {
+      future = dlp.redactImageCallable().futureCall(request);
+    } catch (RuntimeException e) {
+      future = ApiFutures.immediateFailedFuture(e);
+    }
+    ApiFutures.addCallback(
+        future,
+        new ApiFutureCallback<RedactImageResponse>() {
+          @Override
+          public void onSuccess(RedactImageResponse response) {
+            stageNanos.get(Stage.REDACT).add(System.nanoTime() - redactStart);
+            redacted.complete(response.getRedactedImage());
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            stageNanos.get(Stage.REDACT).add(System.nanoTime() - redactStart);
+            redacted.completeExceptionally(t);
+          }
+        },
+        MoreExecutors.directExecutor());
+    return redacted;
+  }
+
+  private void failed(Path input, Throwable t) {
+    failures.increment();
+    System.err.printf("Failed to redact %s: %s\n", input, t);
+  }
+
+  /** The type of an image file, from its extension, or null if it is not an image. */
+  static BytesType bytesType(Path path) {
+    String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+    if (name.endsWith(".png")) {
+      return BytesType.IMAGE_PNG;
+    } else if (name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+      return BytesType.IMAGE_JPEG;
+    } else if (name.endsWith(".bmp")) {
+      return BytesType.IMAGE_BMP;
+    }
+    return null;
+  }
+
+  private static Map<String, String> readManifest(Path outputDir) throws IOException {
+    Map<String, String> manifest = new ConcurrentHashMap<>();
+    Path file = outputDir.resolve(MANIFEST);
+    if (Files.exists(file)) {
+      Properties properties = new Properties();
+      try (InputStream in = Files.newInputStream(file)) {
+        properties.load(in);
+      }
+      for (String name : properties.stringPropertyNames()) {
+        manifest.put(name, properties.getProperty(name));
+      }
+    }
+    return manifest;
+  }
+
+  private static void writeManifest(Path outputDir, Map<String, String> manifest)
+      throws IOException {
+    Properties properties = new Properties();
+    properties.putAll(manifest);
+    try (OutputStream out = Files.newOutputStream(outputDir.resolve(MANIFEST))) {
+      properties.store(out, "SHA-256 hashes of the redacted images and their configuration");
+    }
+  }
+
+  private static String sha256(byte[] data) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest(data)) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+}
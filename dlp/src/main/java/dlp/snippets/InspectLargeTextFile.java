@@ -0,0 +1,79 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dlp.snippets;
+
+// [START dlp_inspect_large_file]
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.privacy.dlp.v2.Finding;
+import com.google.privacy.dlp.v2.InfoType;
+import com.google.privacy.dlp.v2.InspectConfig;
+import com.google.privacy.dlp.v2.ProjectName;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+public class InspectLargeTextFile {
+
+  public static void inspectLargeTextFile() {
+    // TODO(developer): Replace these variables before running the sample.
+    String projectId = "my-project-id";
+    String filePath = "path/to/large-file.txt";
+    inspectLargeTextFile(projectId, filePath);
+  }
+
+  // Inspects a text file too large for a single request, a few chunks at a time.
+  public static void inspectLargeTextFile(String projectId, String filePath) {
+    // Initialize client that will be used to send requests. This client only needs to be created
+    // once, and can be reused for multiple requests. After completing all of your requests, call
+    // the "close" method on the client to safely clean up any remaining background resources.
+    try (DlpServiceClient dlp = DlpServiceClient.create()) {
+      // Specify the project used for request.
+      ProjectName project = ProjectName.of(projectId);
+
+      // Specify the type of info the inspection will look for.
+      List<InfoType> infoTypes = new ArrayList<>();
+      // See https://cloud.google.com/dlp/docs/infotypes-reference for complete list of info types
+      for (String typeName : new String[] {"PHONE_NUMBER", "EMAIL_ADDRESS", "CREDIT_CARD_NUMBER"}) {
+        infoTypes.add(InfoType.newBuilder().setName(typeName).build());
+      }
+
+      // Construct the configuration sent with every chunk of the file.
+      InspectConfig config =
+          InspectConfig.newBuilder().addAllInfoTypes(infoTypes).setIncludeQuote(true).build();
+
+      // Split the file into chunks that overlap, so findings across a chunk boundary are found,
+      // and inspect up to 4 chunks at a time.
+      ChunkedTextInspector inspector =
+          new ChunkedTextInspector(dlp, project.toString(), config);
+      List<Finding> findings = inspector.inspect(Paths.get(filePath));
+
+      // Findings are in file order, with locations relative to the start of the file.
+      System.out.printf(
+          "Inspected %d chunks, %d bytes\n", inspector.getChunks(), inspector.getBytesSent());
+      System.out.println("Findings: " + findings.size());
+      for (Finding f : findings) {
+        System.out.println("\tQuote: " + f.getQuote());
+        System.out.println("\tInfo type: " + f.getInfoType().getName());
+        System.out.println("\tLikelihood: " + f.getLikelihood());
+        System.out.println("\tByte offset: " + f.getLocation().getByteRange().getStart());
+      }
+    } catch (Exception e) {
+      System.out.println("Error during inspectLargeTextFile: \n" + e.toString());
+    }
+  }
+}
+// [END dlp_inspect_large_file]
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dlp.snippets;
+
+// [START dlp_redact_image_directory]
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.privacy.dlp.v2.InfoType;
+import com.google.privacy.dlp.v2.InspectConfig;
+import com.google.privacy.dlp.v2.Likelihood;
+import com.google.privacy.dlp.v2.ProjectName;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+class RedactImageDirectory {
+
+  public static void redactImageDirectory() {
+    // TODO(developer): Replace these variables before running the sample.
+    String projectId = "my-project-id";
+    String inputDir = "path/to/images";
+    String outputDir = "path/to/redacted";
+    redactImageDirectory(projectId, inputDir, outputDir);
+  }
+
+  // Redacts every image of a directory that changed since the last run, several at a time.
+  static void redactImageDirectory(String projectId, String inputDir, String outputDir) {
+    // Initialize client that will be used to send requests. This client only needs to be created
+    // once, and can be reused for multiple requests. After completing all of your requests, call
+    // the "close" method on the client to safely clean up any remaining background resources.
+    try (DlpServiceClient dlp = DlpServiceClient.create()) {
+      // Specify the project used for request.
+      ProjectName project = ProjectName.of(projectId);
+
+      // Specify the type of info and likelihood necessary to redact.
+      List<InfoType> infoTypes = new ArrayList<>();
+      // See https://cloud.google.com/dlp/docs/infotypes-reference for complete list of info types
+      for (String typeName : new String[] {"PHONE_NUMBER", "EMAIL_ADDRESS", "CREDIT_CARD_NUMBER"}) {
+        infoTypes.add(InfoType.newBuilder().setName(typeName).build());
+      }
+      InspectConfig config =
+          InspectConfig.newBuilder()
+              .addAllInfoTypes(infoTypes)
+              .setMinLikelihood(Likelihood.LIKELY)
+              .build();
+
+      // Redact up to 8 images at a time, with the same client and configuration.
+      ImageRedactionPipeline pipeline =
+          new ImageRedactionPipeline(dlp, project.toString(), config, 8);
+      pipeline.run(Paths.get(inputDir), Paths.get(outputDir));
+
+      pipeline.printStats(System.out);
+      System.out.println("Redacted images written to " + outputDir);
+    } catch (Exception e) {
+      System.out.println("Error during redactImageDirectory: \n" + e.toString());
+    }
+  }
+}
+// [END dlp_redact_image_directory]
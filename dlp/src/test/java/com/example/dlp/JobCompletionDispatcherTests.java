@@ -0,0 +1,194 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.dlp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import com.google.api.gax.rpc.NotFoundException;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.privacy.dlp.v2.DlpJob;
+import com.google.privacy.dlp.v2.DlpJob.JobState;
+import com.google.pubsub.v1.PubsubMessage;
+import io.grpc.Status;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests the job completion dispatcher with a fake job service and fake notifications. */
+@RunWith(JUnit4.class)
+public class JobCompletionDispatcherTests {
+
+  private ScheduledExecutorService scheduler;
+  // Jobs the fake service reports as done.
+  private final Set<String> doneJobs = ConcurrentHashMap.newKeySet();
+  private final Map<String, AtomicInteger> gets = new ConcurrentHashMap<>();
+  private final AtomicInteger acks = new AtomicInteger();
+
+  @Before
+  public void setUp() {
+    scheduler = Executors.newScheduledThreadPool(2);
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  private ApiFuture<DlpJob> getJob(String jobName) {
+    gets.computeIfAbsent(jobName, name -> new AtomicInteger()).incrementAndGet();
+    JobState state = doneJobs.contains(jobName) ? JobState.DONE : JobState.RUNNING;
+    return ApiFutures.immediateFuture(
+        DlpJob.newBuilder().setName(jobName).setState(state).build());
+  }
+
+  private void notify(JobCompletionDispatcher dispatcher, String jobName) {
+    PubsubMessage message = PubsubMessage.newBuilder().putAttributes("DlpJobName", jobName).build();
+    dispatcher.receiveMessage(
+        message,
+        new AckReplyConsumer() {
+          @Override
+          public void ack() {
+            acks.incrementAndGet();
+          }
+
+          @Override
+          public void nack() {
+            fail("Notifications should not be nacked");
+          }
+        });
+  }
+
+  @Test
+  public void completesJobOnNotification() throws Exception {
+    // Polling alone would take a minute.
+    try (JobCompletionDispatcher dispatcher =
+        new JobCompletionDispatcher(this::getJob, scheduler, 60000, 60000)) {
+      ApiFuture<DlpJob> job = dispatcher.watch("jobs/1");
+      doneJobs.add("jobs/1");
+      notify(dispatcher, "jobs/1");
+
+      assertEquals(JobState.DONE, job.get(5, TimeUnit.SECONDS).getState());
+      assertEquals(1, acks.get());
+      assertEquals(1, gets.get("jobs/1").get());
+    }
+  }
+
+  @Test
+  public void pollsUntilDoneWithoutNotification() throws Exception {
+    try (JobCompletionDispatcher dispatcher =
+        new JobCompletionDispatcher(this::getJob, scheduler, 10, 40)) {
+      ApiFuture<DlpJob> job = dispatcher.watch("jobs/1");
+      while (gets.getOrDefault("jobs/1", new AtomicInteger()).get() < 3) {
+        Thread.sleep(10);
+      }
+      doneJobs.add("jobs/1");
+
+      assertEquals(JobState.DONE, job.get(5, TimeUnit.SECONDS).getState());
+      assertEquals(0, dispatcher.getNotifications());
+    }
+  }
+
+  @Test
+  public void keepsPollingIfNotifiedBeforeTheJobIsDone() throws Exception {
+    try (JobCompletionDispatcher dispatcher =
+        new JobCompletionDispatcher(this::getJob, scheduler, 10, 40)) {
+      ApiFuture<DlpJob> job = dispatcher.watch("jobs/1");
+      notify(dispatcher, "jobs/1");
+      assertFalse(job.isDone());
+      doneJobs.add("jobs/1");
+
+      assertEquals(JobState.DONE, job.get(5, TimeUnit.SECONDS).getState());
+    }
+  }
+
+  @Test
+  public void completesJobNotifiedBeforeItIsWatched() throws Exception {
+    try (JobCompletionDispatcher dispatcher =
+        new JobCompletionDispatcher(this::getJob, scheduler, 60000, 60000)) {
+      doneJobs.add("jobs/1");
+      notify(dispatcher, "jobs/1");
+      ApiFuture<DlpJob> job = dispatcher.watch("jobs/1");
+
+      assertEquals(JobState.DONE, job.get(5, TimeUnit.SECONDS).getState());
+      assertEquals(1, gets.get("jobs/1").get());
+    }
+  }
+
+  @Test
+  public void routesNotificationsToManyJobs() throws Exception {
+    try (JobCompletionDispatcher dispatcher =
+        new JobCompletionDispatcher(this::getJob, scheduler, 60000, 60000)) {
+      List<String> names = new ArrayList<>();
+      List<ApiFuture<DlpJob>> jobs = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        names.add("jobs/" + i);
+        jobs.add(dispatcher.watch("jobs/" + i));
+      }
+      Collections.shuffle(names);
+      for (String name : names) {
+        doneJobs.add(name);
+        notify(dispatcher, name);
+      }
+
+      for (int i = 0; i < jobs.size(); i++) {
+        assertEquals("jobs/" + i, jobs.get(i).get(5, TimeUnit.SECONDS).getName());
+      }
+      assertEquals(200, dispatcher.getNotifications());
+      assertEquals(200, dispatcher.getPolls());
+    }
+  }
+
+  @Test
+  public void failsJobThatCannotBeFound() throws Exception {
+    JobCompletionDispatcher.JobFetcher missing =
+        jobName ->
+            ApiFutures.immediateFailedFuture(
+                ApiExceptionFactory.createException(
+                    new RuntimeException("Not found"),
+                    GrpcStatusCode.of(Status.Code.NOT_FOUND),
+                    false));
+    try (JobCompletionDispatcher dispatcher =
+        new JobCompletionDispatcher(missing, scheduler, 10, 40)) {
+      try {
+        dispatcher.watch("jobs/1").get(5, TimeUnit.SECONDS);
+        fail("Expected the job to fail");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof NotFoundException);
+      }
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dlp.snippets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.privacy.dlp.v2.CryptoReplaceFfxFpeConfig;
+import com.google.privacy.dlp.v2.DeidentifyConfig;
+import com.google.privacy.dlp.v2.FieldId;
+import com.google.privacy.dlp.v2.FieldTransformation;
+import com.google.privacy.dlp.v2.PrimitiveTransformation;
+import com.google.privacy.dlp.v2.RecordTransformations;
+import com.google.privacy.dlp.v2.Table;
+import com.google.privacy.dlp.v2.Value;
+import io.grpc.Status;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.IntStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests bulk de-identification against an in-process fake of the DLP API. */
+@RunWith(JUnit4.class)
+public class BulkDeidentifierTests {
+
+  private static final String PARENT = "projects/fake-project";
+  private static final List<FieldId> HEADERS =
+      Arrays.asList(
+          FieldId.newBuilder().setName("name").build(),
+          FieldId.newBuilder().setName("credit_card").build());
+  private static final DeidentifyConfig CONFIG =
+      DeidentifyConfig.newBuilder()
+          .setRecordTransformations(
+              RecordTransformations.newBuilder()
+                  .addFieldTransformations(
+                      FieldTransformation.newBuilder()
+                          .addFields(HEADERS.get(1))
+                          .setPrimitiveTransformation(
+                              PrimitiveTransformation.newBuilder()
+                                  .setCryptoReplaceFfxFpeConfig(
+                                      CryptoReplaceFfxFpeConfig.getDefaultInstance()))))
+          .build();
+
+  private static Iterator<Table.Row> rows(int count) {
+    return IntStream.range(0, count).mapToObj(BulkDeidentifierTests::row).iterator();
+  }
+
+  private static Table.Row row(int i) {
+    return Table.Row.newBuilder()
+        .addValues(stringValue("name" + i))
+        .addValues(stringValue(String.format("4532%012d", i)))
+        .build();
+  }
+
+  private static Value stringValue(String value) {
+    return Value.newBuilder().setStringValue(value).build();
+  }
+
+  @Test
+  public void writesRowsInOrderAcrossBatches() throws Exception {
+    // With several requests in flight, batches can complete out of order.
+    try (FakeDlpServer server = new FakeDlpServer(5);
+        DlpServiceClient dlp = server.createClient()) {
+      BulkDeidentifier deidentifier =
+          new BulkDeidentifier(dlp, PARENT, CONFIG, null, 4096, 50, 4);
+      List<Table.Row> output = new ArrayList<>();
+      long written = deidentifier.deidentify(HEADERS, rows(2000), output::add);
+
+      assertEquals(2000, written);
+      assertEquals(2000, output.size());
+      assertEquals(deidentifier.getBatches(), server.getRequests());
+      assertTrue(deidentifier.getBatches() >= 2000 / 50);
+      assertTrue(deidentifier.getBytesSent() <= deidentifier.getBatches() * 4096);
+      for (int i = 0; i < output.size(); i++) {
+        Table.Row expected = row(i);
+        assertEquals(expected.getValues(0), output.get(i).getValues(0));
+        assertEquals(
+            FakeDlpServer.tokenize(expected.getValues(1).getStringValue()),
+            output.get(i).getValues(1).getStringValue());
+      }
+    }
+  }
+
+  @Test
+  public void keepsRequestsUnderTheSizeLimit() throws Exception {
+    try (FakeDlpServer server = new FakeDlpServer(0);
+        DlpServiceClient dlp = server.createClient()) {
+      BulkDeidentifier deidentifier = new BulkDeidentifier(dlp, PARENT, CONFIG, null);
+      // About 130 bytes a row, so 10000 rows would not fit in one request.
+      String padding = String.join("", Collections.nCopies(100, "x"));
+      Iterator<Table.Row> rows =
+          IntStream.range(0, 50000)
+              .mapToObj(i -> row(i).toBuilder().setValues(0, stringValue(padding + i)).build())
+              .iterator();
+      long written = deidentifier.deidentify(HEADERS, rows, row -> { });
+
+      // The fake rejects requests over 0.5MB, so every request fit.
+      assertEquals(50000, written);
+      assertTrue(deidentifier.getBatches() > 50000 / BulkDeidentifier.MAX_BATCH_ROWS);
+    }
+  }
+
+  @Test
+  public void failsIfABatchFails() throws Exception {
+    try (FakeDlpServer server = new FakeDlpServer(0);
+        DlpServiceClient dlp = server.createClient()) {
+      server.failRequests(Status.PERMISSION_DENIED);
+      BulkDeidentifier deidentifier =
+          new BulkDeidentifier(dlp, PARENT, CONFIG, null, 4096, 10, 4);
+      try {
+        deidentifier.deidentify(HEADERS, rows(1000), row -> { });
+        fail("Expected an IOException");
+      } catch (IOException expected) {
+        // The rows could not be de-identified.
+      }
+      // It stopped reading after the failure.
+      assertTrue(server.getRequests() < 100);
+    }
+  }
+}
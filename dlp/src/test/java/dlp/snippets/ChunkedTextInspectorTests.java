@@ -0,0 +1,149 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dlp.snippets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.privacy.dlp.v2.Finding;
+import com.google.privacy.dlp.v2.InfoType;
+import com.google.privacy.dlp.v2.InspectConfig;
+import com.google.privacy.dlp.v2.Range;
+import io.grpc.Status;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests chunked inspection against an in-process fake of the DLP API. */
+@RunWith(JUnit4.class)
+public class ChunkedTextInspectorTests {
+
+  private static final String PARENT = "projects/fake-project";
+  private static final InspectConfig CONFIG =
+      InspectConfig.newBuilder()
+          .addInfoTypes(InfoType.newBuilder().setName("EMAIL_ADDRESS"))
+          .addInfoTypes(InfoType.newBuilder().setName("PHONE_NUMBER"))
+          .setIncludeQuote(true)
+          .build();
+
+  private Path file;
+
+  @Before
+  public void createFile() throws IOException {
+    file = Files.createTempFile("chunked-inspect", ".txt");
+  }
+
+  @After
+  public void deleteFile() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  public void findsEverythingOnceAcrossChunks() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      text.append(String.format("Zoë %d writes to user%d@example.com, ☎ 555-%03d-%04d\n", i, i,
+          i % 1000, i));
+    }
+    Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+
+    try (FakeDlpServer server = new FakeDlpServer(0);
+        DlpServiceClient dlp = server.createClient()) {
+      ChunkedTextInspector inspector = new ChunkedTextInspector(dlp, PARENT, CONFIG, 4096, 256, 4);
+      List<Finding> findings = inspector.inspect(file);
+
+      assertEquals(1000, findings.size());
+      assertTrue(inspector.getChunks() > 1);
+      assertEquals(inspector.getChunks(), server.getRequests());
+      assertTrue(inspector.getDuplicates() > 0);
+      assertLocations(findings, text.toString());
+    }
+  }
+
+  @Test
+  public void splitsLinesLongerThanAChunk() throws Exception {
+    // A single line with multi-byte characters, so chunks must end within the line.
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 300; i++) {
+      text.append(String.format("ünïcødé 日本語 contact%d@example.com 555-010-%04d ", i, i));
+    }
+    Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+
+    try (FakeDlpServer server = new FakeDlpServer(0);
+        DlpServiceClient dlp = server.createClient()) {
+      ChunkedTextInspector inspector = new ChunkedTextInspector(dlp, PARENT, CONFIG, 1000, 100, 2);
+      List<Finding> findings = inspector.inspect(file);
+
+      assertEquals(600, findings.size());
+      assertTrue(inspector.getChunks() > 1);
+      assertLocations(findings, text.toString());
+    }
+  }
+
+  @Test
+  public void failsIfAChunkFails() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      text.append("someone@example.com\n");
+    }
+    Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+
+    try (FakeDlpServer server = new FakeDlpServer(0);
+        DlpServiceClient dlp = server.createClient()) {
+      server.failRequests(Status.PERMISSION_DENIED);
+      try {
+        new ChunkedTextInspector(dlp, PARENT, CONFIG, 512, 64, 2).inspect(file);
+        fail("Expected an IOException");
+      } catch (IOException expected) {
+        // The file could not be inspected.
+      }
+    }
+  }
+
+  // Checks that each finding's ranges select its quote in the whole text.
+  private static void assertLocations(List<Finding> findings, String text) {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    long previousStart = -1;
+    for (Finding f : findings) {
+      Range byteRange = f.getLocation().getByteRange();
+      String quote =
+          new String(
+              bytes,
+              (int) byteRange.getStart(),
+              (int) (byteRange.getEnd() - byteRange.getStart()),
+              StandardCharsets.UTF_8);
+      assertEquals(f.getQuote(), quote);
+
+      Range codepointRange = f.getLocation().getCodepointRange();
+      int begin = text.offsetByCodePoints(0, (int) codepointRange.getStart());
+      int end = text.offsetByCodePoints(0, (int) codepointRange.getEnd());
+      assertEquals(f.getQuote(), text.substring(begin, end));
+
+      assertTrue(byteRange.getStart() >= previousStart);
+      previousStart = byteRange.getStart();
+    }
+  }
+}
@@ -18,13 +18,17 @@ package dlp.snippets;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.StringContains.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -106,4 +110,37 @@ public class DeIdentificationTests {
     assertThat(output, containsString("Content written to file: "));
   }
 
+  @Test
+  public void testDeIdentifyTableWithFpe() throws IOException, InterruptedException {
+    Path inputFile = Paths.get("src/test/resources/dates.csv");
+    Path outputFile = Files.createTempFile("dlp-deid-table-", ".csv");
+    try {
+      DeIdentifyTableWithFpe.deIdentifyTableWithFpe(
+          PROJECT_ID, inputFile, outputFile, "credit_card", kmsKeyName, wrappedKey);
+
+      String output = bout.toString();
+      assertThat(output, containsString("Content written to file: "));
+      List<String> input = Files.readAllLines(inputFile);
+      List<String> result = Files.readAllLines(outputFile);
+      assertEquals(input.size(), result.size());
+      assertEquals(input.get(0), result.get(0));
+      assertNotEquals(input.get(1), result.get(1));
+    } finally {
+      Files.deleteIfExists(outputFile);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDeIdentifyTableWithFpeEmptyFile() throws IOException, InterruptedException {
+    Path inputFile = Files.createTempFile("dlp-deid-empty-", ".csv");
+    Path outputFile = Files.createTempFile("dlp-deid-table-", ".csv");
+    try {
+      DeIdentifyTableWithFpe.deIdentifyTableWithFpe(
+          PROJECT_ID, inputFile, outputFile, "credit_card", kmsKeyName, wrappedKey);
+    } finally {
+      Files.deleteIfExists(inputFile);
+      Files.deleteIfExists(outputFile);
+    }
+  }
+
 }
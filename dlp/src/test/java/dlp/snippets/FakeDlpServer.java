@@ -0,0 +1,286 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dlp.snippets;
+
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.cloud.dlp.v2.DlpServiceSettings;
+import com.google.privacy.dlp.v2.ContentItem;
+import com.google.privacy.dlp.v2.DeidentifyContentRequest;
+import com.google.privacy.dlp.v2.DeidentifyContentResponse;
+import com.google.privacy.dlp.v2.FieldId;
+import com.google.privacy.dlp.v2.FieldTransformation;
+import com.google.privacy.dlp.v2.Finding;
+import com.google.privacy.dlp.v2.InfoType;
+import com.google.privacy.dlp.v2.InspectContentRequest;
+import com.google.privacy.dlp.v2.InspectContentResponse;
+import com.google.privacy.dlp.v2.InspectResult;
+import com.google.privacy.dlp.v2.Likelihood;
+import com.google.privacy.dlp.v2.Location;
+import com.google.privacy.dlp.v2.Range;
+import com.google.privacy.dlp.v2.RedactImageRequest;
+import com.google.privacy.dlp.v2.RedactImageResponse;
+import com.google.privacy.dlp.v2.Table;
+import com.google.privacy.dlp.v2.Value;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process stand-in for the DLP API {@code InspectContent}, {@code DeidentifyContent} and
+ * {@code RedactImage} methods, used to test the bulk samples without network access or quota.
+ *
+ * <p>It finds EMAIL_ADDRESS and PHONE_NUMBER values with regular expressions, and reports their
+ * byte and codepoint ranges like the real service. It de-identifies tables by reversing the values
+ * of the fields named in the record transformations, and redacts images by prefixing them with a
+ * marker. Content requests over 0.5MB are rejected, and the server can be made to fail every
+ * request.
+ */
+class FakeDlpServer implements AutoCloseable {
+  private static final String SERVICE_NAME = "google.privacy.dlp.v2.DlpService";
+  private static final int MAX_REQUEST_BYTES = 512 * 1024;
+  private static final Pattern EMAIL = Pattern.compile("[\\w.+-]+@[\\w-]+(\\.[\\w-]+)+");
+  private static final Pattern PHONE = Pattern.compile("\\b\\d{3}-\\d{3}-\\d{4}\\b");
+
+  private static final MethodDescriptor<InspectContentRequest, InspectContentResponse>
+      INSPECT_CONTENT =
+          MethodDescriptor.<InspectContentRequest, InspectContentResponse>newBuilder()
+              .setType(MethodDescriptor.MethodType.UNARY)
+              .setFullMethodName(
+                  MethodDescriptor.generateFullMethodName(SERVICE_NAME, "InspectContent"))
+              .setRequestMarshaller(
+                  ProtoUtils.marshaller(InspectContentRequest.getDefaultInstance()))
+              .setResponseMarshaller(
+                  ProtoUtils.marshaller(InspectContentResponse.getDefaultInstance()))
+              .build();
+
+  private static final MethodDescriptor<DeidentifyContentRequest, DeidentifyContentResponse>
+      DEIDENTIFY_CONTENT =
+          MethodDescriptor.<DeidentifyContentRequest, DeidentifyContentResponse>newBuilder()
+              .setType(MethodDescriptor.MethodType.UNARY)
+              .setFullMethodName(
+                  MethodDescriptor.generateFullMethodName(SERVICE_NAME, "DeidentifyContent"))
+              .setRequestMarshaller(
+                  ProtoUtils.marshaller(DeidentifyContentRequest.getDefaultInstance()))
+              .setResponseMarshaller(
+                  ProtoUtils.marshaller(DeidentifyContentResponse.getDefaultInstance()))
+              .build();
+
+  private static final MethodDescriptor<RedactImageRequest, RedactImageResponse> REDACT_IMAGE =
+      MethodDescriptor.<RedactImageRequest, RedactImageResponse>newBuilder()
+          .setType(MethodDescriptor.MethodType.UNARY)
+          .setFullMethodName(MethodDescriptor.generateFullMethodName(SERVICE_NAME, "RedactImage"))
+          .setRequestMarshaller(ProtoUtils.marshaller(RedactImageRequest.getDefaultInstance()))
+          .setResponseMarshaller(ProtoUtils.marshaller(RedactImageResponse.getDefaultInstance()))
+          .build();
+
+  private final String name = InProcessServerBuilder.generateName();
+  private final Server server;
+  private final long latencyMillis;
+  private final AtomicInteger requests = new AtomicInteger();
+  private volatile Status failure;
+
+  /** Creates a server that takes {@code latencyMillis} to answer each request. */
+  FakeDlpServer(long latencyMillis) throws IOException {
+    this.latencyMillis = latencyMillis;
+    server =
+        InProcessServerBuilder.forName(name)
+            .addService(
+                ServerServiceDefinition.builder(SERVICE_NAME)
+                    .addMethod(INSPECT_CONTENT, ServerCalls.asyncUnaryCall(this::inspectContent))
+                    .addMethod(
+                        DEIDENTIFY_CONTENT, ServerCalls.asyncUnaryCall(this::deidentifyContent))
+                    .addMethod(REDACT_IMAGE, ServerCalls.asyncUnaryCall(this::redactImage))
+                    .build())
+            .build()
+            .start();
+  }
+
+  /** Creates a client talking to this server. Closing the client closes its channel. */
+  DlpServiceClient createClient() throws IOException {
+    ManagedChannel channel = InProcessChannelBuilder.forName(name).build();
+    DlpServiceSettings settings =
+        DlpServiceSettings.newBuilder()
+            .setTransportChannelProvider(
+                FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel)))
+            .setCredentialsProvider(NoCredentialsProvider.create())
+            .build();
+    return DlpServiceClient.create(settings);
+  }
+
+  /** Number of requests received so far. */
+  int getRequests() {
+    return requests.get();
+  }
+
+  /** Makes every later request fail with {@code status}. */
+  void failRequests(Status status) {
+    failure = status;
+  }
+
+  @Override
+  public void close() {
+    server.shutdownNow();
+  }
+
+  private void inspectContent(
+      InspectContentRequest request, StreamObserver<InspectContentResponse> responseObserver) {
+    requests.incrementAndGet();
+    if (failure != null) {
+      responseObserver.onError(failure.asRuntimeException());
+      return;
+    }
+    if (request.getSerializedSize() > MAX_REQUEST_BYTES) {
+      responseObserver.onError(
+          Status.INVALID_ARGUMENT.withDescription("Request is too large").asRuntimeException());
+      return;
+    }
+    sleep();
+    String text = request.getItem().getByteItem().getData().toStringUtf8();
+    List<Finding> findings = new ArrayList<>();
+    find(text, EMAIL, "EMAIL_ADDRESS", findings);
+    find(text, PHONE, "PHONE_NUMBER", findings);
+    responseObserver.onNext(
+        InspectContentResponse.newBuilder()
+            .setResult(InspectResult.newBuilder().addAllFindings(findings))
+            .build());
+    responseObserver.onCompleted();
+  }
+
+  private void deidentifyContent(
+      DeidentifyContentRequest request,
+      StreamObserver<DeidentifyContentResponse> responseObserver) {
+    requests.incrementAndGet();
+    if (failure != null) {
+      responseObserver.onError(failure.asRuntimeException());
+      return;
+    }
+    if (request.getSerializedSize() > MAX_REQUEST_BYTES) {
+      responseObserver.onError(
+          Status.INVALID_ARGUMENT.withDescription("Request is too large").asRuntimeException());
+      return;
+    }
+    sleep();
+    Table table = request.getItem().getTable();
+    Set<String> fields = new HashSet<>();
+    for (FieldTransformation transformation :
+        request.getDeidentifyConfig().getRecordTransformations().getFieldTransformationsList()) {
+      for (FieldId field : transformation.getFieldsList()) {
+        fields.add(field.getName());
+      }
+    }
+    Table.Builder result = table.toBuilder();
+    for (int i = 0; i < table.getHeadersCount(); i++) {
+      if (!fields.contains(table.getHeaders(i).getName())) {
+        continue;
+      }
+      for (Table.Row.Builder row : result.getRowsBuilderList()) {
+        String value = row.getValues(i).getStringValue();
+        row.setValues(i, Value.newBuilder().setStringValue(tokenize(value)));
+      }
+    }
+    responseObserver.onNext(
+        DeidentifyContentResponse.newBuilder()
+            .setItem(ContentItem.newBuilder().setTable(result))
+            .build());
+    responseObserver.onCompleted();
+  }
+
+  private void redactImage(
+      RedactImageRequest request, StreamObserver<RedactImageResponse> responseObserver) {
+    requests.incrementAndGet();
+    if (failure != null) {
+      responseObserver.onError(failure.asRuntimeException());
+      return;
+    }
+    sleep();
+    responseObserver.onNext(
+        RedactImageResponse.newBuilder()
+            .setRedactedImage(redact(request.getByteItem().getData()))
+            .build());
+    responseObserver.onCompleted();
+  }
+
+  /** A stand-in for redaction: prefixes the image with a marker. */
+  static ByteString redact(ByteString image) {
+    return ByteString.copyFromUtf8("REDACTED:").concat(image);
+  }
+
+  /** A format-preserving stand-in for encryption: reverses the value. */
+  static String tokenize(String value) {
+    return new StringBuilder(value).reverse().toString();
+  }
+
+  private void sleep() {
+    try {
+      Thread.sleep(latencyMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void find(String text, Pattern pattern, String infoType, List<Finding> findings) {
+    Matcher m = pattern.matcher(text);
+    // Byte and codepoint offsets of text.charAt(chars), advanced along with the matches.
+    int chars = 0;
+    long bytes = 0;
+    long codepoints = 0;
+    while (m.find()) {
+      String before = text.substring(chars, m.start());
+      bytes += before.getBytes(StandardCharsets.UTF_8).length;
+      codepoints += before.codePointCount(0, before.length());
+      chars = m.start();
+      String quote = m.group();
+      long quoteBytes = quote.getBytes(StandardCharsets.UTF_8).length;
+      long quoteCodepoints = quote.codePointCount(0, quote.length());
+      Location location =
+          Location.newBuilder()
+              .setByteRange(Range.newBuilder().setStart(bytes).setEnd(bytes + quoteBytes))
+              .setCodepointRange(
+                  Range.newBuilder()
+                      .setStart(codepoints)
+                      .setEnd(codepoints + quoteCodepoints))
+              .build();
+      findings.add(
+          Finding.newBuilder()
+              .setQuote(quote)
+              .setInfoType(InfoType.newBuilder().setName(infoType))
+              .setLikelihood(Likelihood.LIKELY)
+              .setLocation(location)
+              .build());
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dlp.snippets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.privacy.dlp.v2.InfoType;
+import com.google.privacy.dlp.v2.InspectConfig;
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests directory redaction against an in-process fake of the DLP API. */
+@RunWith(JUnit4.class)
+public class ImageRedactionPipelineTests {
+
+  private static final String PARENT = "projects/fake-project";
+  private static final InspectConfig CONFIG =
+      InspectConfig.newBuilder()
+          .addInfoTypes(InfoType.newBuilder().setName("EMAIL_ADDRESS"))
+          .build();
+
+  private Path inputDir;
+  private Path outputDir;
+
+  @Before
+  public void createDirectories() throws IOException {
+    inputDir = Files.createTempDirectory("redact-input");
+    outputDir = Files.createTempDirectory("redact-output");
+  }
+
+  @After
+  public void deleteDirectories() throws IOException {
+    for (Path dir : Arrays.asList(inputDir, outputDir)) {
+      try (Stream<Path> paths = Files.walk(dir)) {
+        paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+      }
+    }
+  }
+
+  private void writeImages(int count, int size) throws IOException {
+    for (int i = 0; i < count; i++) {
+      byte[] data = new byte[size];
+      Arrays.fill(data, (byte) i);
+      Files.write(inputDir.resolve(String.format("image%03d.png", i)), data);
+    }
+  }
+
+  @Test
+  public void redactsEveryImage() throws Exception {
+    writeImages(20, 1024);
+    Files.write(inputDir.resolve("notes.txt"), new byte[] {1, 2, 3});
+
+    try (FakeDlpServer server = new FakeDlpServer(5);
+        DlpServiceClient dlp = server.createClient()) {
+      ImageRedactionPipeline pipeline = new ImageRedactionPipeline(dlp, PARENT, CONFIG, 4);
+
+      assertEquals(20, pipeline.run(inputDir, outputDir));
+      assertEquals(20, server.getRequests());
+      assertEquals(0, pipeline.getFailures());
+      Path input = inputDir.resolve("image007.png");
+      assertArrayEquals(
+          FakeDlpServer.redact(ByteString.copyFrom(Files.readAllBytes(input))).toByteArray(),
+          Files.readAllBytes(outputDir.resolve("image007.png")));
+      assertFalse(Files.exists(outputDir.resolve("notes.txt")));
+    }
+  }
+
+  @Test
+  public void skipsUnchangedImages() throws Exception {
+    writeImages(10, 1024);
+
+    try (FakeDlpServer server = new FakeDlpServer(0);
+        DlpServiceClient dlp = server.createClient()) {
+      new ImageRedactionPipeline(dlp, PARENT, CONFIG, 4).run(inputDir, outputDir);
+
+      // Change one image and delete the redacted copy of another.
+      Files.write(inputDir.resolve("image003.png"), new byte[] {42});
+      Files.delete(outputDir.resolve("image005.png"));
+      ImageRedactionPipeline pipeline = new ImageRedactionPipeline(dlp, PARENT, CONFIG, 4);
+
+      assertEquals(2, pipeline.run(inputDir, outputDir));
+      assertEquals(8, pipeline.getSkipped());
+      assertEquals(12, server.getRequests());
+
+      // A different configuration redacts everything again.
+      InspectConfig other =
+          CONFIG.toBuilder().addInfoTypes(InfoType.newBuilder().setName("PHONE_NUMBER")).build();
+      assertEquals(10, new ImageRedactionPipeline(dlp, PARENT, other, 4).run(inputDir, outputDir));
+    }
+  }
+
+  @Test
+  public void countsFailedImages() throws Exception {
+    writeImages(5, 1024);
+
+    try (FakeDlpServer server = new FakeDlpServer(0);
+        DlpServiceClient dlp = server.createClient()) {
+      server.failRequests(Status.PERMISSION_DENIED);
+      ImageRedactionPipeline pipeline = new ImageRedactionPipeline(dlp, PARENT, CONFIG, 4);
+
+      assertEquals(0, pipeline.run(inputDir, outputDir));
+      assertEquals(5, pipeline.getFailures());
+
+      // Failed images are redacted on the next run.
+      server.failRequests(null);
+      assertEquals(5, new ImageRedactionPipeline(dlp, PARENT, CONFIG, 4).run(inputDir, outputDir));
+    }
+  }
+}
@@ -87,6 +87,16 @@ public class InspectTests {
     assertThat(output, containsString("Info type: EMAIL_ADDRESS"));
   }
 
+  @Test
+  public void testInspectLargeTextFile() {
+    InspectLargeTextFile.inspectLargeTextFile(PROJECT_ID, "src/test/resources/test.txt");
+
+    String output = bout.toString();
+    assertThat(output, containsString("Inspected 1 chunks"));
+    assertThat(output, containsString("Info type: PHONE_NUMBER"));
+    assertThat(output, containsString("Info type: EMAIL_ADDRESS"));
+  }
+
   @Test
   public void testInspectImageFile() {
     InspectImageFile.inspectImageFile(PROJECT_ID, "src/test/resources/test.png");
@@ -19,19 +19,28 @@ package dlp.snippets;
 import static junit.framework.TestCase.assertNotNull;
 import static org.hamcrest.core.StringContains.containsString;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 @RunWith(JUnit4.class)
 public class RedactTests {
 
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
   private ByteArrayOutputStream bout;
 
   private static final String PROJECT_ID = System.getenv("GOOGLE_CLOUD_PROJECT");
@@ -68,4 +77,19 @@ public class RedactTests {
     String output = bout.toString();
     assertThat(output, containsString("Redacted image written"));
   }
+
+  @Test
+  public void testRedactImageDirectory() throws IOException {
+    Path inputDir = folder.newFolder("images").toPath();
+    Path outputDir = folder.newFolder("redacted").toPath();
+    Files.copy(Paths.get("src/test/resources/test.png"), inputDir.resolve("test.png"));
+
+    RedactImageDirectory.redactImageDirectory(
+        PROJECT_ID, inputDir.toString(), outputDir.toString());
+
+    String output = bout.toString();
+    assertThat(output, containsString("Redacted 1 images (0 unchanged, 0 failed)"));
+    assertThat(output, containsString("Redacted images written to"));
+    assertTrue(Files.exists(outputDir.resolve("test.png")));
+  }
 }
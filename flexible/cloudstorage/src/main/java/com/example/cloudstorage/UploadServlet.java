@@ -16,31 +16,46 @@
 
 package com.example.cloudstorage;
 
+import com.google.cloud.WriteChannel;
 import com.google.cloud.storage.Acl;
 import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.StorageOptions;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
-import javax.servlet.ServletException;
-import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.Part;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
 
 // [START gae_flex_storage_app]
 @SuppressWarnings("serial")
 @WebServlet(name = "upload", value = "/upload")
-@MultipartConfig()
 public class UploadServlet extends HttpServlet {
 
+  private static final Logger logger = Logger.getLogger(UploadServlet.class.getName());
+
   private static final String BUCKET_NAME = System.getenv("BUCKET_NAME");
+  // Largest request accepted, including the multipart framing around the file.
+  private static final long MAX_UPLOAD_BYTES = 1024L * 1024 * 1024;
+  // Size of the chunks sent to Cloud Storage. Must be a multiple of 256 KiB.
+  private static final int CHUNK_BYTES = 8 * 1024 * 1024;
+  private static final int BUFFER_BYTES = 64 * 1024;
   private static Storage storage = null;
 
   @Override
@@ -49,22 +64,97 @@ public class UploadServlet extends HttpServlet {
   }
 
   @Override
-  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException,
-      ServletException {
-    final Part filePart = req.getPart("file");
-    final String fileName = filePart.getSubmittedFileName();
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (!ServletFileUpload.isMultipartContent(req)) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Expected a multipart/form-data request");
+      return;
+    }
+    // Reject uploads that announce their size before reading any of the body.
+    if (req.getContentLengthLong() > MAX_UPLOAD_BYTES) {
+      resp.sendError(
+          HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+          "Uploads are limited to " + MAX_UPLOAD_BYTES + " bytes");
+      return;
+    }
+
+    // The streaming API reads each part as it arrives, instead of buffering the whole request
+    // to memory or disk as @MultipartConfig does. The limit also applies to chunked requests.
+    ServletFileUpload upload = new ServletFileUpload();
+    upload.setSizeMax(MAX_UPLOAD_BYTES);
+    try {
+      FileItemIterator items = upload.getItemIterator(req);
+      while (items.hasNext()) {
+        FileItemStream item = items.next();
+        if (item.isFormField() || !"file".equals(item.getFieldName())) {
+          continue;
+        }
+        if (item.getName() == null || item.getName().isEmpty()) {
+          resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "No file selected");
+          return;
+        }
+        Blob blob = upload(item);
+        // return the public download link
+        resp.getWriter().print(blob.getMediaLink());
+        return;
+      }
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing the file part");
+    } catch (FileUploadBase.FileUploadIOException e) {
+      // Limits exceeded while streaming are reported through the part's input stream.
+      sendUploadError(resp, (FileUploadException) e.getCause());
+    } catch (FileUploadException e) {
+      sendUploadError(resp, e);
+    }
+  }
 
+  /** Streams the part into a resumable upload, one chunk at a time. */
+  private Blob upload(FileItemStream item) throws IOException {
     // Modify access list to allow all users with link to read file
     List<Acl> acls = new ArrayList<>();
     acls.add(Acl.of(Acl.User.ofAllUsers(), Acl.Role.READER));
-    // the inputstream is closed by default, so we don't need to close it here
-    Blob blob =
-        storage.create(
-            BlobInfo.newBuilder(BUCKET_NAME, fileName).setAcl(acls).build(),
-            filePart.getInputStream());
+    BlobInfo blobInfo =
+        BlobInfo.newBuilder(BUCKET_NAME, item.getName())
+            .setContentType(item.getContentType())
+            .setAcl(acls)
+            .build();
+
+    long start = System.nanoTime();
+    long bytes = 0;
+    WriteChannel writer = storage.writer(blobInfo);
+    writer.setChunkSize(CHUNK_BYTES);
+    byte[] buffer = new byte[BUFFER_BYTES];
+    try (InputStream in = item.openStream()) {
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+        while (data.hasRemaining()) {
+          writer.write(data);
+        }
+        bytes += read;
+      }
+    }
+    // Closing the writer finalizes the object, so it is only closed once the whole part has been
+    // read. An upload that fails before then is left unfinished, and expires on its own.
+    writer.close();
+
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    logger.info(
+        String.format(
+            "Uploaded %d bytes to gs://%s/%s in %d ms: %.2f MB/s",
+            bytes,
+            blobInfo.getBucket(),
+            blobInfo.getName(),
+            elapsedMillis,
+            elapsedMillis == 0 ? 0.0 : bytes / 1048576.0 * 1000 / elapsedMillis));
+    return storage.get(BlobId.of(blobInfo.getBucket(), blobInfo.getName()));
+  }
 
-    // return the public download link
-    resp.getWriter().print(blob.getMediaLink());
+  private static void sendUploadError(HttpServletResponse resp, FileUploadException e)
+      throws IOException {
+    if (e instanceof FileUploadBase.SizeException) {
+      resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+    } else {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+    }
   }
 }
 // [END gae_flex_storage_app]
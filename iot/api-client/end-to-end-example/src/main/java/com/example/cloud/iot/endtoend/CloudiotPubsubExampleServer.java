@@ -21,6 +21,9 @@ import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.gax.batching.FlowControlSettings;
+import com.google.api.gax.core.ExecutorProvider;
+import com.google.api.gax.core.InstantiatingExecutorProvider;
 import com.google.api.services.cloudiot.v1.CloudIot;
 import com.google.api.services.cloudiot.v1.CloudIotScopes;
 import com.google.api.services.cloudiot.v1.model.Device;
@@ -28,15 +31,17 @@ import com.google.api.services.cloudiot.v1.model.DeviceRegistry;
 import com.google.api.services.cloudiot.v1.model.EventNotificationConfig;
 import com.google.api.services.cloudiot.v1.model.GatewayConfig;
 import com.google.api.services.cloudiot.v1.model.ModifyCloudToDeviceConfigRequest;
-import com.google.cloud.pubsub.v1.AckReplyConsumer;
 import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.cloud.pubsub.v1.Publisher;
 import com.google.cloud.pubsub.v1.Subscriber;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.pubsub.v1.ProjectSubscriptionName;
-import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.ProjectTopicName;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Base64;
@@ -70,6 +75,10 @@ import org.json.JSONObject;
 public class CloudiotPubsubExampleServer {
 
   static final String APP_NAME = "CloudiotPubsubExampleServer";
+  // Number of configuration updates sent at a time.
+  static final int CONFIG_THREADS = 8;
+  // Cloud IoT Core accepts about one configuration update per second for each device.
+  static final long CONFIG_BATCH_MILLIS = 1000;
 
   CloudIot service;
 
@@ -218,32 +227,41 @@ public class CloudiotPubsubExampleServer {
     // [END create_device]
   }
 
-  /** Push the data to the given device as configuration. */
-  public void updateDeviceConfig(
-      String projectId, String region, String registryId, String deviceId, JSONObject data)
-      throws JSONException, UnsupportedEncodingException {
-    // Push the data to the given device as configuration.
+  /**
+   * The configuration to push to a device that reported {@code temperature}, or null if its fan can
+   * stay as it is.
+   */
+  static JSONObject fanConfig(int temperature) {
     JSONObject configData = new JSONObject();
-    System.out.println(
-        String.format("Device %s has temperature of: %d", deviceId, data.getInt("temperature")));
-    if (data.getInt("temperature") < 0) {
+    if (temperature < 0) {
       // Turn off the fan
       configData.put("fan_on", false);
-      System.out.println("Setting fan state for device " + deviceId + " to off.");
-    } else if (data.getInt("temperature") > 10) {
+    } else if (temperature > 10) {
       // Turn on the fan
       configData.put("fan_on", true);
-      System.out.println("Setting fan state for device " + deviceId + " to on.");
     } else {
       // temperature is okay, don't need to push new config
-      return;
+      return null;
     }
-    // Data sent through the wire has to be base64 encoded.
-    Base64.Encoder encoder = Base64.getEncoder();
-    String encPayload = encoder.encodeToString(configData.toString().getBytes("UTF-8"));
+    return configData;
+  }
 
-    ModifyCloudToDeviceConfigRequest request = new ModifyCloudToDeviceConfigRequest();
-    request.setBinaryData(encPayload);
+  /** Push the data to the given device as configuration. */
+  public void updateDeviceConfig(
+      String projectId, String region, String registryId, String deviceId, JSONObject data)
+      throws JSONException, UnsupportedEncodingException {
+    // Push the data to the given device as configuration.
+    System.out.println(
+        String.format("Device %s has temperature of: %d", deviceId, data.getInt("temperature")));
+    JSONObject configData = fanConfig(data.getInt("temperature"));
+    if (configData == null) {
+      return;
+    }
+    System.out.println(
+        "Setting fan state for device "
+            + deviceId
+            + " to "
+            + (configData.getBoolean("fan_on") ? "on." : "off."));
 
     String deviceName =
         String.format(
@@ -251,49 +269,78 @@ public class CloudiotPubsubExampleServer {
             projectId, region, registryId, deviceId);
 
     try {
-      service
-          .projects()
-          .locations()
-          .registries()
-          .devices()
-          .modifyCloudToDeviceConfig(deviceName, request)
-          .execute();
+      writeDeviceConfig(deviceName, configData);
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
+  /** Sets the configuration of the device named {@code deviceName}. */
+  void writeDeviceConfig(String deviceName, JSONObject configData) throws IOException {
+    // Data sent through the wire has to be base64 encoded.
+    Base64.Encoder encoder = Base64.getEncoder();
+    String encPayload =
+        encoder.encodeToString(configData.toString().getBytes(StandardCharsets.UTF_8));
+
+    ModifyCloudToDeviceConfigRequest request = new ModifyCloudToDeviceConfigRequest();
+    request.setBinaryData(encPayload);
+
+    service
+        .projects()
+        .locations()
+        .registries()
+        .devices()
+        .modifyCloudToDeviceConfig(deviceName, request)
+        .execute();
+  }
+
   /** The main loop. Consumes messages from the Pub/Sub subscription. */
   public void run(String projectId, String subscriptionId) {
+    CloudiotPubsubExampleServerOptions options = new CloudiotPubsubExampleServerOptions();
+    options.projectId = projectId;
+    options.pubsubSubscription = subscriptionId;
+    try {
+      run(options);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * The main loop. Consumes messages from the Pub/Sub subscription with the flow control given in
+   * {@code options}, and pushes configuration changes in the background. Messages are acknowledged
+   * without waiting for configuration updates.
+   */
+  void run(CloudiotPubsubExampleServerOptions options) throws IOException {
     ProjectSubscriptionName subscriptionName =
-        ProjectSubscriptionName.of(projectId, subscriptionId);
-    // Instantiate an asynchronous message receiver
-    MessageReceiver receiver =
-        new MessageReceiver() {
-          @Override
-          public void receiveMessage(PubsubMessage message, AckReplyConsumer consumer) {
-            // handle incoming message, then ack/nack the received message
-            try {
-              JSONObject data = new JSONObject(message.getData().toStringUtf8());
-              String projectId = message.getAttributesOrThrow("projectId");
-              String region = message.getAttributesOrThrow("deviceRegistryLocation");
-              String registryId = message.getAttributesOrThrow("deviceRegistryId");
-              String deviceId = message.getAttributesOrThrow("deviceId");
-
-              CloudiotPubsubExampleServer.this.updateDeviceConfig(
-                  projectId, region, registryId, deviceId, data);
-              consumer.ack();
-            } catch (JSONException e) {
-              e.printStackTrace();
-            } catch (UnsupportedEncodingException e) {
-              e.printStackTrace();
-            }
-          }
-        };
+        ProjectSubscriptionName.of(options.projectId, options.pubsubSubscription);
+    final DeviceConfigDispatcher dispatcher =
+        new DeviceConfigDispatcher(
+            (deviceName, config) -> {
+              System.out.println(
+                  "Setting fan state for device "
+                      + deviceName
+                      + " to "
+                      + (config.getBoolean("fan_on") ? "on." : "off."));
+              writeDeviceConfig(deviceName, config);
+            },
+            options.configThreads,
+            options.configBatchMillis);
+
+    Publisher deadLetterPublisher = null;
+    if (options.deadLetterTopic != null) {
+      deadLetterPublisher =
+          Publisher.newBuilder(ProjectTopicName.of(options.projectId, options.deadLetterTopic))
+              .build();
+    }
+    // Handle incoming messages, then ack/nack the received message
+    TelemetryReceiver receiver =
+        new TelemetryReceiver(
+            dispatcher, deadLetterPublisher == null ? null : deadLetterPublisher::publish);
 
     Subscriber subscriber = null;
     try {
-      subscriber = Subscriber.newBuilder(subscriptionName, receiver).build();
+      subscriber = newSubscriberBuilder(subscriptionName, receiver, options).build();
       subscriber.addListener(
           new Subscriber.Listener() {
             @Override
@@ -309,6 +356,8 @@ public class CloudiotPubsubExampleServer {
           String.format("Listening for messages on %s", subscriber.getSubscriptionNameString()));
       while (true) {
         Thread.sleep(60000);
+        receiver.printStats(System.out);
+        dispatcher.printStats(System.out);
       }
     } catch (InterruptedException e) {
       e.printStackTrace();
@@ -316,9 +365,40 @@ public class CloudiotPubsubExampleServer {
       if (subscriber != null) {
         subscriber.stopAsync().awaitTerminated();
       }
+      if (deadLetterPublisher != null) {
+        deadLetterPublisher.shutdown();
+      }
+      try {
+        dispatcher.close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
     }
   }
 
+  /**
+   * Creates a subscriber builder that handles messages on {@code options.executorThreads} threads,
+   * and stops pulling while {@code options.maxOutstandingMessages} messages or {@code
+   * options.maxOutstandingBytes} bytes are waiting to be acknowledged.
+   */
+  static Subscriber.Builder newSubscriberBuilder(
+      ProjectSubscriptionName subscriptionName,
+      MessageReceiver receiver,
+      CloudiotPubsubExampleServerOptions options) {
+    ExecutorProvider executorProvider =
+        InstantiatingExecutorProvider.newBuilder()
+            .setExecutorThreadCount(options.executorThreads)
+            .build();
+    FlowControlSettings flowControlSettings =
+        FlowControlSettings.newBuilder()
+            .setMaxOutstandingElementCount(options.maxOutstandingMessages)
+            .setMaxOutstandingRequestBytes(options.maxOutstandingBytes)
+            .build();
+    return Subscriber.newBuilder(subscriptionName, receiver)
+        .setExecutorProvider(executorProvider)
+        .setFlowControlSettings(flowControlSettings);
+  }
+
   /** Entry point for CLI. */
   public static void main(String[] args) throws Exception {
     CloudiotPubsubExampleServerOptions options = CloudiotPubsubExampleServerOptions.fromFlags(args);
@@ -327,8 +407,6 @@ public class CloudiotPubsubExampleServer {
     }
 
     CloudiotPubsubExampleServer server = new CloudiotPubsubExampleServer();
-    String projectId = options.projectId;
-    String pubsubscription = options.pubsubSubscription;
-    server.run(projectId, pubsubscription);
+    server.run(options);
   }
 }
@@ -26,6 +26,12 @@ import org.apache.commons.cli.ParseException;
 public class CloudiotPubsubExampleServerOptions {
   String projectId;
   String pubsubSubscription;
+  int configThreads = CloudiotPubsubExampleServer.CONFIG_THREADS;
+  long configBatchMillis = CloudiotPubsubExampleServer.CONFIG_BATCH_MILLIS;
+  int executorThreads = 4;
+  long maxOutstandingMessages = 1000;
+  long maxOutstandingBytes = 100L * 1024 * 1024;
+  String deadLetterTopic;
 
   static final Options options = new Options();
 
@@ -48,6 +54,48 @@ public class CloudiotPubsubExampleServerOptions {
             .hasArg()
             .desc("GCP cloud project name.")
             .build());
+    options.addOption(
+        Option.builder()
+            .type(Number.class)
+            .longOpt("config_threads")
+            .hasArg()
+            .desc("Number of device configuration updates sent at a time.")
+            .build());
+    options.addOption(
+        Option.builder()
+            .type(Number.class)
+            .longOpt("config_batch_ms")
+            .hasArg()
+            .desc("Milliseconds fan state requests for a device are collected into one update.")
+            .build());
+    options.addOption(
+        Option.builder()
+            .type(Number.class)
+            .longOpt("executor_threads")
+            .hasArg()
+            .desc("Number of threads handling Pub/Sub messages.")
+            .build());
+    options.addOption(
+        Option.builder()
+            .type(Number.class)
+            .longOpt("max_outstanding_messages")
+            .hasArg()
+            .desc("Maximum number of messages received but not yet acknowledged.")
+            .build());
+    options.addOption(
+        Option.builder()
+            .type(Number.class)
+            .longOpt("max_outstanding_bytes")
+            .hasArg()
+            .desc("Maximum size of the messages received but not yet acknowledged.")
+            .build());
+    options.addOption(
+        Option.builder()
+            .type(String.class)
+            .longOpt("dead_letter_topic")
+            .hasArg()
+            .desc("Pub/Sub topic for messages that cannot be handled. If unset they are dropped.")
+            .build());
 
     CommandLineParser parser = new DefaultParser();
     CommandLine commandLine;
@@ -69,6 +117,29 @@ public class CloudiotPubsubExampleServerOptions {
       if (commandLine.hasOption("pubsub_subscription")) {
         res.pubsubSubscription = commandLine.getOptionValue("pubsub_subscription");
       }
+      if (commandLine.hasOption("config_threads")) {
+        res.configThreads =
+            ((Number) commandLine.getParsedOptionValue("config_threads")).intValue();
+      }
+      if (commandLine.hasOption("config_batch_ms")) {
+        res.configBatchMillis =
+            ((Number) commandLine.getParsedOptionValue("config_batch_ms")).longValue();
+      }
+      if (commandLine.hasOption("executor_threads")) {
+        res.executorThreads =
+            ((Number) commandLine.getParsedOptionValue("executor_threads")).intValue();
+      }
+      if (commandLine.hasOption("max_outstanding_messages")) {
+        res.maxOutstandingMessages =
+            ((Number) commandLine.getParsedOptionValue("max_outstanding_messages")).longValue();
+      }
+      if (commandLine.hasOption("max_outstanding_bytes")) {
+        res.maxOutstandingBytes =
+            ((Number) commandLine.getParsedOptionValue("max_outstanding_bytes")).longValue();
+      }
+      if (commandLine.hasOption("dead_letter_topic")) {
+        res.deadLetterTopic = commandLine.getOptionValue("dead_letter_topic");
+      }
 
       return res;
     } catch (ParseException e) {
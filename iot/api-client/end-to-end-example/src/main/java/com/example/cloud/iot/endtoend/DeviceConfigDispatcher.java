@@ -0,0 +1,184 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloud.iot.endtoend;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * Pushes configuration to devices in the background, skipping writes that would not change
+ * anything.
+ *
+ * <p>The dispatcher remembers the configuration last written to each device. A request for the
+ * configuration a device already has is dropped. Otherwise the write runs {@code batchMillis} after
+ * the first request for the device, and writes the latest configuration requested by then. Later
+ * requests do not delay the write, so a device is written at most once per window however much
+ * telemetry it sends. Cloud IoT Core accepts roughly one
+ * configuration update per second per device, so writing every request would also be throttled.
+ *
+ * <p>Writes run on a fixed number of threads, and each device has at most one write queued or in
+ * progress, so {@link #submit} never blocks and memory stays proportional to the number of devices.
+ */
+public class DeviceConfigDispatcher implements AutoCloseable {
+
+  /** Writes a configuration to a device. */
+  public interface ConfigWriter {
+    void write(String deviceName, JSONObject config) throws IOException;
+  }
+
+  private final ConfigWriter writer;
+  private final long batchMillis;
+  private final ScheduledExecutorService executor;
+  private final Map<String, DeviceState> devices = new ConcurrentHashMap<>();
+
+  private final LongAdder requested = new LongAdder();
+  private final LongAdder written = new LongAdder();
+  private final LongAdder unchanged = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+
+  private static class DeviceState {
+    // Guarded by this. Configurations are compared by their JSON text.
+    String applied;
+    JSONObject desired;
+    boolean pending = false;
+  }
+
+  /**
+   * Creates a dispatcher that writes with {@code writer} on {@code threads} threads, at most once
+   * every {@code batchMillis} for each device.
+   */
+  public DeviceConfigDispatcher(ConfigWriter writer, int threads, long batchMillis) {
+    this.writer = writer;
+    this.batchMillis = batchMillis;
+    this.executor = Executors.newScheduledThreadPool(threads);
+  }
+
+  /** Requests that {@code deviceName} be given {@code config}. Returns immediately. */
+  public void submit(String deviceName, JSONObject config) {
+    requested.increment();
+    DeviceState state = devices.computeIfAbsent(deviceName, k -> new DeviceState());
+    synchronized (state) {
+      state.desired = config;
+      if (state.pending) {
+        // The queued write will pick up the latest configuration.
+        coalesced.increment();
+        return;
+      }
+      if (config.toString().equals(state.applied)) {
+        unchanged.increment();
+        return;
+      }
+      state.pending = true;
+    }
+    schedule(deviceName, state, batchMillis);
+  }
+
+  /** Number of configurations requested. */
+  public long getRequested() {
+    return requested.sum();
+  }
+
+  /** Number of configurations written to devices. */
+  public long getWritten() {
+    return written.sum();
+  }
+
+  /** Number of requests dropped because the device already had that configuration. */
+  public long getUnchanged() {
+    return unchanged.sum();
+  }
+
+  /** Number of requests merged into a write that was already queued. */
+  public long getCoalesced() {
+    return coalesced.sum();
+  }
+
+  /** Number of writes that failed. */
+  public long getFailed() {
+    return failed.sum();
+  }
+
+  /** Prints how many requests led to a write. */
+  public void printStats(PrintStream out) {
+    out.println(
+        String.format(
+            "Config requests: %d, written: %d, unchanged: %d, coalesced: %d, failed: %d",
+            getRequested(), getWritten(), getUnchanged(), getCoalesced(), getFailed()));
+  }
+
+  /** Waits for queued writes to complete, then stops the writer threads. */
+  @Override
+  public void close() throws InterruptedException {
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.MINUTES);
+  }
+
+  private void schedule(String deviceName, DeviceState state, long delayMillis) {
+    try {
+      executor.schedule(() -> write(deviceName, state), delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // The dispatcher is closed.
+      synchronized (state) {
+        state.pending = false;
+      }
+    }
+  }
+
+  private void write(String deviceName, DeviceState state) {
+    JSONObject config;
+    synchronized (state) {
+      config = state.desired;
+      if (config.toString().equals(state.applied)) {
+        // The device went back to the configuration it already has.
+        state.pending = false;
+        return;
+      }
+    }
+    boolean success = false;
+    try {
+      writer.write(deviceName, config);
+      written.increment();
+      success = true;
+    } catch (IOException | RuntimeException e) {
+      failed.increment();
+      System.err.println("Could not update config of " + deviceName + ": " + e.getMessage());
+    }
+    synchronized (state) {
+      if (success) {
+        state.applied = config.toString();
+      }
+      if (success && state.desired != config && !state.desired.toString().equals(state.applied)) {
+        // A different configuration was requested during the write. Write it after the same
+        // delay, which also keeps updates to a device within the rate limit.
+        schedule(deviceName, state, batchMillis);
+      } else {
+        // After a failure, the next request for this device tries again.
+        state.pending = false;
+      }
+    }
+  }
+}
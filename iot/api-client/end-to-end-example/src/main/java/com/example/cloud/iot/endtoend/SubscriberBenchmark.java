@@ -0,0 +1,210 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloud.iot.endtoend;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.core.CredentialsProvider;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.api.gax.rpc.TransportChannelProvider;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.cloud.pubsub.v1.Subscriber;
+import com.google.cloud.pubsub.v1.SubscriptionAdminClient;
+import com.google.cloud.pubsub.v1.SubscriptionAdminSettings;
+import com.google.cloud.pubsub.v1.TopicAdminClient;
+import com.google.cloud.pubsub.v1.TopicAdminSettings;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.ProjectSubscriptionName;
+import com.google.pubsub.v1.ProjectTopicName;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.PushConfig;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast the server's subscriber handles telemetry, using the Pub/Sub emulator.
+ *
+ * <p>Start the emulator and set {@code PUBSUB_EMULATOR_HOST}, as described in
+ * https://cloud.google.com/pubsub/docs/emulator, then run the benchmark with the same flow control
+ * flags as the server, and {@code -num_messages=N}. The benchmark creates a topic, a subscription
+ * and a dead letter topic named after {@code -pubsub_subscription}, publishes the messages, one in
+ * a hundred of them invalid, and times how long the subscriber takes to handle them all.
+ * Configuration changes are counted but not sent to Cloud IoT Core.
+ */
+public class SubscriberBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    // -num_messages is the benchmark's own flag, the others are passed to the server's options.
+    int numMessages = 100000;
+    List<String> serverArgs = new ArrayList<>();
+    for (String arg : args) {
+      String flag = arg.replaceFirst("^--?", "");
+      if (flag.startsWith("num_messages=")) {
+        numMessages = Integer.parseInt(flag.substring("num_messages=".length()));
+      } else {
+        serverArgs.add(arg);
+      }
+    }
+    CloudiotPubsubExampleServerOptions options =
+        CloudiotPubsubExampleServerOptions.fromFlags(serverArgs.toArray(new String[0]));
+    if (options == null) {
+      System.exit(1);
+    }
+    String emulatorHost = System.getenv("PUBSUB_EMULATOR_HOST");
+    if (emulatorHost == null) {
+      System.err.println("Set PUBSUB_EMULATOR_HOST to the address of the Pub/Sub emulator.");
+      System.exit(1);
+    }
+    String projectId = options.projectId != null ? options.projectId : "benchmark-project";
+
+    ManagedChannel channel = ManagedChannelBuilder.forTarget(emulatorHost).usePlaintext().build();
+    TransportChannelProvider channelProvider =
+        FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel));
+    CredentialsProvider credentialsProvider = NoCredentialsProvider.create();
+
+    ProjectTopicName topic = ProjectTopicName.of(projectId, options.pubsubSubscription + "-topic");
+    ProjectTopicName deadLetterTopic =
+        ProjectTopicName.of(projectId, options.pubsubSubscription + "-dead-letter");
+    ProjectSubscriptionName subscription =
+        ProjectSubscriptionName.of(projectId, options.pubsubSubscription);
+
+    try (TopicAdminClient topicAdmin =
+            TopicAdminClient.create(
+                TopicAdminSettings.newBuilder()
+                    .setTransportChannelProvider(channelProvider)
+                    .setCredentialsProvider(credentialsProvider)
+                    .build());
+        SubscriptionAdminClient subscriptionAdmin =
+            SubscriptionAdminClient.create(
+                SubscriptionAdminSettings.newBuilder()
+                    .setTransportChannelProvider(channelProvider)
+                    .setCredentialsProvider(credentialsProvider)
+                    .build())) {
+      topicAdmin.createTopic(topic);
+      topicAdmin.createTopic(deadLetterTopic);
+      subscriptionAdmin.createSubscription(
+          subscription, topic, PushConfig.getDefaultInstance(), 60);
+      try {
+        publish(topic, numMessages, channelProvider, credentialsProvider);
+        consume(
+            subscription,
+            deadLetterTopic,
+            numMessages,
+            options,
+            channelProvider,
+            credentialsProvider);
+      } finally {
+        subscriptionAdmin.deleteSubscription(subscription);
+        topicAdmin.deleteTopic(topic);
+        topicAdmin.deleteTopic(deadLetterTopic);
+      }
+    } finally {
+      channel.shutdownNow();
+    }
+  }
+
+  private static void publish(
+      ProjectTopicName topic,
+      int numMessages,
+      TransportChannelProvider channelProvider,
+      CredentialsProvider credentialsProvider)
+      throws Exception {
+    Publisher publisher =
+        Publisher.newBuilder(topic)
+            .setChannelProvider(channelProvider)
+            .setCredentialsProvider(credentialsProvider)
+            .build();
+    try {
+      List<ApiFuture<String>> published = new ArrayList<>();
+      for (int i = 0; i < numMessages; i++) {
+        // Temperatures from -5 to 15, so some fans are switched on and some off.
+        String data =
+            i % 100 == 99 ? "not json" : String.format("{\"temperature\": %d}", i % 21 - 5);
+        published.add(
+            publisher.publish(
+                PubsubMessage.newBuilder()
+                    .setData(ByteString.copyFromUtf8(data))
+                    .putAttributes("projectId", topic.getProject())
+                    .putAttributes("deviceRegistryLocation", "us-central1")
+                    .putAttributes("deviceRegistryId", "benchmark-registry")
+                    .putAttributes("deviceId", "device-" + i % 1000)
+                    .build()));
+      }
+      ApiFutures.allAsList(published).get();
+      System.out.println(String.format("Published %d messages", numMessages));
+    } finally {
+      publisher.shutdown();
+      publisher.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  private static void consume(
+      ProjectSubscriptionName subscription,
+      ProjectTopicName deadLetterTopic,
+      int numMessages,
+      CloudiotPubsubExampleServerOptions options,
+      TransportChannelProvider channelProvider,
+      CredentialsProvider credentialsProvider)
+      throws Exception {
+    Publisher deadLetterPublisher =
+        Publisher.newBuilder(deadLetterTopic)
+            .setChannelProvider(channelProvider)
+            .setCredentialsProvider(credentialsProvider)
+            .build();
+    DeviceConfigDispatcher dispatcher =
+        new DeviceConfigDispatcher(
+            (deviceName, config) -> { }, options.configThreads, options.configBatchMillis);
+    TelemetryReceiver receiver = new TelemetryReceiver(dispatcher, deadLetterPublisher::publish);
+    Subscriber subscriber =
+        CloudiotPubsubExampleServer.newSubscriberBuilder(subscription, receiver, options)
+            .setChannelProvider(channelProvider)
+            .setCredentialsProvider(credentialsProvider)
+            .build();
+
+    long start = System.nanoTime();
+    subscriber.startAsync().awaitRunning();
+    try {
+      while (receiver.getAcked() + receiver.getDeadLettered() < numMessages) {
+        Thread.sleep(10);
+      }
+    } finally {
+      subscriber.stopAsync().awaitTerminated();
+      deadLetterPublisher.shutdown();
+      dispatcher.close();
+    }
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    System.out.println(
+        String.format(
+            "Handled %d messages in %d ms: %.1f msg/s (%d executor threads, "
+                + "max outstanding %d messages / %d bytes)",
+            numMessages,
+            elapsedMillis,
+            elapsedMillis == 0 ? 0.0 : numMessages * 1000.0 / elapsedMillis,
+            options.executorThreads,
+            options.maxOutstandingMessages,
+            options.maxOutstandingBytes));
+    receiver.printStats(System.out);
+    dispatcher.printStats(System.out);
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloud.iot.endtoend;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * Receives device telemetry from Pub/Sub and queues the resulting fan changes on a {@link
+ * DeviceConfigDispatcher}.
+ *
+ * <p>Only the temperature is read from each message, with a streaming parser that stops as soon as
+ * it has been found. Messages that cannot be handled, because they are not JSON, have no
+ * temperature or lack the Cloud IoT attributes, are never going to succeed. If a dead letter topic
+ * is given they are republished there and acknowledged, otherwise they are logged and acknowledged,
+ * since nacking them would only have them redelivered forever.
+ */
+public class TelemetryReceiver implements MessageReceiver {
+
+  /** Where messages that cannot be handled are republished. */
+  public interface DeadLetterQueue {
+    ApiFuture<String> publish(PubsubMessage message);
+  }
+
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+  private final DeviceConfigDispatcher dispatcher;
+  private final DeadLetterQueue deadLetterQueue;
+
+  private final LongAdder acked = new LongAdder();
+  private final LongAdder nacked = new LongAdder();
+  private final LongAdder deadLettered = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+
+  /**
+   * Creates a receiver that queues configuration changes on {@code dispatcher}, and republishes
+   * messages it cannot handle to {@code deadLetterQueue}, or drops them if it is null.
+   */
+  public TelemetryReceiver(DeviceConfigDispatcher dispatcher, DeadLetterQueue deadLetterQueue) {
+    this.dispatcher = dispatcher;
+    this.deadLetterQueue = deadLetterQueue;
+  }
+
+  @Override
+  public void receiveMessage(PubsubMessage message, AckReplyConsumer consumer) {
+    String deviceName;
+    int temperature;
+    try {
+      deviceName =
+          String.format(
+              "projects/%s/locations/%s/registries/%s/devices/%s",
+              message.getAttributesOrThrow("projectId"),
+              message.getAttributesOrThrow("deviceRegistryLocation"),
+              message.getAttributesOrThrow("deviceRegistryId"),
+              message.getAttributesOrThrow("deviceId"));
+      temperature = readTemperature(message.getData());
+    } catch (IOException | IllegalArgumentException e) {
+      reject(message, consumer, e);
+      return;
+    }
+
+    JSONObject configData = CloudiotPubsubExampleServer.fanConfig(temperature);
+    if (configData != null) {
+      // Only queues the update, so the ack is not held up by the Cloud IoT API.
+      dispatcher.submit(deviceName, configData);
+    }
+    consumer.ack();
+    acked.increment();
+  }
+
+  /** Number of messages handled and acknowledged, not counting dead letters. */
+  public long getAcked() {
+    return acked.sum();
+  }
+
+  /** Number of messages nacked because they could not be republished to the dead letter topic. */
+  public long getNacked() {
+    return nacked.sum();
+  }
+
+  /** Number of messages republished to the dead letter topic and acknowledged. */
+  public long getDeadLettered() {
+    return deadLettered.sum();
+  }
+
+  /** Number of messages acknowledged and dropped because they could not be handled. */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /** Prints the number of messages handled and rejected. */
+  public void printStats(PrintStream out) {
+    out.println(
+        String.format(
+            "Messages acked: %d, nacked: %d, dead lettered: %d, dropped: %d",
+            getAcked(), getNacked(), getDeadLettered(), getDropped()));
+  }
+
+  /**
+   * Reads the {@code temperature} field of a JSON object, without parsing the rest of the object.
+   */
+  static int readTemperature(ByteString data) throws IOException {
+    try (JsonParser parser =
+        JSON_FACTORY.createJsonParser(data.newInput(), StandardCharsets.UTF_8)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Telemetry is not a JSON object");
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (field.equals("temperature")) {
+          if (value == JsonToken.VALUE_NUMBER_INT) {
+            return parser.getIntValue();
+          } else if (value == JsonToken.VALUE_NUMBER_FLOAT) {
+            return (int) parser.getDoubleValue();
+          }
+          throw new IOException("Temperature is not a number");
+        }
+        parser.skipChildren();
+      }
+      throw new IOException("Telemetry has no temperature");
+    }
+  }
+
+  private void reject(PubsubMessage message, AckReplyConsumer consumer, Exception cause) {
+    System.err.println(
+        String.format("Rejecting message %s: %s", message.getMessageId(), cause.getMessage()));
+    if (deadLetterQueue == null) {
+      // Redelivering the message would fail the same way, so drop it.
+      consumer.ack();
+      dropped.increment();
+      return;
+    }
+    PubsubMessage deadLetter =
+        message
+            .toBuilder()
+            .clearMessageId()
+            .clearPublishTime()
+            .putAttributes("error", String.valueOf(cause.getMessage()))
+            .putAttributes("originalMessageId", message.getMessageId())
+            .build();
+    ApiFutures.addCallback(
+        deadLetterQueue.publish(deadLetter),
+        new ApiFutureCallback<String>() {
+          @Override
+          public void onSuccess(String messageId) {
+            consumer.ack();
+            deadLettered.increment();
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            // Try again when the message is redelivered.
+            consumer.nack();
+            nacked.increment();
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+}
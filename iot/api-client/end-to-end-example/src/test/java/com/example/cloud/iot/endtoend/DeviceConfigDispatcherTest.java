@@ -0,0 +1,101 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloud.iot.endtoend;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the device config dispatcher. These do not need a project. */
+@RunWith(JUnit4.class)
+public class DeviceConfigDispatcherTest {
+  private final List<String> writes = new CopyOnWriteArrayList<>();
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicInteger maxActive = new AtomicInteger();
+
+  private DeviceConfigDispatcher.ConfigWriter recordingWriter(long delayMillis) {
+    return (deviceName, config) -> {
+      maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+      try {
+        Thread.sleep(delayMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      writes.add(deviceName + "=" + config.getBoolean("fan_on"));
+      active.decrementAndGet();
+    };
+  }
+
+  private static JSONObject fan(boolean on) {
+    return new JSONObject().put("fan_on", on);
+  }
+
+  @Test
+  public void testUnchangedConfigIsNotWritten() throws Exception {
+    DeviceConfigDispatcher dispatcher = new DeviceConfigDispatcher(recordingWriter(0), 2, 0);
+    dispatcher.submit("device", fan(true));
+    waitForWrites(1);
+    dispatcher.submit("device", fan(true));
+    dispatcher.submit("device", fan(true));
+    dispatcher.close();
+
+    assertThat(writes).containsExactly("device=true");
+    assertThat(dispatcher.getUnchanged()).isEqualTo(2);
+  }
+
+  @Test
+  public void testBurstIsCoalesced() throws Exception {
+    DeviceConfigDispatcher dispatcher = new DeviceConfigDispatcher(recordingWriter(0), 2, 100);
+    for (int i = 0; i < 10; i++) {
+      dispatcher.submit("device", fan(i % 2 == 0));
+    }
+    dispatcher.close();
+
+    // Only the last requested state is written.
+    assertThat(writes).containsExactly("device=false");
+    assertThat(dispatcher.getCoalesced()).isEqualTo(9);
+  }
+
+  @Test
+  public void testWritesAreBoundedAndDoNotBlockSubmit() throws Exception {
+    DeviceConfigDispatcher dispatcher = new DeviceConfigDispatcher(recordingWriter(20), 4, 0);
+    long start = System.nanoTime();
+    for (int i = 0; i < 100; i++) {
+      dispatcher.submit("device-" + i, fan(true));
+    }
+    long submitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    dispatcher.close();
+
+    assertThat(submitMillis).isLessThan(500L);
+    assertThat(writes).hasSize(100);
+    assertThat(maxActive.get()).isAtMost(4);
+  }
+
+  private void waitForWrites(int count) throws InterruptedException {
+    for (int i = 0; i < 100 && writes.size() < count; i++) {
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloud.iot.endtoend;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.core.ApiFutures;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the telemetry receiver. These do not need a project. */
+@RunWith(JUnit4.class)
+public class TelemetryReceiverTest {
+  private static final String DEVICE_NAME =
+      "projects/p/locations/us-central1/registries/r/devices/d";
+
+  private final List<String> writes = new CopyOnWriteArrayList<>();
+  private final List<PubsubMessage> deadLetters = new CopyOnWriteArrayList<>();
+  private DeviceConfigDispatcher dispatcher;
+
+  private static class RecordingConsumer implements AckReplyConsumer {
+    String reply;
+
+    @Override
+    public void ack() {
+      reply = "ack";
+    }
+
+    @Override
+    public void nack() {
+      reply = "nack";
+    }
+  }
+
+  @Before
+  public void setUp() {
+    dispatcher =
+        new DeviceConfigDispatcher(
+            (deviceName, config) -> writes.add(deviceName + "=" + config.getBoolean("fan_on")),
+            1,
+            0);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    dispatcher.close();
+  }
+
+  private static PubsubMessage message(String data) {
+    return PubsubMessage.newBuilder()
+        .setMessageId("1")
+        .setData(ByteString.copyFromUtf8(data))
+        .putAttributes("projectId", "p")
+        .putAttributes("deviceRegistryLocation", "us-central1")
+        .putAttributes("deviceRegistryId", "r")
+        .putAttributes("deviceId", "d")
+        .build();
+  }
+
+  @Test
+  public void testReadTemperatureSkipsOtherFields() throws Exception {
+    ByteString data =
+        ByteString.copyFromUtf8(
+            "{\"readings\": [{\"temperature\": 99}], \"name\": \"x\", \"temperature\": 12.5}");
+
+    assertThat(TelemetryReceiver.readTemperature(data)).isEqualTo(12);
+  }
+
+  @Test(expected = IOException.class)
+  public void testReadTemperatureFailsWithoutTemperature() throws Exception {
+    TelemetryReceiver.readTemperature(ByteString.copyFromUtf8("{\"humidity\": 40}"));
+  }
+
+  @Test
+  public void testValidMessageIsAckedAndDispatched() throws Exception {
+    TelemetryReceiver receiver = new TelemetryReceiver(dispatcher, null);
+    RecordingConsumer consumer = new RecordingConsumer();
+
+    receiver.receiveMessage(message("{\"temperature\": 11}"), consumer);
+    dispatcher.close();
+
+    assertThat(consumer.reply).isEqualTo("ack");
+    assertThat(writes).containsExactly(DEVICE_NAME + "=true");
+    assertThat(receiver.getAcked()).isEqualTo(1);
+  }
+
+  @Test
+  public void testInvalidMessageIsDroppedWithoutDeadLetterTopic() {
+    TelemetryReceiver receiver = new TelemetryReceiver(dispatcher, null);
+    RecordingConsumer consumer = new RecordingConsumer();
+
+    receiver.receiveMessage(message("not json"), consumer);
+
+    assertThat(consumer.reply).isEqualTo("ack");
+    assertThat(receiver.getDropped()).isEqualTo(1);
+    assertThat(receiver.getAcked()).isEqualTo(0);
+  }
+
+  @Test
+  public void testInvalidMessageIsDeadLettered() {
+    TelemetryReceiver receiver =
+        new TelemetryReceiver(
+            dispatcher,
+            message -> {
+              deadLetters.add(message);
+              return ApiFutures.immediateFuture("2");
+            });
+    RecordingConsumer consumer = new RecordingConsumer();
+
+    receiver.receiveMessage(message("{\"temperature\": \"hot\"}"), consumer);
+
+    assertThat(consumer.reply).isEqualTo("ack");
+    assertThat(receiver.getDeadLettered()).isEqualTo(1);
+    assertThat(deadLetters).hasSize(1);
+    assertThat(deadLetters.get(0).getAttributesMap()).containsEntry("originalMessageId", "1");
+    assertThat(deadLetters.get(0).getAttributesMap()).containsKey("error");
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloud.iot.examples;
+
+// [START iot_device_credentials]
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Supplies Cloud IoT Core JWTs for a device without minting them on the caller's thread.
+ *
+ * <p>Private keys are read and parsed once per file and shared by every device that uses them. The
+ * first token is minted when the credentials are created, and a replacement is minted on a
+ * scheduler shortly before each token expires, so {@link #getToken()} never reads the key file or
+ * signs anything. MQTT clients should reconnect with the new token when {@link #getIssuedAt()}
+ * changes, HTTP clients can simply send the current token with every request.
+ */
+public class DeviceCredentials implements AutoCloseable {
+
+  // Mint the next token this long before the current one expires.
+  private static final long REFRESH_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  // Delay before trying again if minting a token fails.
+  private static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  private static final Map<String, PrivateKey> KEYS = new ConcurrentHashMap<>();
+
+  private final String projectId;
+  private final PrivateKey privateKey;
+  private final SignatureAlgorithm algorithm;
+  private final long lifetimeMillis;
+  private final ScheduledExecutorService scheduler;
+
+  private volatile Token token;
+  private ScheduledFuture<?> refresh;
+  private boolean closed = false;
+
+  private static class Token {
+    final String jwt;
+    final long issuedAt;
+
+    Token(String jwt, long issuedAt) {
+      this.jwt = jwt;
+      this.issuedAt = issuedAt;
+    }
+  }
+
+  /**
+   * Creates credentials for a device of {@code projectId}, signed with the PKCS8 key in {@code
+   * privateKeyFile} using {@code algorithm}, RS256 or ES256. Each token is valid for {@code
+   * tokenExpMins} minutes.
+   */
+  public DeviceCredentials(
+      String projectId,
+      String privateKeyFile,
+      String algorithm,
+      int tokenExpMins,
+      ScheduledExecutorService scheduler)
+      throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+    this(
+        projectId, privateKeyFile, algorithm, TimeUnit.MINUTES.toMillis(tokenExpMins), scheduler);
+  }
+
+  DeviceCredentials(
+      String projectId,
+      String privateKeyFile,
+      String algorithm,
+      long lifetimeMillis,
+      ScheduledExecutorService scheduler)
+      throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+    this.projectId = projectId;
+    this.algorithm = signatureAlgorithm(algorithm);
+    this.privateKey = loadPrivateKey(privateKeyFile, algorithm);
+    this.lifetimeMillis = lifetimeMillis;
+    this.scheduler = scheduler;
+    mint();
+  }
+
+  /**
+   * Reads and parses the PKCS8 key in {@code privateKeyFile}, or returns the key already parsed for
+   * that file.
+   */
+  public static PrivateKey loadPrivateKey(String privateKeyFile, String algorithm)
+      throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+    String keyAlgorithm = signatureAlgorithm(algorithm) == SignatureAlgorithm.RS256 ? "RSA" : "EC";
+    String cacheKey = keyAlgorithm + ":" + Paths.get(privateKeyFile).toAbsolutePath();
+    PrivateKey key = KEYS.get(cacheKey);
+    if (key == null) {
+      byte[] keyBytes = Files.readAllBytes(Paths.get(privateKeyFile));
+      PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(keyBytes);
+      KeyFactory kf = KeyFactory.getInstance(keyAlgorithm);
+      key = kf.generatePrivate(spec);
+      PrivateKey existing = KEYS.putIfAbsent(cacheKey, key);
+      if (existing != null) {
+        key = existing;
+      }
+    }
+    return key;
+  }
+
+  /**
+   * Creates a single daemon thread scheduler for refreshing tokens, which does not keep the JVM
+   * alive. One scheduler can serve the credentials of many devices.
+   */
+  public static ScheduledExecutorService newRefreshScheduler() {
+    return Executors.newSingleThreadScheduledExecutor(
+        runnable -> {
+          Thread thread = new Thread(runnable, "jwt-refresh");
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /** The current token. Never blocks. */
+  public String getToken() {
+    return token.jwt;
+  }
+
+  /** When the current token was issued, in milliseconds since the epoch. */
+  public long getIssuedAt() {
+    return token.issuedAt;
+  }
+
+  /** Stops minting new tokens. */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if (refresh != null) {
+      refresh.cancel(false);
+    }
+  }
+
+  private void mint() {
+    long now = System.currentTimeMillis();
+    // Create a JWT to authenticate this device. The device will be disconnected after the token
+    // expires, and will have to reconnect with a new token. The audience field should always be set
+    // to the GCP project id.
+    String jwt =
+        Jwts.builder()
+            .setIssuedAt(new Date(now))
+            .setExpiration(new Date(now + lifetimeMillis))
+            .setAudience(projectId)
+            .signWith(algorithm, privateKey)
+            .compact();
+    token = new Token(jwt, now);
+    schedule(Math.max(lifetimeMillis - REFRESH_MARGIN_MILLIS, lifetimeMillis / 2));
+  }
+
+  private synchronized void schedule(long delayMillis) {
+    if (!closed) {
+      refresh = scheduler.schedule(this::refresh, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void refresh() {
+    try {
+      mint();
+    } catch (RuntimeException e) {
+      // Keep the current token, which is still valid for a while, and try again.
+      System.err.println("Could not refresh token: " + e.getMessage());
+      schedule(RETRY_MILLIS);
+    }
+  }
+
+  private static SignatureAlgorithm signatureAlgorithm(String algorithm) {
+    if (algorithm.equals("RS256")) {
+      return SignatureAlgorithm.RS256;
+    } else if (algorithm.equals("ES256")) {
+      return SignatureAlgorithm.ES256;
+    }
+    throw new IllegalArgumentException(
+        "Invalid algorithm " + algorithm + ". Should be one of 'RS256' or 'ES256'.");
+  }
+}
+// [END iot_device_credentials]
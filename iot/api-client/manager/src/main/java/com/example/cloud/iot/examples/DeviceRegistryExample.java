@@ -53,12 +53,21 @@ import com.google.pubsub.v1.Topic;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.cli.HelpFormatter;
 /**
@@ -95,6 +104,12 @@ import org.apache.commons.cli.HelpFormatter;
 public class DeviceRegistryExample {
 
   static final String APP_NAME = "DeviceRegistryExample";
+  // Number of devices read per list call.
+  static final int LIST_PAGE_SIZE = 1000;
+  // Number of unbind or delete calls made at a time when clearing a registry.
+  static final int CLEAR_REGISTRY_THREADS = 32;
+  // Print progress every this many calls.
+  private static final int PROGRESS_INTERVAL = 1000;
 
   /** Creates a topic and grants the IoT service account access. */
   public static Topic createIotTopic(String projectId, String topicId) throws Exception {
@@ -191,6 +206,8 @@ public class DeviceRegistryExample {
    *     Delete device by ID
    *   Delete registry
    *  </code>
+   *   Every page of devices is read, and the unbind and delete calls are made
+   *   {@link #CLEAR_REGISTRY_THREADS} at a time.
    */
   // [START iot_clear_registry]
   public static void clearRegistry(String cloudRegion, String projectId, String registryName)
@@ -207,86 +224,155 @@ public class DeviceRegistryExample {
         String.format(
             "projects/%s/locations/%s/registries/%s", projectId, cloudRegion, registryName);
 
-    ListDevicesResponse listGatewaysRes =
-        service
-            .projects()
-            .locations()
-            .registries()
-            .devices()
-            .list(registryPath)
-            .setGatewayListOptionsGatewayType("GATEWAY")
-            .execute();
-    List<Device> gateways = listGatewaysRes.getDevices();
+    clearRegistry(service, registryPath, CLEAR_REGISTRY_THREADS);
+  }
 
-    // Unbind all devices from all gateways
-    if (gateways != null) {
-      System.out.println("Found " + gateways.size() + " devices");
-      for (Device g : gateways) {
-        String gatewayId = g.getId();
-        System.out.println("Id: " + gatewayId);
-
-        ListDevicesResponse res =
-            service
-                .projects()
-                .locations()
-                .registries()
+  /** Unbinds and deletes every device in the registry, then deletes the registry. */
+  static void clearRegistry(final CloudIot service, final String registryPath, int threads)
+      throws IOException {
+    final CloudIot.Projects.Locations.Registries registries =
+        service.projects().locations().registries();
+
+    // Collect everything to remove before changing the registry, so no page is skipped.
+    List<String> gatewayIds = new ArrayList<>();
+    List<String> deviceIds = new ArrayList<>();
+    List<RegistryCall> unbindCalls = new ArrayList<>();
+    try {
+      for (Device device : listAll(registries.devices().list(registryPath))) {
+        deviceIds.add(device.getId());
+      }
+      for (Device g : listAll(
+          registries.devices().list(registryPath).setGatewayListOptionsGatewayType("GATEWAY"))) {
+        gatewayIds.add(g.getId());
+      }
+      for (final String gatewayId : gatewayIds) {
+        for (Device device : listAll(
+            registries
                 .devices()
                 .list(registryPath)
-                .setGatewayListOptionsAssociationsGatewayId(gatewayId)
-                .execute();
-        List<Device> deviceNumIds = res.getDevices();
-
-        if (deviceNumIds != null) {
-          System.out.println("Found " + deviceNumIds.size() + " devices");
-          for (Device device : deviceNumIds) {
-            String deviceId = device.getId();
-            System.out.println(String.format("ID: %s", deviceId));
-
-            // Remove any bindings from the device
-            UnbindDeviceFromGatewayRequest request = new UnbindDeviceFromGatewayRequest();
-            request.setDeviceId(deviceId);
-            request.setGatewayId(gatewayId);
-            UnbindDeviceFromGatewayResponse response =
-                service
-                    .projects()
-                    .locations()
-                    .registries()
-                    .unbindDeviceFromGateway(registryPath, request)
-                    .execute();
-          }
-        } else {
-          System.out.println("Gateway has no bound devices.");
+                .setGatewayListOptionsAssociationsGatewayId(gatewayId))) {
+          // Remove any bindings from the device
+          final UnbindDeviceFromGatewayRequest request = new UnbindDeviceFromGatewayRequest();
+          request.setDeviceId(device.getId());
+          request.setGatewayId(gatewayId);
+          unbindCalls.add(
+              () -> registries.unbindDeviceFromGateway(registryPath, request).execute());
         }
       }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
     }
+    System.out.println(
+        String.format(
+            "Found %d devices, %d gateways and %d bindings",
+            deviceIds.size(), gatewayIds.size(), unbindCalls.size()));
 
-    // Remove all devices from the regsitry
-    List<Device> devices =
-        service
-            .projects()
-            .locations()
-            .registries()
-            .devices()
-            .list(registryPath)
-            .execute()
-            .getDevices();
+    // Unbind all devices from all gateways
+    executeAll("Unbound", unbindCalls, threads);
 
-    if (devices != null) {
-      System.out.println("Found " + devices.size() + " devices");
-      for (Device d : devices) {
-        String deviceId = d.getId();
-        String devicePath = String.format(
-            "%s/devices/%s", registryPath, deviceId);
-        service.projects().locations().registries().devices().delete(devicePath).execute();
-      }
+    // Remove all devices from the registry
+    List<RegistryCall> deleteCalls = new ArrayList<>();
+    for (String deviceId : deviceIds) {
+      final String devicePath = String.format("%s/devices/%s", registryPath, deviceId);
+      deleteCalls.add(() -> registries.devices().delete(devicePath).execute());
     }
+    executeAll("Deleted", deleteCalls, threads);
 
     // Delete the registry
-    service.projects().locations().registries().delete(registryPath).execute();
+    registries.delete(registryPath).execute();
+  }
+
+  /**
+   * Iterates over every device a list request matches, reading {@link #LIST_PAGE_SIZE} devices at a
+   * time as the iteration reaches them. An error reading a page is thrown as an {@link
+   * UncheckedIOException}.
+   */
+  static Iterable<Device> listAll(
+      final CloudIot.Projects.Locations.Registries.Devices.List request) {
+    return () ->
+        new Iterator<Device>() {
+          private Iterator<Device> page = Collections.emptyIterator();
+          private String pageToken = null;
+          private boolean lastPage = false;
+
+          @Override
+          public boolean hasNext() {
+            while (!page.hasNext() && !lastPage) {
+              try {
+                ListDevicesResponse response =
+                    request.setPageSize(LIST_PAGE_SIZE).setPageToken(pageToken).execute();
+                List<Device> devices = response.getDevices();
+                page = devices == null ? Collections.emptyIterator() : devices.iterator();
+                pageToken = response.getNextPageToken();
+                lastPage = pageToken == null || pageToken.isEmpty();
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            }
+            return page.hasNext();
+          }
 
+          @Override
+          public Device next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            return page.next();
+          }
+        };
   }
-  // [END iot_clear_registry]
 
+  private interface RegistryCall {
+    void execute() throws IOException;
+  }
+
+  /**
+   * Makes every call, {@code threads} at a time, and reports progress. Calls that fail after the
+   * retries of {@link RetryHttpInitializerWrapper} are reported and counted, and an exception is
+   * thrown once the others have completed.
+   */
+  private static void executeAll(String verb, List<RegistryCall> calls, int threads)
+      throws IOException {
+    if (calls.isEmpty()) {
+      return;
+    }
+    final int total = calls.size();
+    final AtomicInteger done = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    final long start = System.currentTimeMillis();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, total));
+    try {
+      for (final RegistryCall call : calls) {
+        executor.execute(
+            () -> {
+              try {
+                call.execute();
+              } catch (IOException e) {
+                failed.incrementAndGet();
+                System.err.println(verb + " failed: " + e.getMessage());
+              }
+              int count = done.incrementAndGet();
+              if (count % PROGRESS_INTERVAL == 0 || count == total) {
+                System.out.println(
+                    String.format(
+                        "%s %d of %d in %d ms",
+                        verb, count, total, System.currentTimeMillis() - start));
+              }
+            });
+      }
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted clearing registry");
+    } finally {
+      executor.shutdownNow();
+    }
+    if (failed.get() > 0) {
+      throw new IOException(String.format("%d of %d calls failed", failed.get(), total));
+    }
+  }
+  // [END iot_clear_registry]
 
   // [START iot_list_devices]
   /** Print all of the devices in this registry to standard out. */
@@ -305,26 +391,36 @@ public class DeviceRegistryExample {
         String.format(
             "projects/%s/locations/%s/registries/%s", projectId, cloudRegion, registryName);
 
-    List<Device> devices =
-        service
-            .projects()
-            .locations()
-            .registries()
-            .devices()
-            .list(registryPath)
-            .execute()
-            .getDevices();
-
-    if (devices != null) {
-      System.out.println("Found " + devices.size() + " devices");
-      for (Device d : devices) {
-        System.out.println("Id: " + d.getId());
-        if (d.getConfig() != null) {
-          // Note that this will show the device config in Base64 encoded format.
-          System.out.println("Config: " + d.getConfig().toPrettyString());
+    int count = 0;
+    String pageToken = null;
+    do {
+      ListDevicesResponse response =
+          service
+              .projects()
+              .locations()
+              .registries()
+              .devices()
+              .list(registryPath)
+              .setPageSize(LIST_PAGE_SIZE)
+              .setPageToken(pageToken)
+              .execute();
+      List<Device> devices = response.getDevices();
+      if (devices != null) {
+        for (Device d : devices) {
+          count++;
+          System.out.println("Id: " + d.getId());
+          if (d.getConfig() != null) {
+            // Note that this will show the device config in Base64 encoded format.
+            System.out.println("Config: " + d.getConfig().toPrettyString());
+          }
+          System.out.println();
         }
-        System.out.println();
       }
+      pageToken = response.getNextPageToken();
+    } while (pageToken != null && !pageToken.isEmpty());
+
+    if (count > 0) {
+      System.out.println("Found " + count + " devices");
     } else {
       System.out.println("Registry has no devices.");
     }
@@ -1138,27 +1234,37 @@ public class DeviceRegistryExample {
         String.format(
             "projects/%s/locations/%s/registries/%s", projectId, cloudRegion, registryName);
 
-    List<Device> gateways =
-        service
-            .projects()
-            .locations()
-            .registries()
-            .devices()
-            .list(registryPath)
-            .setGatewayListOptionsGatewayType("GATEWAY")
-            .execute()
-            .getDevices();
-
-    if (gateways != null) {
-      System.out.println("Found " + gateways.size() + " devices");
-      for (Device d : gateways) {
-        System.out.println("Id: " + d.getId());
-        if (d.getConfig() != null) {
-          // Note that this will show the device config in Base64 encoded format.
-          System.out.println("Config: " + d.getGatewayConfig().toPrettyString());
+    int count = 0;
+    String pageToken = null;
+    do {
+      ListDevicesResponse response =
+          service
+              .projects()
+              .locations()
+              .registries()
+              .devices()
+              .list(registryPath)
+              .setGatewayListOptionsGatewayType("GATEWAY")
+              .setPageSize(LIST_PAGE_SIZE)
+              .setPageToken(pageToken)
+              .execute();
+      List<Device> devices = response.getDevices();
+      if (devices != null) {
+        for (Device d : devices) {
+          count++;
+          System.out.println("Id: " + d.getId());
+          if (d.getConfig() != null) {
+            // Note that this will show the device config in Base64 encoded format.
+            System.out.println("Config: " + d.getGatewayConfig().toPrettyString());
+          }
+          System.out.println();
         }
-        System.out.println();
       }
+      pageToken = response.getNextPageToken();
+    } while (pageToken != null && !pageToken.isEmpty());
+
+    if (count > 0) {
+      System.out.println("Found " + count + " devices");
     } else {
       System.out.println("Registry has no devices.");
     }
@@ -1183,22 +1289,32 @@ public class DeviceRegistryExample {
         String.format(
             "projects/%s/locations/%s/registries/%s", projectId, cloudRegion, registryName);
 
-    List<Device> deviceNumIds =
-        service
-            .projects()
-            .locations()
-            .registries()
-            .devices()
-            .list(registryPath)
-            .setGatewayListOptionsAssociationsGatewayId(gatewayId)
-            .execute()
-            .getDevices();
-
-    if (deviceNumIds != null) {
-      System.out.println("Found " + deviceNumIds.size() + " devices");
-      for (Device device : deviceNumIds) {
-        System.out.println(String.format("ID: %s", device.getId()));
+    int count = 0;
+    String pageToken = null;
+    do {
+      ListDevicesResponse response =
+          service
+              .projects()
+              .locations()
+              .registries()
+              .devices()
+              .list(registryPath)
+              .setGatewayListOptionsAssociationsGatewayId(gatewayId)
+              .setPageSize(LIST_PAGE_SIZE)
+              .setPageToken(pageToken)
+              .execute();
+      List<Device> devices = response.getDevices();
+      if (devices != null) {
+        for (Device device : devices) {
+          count++;
+          System.out.println(String.format("ID: %s", device.getId()));
+        }
       }
+      pageToken = response.getNextPageToken();
+    } while (pageToken != null && !pageToken.isEmpty());
+
+    if (count > 0) {
+      System.out.println("Found " + count + " devices");
     } else {
       System.out.println("Gateway has no bound devices.");
     }
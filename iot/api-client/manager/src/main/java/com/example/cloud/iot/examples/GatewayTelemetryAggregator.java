@@ -0,0 +1,341 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloud.iot.examples;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Publishes telemetry from the devices bound to a gateway in batches, on the gateway's own
+ * connection.
+ *
+ * <p>Instead of attaching a device, publishing one reading and detaching it again, each device is
+ * attached the first time it reports and stays attached until the aggregator is closed, so it keeps
+ * receiving its configuration and commands. Readings are grouped by device into a single JSON
+ * object, <code>{"device-1": ["reading", ...], ...}</code>, and published to the gateway's {@code
+ * events/batch} subfolder. A batch is sent as soon as its payload reaches {@code maxBatchBytes}, or
+ * once its oldest reading has waited {@code flushIntervalMillis}.
+ *
+ * <p>The aggregator counts the MQTT packets and bytes it sends, and compares them with publishing
+ * every reading on its own, as {@link MqttExample#sendDataFromBoundDevice} does. It does not own
+ * the client or the scheduler.
+ */
+public class GatewayTelemetryAggregator implements AutoCloseable {
+
+  // Cloud IoT Core accepts telemetry payloads of up to 256KB.
+  public static final int MAX_PAYLOAD_BYTES = 256 * 1024;
+  // Size of the PUBACK the bridge returns for every QoS 1 publish.
+  private static final int PUBACK_BYTES = 4;
+  private static final String EMPTY_PAYLOAD = "{}";
+
+  private final MqttClient client;
+  private final String gatewayId;
+  private final ScheduledExecutorService scheduler;
+  private final int maxBatchBytes;
+  private final long flushIntervalMillis;
+
+  // Guarded by this.
+  private final Set<String> attached = new LinkedHashSet<>();
+  private Map<String, JSONArray> batch = new LinkedHashMap<>();
+  private int batchBytes = 2;
+  private int batchReadings = 0;
+  private ScheduledFuture<?> flushFuture;
+  private boolean closed = false;
+
+  // Statistics, guarded by this.
+  private long readings = 0;
+  private long failedReadings = 0;
+  private long batches = 0;
+  private long packetsSent = 0;
+  private long bytesSent = 0;
+  private long unbatchedPackets = 0;
+  private long unbatchedBytes = 0;
+  private long firstReadingNanos = 0;
+  private long lastFlushNanos = 0;
+
+  /** Creates an aggregator that uses the largest payload allowed and flushes every second. */
+  public GatewayTelemetryAggregator(
+      MqttClient client, String gatewayId, ScheduledExecutorService scheduler) {
+    this(client, gatewayId, scheduler, MAX_PAYLOAD_BYTES, 1000);
+  }
+
+  /**
+   * Creates an aggregator publishing through {@code client}, which must be connected as {@code
+   * gatewayId}.
+   */
+  public GatewayTelemetryAggregator(
+      MqttClient client,
+      String gatewayId,
+      ScheduledExecutorService scheduler,
+      int maxBatchBytes,
+      long flushIntervalMillis) {
+    if (maxBatchBytes < 1 || maxBatchBytes > MAX_PAYLOAD_BYTES) {
+      throw new IllegalArgumentException(
+          "maxBatchBytes must be between 1 and " + MAX_PAYLOAD_BYTES);
+    }
+    this.client = client;
+    this.gatewayId = gatewayId;
+    this.scheduler = scheduler;
+    this.maxBatchBytes = maxBatchBytes;
+    this.flushIntervalMillis = flushIntervalMillis;
+  }
+
+  /**
+   * Queues a telemetry reading from {@code deviceId}, attaching the device first if this is its
+   * first reading. Publishes the current batch if the reading would not fit in it.
+   */
+  public void publish(String deviceId, String data) throws MqttException {
+    attach(deviceId);
+    List<Map<String, JSONArray>> full = new ArrayList<>();
+    synchronized (this) {
+      // The aggregator may have been closed since the device was attached.
+      checkNotClosed();
+      if (firstReadingNanos == 0) {
+        firstReadingNanos = System.nanoTime();
+      }
+      readings++;
+      unbatchedPackets += 6;
+      unbatchedBytes +=
+          packetBytes(attachTopic(deviceId), EMPTY_PAYLOAD)
+              + packetBytes(String.format("/devices/%s/events", deviceId), data)
+              + packetBytes(detachTopic(deviceId), EMPTY_PAYLOAD);
+
+      // The reading's share of the batch payload: its quoted value and a comma, plus the quoted
+      // device id, a colon and brackets if it is the device's first reading in the batch.
+      int valueSize = utf8Length(JSONObject.quote(data)) + 1;
+      int deviceSize = utf8Length(JSONObject.quote(deviceId)) + 3;
+      int size = batch.containsKey(deviceId) ? valueSize : valueSize + deviceSize;
+      if (batchReadings > 0 && batchBytes + size > maxBatchBytes) {
+        full.add(seal());
+        size = valueSize + deviceSize;
+      }
+      batch.computeIfAbsent(deviceId, k -> new JSONArray()).put(data);
+      batchBytes += size;
+      batchReadings++;
+      if (batchBytes >= maxBatchBytes) {
+        // Send a full batch right away. A reading larger than the limit is sent on its own.
+        full.add(seal());
+      } else if (flushFuture == null) {
+        flushFuture =
+            scheduler.schedule(this::scheduledFlush, flushIntervalMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    for (Map<String, JSONArray> ready : full) {
+      send(ready);
+    }
+  }
+
+  /** Publishes the current batch without waiting for it to fill up. */
+  public void flush() throws MqttException {
+    Map<String, JSONArray> full;
+    synchronized (this) {
+      if (batchReadings == 0) {
+        return;
+      }
+      full = seal();
+    }
+    send(full);
+  }
+
+  /** Number of readings queued so far. */
+  public synchronized long getReadings() {
+    return readings;
+  }
+
+  /** Number of readings that were lost because their batch could not be published. */
+  public synchronized long getFailedReadings() {
+    return failedReadings;
+  }
+
+  /** Number of batches published so far. */
+  public synchronized long getBatches() {
+    return batches;
+  }
+
+  /** Number of MQTT packets sent and received, including attach and detach messages and acks. */
+  public synchronized long getPacketsSent() {
+    return packetsSent;
+  }
+
+  /** Number of MQTT bytes sent and received, including attach and detach messages and acks. */
+  public synchronized long getBytesSent() {
+    return bytesSent;
+  }
+
+  /** Number of packets needed to attach, publish and detach for every reading on its own. */
+  public synchronized long getUnbatchedPackets() {
+    return unbatchedPackets;
+  }
+
+  /** Number of bytes needed to attach, publish and detach for every reading on its own. */
+  public synchronized long getUnbatchedBytes() {
+    return unbatchedBytes;
+  }
+
+  /** Prints throughput and the traffic saved by batching. */
+  public synchronized void printStats(PrintStream out) {
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(lastFlushNanos - firstReadingNanos);
+    out.printf(
+        "Published %d readings from %d devices in %d batches (%d failed) in %d ms: %.1f msg/s%n",
+        readings,
+        attached.size(),
+        batches,
+        failedReadings,
+        elapsedMillis,
+        elapsedMillis <= 0 ? 0.0 : readings * 1000.0 / elapsedMillis);
+    out.printf(
+        "MQTT packets: %d, unbatched %d%nMQTT bytes: %d, unbatched %d (%.1f%% saved)%n",
+        packetsSent,
+        unbatchedPackets,
+        bytesSent,
+        unbatchedBytes,
+        unbatchedBytes == 0 ? 0.0 : 100.0 * (unbatchedBytes - bytesSent) / unbatchedBytes);
+  }
+
+  /** Publishes any queued readings and detaches every device. */
+  @Override
+  public void close() throws MqttException {
+    synchronized (this) {
+      closed = true;
+    }
+    flush();
+    String[] devices;
+    synchronized (this) {
+      devices = attached.toArray(new String[0]);
+      attached.clear();
+    }
+    for (String deviceId : devices) {
+      sendPacket(detachTopic(deviceId), EMPTY_PAYLOAD);
+    }
+  }
+
+  private void attach(String deviceId) throws MqttException {
+    synchronized (this) {
+      // Check before attaching, so a closed aggregator never attaches a device it will not detach.
+      checkNotClosed();
+      if (!attached.add(deviceId)) {
+        return;
+      }
+    }
+    try {
+      sendPacket(attachTopic(deviceId), EMPTY_PAYLOAD);
+    } catch (MqttException e) {
+      synchronized (this) {
+        attached.remove(deviceId);
+      }
+      throw e;
+    }
+  }
+
+  // Must hold the lock.
+  private void checkNotClosed() {
+    if (closed) {
+      throw new IllegalStateException("Aggregator is closed");
+    }
+  }
+
+  // Takes the current batch and starts a new one. Must hold the lock.
+  private Map<String, JSONArray> seal() {
+    Map<String, JSONArray> full = batch;
+    batch = new LinkedHashMap<>();
+    batchBytes = 2;
+    batchReadings = 0;
+    if (flushFuture != null) {
+      flushFuture.cancel(false);
+      flushFuture = null;
+    }
+    return full;
+  }
+
+  private void send(Map<String, JSONArray> full) throws MqttException {
+    String payload = new JSONObject(full).toString();
+    int count = 0;
+    for (JSONArray values : full.values()) {
+      count += values.length();
+    }
+    try {
+      sendPacket(String.format("/devices/%s/events/batch", gatewayId), payload);
+      synchronized (this) {
+        batches++;
+      }
+    } catch (MqttException e) {
+      synchronized (this) {
+        failedReadings += count;
+      }
+      throw e;
+    }
+  }
+
+  private void scheduledFlush() {
+    synchronized (this) {
+      flushFuture = null;
+    }
+    try {
+      flush();
+    } catch (MqttException e) {
+      System.err.println("Could not publish batch: " + e.getMessage());
+    }
+  }
+
+  private void sendPacket(String topic, String payload) throws MqttException {
+    MqttMessage message = new MqttMessage(payload.getBytes(StandardCharsets.UTF_8));
+    message.setQos(1);
+    client.publish(topic, message);
+    synchronized (this) {
+      packetsSent += 2;
+      bytesSent += packetBytes(topic, payload);
+      lastFlushNanos = System.nanoTime();
+    }
+  }
+
+  /** Size on the wire of a QoS 1 PUBLISH packet and its PUBACK. */
+  private static long packetBytes(String topic, String payload) {
+    // Topic length, topic, packet id and payload.
+    int remaining = 2 + utf8Length(topic) + 2 + utf8Length(payload);
+    int lengthBytes = 1;
+    for (int i = remaining; i >= 128; i /= 128) {
+      lengthBytes++;
+    }
+    return 1 + lengthBytes + remaining + PUBACK_BYTES;
+  }
+
+  private static int utf8Length(String s) {
+    return s.getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  private static String attachTopic(String deviceId) {
+    return String.format("/devices/%s/attach", deviceId);
+  }
+
+  private static String detachTopic(String deviceId) {
+    return String.format("/devices/%s/detach", deviceId);
+  }
+}
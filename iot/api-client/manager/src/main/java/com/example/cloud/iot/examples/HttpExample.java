@@ -34,21 +34,12 @@ import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.Charsets;
 import com.google.api.client.util.ExponentialBackOff;
 import com.google.common.io.CharStreams;
-import io.jsonwebtoken.JwtBuilder;
-import io.jsonwebtoken.Jwts;
-import io.jsonwebtoken.SignatureAlgorithm;
-
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.ProtocolException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.security.KeyFactory;
-import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.Base64;
-import org.joda.time.DateTime;
 import org.json.JSONException;
 import org.json.JSONObject;
 // [END iot_http_includes]
@@ -68,46 +59,6 @@ public class HttpExample {
   static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
   static final JsonFactory JSON_FACTORY = new JacksonFactory();
 
-  // [START iot_http_jwt]
-  /** Create a RSA-based JWT for the given project id, signed with the given private key. */
-  private static String createJwtRsa(String projectId, String privateKeyFile) throws Exception {
-    DateTime now = new DateTime();
-    // Create a JWT to authenticate this device. The device will be disconnected after the token
-    // expires, and will have to reconnect with a new token. The audience field should always be set
-    // to the GCP project id.
-    JwtBuilder jwtBuilder =
-        Jwts.builder()
-            .setIssuedAt(now.toDate())
-            .setExpiration(now.plusMinutes(20).toDate())
-            .setAudience(projectId);
-
-    byte[] keyBytes = Files.readAllBytes(Paths.get(privateKeyFile));
-    PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(keyBytes);
-    KeyFactory kf = KeyFactory.getInstance("RSA");
-
-    return jwtBuilder.signWith(SignatureAlgorithm.RS256, kf.generatePrivate(spec)).compact();
-  }
-
-  /** Create an ES-based JWT for the given project id, signed with the given private key. */
-  private static String createJwtEs(String projectId, String privateKeyFile) throws Exception {
-    DateTime now = new DateTime();
-    // Create a JWT to authenticate this device. The device will be disconnected after the token
-    // expires, and will have to reconnect with a new token. The audience field should always be set
-    // to the GCP project id.
-    JwtBuilder jwtBuilder =
-        Jwts.builder()
-            .setIssuedAt(now.toDate())
-            .setExpiration(now.plusMinutes(20).toDate())
-            .setAudience(projectId);
-
-    byte[] keyBytes = Files.readAllBytes(Paths.get(privateKeyFile));
-    PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(keyBytes);
-    KeyFactory kf = KeyFactory.getInstance("EC");
-
-    return jwtBuilder.signWith(SignatureAlgorithm.ES256, kf.generatePrivate(spec)).compact();
-  }
-  // [END iot_http_jwt]
-
   // [START iot_http_getconfig]
   /** Publish an event or state message using Cloud IoT Core via the HTTP API. */
   public static void getConfig(String urlPath, String token, String projectId,
@@ -228,24 +179,25 @@ public class HttpExample {
       System.exit(1);
     }
 
-    // Create the corresponding JWT depending on the selected algorithm.
-    String token;
-    DateTime iat = new DateTime();
-    if (options.algorithm.equals("RS256")) {
-      token = createJwtRsa(options.projectId, options.privateKeyFile);
-    } else if (options.algorithm.equals("ES256")) {
-      token = createJwtEs(options.projectId, options.privateKeyFile);
-    } else {
-      throw new IllegalArgumentException(
-          "Invalid algorithm " + options.algorithm + ". Should be one of 'RS256' or 'ES256'.");
-    }
+    // [START iot_http_jwt]
+    // Create the corresponding JWT depending on the selected algorithm. DeviceCredentials parses
+    // the private key once, and mints new tokens in the background shortly before the current one
+    // expires.
+    DeviceCredentials credentials =
+        new DeviceCredentials(
+            options.projectId,
+            options.privateKeyFile,
+            options.algorithm,
+            options.tokenExpMins,
+            DeviceCredentials.newRefreshScheduler());
+    // [END iot_http_jwt]
 
     String urlPath = String.format("%s/%s/", options.httpBridgeAddress, options.apiVersion);
     System.out.format("Using URL: '%s'\n", urlPath);
 
     // Show the latest configuration
-    getConfig(urlPath, token, options.projectId, options.cloudRegion, options.registryId,
-        options.deviceId, "0");
+    getConfig(urlPath, credentials.getToken(), options.projectId, options.cloudRegion,
+        options.registryId, options.deviceId, "0");
 
     // Publish numMessages messages to the HTTP bridge.
     for (int i = 1; i <= options.numMessages; ++i) {
@@ -254,21 +206,9 @@ public class HttpExample {
           "Publishing %s message %d/%d: '%s'\n",
           options.messageType, i, options.numMessages, payload);
 
-      // Refresh the authentication token if the token has expired.
-      long secsSinceRefresh = ((new DateTime()).getMillis() - iat.getMillis()) / 1000;
-      if (secsSinceRefresh > (options.tokenExpMins * 60)) {
-        System.out.format("\tRefreshing token after: %d seconds\n", secsSinceRefresh);
-        iat = new DateTime();
-
-        if (options.algorithm.equals("RS256")) {
-          token = createJwtRsa(options.projectId, options.privateKeyFile);
-        } else if (options.algorithm.equals("ES256")) {
-          token = createJwtEs(options.projectId, options.privateKeyFile);
-        }
-      }
-
-      publishMessage(payload, urlPath, options.messageType, token, options.projectId,
-              options.cloudRegion, options.registryId, options.deviceId);
+      // The credentials always hold an unexpired token.
+      publishMessage(payload, urlPath, options.messageType, credentials.getToken(),
+              options.projectId, options.cloudRegion, options.registryId, options.deviceId);
 
       if (options.messageType.equals("event")) {
         // Frequently send event payloads (every second)
@@ -278,6 +218,7 @@ public class HttpExample {
         Thread.sleep(5000);
       }
     }
+    credentials.close();
     System.out.println("Finished loop successfully. Goodbye!");
   }
   // [END iot_http_run]
@@ -29,7 +29,12 @@ import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
@@ -347,17 +352,18 @@ public class MqttExample {
     // to authorize the device.
     connectOptions.setUserName("unused");
 
-    DateTime iat = new DateTime();
-    if (options.algorithm.equals("RS256")) {
-      connectOptions.setPassword(
-          createJwtRsa(options.projectId, options.privateKeyFile).toCharArray());
-    } else if (options.algorithm.equals("ES256")) {
-      connectOptions.setPassword(
-          createJwtEs(options.projectId, options.privateKeyFile).toCharArray());
-    } else {
-      throw new IllegalArgumentException(
-          "Invalid algorithm " + options.algorithm + ". Should be one of 'RS256' or 'ES256'.");
-    }
+    // The private key is parsed once, and new tokens are minted in the background shortly before
+    // the current one expires, so refreshing the connection never waits on key parsing or signing.
+    ScheduledExecutorService scheduler = DeviceCredentials.newRefreshScheduler();
+    DeviceCredentials credentials =
+        new DeviceCredentials(
+            options.projectId,
+            options.privateKeyFile,
+            options.algorithm,
+            options.tokenExpMins,
+            scheduler);
+    long iat = credentials.getIssuedAt();
+    connectOptions.setPassword(credentials.getToken().toCharArray());
     // [END iot_mqtt_configuremqtt]
 
     // [START iot_mqtt_publish]
@@ -417,22 +423,13 @@ public class MqttExample {
 
       // Refresh the connection credentials before the JWT expires.
       // [START iot_mqtt_jwt_refresh]
-      long secsSinceRefresh = ((new DateTime()).getMillis() - iat.getMillis()) / 1000;
-      if (secsSinceRefresh > (options.tokenExpMins * 60)) {
+      if (credentials.getIssuedAt() != iat) {
+        long secsSinceRefresh = (credentials.getIssuedAt() - iat) / 1000;
         System.out.format("\tRefreshing token after: %d seconds\n", secsSinceRefresh);
-        iat = new DateTime();
-        if (options.algorithm.equals("RS256")) {
-          connectOptions.setPassword(
-              createJwtRsa(options.projectId, options.privateKeyFile).toCharArray());
-        } else if (options.algorithm.equals("ES256")) {
-          connectOptions.setPassword(
-              createJwtEs(options.projectId, options.privateKeyFile).toCharArray());
-        } else {
-          throw new IllegalArgumentException(
-              "Invalid algorithm " + options.algorithm + ". Should be one of 'RS256' or 'ES256'.");
-        }
+        iat = credentials.getIssuedAt();
+        connectOptions.setPassword(credentials.getToken().toCharArray());
         client.disconnect();
-        client.connect();
+        client.connect(connectOptions);
         attachCallback(client, options.deviceId);
       }
       // [END iot_mqtt_jwt_refresh]
@@ -466,9 +463,96 @@ public class MqttExample {
 
     System.out.println("Finished loop successfully. Goodbye!");
     client.close();
+    credentials.close();
+    scheduler.shutdown();
     // [END iot_mqtt_publish]
   }
 
+  /**
+   * Sends {@code numMessages} readings of {@code telemetryData} from each of {@code numDevices}
+   * devices bound to the gateway, named {@code <device_id>-<n>}, in batches on the gateway's
+   * connection, then prints how much traffic batching saved.
+   */
+  public static void sendBatchedDataFromBoundDevices(MqttExampleOptions options)
+      throws Exception {
+    MqttClient client =
+        startMqtt(
+            options.mqttBridgeHostname,
+            options.mqttBridgePort,
+            options.projectId,
+            options.cloudRegion,
+            options.registryId,
+            options.gatewayId,
+            options.privateKeyFile,
+            options.algorithm);
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      GatewayTelemetryAggregator aggregator =
+          new GatewayTelemetryAggregator(
+              client,
+              options.gatewayId,
+              scheduler,
+              options.maxBatchBytes,
+              options.flushIntervalMillis);
+      try {
+        for (int i = 1; i <= options.numMessages; i++) {
+          for (int d = 0; d < options.numDevices; d++) {
+            String deviceId = options.deviceId + "-" + d;
+            aggregator.publish(deviceId, String.format("%s-%d", options.telemetryData, i));
+          }
+          Thread.sleep(options.publishIntervalMillis);
+        }
+      } finally {
+        aggregator.close();
+      }
+      aggregator.printStats(System.out);
+    } finally {
+      scheduler.shutdownNow();
+      client.disconnect();
+      client.close();
+    }
+  }
+
+  /**
+   * Publishes telemetry from {@code numDevices} simulated devices, named {@code <device_id>-<n>}
+   * and bound to the gateways in {@code gateway_id}, then prints latency and throughput.
+   */
+  public static void fleetSimulation(MqttExampleOptions options) throws Exception {
+    if (options.gatewayId == null) {
+      throw new IllegalArgumentException("fleet-simulation requires -gateway_id");
+    }
+    List<String> deviceIds = new ArrayList<>();
+    for (int i = 0; i < options.numDevices; i++) {
+      deviceIds.add(options.deviceId + "-" + i);
+    }
+    // A small pool paces every device, and also refreshes the gateways' token.
+    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+    try (DeviceCredentials credentials =
+            new DeviceCredentials(
+                options.projectId,
+                options.privateKeyFile,
+                options.algorithm,
+                options.tokenExpMins,
+                scheduler);
+        MqttFleetSimulator simulator =
+            new MqttFleetSimulator(
+                String.format("ssl://%s:%s", options.mqttBridgeHostname, options.mqttBridgePort),
+                options.projectId,
+                options.cloudRegion,
+                options.registryId,
+                Arrays.asList(options.gatewayId.split(",")),
+                deviceIds,
+                credentials,
+                scheduler,
+                options.maxInflight)) {
+      simulator.connect();
+      simulator.run(options.numMessages, options.publishIntervalMillis);
+      simulator.printStats(System.out);
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+
   /** Attaches the callback used when configuration changes occur. */
   public static void attachCallback(MqttClient client, String deviceId) throws MqttException {
     mCallback =
@@ -512,7 +596,7 @@ public class MqttExample {
       System.exit(1);
     }
 
-    if (options.command == "listen-for-config-messages") {
+    if (options.command.equals("listen-for-config-messages")) {
       System.out.println(
           String.format("Listening for configuration messages for %s:", options.deviceId));
       listenForConfigMessages(
@@ -525,7 +609,7 @@ public class MqttExample {
           options.privateKeyFile,
           options.algorithm,
           options.deviceId);
-    } else if (options.command == "send-data-from-bound-device") {
+    } else if (options.command.equals("send-data-from-bound-device")) {
       System.out.println("Sending data on behalf of device:");
       sendDataFromBoundDevice(
           options.mqttBridgeHostname,
@@ -539,6 +623,12 @@ public class MqttExample {
           options.deviceId,
           options.messageType,
           options.telemetryData);
+    } else if (options.command.equals("send-batched-data")) {
+      System.out.println("Sending batched data on behalf of devices:");
+      sendBatchedDataFromBoundDevices(options);
+    } else if (options.command.equals("fleet-simulation")) {
+      System.out.println("Starting fleet simulation:");
+      fleetSimulation(options);
     } else {
       System.out.println("Starting mqtt demo:");
       mqttDeviceDemo(options);
@@ -41,6 +41,11 @@ public class MqttExampleOptions {
   short mqttBridgePort = 8883;
   String messageType = "event";
   int waitTime = 120;
+  int numDevices = 1000;
+  int publishIntervalMillis = 1000;
+  int maxInflight = 100;
+  int maxBatchBytes = GatewayTelemetryAggregator.MAX_PAYLOAD_BYTES;
+  int flushIntervalMillis = 1000;
 
   /** Construct an MqttExampleOptions class from command line flags. */
   public static MqttExampleOptions fromFlags(String[] args) {
@@ -75,7 +80,7 @@ public class MqttExampleOptions {
             .type(String.class)
             .longOpt("gateway_id")
             .hasArg()
-            .desc("The identifier for the Gateway.")
+            .desc("The identifier for the Gateway, or a comma-separated list for fleet-simulation.")
             .build());
     options.addOption(
         Option.builder()
@@ -103,7 +108,9 @@ public class MqttExampleOptions {
             .desc(
                 "Command to run:"
                     + "\n\tlisten-for-config-messages"
-                    + "\n\tsend-data-from-bound-device")
+                    + "\n\tsend-data-from-bound-device"
+                    + "\n\tsend-batched-data"
+                    + "\n\tfleet-simulation")
             .build());
     options.addOption(
         Option.builder()
@@ -162,6 +169,43 @@ public class MqttExampleOptions {
             .hasArg()
             .desc("Wait time (in seconds) for commands.")
             .build());
+    options.addOption(
+        Option.builder()
+            .type(Number.class)
+            .longOpt("num_devices")
+            .hasArg()
+            .desc(
+                "Number of devices to simulate, named <device_id>-<n>, for fleet-simulation and"
+                    + " send-batched-data.")
+            .build());
+    options.addOption(
+        Option.builder()
+            .type(Number.class)
+            .longOpt("publish_interval_ms")
+            .hasArg()
+            .desc("Milliseconds between messages from each simulated device.")
+            .build());
+    options.addOption(
+        Option.builder()
+            .type(Number.class)
+            .longOpt("max_inflight")
+            .hasArg()
+            .desc("Maximum unacknowledged messages on each gateway connection.")
+            .build());
+    options.addOption(
+        Option.builder()
+            .type(Number.class)
+            .longOpt("max_batch_bytes")
+            .hasArg()
+            .desc("Maximum payload size of a telemetry batch, for send-batched-data.")
+            .build());
+    options.addOption(
+        Option.builder()
+            .type(Number.class)
+            .longOpt("flush_interval_ms")
+            .hasArg()
+            .desc("Milliseconds a telemetry reading may wait for its batch to fill up.")
+            .build());
 
     CommandLineParser parser = new DefaultParser();
     CommandLine commandLine;
@@ -206,6 +250,24 @@ public class MqttExampleOptions {
       if (commandLine.hasOption("message_type")) {
         res.messageType = commandLine.getOptionValue("message_type");
       }
+      if (commandLine.hasOption("num_devices")) {
+        res.numDevices = ((Number) commandLine.getParsedOptionValue("num_devices")).intValue();
+      }
+      if (commandLine.hasOption("publish_interval_ms")) {
+        res.publishIntervalMillis =
+            ((Number) commandLine.getParsedOptionValue("publish_interval_ms")).intValue();
+      }
+      if (commandLine.hasOption("max_inflight")) {
+        res.maxInflight = ((Number) commandLine.getParsedOptionValue("max_inflight")).intValue();
+      }
+      if (commandLine.hasOption("max_batch_bytes")) {
+        res.maxBatchBytes =
+            ((Number) commandLine.getParsedOptionValue("max_batch_bytes")).intValue();
+      }
+      if (commandLine.hasOption("flush_interval_ms")) {
+        res.flushIntervalMillis =
+            ((Number) commandLine.getParsedOptionValue("flush_interval_ms")).intValue();
+      }
       return res;
     } catch (ParseException e) {
       System.err.println(e.getMessage());
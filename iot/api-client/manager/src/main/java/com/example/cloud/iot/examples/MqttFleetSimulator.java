@@ -0,0 +1,395 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloud.iot.examples;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * Simulates a fleet of devices publishing telemetry through a small number of gateways.
+ *
+ * <p>Each gateway holds one {@link MqttAsyncClient} connection, and its devices stay attached to it
+ * for the whole run, so thousands of devices share a handful of connections. Publishes are paced
+ * by a scheduler rather than by sleeping threads, and each connection allows at most {@code
+ * maxInflight} unacknowledged QoS 1 messages: a message due while the window is full is skipped
+ * and counted. When the credentials mint a new token, each gateway reconnects with it. The
+ * simulator reports publish latency percentiles and how full the in-flight windows were.
+ */
+public class MqttFleetSimulator implements AutoCloseable {
+
+  // How often gateways check for a refreshed token.
+  private static final long TOKEN_CHECK_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  private final String serverUri;
+  private final String projectId;
+  private final String cloudRegion;
+  private final String registryId;
+  private final DeviceCredentials credentials;
+  private final ScheduledExecutorService scheduler;
+  private final int maxInflight;
+  private final List<Gateway> gateways = new ArrayList<>();
+  private ScheduledFuture<?> tokenCheck;
+
+  // Statistics for the current run.
+  private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+  private final LongAdder published = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder skipped = new LongAdder();
+  private final LongAdder windowSamples = new LongAdder();
+  private final LongAdder windowSum = new LongAdder();
+  private final LongAccumulator windowMax = new LongAccumulator(Math::max, 0);
+  private CountDownLatch remaining;
+  private long elapsedNanos;
+
+  /**
+   * Creates a simulator for {@code deviceIds}, spread evenly over {@code gatewayIds}. The devices
+   * must already be bound to their gateway. {@code serverUri} is the MQTT bridge, for example
+   * ssl://mqtt.googleapis.com:8883.
+   */
+  public MqttFleetSimulator(
+      String serverUri,
+      String projectId,
+      String cloudRegion,
+      String registryId,
+      List<String> gatewayIds,
+      List<String> deviceIds,
+      DeviceCredentials credentials,
+      ScheduledExecutorService scheduler,
+      int maxInflight)
+      throws MqttException {
+    this.serverUri = serverUri;
+    this.projectId = projectId;
+    this.cloudRegion = cloudRegion;
+    this.registryId = registryId;
+    this.credentials = credentials;
+    this.scheduler = scheduler;
+    this.maxInflight = maxInflight;
+    for (String gatewayId : gatewayIds) {
+      gateways.add(new Gateway(gatewayId));
+    }
+    for (int i = 0; i < deviceIds.size(); i++) {
+      gateways.get(i % gateways.size()).devices.add(deviceIds.get(i));
+    }
+  }
+
+  /** Connects every gateway and attaches its devices. */
+  public void connect() throws MqttException {
+    for (Gateway gateway : gateways) {
+      gateway.connect();
+    }
+    tokenCheck =
+        scheduler.scheduleWithFixedDelay(
+            this::checkTokens, TOKEN_CHECK_MILLIS, TOKEN_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Publishes {@code messagesPerDevice} telemetry events from every device, one every {@code
+   * intervalMillis}, and waits until each has been acknowledged, has failed or was skipped.
+   * Devices start at staggered times, so the load is spread evenly over each interval.
+   */
+  public void run(int messagesPerDevice, long intervalMillis) throws InterruptedException {
+    int deviceCount = 0;
+    for (Gateway gateway : gateways) {
+      deviceCount += gateway.devices.size();
+    }
+    latencies.clear();
+    published.reset();
+    failed.reset();
+    skipped.reset();
+    windowSamples.reset();
+    windowSum.reset();
+    windowMax.reset();
+    remaining = new CountDownLatch(deviceCount * messagesPerDevice);
+    long start = System.nanoTime();
+    int index = 0;
+    for (Gateway gateway : gateways) {
+      for (String deviceId : gateway.devices) {
+        long offsetNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis) * index++ / deviceCount;
+        new Device(gateway, deviceId, messagesPerDevice, intervalMillis, start + offsetNanos)
+            .schedule();
+      }
+    }
+    remaining.await();
+    elapsedNanos = System.nanoTime() - start;
+  }
+
+  /** Prints throughput, publish latency and in-flight window usage for the last run. */
+  public void printStats(PrintStream out) {
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    List<Long> sorted;
+    synchronized (latencies) {
+      sorted = new ArrayList<>(latencies);
+    }
+    Collections.sort(sorted);
+    int deviceCount = 0;
+    for (Gateway gateway : gateways) {
+      deviceCount += gateway.devices.size();
+    }
+    out.printf(
+        "Published %d messages from %d devices over %d connections in %d ms: %.1f msg/s%n",
+        published.sum(),
+        deviceCount,
+        gateways.size(),
+        elapsedMillis,
+        elapsedMillis == 0 ? 0.0 : published.sum() * 1000.0 / elapsedMillis);
+    out.printf("Failed: %d, skipped: %d%n", failed.sum(), skipped.sum());
+    if (!sorted.isEmpty()) {
+      out.printf(
+          "Publish latency: p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+          percentile(sorted, 50) / 1e6,
+          percentile(sorted, 95) / 1e6,
+          percentile(sorted, 99) / 1e6,
+          sorted.get(sorted.size() - 1) / 1e6);
+    }
+    out.printf(
+        "In-flight window: mean %.1f, max %d of %d%n",
+        getMeanWindow(), getMaxWindow(), maxInflight);
+  }
+
+  /** Number of messages acknowledged by the broker in the last run. */
+  public long getPublished() {
+    return published.sum();
+  }
+
+  /** Number of messages that failed to publish in the last run. */
+  public long getFailed() {
+    return failed.sum();
+  }
+
+  /** Number of messages skipped because the window was full or the gateway was reconnecting. */
+  public long getSkipped() {
+    return skipped.sum();
+  }
+
+  /** The most messages in flight on one connection at any time. */
+  public long getMaxWindow() {
+    return windowMax.get();
+  }
+
+  /** The mean number of messages in flight on a connection when a message was published. */
+  public double getMeanWindow() {
+    long samples = windowSamples.sum();
+    return samples == 0 ? 0 : (double) windowSum.sum() / samples;
+  }
+
+  /** Detaches every device and disconnects the gateways. */
+  @Override
+  public void close() throws MqttException {
+    if (tokenCheck != null) {
+      tokenCheck.cancel(false);
+    }
+    for (Gateway gateway : gateways) {
+      gateway.close();
+    }
+  }
+
+  private void checkTokens() {
+    for (Gateway gateway : gateways) {
+      if (gateway.tokenIssuedAt != credentials.getIssuedAt()) {
+        try {
+          gateway.reconnect();
+        } catch (MqttException e) {
+          System.err.printf("Could not reconnect %s: %s%n", gateway.gatewayId, e.getMessage());
+        }
+      }
+    }
+  }
+
+  private static long percentile(List<Long> sorted, int percentile) {
+    int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+    return sorted.get(Math.max(index, 0));
+  }
+
+  /** One gateway connection, shared by the devices attached to it. */
+  private class Gateway {
+    final String gatewayId;
+    final List<String> devices = new ArrayList<>();
+    final MqttAsyncClient client;
+    final MqttConnectOptions connectOptions = new MqttConnectOptions();
+    final Semaphore window = new Semaphore(maxInflight);
+    volatile boolean connected = false;
+    volatile long tokenIssuedAt;
+
+    Gateway(String gatewayId) throws MqttException {
+      this.gatewayId = gatewayId;
+      String clientId =
+          String.format(
+              "projects/%s/locations/%s/registries/%s/devices/%s",
+              projectId, cloudRegion, registryId, gatewayId);
+      client = new MqttAsyncClient(serverUri, clientId, new MemoryPersistence());
+      connectOptions.setMqttVersion(MqttConnectOptions.MQTT_VERSION_3_1_1);
+      connectOptions.setMaxInflight(maxInflight);
+      if (serverUri.startsWith("ssl://")) {
+        Properties sslProps = new Properties();
+        sslProps.setProperty("com.ibm.ssl.protocol", "TLSv1.2");
+        connectOptions.setSSLProperties(sslProps);
+      }
+      connectOptions.setUserName("unused");
+    }
+
+    synchronized void connect() throws MqttException {
+      tokenIssuedAt = credentials.getIssuedAt();
+      connectOptions.setPassword(credentials.getToken().toCharArray());
+      client.connect(connectOptions).waitForCompletion();
+      // Attach every device once, and keep them attached for the whole run.
+      sendToAll("/devices/%s/attach");
+      connected = true;
+    }
+
+    /** Publishes an empty message to the topic of every device, within the in-flight window. */
+    private void sendToAll(String topicFormat) throws MqttException {
+      List<IMqttToken> tokens = new ArrayList<>();
+      for (String deviceId : devices) {
+        window.acquireUninterruptibly();
+        try {
+          tokens.add(
+              client.publish(
+                  String.format(topicFormat, deviceId),
+                  "{}".getBytes(StandardCharsets.UTF_8),
+                  1,
+                  false,
+                  null,
+                  new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken token) {
+                      window.release();
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken token, Throwable t) {
+                      window.release();
+                    }
+                  }));
+        } catch (MqttException e) {
+          window.release();
+          throw e;
+        }
+      }
+      for (IMqttToken token : tokens) {
+        token.waitForCompletion();
+      }
+    }
+
+    synchronized void reconnect() throws MqttException {
+      connected = false;
+      if (client.isConnected()) {
+        client.disconnect().waitForCompletion();
+      }
+      connect();
+    }
+
+    synchronized void close() throws MqttException {
+      connected = false;
+      if (client.isConnected()) {
+        sendToAll("/devices/%s/detach");
+        client.disconnect().waitForCompletion();
+      }
+      client.close();
+    }
+
+    void publish(String deviceId, byte[] payload) {
+      if (!connected || !window.tryAcquire()) {
+        skipped.increment();
+        remaining.countDown();
+        return;
+      }
+      long inFlight = maxInflight - window.availablePermits();
+      windowSamples.increment();
+      windowSum.add(inFlight);
+      windowMax.accumulate(inFlight);
+      long start = System.nanoTime();
+      try {
+        client.publish(
+            String.format("/devices/%s/events", deviceId),
+            payload,
+            1,
+            false,
+            null,
+            new IMqttActionListener() {
+              @Override
+              public void onSuccess(IMqttToken token) {
+                latencies.add(System.nanoTime() - start);
+                published.increment();
+                window.release();
+                remaining.countDown();
+              }
+
+              @Override
+              public void onFailure(IMqttToken token, Throwable t) {
+                failed.increment();
+                window.release();
+                remaining.countDown();
+              }
+            });
+      } catch (MqttException e) {
+        failed.increment();
+        window.release();
+        remaining.countDown();
+      }
+    }
+  }
+
+  /** A simulated device, publishing on a fixed schedule through its gateway. */
+  private class Device {
+    final Gateway gateway;
+    final String deviceId;
+    final int messages;
+    final long intervalNanos;
+    final long startNanos;
+    int sent = 0;
+
+    Device(Gateway gateway, String deviceId, int messages, long intervalMillis, long startNanos) {
+      this.gateway = gateway;
+      this.deviceId = deviceId;
+      this.messages = messages;
+      this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+      this.startNanos = startNanos;
+    }
+
+    void schedule() {
+      // Schedule against the start time, so delays in one tick do not push back the next ones.
+      long delayNanos = startNanos + sent * intervalNanos - System.nanoTime();
+      scheduler.schedule(this::tick, Math.max(delayNanos, 0), TimeUnit.NANOSECONDS);
+    }
+
+    void tick() {
+      sent++;
+      String payload = String.format("%s/%s-payload-%d", registryId, deviceId, sent);
+      gateway.publish(deviceId, payload.getBytes(StandardCharsets.UTF_8));
+      if (sent < messages) {
+        schedule();
+      }
+    }
+  }
+}
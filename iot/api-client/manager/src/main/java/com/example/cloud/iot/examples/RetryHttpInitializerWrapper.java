@@ -72,12 +72,19 @@ public class RetryHttpInitializerWrapper implements HttpRequestInitializer {
     this.sleeper = sleeper;
   }
 
+  /** Server errors and quota errors (429 Too Many Requests) are retried with backoff. */
+  static boolean isRetryable(final HttpResponse response) {
+    return response.getStatusCode() == 429 || response.getStatusCode() / 100 == 5;
+  }
+
   /** Initializes the given request. */
   @Override
   public final void initialize(final HttpRequest request) {
     request.setReadTimeout(2 * ONE_MINUTE_MILLIS); // 2 minutes read timeout
     final HttpUnsuccessfulResponseHandler backoffHandler =
-        new HttpBackOffUnsuccessfulResponseHandler(new ExponentialBackOff()).setSleeper(sleeper);
+        new HttpBackOffUnsuccessfulResponseHandler(new ExponentialBackOff())
+            .setBackOffRequired(RetryHttpInitializerWrapper::isRetryable)
+            .setSleeper(sleeper);
     request.setInterceptor(wrappedCredential);
     request.setUnsuccessfulResponseHandler(
         new HttpUnsuccessfulResponseHandler() {
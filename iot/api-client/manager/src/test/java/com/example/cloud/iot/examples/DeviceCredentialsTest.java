@@ -0,0 +1,104 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloud.iot.examples;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the cached device credentials. These do not need a project. */
+@RunWith(JUnit4.class)
+public class DeviceCredentialsTest {
+  private static final String PKCS_PATH = "resources/rsa_private_pkcs8";
+
+  private ScheduledExecutorService scheduler;
+
+  @Before
+  public void setUp() {
+    scheduler = DeviceCredentials.newRefreshScheduler();
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testKeyIsParsedOnce() throws Exception {
+    PrivateKey first = DeviceCredentials.loadPrivateKey(PKCS_PATH, "RS256");
+    PrivateKey second = DeviceCredentials.loadPrivateKey("./" + PKCS_PATH, "RS256");
+
+    assertThat(second).isSameInstanceAs(first);
+  }
+
+  @Test
+  public void testTokenIsSignedForProject() throws Exception {
+    try (DeviceCredentials credentials =
+        new DeviceCredentials("my-project", PKCS_PATH, "RS256", 20, scheduler)) {
+      Claims claims =
+          Jwts.parser()
+              .setSigningKey(publicKey())
+              .parseClaimsJws(credentials.getToken())
+              .getBody();
+
+      assertThat(claims.getAudience()).isEqualTo("my-project");
+      assertThat(claims.getExpiration().getTime() - claims.getIssuedAt().getTime())
+          .isEqualTo(20 * 60 * 1000L);
+    }
+  }
+
+  @Test
+  public void testTokenIsRefreshedBeforeExpiry() throws Exception {
+    // Tokens valid for two seconds are replaced after one.
+    try (DeviceCredentials credentials =
+        new DeviceCredentials("my-project", PKCS_PATH, "RS256", 2000L, scheduler)) {
+      long firstIssuedAt = credentials.getIssuedAt();
+      long deadline = System.currentTimeMillis() + 10000;
+      while (credentials.getIssuedAt() == firstIssuedAt
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+
+      assertThat(credentials.getIssuedAt()).isGreaterThan(firstIssuedAt);
+      assertThat(credentials.getIssuedAt() - firstIssuedAt).isLessThan(2000L);
+      Claims claims =
+          Jwts.parser()
+              .setSigningKey(publicKey())
+              .parseClaimsJws(credentials.getToken())
+              .getBody();
+      assertThat(claims.getAudience()).isEqualTo("my-project");
+    }
+  }
+
+  private static PublicKey publicKey() throws Exception {
+    RSAPrivateCrtKey key = (RSAPrivateCrtKey) DeviceCredentials.loadPrivateKey(PKCS_PATH, "RS256");
+    return KeyFactory.getInstance("RSA")
+        .generatePublic(new RSAPublicKeySpec(key.getModulus(), key.getPublicExponent()));
+  }
+}
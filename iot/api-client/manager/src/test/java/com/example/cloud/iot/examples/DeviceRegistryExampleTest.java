@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloud.iot.examples;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.cloudiot.v1.CloudIot;
+import com.google.api.services.cloudiot.v1.model.Device;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for paging and clearing a registry, against a fake Cloud IoT API. */
+@RunWith(JUnit4.class)
+public class DeviceRegistryExampleTest {
+  private static final String REGISTRY_PATH = "projects/p/locations/us-central1/registries/r";
+  private static final int DEVICES = 2500;
+  private static final int GATEWAYS = 3;
+  private static final int BOUND_DEVICES = 1500;
+
+  private final AtomicInteger listCalls = new AtomicInteger();
+  private final AtomicInteger unbindCalls = new AtomicInteger();
+  private final AtomicBoolean quotaExceeded = new AtomicBoolean();
+  private final Set<String> deleted = ConcurrentHashMap.newKeySet();
+  private CloudIot service;
+
+  @Before
+  public void setUp() {
+    MockHttpTransport transport =
+        new MockHttpTransport() {
+          @Override
+          public LowLevelHttpRequest buildRequest(String method, String url) {
+            return new MockLowLevelHttpRequest(url) {
+              @Override
+              public LowLevelHttpResponse execute() {
+                return handle(method, new GenericUrl(url));
+              }
+            };
+          }
+        };
+    // Retries are not delayed.
+    RetryHttpInitializerWrapper init =
+        new RetryHttpInitializerWrapper(
+            new GoogleCredential().setAccessToken("token"), millis -> { });
+    service =
+        new CloudIot.Builder(transport, JacksonFactory.getDefaultInstance(), init)
+            .setApplicationName("test")
+            .build();
+  }
+
+  @Test
+  public void testListAllReadsEveryPage() throws Exception {
+    int count = 0;
+    for (Device device :
+        DeviceRegistryExample.listAll(
+            service.projects().locations().registries().devices().list(REGISTRY_PATH))) {
+      assertThat(device.getId()).isNotNull();
+      count++;
+    }
+
+    assertThat(count).isEqualTo(DEVICES + GATEWAYS);
+    assertThat(listCalls.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void testClearRegistryUnbindsAndDeletesEverything() throws Exception {
+    DeviceRegistryExample.clearRegistry(service, REGISTRY_PATH, 8);
+
+    assertThat(quotaExceeded.get()).isTrue();
+    assertThat(unbindCalls.get()).isEqualTo(BOUND_DEVICES + 1);
+    assertThat(deleted).hasSize(DEVICES + GATEWAYS + 1);
+    assertThat(deleted).contains(REGISTRY_PATH);
+  }
+
+  private LowLevelHttpResponse handle(String method, GenericUrl url) {
+    String path = url.getRawPath();
+    MockLowLevelHttpResponse response =
+        new MockLowLevelHttpResponse().setContentType(Json.MEDIA_TYPE).setContent("{}");
+    if (method.equals("GET") && path.endsWith("/devices")) {
+      listCalls.incrementAndGet();
+      response.setContent(listDevices(url));
+    } else if (method.equals("POST") && path.endsWith(":unbindDeviceFromGateway")) {
+      unbindCalls.incrementAndGet();
+      // Fail the first call with a quota error, which should be retried.
+      if (quotaExceeded.compareAndSet(false, true)) {
+        response.setStatusCode(429);
+      }
+    } else if (method.equals("DELETE")) {
+      deleted.add(path.substring(path.indexOf("projects/")));
+    } else {
+      response.setStatusCode(404);
+    }
+    return response;
+  }
+
+  private String listDevices(GenericUrl url) {
+    List<String> ids = new ArrayList<>();
+    Object gatewayId = url.getFirst("gatewayListOptions.associationsGatewayId");
+    if (gatewayId != null) {
+      // Devices are bound to gateways round robin.
+      int gateway = Integer.parseInt(gatewayId.toString().substring("gateway-".length()));
+      for (int i = gateway; i < BOUND_DEVICES; i += GATEWAYS) {
+        ids.add("device-" + i);
+      }
+    } else {
+      for (int i = 0; i < GATEWAYS; i++) {
+        ids.add("gateway-" + i);
+      }
+      if (url.getFirst("gatewayListOptions.gatewayType") == null) {
+        for (int i = 0; i < DEVICES; i++) {
+          ids.add("device-" + i);
+        }
+      }
+    }
+    int pageSize = Integer.parseInt(url.getFirst("pageSize").toString());
+    Object pageToken = url.getFirst("pageToken");
+    int offset = pageToken == null ? 0 : Integer.parseInt(pageToken.toString());
+    int end = Math.min(offset + pageSize, ids.size());
+    StringBuilder json = new StringBuilder("{\"devices\": [");
+    for (int i = offset; i < end; i++) {
+      json.append(i > offset ? "," : "").append("{\"id\": \"").append(ids.get(i)).append("\"}");
+    }
+    json.append("]");
+    if (end < ids.size()) {
+      json.append(", \"nextPageToken\": \"").append(end).append("\"");
+    }
+    return json.append("}").toString();
+  }
+}
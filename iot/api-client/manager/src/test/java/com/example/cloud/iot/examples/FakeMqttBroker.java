@@ -0,0 +1,229 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloud.iot.examples;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal local MQTT 3.1.1 broker, standing in for the Cloud IoT Core MQTT bridge in tests.
+ *
+ * <p>It accepts every connection, acknowledges QoS 1 publishes after a configurable delay, like a
+ * round trip to the bridge, and counts the messages it receives by the last segment of their topic
+ * ("events", "state", "attach", ...). Messages are not delivered to subscribers.
+ */
+class FakeMqttBroker implements AutoCloseable {
+  private static final int CONNECT = 1;
+  private static final int PUBLISH = 3;
+  private static final int SUBSCRIBE = 8;
+  private static final int UNSUBSCRIBE = 10;
+  private static final int PINGREQ = 12;
+  private static final int DISCONNECT = 14;
+
+  private final ServerSocket serverSocket;
+  private final long ackDelayMillis;
+  private final ExecutorService connections = Executors.newCachedThreadPool();
+  private final ScheduledExecutorService acks = Executors.newScheduledThreadPool(2);
+  private final Map<String, AtomicLong> messages = new ConcurrentHashMap<>();
+  private final Map<String, String> lastPayloads = new ConcurrentHashMap<>();
+  private final AtomicLong payloadBytes = new AtomicLong();
+  private final List<String> passwords = new CopyOnWriteArrayList<>();
+
+  FakeMqttBroker(long ackDelayMillis) throws IOException {
+    this.ackDelayMillis = ackDelayMillis;
+    serverSocket = new ServerSocket(0);
+    connections.execute(this::accept);
+  }
+
+  /** The URI clients should connect to. */
+  String getServerUri() {
+    return "tcp://localhost:" + serverSocket.getLocalPort();
+  }
+
+  /** Number of messages received on topics ending with {@code suffix}. */
+  long getMessages(String suffix) {
+    AtomicLong count = messages.get(suffix);
+    return count == null ? 0 : count.get();
+  }
+
+  /** The payload of the last message received on a topic ending with {@code suffix}. */
+  String getLastPayload(String suffix) {
+    return lastPayloads.get(suffix);
+  }
+
+  /** Total size of the payloads received, over all topics. */
+  long getPayloadBytes() {
+    return payloadBytes.get();
+  }
+
+  /** The password of every connection so far, in order. */
+  List<String> getPasswords() {
+    return passwords;
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    connections.shutdownNow();
+    acks.shutdownNow();
+  }
+
+  private void accept() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        connections.execute(() -> serve(socket));
+      } catch (IOException e) {
+        // The broker was closed.
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (Socket s = socket;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+      OutputStream out = new BufferedOutputStream(s.getOutputStream());
+      while (true) {
+        int header = in.readUnsignedByte();
+        int type = header >> 4;
+        byte[] body = new byte[readRemainingLength(in)];
+        in.readFully(body);
+        switch (type) {
+          case CONNECT:
+            passwords.add(readPassword(body));
+            write(out, 0x20, 0x02, 0x00, 0x00);
+            break;
+          case PUBLISH:
+            publish(out, (header >> 1) & 0x03, body);
+            break;
+          case SUBSCRIBE:
+            int[] suback = new int[4 + countTopics(body)];
+            suback[0] = 0x90;
+            suback[1] = suback.length - 2;
+            suback[2] = body[0] & 0xff;
+            suback[3] = body[1] & 0xff;
+            // Grant QoS 0 to every topic.
+            write(out, suback);
+            break;
+          case UNSUBSCRIBE:
+            write(out, 0xb0, 0x02, body[0] & 0xff, body[1] & 0xff);
+            break;
+          case PINGREQ:
+            write(out, 0xd0, 0x00);
+            break;
+          case DISCONNECT:
+            return;
+          default:
+            break;
+        }
+      }
+    } catch (EOFException e) {
+      // The client closed the connection.
+    } catch (IOException e) {
+      // The broker was closed.
+    }
+  }
+
+  private void publish(OutputStream out, int qos, byte[] body) throws IOException {
+    int topicLength = ((body[0] & 0xff) << 8) | (body[1] & 0xff);
+    String topic = new String(body, 2, topicLength, StandardCharsets.UTF_8);
+    int payloadStart = 2 + topicLength + (qos > 0 ? 2 : 0);
+    String suffix = topic.substring(topic.lastIndexOf('/') + 1);
+    lastPayloads.put(
+        suffix,
+        new String(body, payloadStart, body.length - payloadStart, StandardCharsets.UTF_8));
+    messages.computeIfAbsent(suffix, k -> new AtomicLong()).incrementAndGet();
+    payloadBytes.addAndGet(body.length - payloadStart);
+    if (qos > 0) {
+      int idHigh = body[2 + topicLength] & 0xff;
+      int idLow = body[3 + topicLength] & 0xff;
+      acks.schedule(
+          () -> {
+            try {
+              write(out, 0x40, 0x02, idHigh, idLow);
+            } catch (IOException e) {
+              // The connection was closed before the acknowledgement.
+            }
+          },
+          ackDelayMillis,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static void write(OutputStream out, int... bytes) throws IOException {
+    synchronized (out) {
+      for (int b : bytes) {
+        out.write(b);
+      }
+      out.flush();
+    }
+  }
+
+  private static int readRemainingLength(DataInputStream in) throws IOException {
+    int length = 0;
+    int multiplier = 1;
+    int digit;
+    do {
+      digit = in.readUnsignedByte();
+      length += (digit & 0x7f) * multiplier;
+      multiplier *= 128;
+    } while ((digit & 0x80) != 0);
+    return length;
+  }
+
+  private static String readPassword(byte[] body) {
+    // Protocol name, level, flags and keep alive, then the client id, will and user name.
+    int pos = 2 + (((body[0] & 0xff) << 8) | (body[1] & 0xff));
+    int flags = body[pos + 1] & 0xff;
+    pos += 4;
+    int fields = 1 + ((flags & 0x04) != 0 ? 2 : 0) + ((flags & 0x80) != 0 ? 1 : 0);
+    for (int i = 0; i < fields; i++) {
+      pos += 2 + (((body[pos] & 0xff) << 8) | (body[pos + 1] & 0xff));
+    }
+    if ((flags & 0x40) == 0) {
+      return "";
+    }
+    int length = ((body[pos] & 0xff) << 8) | (body[pos + 1] & 0xff);
+    return new String(body, pos + 2, length, StandardCharsets.UTF_8);
+  }
+
+  private static int countTopics(byte[] body) {
+    int count = 0;
+    int pos = 2;
+    while (pos < body.length) {
+      pos += 2 + (((body[pos] & 0xff) << 8) | (body[pos + 1] & 0xff)) + 1;
+      count++;
+    }
+    return count;
+  }
+}
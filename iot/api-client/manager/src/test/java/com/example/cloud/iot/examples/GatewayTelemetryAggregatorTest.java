@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloud.iot.examples;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the gateway telemetry aggregator, against a local broker. */
+@RunWith(JUnit4.class)
+public class GatewayTelemetryAggregatorTest {
+  private static final String GATEWAY_ID = "test-gateway";
+
+  private FakeMqttBroker broker;
+  private MqttClient client;
+  private ScheduledExecutorService scheduler;
+
+  @Before
+  public void setUp() throws Exception {
+    broker = new FakeMqttBroker(0);
+    client = new MqttClient(broker.getServerUri(), GATEWAY_ID, new MemoryPersistence());
+    client.connect();
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    scheduler.shutdownNow();
+    client.disconnect();
+    client.close();
+    broker.close();
+  }
+
+  @Test
+  public void testFlushesBySize() throws Exception {
+    GatewayTelemetryAggregator aggregator =
+        new GatewayTelemetryAggregator(client, GATEWAY_ID, scheduler, 1024, 60000);
+    for (int i = 0; i < 100; i++) {
+      aggregator.publish("device-" + (i % 10), "reading-" + i);
+    }
+    // Every batch so far was sent because it was full.
+    long fullBatches = aggregator.getBatches();
+    assertThat(fullBatches).isGreaterThan(0L);
+    assertThat(broker.getMessages("batch")).isEqualTo(fullBatches);
+    assertThat(broker.getLastPayload("batch").length()).isAtMost(1024);
+    aggregator.close();
+
+    assertThat(aggregator.getReadings()).isEqualTo(100);
+    assertThat(aggregator.getBatches()).isEqualTo(fullBatches + 1);
+    assertThat(broker.getMessages("attach")).isEqualTo(10);
+    assertThat(broker.getMessages("detach")).isEqualTo(10);
+    assertThat(broker.getMessages("events")).isEqualTo(0);
+    // Ten devices each attached and detached once, plus the batches, with their acks.
+    assertThat(aggregator.getPacketsSent()).isEqualTo(2 * (20 + aggregator.getBatches()));
+    assertThat(aggregator.getUnbatchedPackets()).isEqualTo(600);
+    assertThat(aggregator.getBytesSent()).isLessThan(aggregator.getUnbatchedBytes());
+  }
+
+  @Test
+  public void testFlushesByInterval() throws Exception {
+    GatewayTelemetryAggregator aggregator =
+        new GatewayTelemetryAggregator(client, GATEWAY_ID, scheduler, 65536, 50);
+    aggregator.publish("device-a", "1");
+    aggregator.publish("device-b", "2");
+    aggregator.publish("device-a", "3");
+
+    for (int i = 0; i < 100 && broker.getMessages("batch") == 0; i++) {
+      Thread.sleep(20);
+    }
+    assertThat(broker.getMessages("batch")).isEqualTo(1);
+    JSONObject batch = new JSONObject(broker.getLastPayload("batch"));
+    assertThat(batch.getJSONArray("device-a").toList()).containsExactly("1", "3").inOrder();
+    assertThat(batch.getJSONArray("device-b").toList()).containsExactly("2");
+    aggregator.close();
+    assertThat(aggregator.getBatches()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPublishAfterCloseDoesNotAttach() throws Exception {
+    GatewayTelemetryAggregator aggregator =
+        new GatewayTelemetryAggregator(client, GATEWAY_ID, scheduler, 65536, 60000);
+    aggregator.close();
+
+    try {
+      aggregator.publish("device-a", "1");
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+      // Expected.
+    }
+    assertThat(broker.getMessages("attach")).isEqualTo(0);
+    assertThat(aggregator.getReadings()).isEqualTo(0);
+  }
+}
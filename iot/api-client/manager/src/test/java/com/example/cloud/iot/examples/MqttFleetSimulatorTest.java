@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloud.iot.examples;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the fleet simulator, against a local broker. These do not need a project. */
+@RunWith(JUnit4.class)
+public class MqttFleetSimulatorTest {
+  private static final String PKCS_PATH = "resources/rsa_private_pkcs8";
+  private static final List<String> GATEWAYS = Arrays.asList("gw-0", "gw-1", "gw-2", "gw-3");
+
+  private ScheduledExecutorService scheduler;
+  private DeviceCredentials credentials;
+
+  @Before
+  public void setUp() throws Exception {
+    scheduler = Executors.newScheduledThreadPool(4);
+    credentials = new DeviceCredentials("test-project", PKCS_PATH, "RS256", 60, scheduler);
+  }
+
+  @After
+  public void tearDown() {
+    credentials.close();
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testManyDevicesShareGatewayConnections() throws Exception {
+    List<String> devices = deviceIds(2000);
+    try (FakeMqttBroker broker = new FakeMqttBroker(0)) {
+      try (MqttFleetSimulator simulator = newSimulator(broker, devices, 100)) {
+        simulator.connect();
+        simulator.run(3, 200);
+
+        assertThat(simulator.getPublished()).isEqualTo(6000);
+        assertThat(simulator.getFailed()).isEqualTo(0);
+        assertThat(simulator.getMaxWindow()).isAtMost(100L);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        simulator.printStats(new PrintStream(bout));
+        assertThat(bout.toString()).contains("from 2000 devices over 4 connections");
+      }
+
+      assertThat(broker.getPasswords()).hasSize(GATEWAYS.size());
+      assertThat(broker.getMessages("attach")).isEqualTo(2000);
+      assertThat(broker.getMessages("detach")).isEqualTo(2000);
+      assertThat(broker.getMessages("events")).isEqualTo(6000);
+    }
+  }
+
+  @Test
+  public void testFullWindowSkipsMessages() throws Exception {
+    List<String> devices = deviceIds(200);
+    // Each acknowledgement takes longer than the interval, so the window of 4 fills up.
+    try (FakeMqttBroker broker = new FakeMqttBroker(50);
+        MqttFleetSimulator simulator = newSimulator(broker, devices, 4)) {
+      simulator.connect();
+      simulator.run(2, 20);
+
+      assertThat(simulator.getSkipped()).isGreaterThan(0L);
+      assertThat(simulator.getMaxWindow()).isAtMost(4L);
+      assertThat(simulator.getPublished() + simulator.getSkipped() + simulator.getFailed())
+          .isEqualTo(400);
+      assertThat(broker.getMessages("events")).isEqualTo(simulator.getPublished());
+    }
+  }
+
+  private MqttFleetSimulator newSimulator(
+      FakeMqttBroker broker, List<String> devices, int maxInflight) throws Exception {
+    return new MqttFleetSimulator(
+        broker.getServerUri(),
+        "test-project",
+        "us-central1",
+        "test-registry",
+        GATEWAYS,
+        devices,
+        credentials,
+        scheduler,
+        maxInflight);
+  }
+
+  private static List<String> deviceIds(int count) {
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      ids.add("device-" + i);
+    }
+    return ids;
+  }
+}
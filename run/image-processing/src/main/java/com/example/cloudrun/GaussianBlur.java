@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloudrun;
+
+// [START run_imageproc_gaussian_blur]
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+// Blurs images in process with a separable Gaussian kernel, the same filter as
+// ImageMagick's `-blur 0x<sigma>`.
+//
+// The 2D kernel is applied as two 1D passes. Each pass reads the rows of its input and
+// writes them as the columns of its output, so the second pass transposes the image
+// back and both passes read memory sequentially.
+public class GaussianBlur {
+
+  private GaussianBlur() {}
+
+  // Returns a blurred copy of the image. Images with an alpha channel are blurred with
+  // premultiplied alpha, so transparent pixels do not bleed their color into their
+  // neighbors.
+  public static BufferedImage blur(BufferedImage image, double sigma) {
+    if (sigma <= 0) {
+      throw new IllegalArgumentException("sigma must be positive");
+    }
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int type =
+        image.getColorModel().hasAlpha()
+            ? BufferedImage.TYPE_INT_ARGB_PRE
+            : BufferedImage.TYPE_INT_RGB;
+    BufferedImage source = convert(image, type);
+    BufferedImage blurred = new BufferedImage(width, height, type);
+
+    float[] kernel = kernel(sigma);
+    int[] in = ((DataBufferInt) source.getRaster().getDataBuffer()).getData();
+    int[] transposed = new int[width * height];
+    int[] out = ((DataBufferInt) blurred.getRaster().getDataBuffer()).getData();
+    blurRowsIntoColumns(in, transposed, width, height, kernel);
+    blurRowsIntoColumns(transposed, out, height, width, kernel);
+    return blurred;
+  }
+
+  // Builds a normalized 1D Gaussian kernel reaching three standard deviations from its
+  // center, past which the weights no longer change 8-bit channels.
+  static float[] kernel(double sigma) {
+    int radius = (int) Math.ceil(3 * sigma);
+    float[] kernel = new float[2 * radius + 1];
+    double sum = 0;
+    for (int i = -radius; i <= radius; i++) {
+      double weight = Math.exp(-(i * i) / (2 * sigma * sigma));
+      kernel[i + radius] = (float) weight;
+      sum += weight;
+    }
+    for (int i = 0; i < kernel.length; i++) {
+      kernel[i] /= sum;
+    }
+    return kernel;
+  }
+
+  // Blurs each row of the width x height image `in`, and writes it as a column of the
+  // height x width image `out`. Pixels past the edges repeat the edge pixel.
+  private static void blurRowsIntoColumns(
+      int[] in, int[] out, int width, int height, float[] kernel) {
+    int radius = kernel.length / 2;
+    // The channels of the current row, padded with copies of the edge pixels, so the
+    // kernel never reaches outside of them.
+    float[] a = new float[width + 2 * radius];
+    float[] r = new float[a.length];
+    float[] g = new float[a.length];
+    float[] b = new float[a.length];
+    for (int y = 0; y < height; y++) {
+      int row = y * width;
+      for (int i = 0; i < a.length; i++) {
+        int pixel = in[row + Math.min(Math.max(i - radius, 0), width - 1)];
+        a[i] = pixel >>> 24;
+        r[i] = (pixel >> 16) & 0xff;
+        g[i] = (pixel >> 8) & 0xff;
+        b[i] = pixel & 0xff;
+      }
+      for (int x = 0; x < width; x++) {
+        float sumA = 0;
+        float sumR = 0;
+        float sumG = 0;
+        float sumB = 0;
+        for (int k = 0; k < kernel.length; k++) {
+          float weight = kernel[k];
+          sumA += weight * a[x + k];
+          sumR += weight * r[x + k];
+          sumG += weight * g[x + k];
+          sumB += weight * b[x + k];
+        }
+        out[x * height + y] =
+            (clamp(sumA) << 24) | (clamp(sumR) << 16) | (clamp(sumG) << 8) | clamp(sumB);
+      }
+    }
+  }
+
+  private static int clamp(float channel) {
+    return Math.min(Math.max(Math.round(channel), 0), 255);
+  }
+
+  // Returns the image itself if it already has the given type, or a copy that does.
+  private static BufferedImage convert(BufferedImage image, int type) {
+    if (image.getType() == type) {
+      return image;
+    }
+    BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), type);
+    Graphics2D graphics = copy.createGraphics();
+    try {
+      graphics.drawImage(image, 0, 0, null);
+    } finally {
+      graphics.dispose();
+    }
+    return copy;
+  }
+}
+// [END run_imageproc_gaussian_blur]
@@ -32,17 +32,41 @@ import com.google.cloud.vision.v1.ImageAnnotatorClient;
 import com.google.cloud.vision.v1.ImageSource;
 import com.google.cloud.vision.v1.SafeSearchAnnotation;
 import com.google.gson.JsonObject;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 public class ImageMagick {
 
   private static final String BLURRED_BUCKET_NAME = System.getenv("BLURRED_BUCKET_NAME");
+  // Standard deviation of the blur, in pixels, as in `convert -blur 0x8`.
+  private static final double BLUR_SIGMA = 8;
   private static Storage storage = StorageOptions.getDefaultInstance().getService();
+  // Created on first use, then shared by all events, so each event reuses its connections.
+  private static ImageAnnotatorClient visionClient;
+
+  static {
+    // Buffer image streams in memory rather than in temporary files.
+    ImageIO.setUseCache(false);
+  }
+
+  private static synchronized ImageAnnotatorClient getVisionClient() throws IOException {
+    if (visionClient == null) {
+      visionClient = ImageAnnotatorClient.create();
+    }
+    return visionClient;
+  }
   // [END run_imageproc_handler_setup]
 
   // [START run_imageproc_handler_analyze]
@@ -65,8 +89,8 @@ public class ImageMagick {
     requests.add(request);
 
     // Send request to the Vision API.
-    try (ImageAnnotatorClient client = ImageAnnotatorClient.create()) {
-      BatchAnnotateImagesResponse response = client.batchAnnotateImages(requests);
+    try {
+      BatchAnnotateImagesResponse response = getVisionClient().batchAnnotateImages(requests);
       List<AnnotateImageResponse> responses = response.getResponsesList();
       for (AnnotateImageResponse res : responses) {
         if (res.hasError()) {
@@ -94,43 +118,109 @@ public class ImageMagick {
   public static void blur(BlobInfo blobInfo) throws IOException {
     String bucketName = blobInfo.getBucket();
     String fileName = blobInfo.getName();
-    // Download image
     Blob blob = storage.get(BlobId.of(bucketName, fileName));
-    Path download = Paths.get("/tmp/", fileName);
-    blob.downloadTo(download);
+    BlobId blurredBlobId = BlobId.of(BLURRED_BUCKET_NAME, fileName);
+    BlobInfo blurredBlobInfo =
+        BlobInfo.newBuilder(blurredBlobId).setContentType(blob.getContentType()).build();
 
+    long start = System.nanoTime();
+    // Formats that the JDK reads are blurred without starting ImageMagick. Images the JDK turns
+    // out not to handle, and all other formats, are blurred with ImageMagick.
+    boolean blurredInProcess =
+        blob.getContentType() != null
+            && ImageIO.getImageReadersByMIMEType(blob.getContentType()).hasNext()
+            && blurInProcess(blob, blurredBlobInfo);
+    if (!blurredInProcess) {
+      // Download image
+      Path download = Files.createTempFile("image-", null);
+      Path upload = Files.createTempFile("blurred-", null);
+      try {
+        blob.downloadTo(download);
+        convertBlur(download, upload);
+        // Upload image to blurred bucket.
+        storage.create(blurredBlobInfo, Files.readAllBytes(upload));
+      } finally {
+        // Remove images from fileSystem
+        Files.deleteIfExists(download);
+        Files.deleteIfExists(upload);
+      }
+    }
+    System.out.println(
+        String.format(
+            "Blurred image uploaded to: gs://%s/%s in %d ms",
+            BLURRED_BUCKET_NAME, fileName, (System.nanoTime() - start) / 1000000));
+  }
+
+  // Blurs the image in the input file into the output file with ImageMagick, in a new
+  // process.
+  static void convertBlur(Path input, Path output) throws IOException {
     // Construct the command.
     List<String> args = new ArrayList<String>();
     args.add("convert");
-    args.add(download.toString());
+    args.add(input.toString());
     args.add("-blur");
-    args.add("0x8");
-    Path upload = Paths.get("/tmp/", "blurred-" + fileName);
-    args.add(upload.toString());
+    args.add("0x" + BLUR_SIGMA);
+    args.add(output.toString());
+    Process process = new ProcessBuilder(args).inheritIO().start();
     try {
-      ProcessBuilder pb = new ProcessBuilder(args);
-      Process process = pb.start();
-      process.waitFor();
-    } catch (Exception e) {
-      System.out.println(String.format("Error: %s", e.getMessage()));
+      int exitCode = process.waitFor();
+      if (exitCode != 0) {
+        throw new IOException("convert exited with status " + exitCode);
+      }
+    } catch (InterruptedException e) {
+      process.destroy();
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for convert", e);
     }
+  }
+  // [END run_imageproc_handler_blur]
 
+  // [START run_imageproc_handler_blur_in_process]
+  // Streams the image from Cloud Storage, blurs it in process, and uploads it to the
+  // blurred bucket, without temporary files. Returns false, without uploading anything, if
+  // the JDK cannot decode the image or encode the result, for example a CMYK JPEG.
+  static boolean blurInProcess(Blob blob, BlobInfo blurredBlobInfo) throws IOException {
+    // The encoded image is much smaller than the decoded one, so it is kept in memory until
+    // it is complete rather than uploaded as it is written.
+    ByteArrayOutputStream blurred = new ByteArrayOutputStream();
+    try (InputStream in = Channels.newInputStream(blob.reader())) {
+      blurImage(in, blurred);
+    } catch (IOException | RuntimeException e) {
+      System.out.println(
+          String.format("Cannot blur %s in process: %s", blob.getName(), e.getMessage()));
+      return false;
+    }
     // Upload image to blurred bucket.
-    BlobId blurredBlobId = BlobId.of(BLURRED_BUCKET_NAME, fileName);
-    BlobInfo blurredBlobInfo =
-        BlobInfo.newBuilder(blurredBlobId).setContentType(blob.getContentType()).build();
+    storage.create(blurredBlobInfo, blurred.toByteArray());
+    return true;
+  }
+
+  // Decodes the image read from in, blurs it, and writes it to out in the format it was
+  // read in. Neither stream is closed.
+  static void blurImage(InputStream in, OutputStream out) throws IOException {
+    BufferedImage image;
+    String format;
+    ImageInputStream imageIn = ImageIO.createImageInputStream(in);
     try {
-      byte[] blurredFile = Files.readAllBytes(upload);
-      Blob blurredBlob = storage.create(blurredBlobInfo, blurredFile);
-      System.out.println(
-          String.format("Blurred image uploaded to: gs://%s/%s", BLURRED_BUCKET_NAME, fileName));
-    } catch (Exception e) {
-      System.out.println(String.format("Error in upload: %s", e.getMessage()));
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(imageIn);
+      if (!readers.hasNext()) {
+        throw new IOException("Unsupported image format");
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(imageIn, true, true);
+        image = reader.read(0);
+        format = reader.getFormatName();
+      } finally {
+        reader.dispose();
+      }
+    } finally {
+      imageIn.close();
     }
 
-    // Remove images from fileSystem
-    Files.delete(download);
-    Files.delete(upload);
+    if (!ImageIO.write(GaussianBlur.blur(image, BLUR_SIGMA), format, out)) {
+      throw new IOException("Cannot write images in format " + format);
+    }
   }
+  // [END run_imageproc_handler_blur_in_process]
 }
-// [END run_imageproc_handler_blur]
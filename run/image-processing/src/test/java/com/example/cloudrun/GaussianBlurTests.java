@@ -0,0 +1,184 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloudrun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class GaussianBlurTests {
+
+  @Test
+  public void kernelIsNormalizedAndSymmetric() {
+    float[] kernel = GaussianBlur.kernel(8);
+
+    assertEquals(49, kernel.length);
+    float sum = 0;
+    for (int i = 0; i < kernel.length; i++) {
+      assertEquals(kernel[i], kernel[kernel.length - 1 - i], 0);
+      sum += kernel[i];
+    }
+    assertEquals(1, sum, 1e-5);
+  }
+
+  @Test
+  public void uniformImageIsUnchanged() {
+    BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < 30; y++) {
+      for (int x = 0; x < 40; x++) {
+        image.setRGB(x, y, 0x336699);
+      }
+    }
+
+    BufferedImage blurred = GaussianBlur.blur(image, 8);
+
+    for (int y = 0; y < 30; y++) {
+      for (int x = 0; x < 40; x++) {
+        assertEquals(0x336699, blurred.getRGB(x, y) & 0xffffff);
+      }
+    }
+  }
+
+  @Test
+  public void pointSpreadsEvenly() {
+    BufferedImage image = new BufferedImage(41, 31, BufferedImage.TYPE_BYTE_GRAY);
+    image.getRaster().setSample(20, 15, 0, 255);
+
+    BufferedImage blurred = GaussianBlur.blur(image, 2);
+
+    int center = blurred.getRGB(20, 15) & 0xff;
+    assertTrue(center > 0 && center < 255);
+    assertEquals(center, blurred.getRGB(20, 15) >> 8 & 0xff);
+    assertEquals(blurred.getRGB(18, 15), blurred.getRGB(22, 15));
+    assertEquals(blurred.getRGB(20, 13), blurred.getRGB(20, 17));
+    assertEquals(blurred.getRGB(18, 15), blurred.getRGB(20, 13));
+    assertEquals(0, blurred.getRGB(0, 0) & 0xffffff);
+  }
+
+  @Test
+  public void transparentPixelsDoNotDarkenTheirNeighbors() {
+    BufferedImage image = new BufferedImage(20, 20, BufferedImage.TYPE_INT_ARGB);
+    for (int y = 0; y < 20; y++) {
+      for (int x = 0; x < 10; x++) {
+        image.setRGB(x, y, 0xffff0000);
+      }
+    }
+
+    BufferedImage blurred = GaussianBlur.blur(image, 2);
+
+    int edge = blurred.getRGB(10, 10);
+    assertTrue((edge >>> 24) > 0 && (edge >>> 24) < 255);
+    assertTrue(((edge >> 16) & 0xff) >= 0xfe);
+    assertEquals(0, edge & 0xffff);
+  }
+
+  @Test
+  public void blurImageKeepsFormatAndSize() throws IOException {
+    byte[] png = encode(noise(64, 48), "png");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    ImageMagick.blurImage(new ByteArrayInputStream(png), out);
+
+    try (ImageInputStream in =
+        ImageIO.createImageInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+      ImageReader reader = ImageIO.getImageReaders(in).next();
+      reader.setInput(in);
+      assertEquals("png", reader.getFormatName());
+      assertEquals(64, reader.getWidth(0));
+      assertEquals(48, reader.getHeight(0));
+    }
+  }
+
+  // Compares events per second for the blur step of each event: in process, and by
+  // forking ImageMagick over temporary files. Only runs with -Dbenchmark=true, and the fork
+  // is skipped without ImageMagick.
+  @Test
+  public void benchmarkAgainstConvert() throws Exception {
+    assumeTrue(Boolean.getBoolean("benchmark"));
+    byte[] jpeg = encode(noise(1024, 768), "jpeg");
+    int events = 10;
+
+    long start = System.nanoTime();
+    for (int i = 0; i < events; i++) {
+      ImageMagick.blurImage(new ByteArrayInputStream(jpeg), new ByteArrayOutputStream());
+    }
+    printRate("In process", events, System.nanoTime() - start);
+
+    assumeTrue(hasConvert());
+    Path input = Files.createTempFile("benchmark-", ".jpg");
+    Path output = Files.createTempFile("benchmark-blurred-", ".jpg");
+    try {
+      start = System.nanoTime();
+      for (int i = 0; i < events; i++) {
+        Files.write(input, jpeg);
+        ImageMagick.convertBlur(input, output);
+        Files.readAllBytes(output);
+      }
+      printRate("Forked convert", events, System.nanoTime() - start);
+    } finally {
+      Files.deleteIfExists(input);
+      Files.deleteIfExists(output);
+    }
+  }
+
+  private static BufferedImage noise(int width, int height) {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Random random = new Random(width * height);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        image.setRGB(x, y, random.nextInt(0x1000000));
+      }
+    }
+    return image;
+  }
+
+  private static byte[] encode(BufferedImage image, String format) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, format, out);
+    return out.toByteArray();
+  }
+
+  private static boolean hasConvert() {
+    try {
+      return new ProcessBuilder("convert", "-version").start().waitFor() == 0;
+    } catch (IOException | InterruptedException e) {
+      return false;
+    }
+  }
+
+  private static void printRate(String name, int events, long elapsedNanos) {
+    System.out.println(
+        String.format(
+            "%s: %d events in %d ms, %.2f events/s",
+            name, events, elapsedNanos / 1000000, events * 1e9 / elapsedNanos));
+  }
+}
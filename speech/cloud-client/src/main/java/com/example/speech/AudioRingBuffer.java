@@ -0,0 +1,172 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.speech;
+
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A preallocated single-producer / single-consumer ring of fixed-size audio frames.
+ *
+ * <p>The producer reads audio straight into the next free slot, so capturing a frame allocates
+ * nothing. The consumer turns each slot into the {@link ByteString} that is sent to the API (and
+ * kept for bridging), which is the only copy made of the audio. When the consumer falls behind and
+ * the ring is full, new frames are dropped rather than growing memory, and frames that waited in
+ * the ring longer than the late threshold are counted as late.
+ */
+public class AudioRingBuffer {
+
+  /** Source of audio frames, such as a microphone line or a recorded PCM stream. */
+  public interface FrameReader {
+    /** Reads up to {@code len} bytes into {@code buffer}, returning -1 at the end of the audio. */
+    int read(byte[] buffer, int offset, int len) throws IOException;
+  }
+
+  private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final int frameBytes;
+  private final int capacity;
+  private final byte[] buffer;
+  private final int[] lengths;
+  private final long[] capturedAtNanos;
+  private final byte[] scratch;
+  private final long lateThresholdNanos;
+
+  // Index of the next slot to be written by the producer, and read by the consumer. Each index is
+  // only ever written by one thread, so the volatile write in lazySet is enough to publish a slot.
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  private volatile boolean closed = false;
+
+  private final LongAdder droppedFrames = new LongAdder();
+  private final LongAdder lateFrames = new LongAdder();
+
+  /**
+   * Creates a ring of {@code capacity} frames of {@code frameBytes} bytes each. Frames that wait
+   * longer than {@code lateThresholdMillis} before being taken are reported as late.
+   */
+  public AudioRingBuffer(int frameBytes, int capacity, long lateThresholdMillis) {
+    this.frameBytes = frameBytes;
+    this.capacity = capacity;
+    this.buffer = new byte[frameBytes * capacity];
+    this.lengths = new int[capacity];
+    this.capturedAtNanos = new long[capacity];
+    this.scratch = new byte[frameBytes];
+    this.lateThresholdNanos = TimeUnit.MILLISECONDS.toNanos(lateThresholdMillis);
+  }
+
+  /**
+   * Reads one frame from {@code reader} into the ring. Must only be called from the producer
+   * thread. If the ring is full the frame is still read, so the source does not back up, but it is
+   * dropped.
+   *
+   * @return false once the reader has reached the end of the audio
+   */
+  public boolean offer(FrameReader reader) throws IOException {
+    long writeIndex = head.get();
+    boolean full = writeIndex - tail.get() >= capacity;
+    int slot = (int) (writeIndex % capacity);
+    int numBytesRead;
+    if (full) {
+      numBytesRead = reader.read(scratch, 0, frameBytes);
+    } else {
+      numBytesRead = reader.read(buffer, slot * frameBytes, frameBytes);
+    }
+    if (numBytesRead < 0) {
+      return false;
+    }
+    if (numBytesRead == 0) {
+      return true;
+    }
+    if (full) {
+      droppedFrames.increment();
+      return true;
+    }
+    lengths[slot] = numBytesRead;
+    capturedAtNanos[slot] = System.nanoTime();
+    head.lazySet(writeIndex + 1);
+    return true;
+  }
+
+  /**
+   * Takes the oldest frame, waiting for one to be available. Must only be called from the consumer
+   * thread.
+   *
+   * @return the frame, or null once the ring has been closed and drained
+   */
+  public ByteString take() throws InterruptedException {
+    ByteString frame;
+    while ((frame = poll()) == null) {
+      if (isFinished()) {
+        return null;
+      }
+      LockSupport.parkNanos(PARK_NANOS);
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+    }
+    return frame;
+  }
+
+  /**
+   * Takes the oldest frame if one is available. Must only be called from the consumer thread, or
+   * from tasks that never run concurrently with each other.
+   *
+   * @return the frame, or null if the ring is currently empty
+   */
+  public ByteString poll() {
+    long readIndex = tail.get();
+    if (head.get() == readIndex) {
+      return null;
+    }
+    int slot = (int) (readIndex % capacity);
+    if (System.nanoTime() - capturedAtNanos[slot] > lateThresholdNanos) {
+      lateFrames.increment();
+    }
+    ByteString frame = ByteString.copyFrom(buffer, slot * frameBytes, lengths[slot]);
+    tail.lazySet(readIndex + 1);
+    return frame;
+  }
+
+  /** Signals that no more frames will be offered. */
+  public void close() {
+    closed = true;
+  }
+
+  /** Returns true once the ring has been closed and every frame has been taken. */
+  public boolean isFinished() {
+    // Read closed first, so a frame offered just before close() is not missed.
+    return closed && head.get() == tail.get();
+  }
+
+  /** Number of frames currently waiting to be taken. */
+  public int size() {
+    return (int) (head.get() - tail.get());
+  }
+
+  public long getDroppedFrames() {
+    return droppedFrames.sum();
+  }
+
+  public long getLateFrames() {
+    return lateFrames.sum();
+  }
+}
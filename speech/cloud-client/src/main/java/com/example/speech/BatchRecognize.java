@@ -0,0 +1,278 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.speech;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.cloud.speech.v1.RecognitionAudio;
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.RecognitionConfig.AudioEncoding;
+import com.google.cloud.speech.v1.SpeechClient;
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.SpeechRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+import com.google.gson.JsonObject;
+import com.google.protobuf.ByteString;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Transcribes every audio file in a local directory or under a Cloud Storage prefix.
+ *
+ * <p>All files share one {@link SpeechClient}. At most {@code maxInFlight} files are transcribed
+ * at a time, requests failing with a retryable error are retried with exponential backoff, and
+ * each result is written as a JSON line as soon as it is available. Throughput and latency are
+ * printed at the end.
+ */
+public class BatchRecognize {
+
+  /** How each file is sent to the API. */
+  enum Mode {
+    SYNC,
+    ASYNC,
+    STREAMING
+  }
+
+  private static final int MAX_ATTEMPTS = 5;
+  private static final long INITIAL_BACKOFF_MILLIS = 1000;
+  private static final long MAX_BACKOFF_MILLIS = 32000;
+  // 16000Hz LINEAR16 mono, the format of the .raw sample files.
+  private static final int RAW_SAMPLE_RATE = 16000;
+  private static final int RAW_BYTES_PER_SECOND = 32000;
+
+  /** Run batch speech recognition. */
+  public static void main(String... args) throws Exception {
+    if (args.length < 3) {
+      System.out.printf(
+          "Usage:\n\tjava %s <sync|async|streaming> <directory|gs://bucket/prefix> "
+              + "<output.jsonl> [max-in-flight]\n",
+          BatchRecognize.class.getCanonicalName());
+      return;
+    }
+    Mode mode = Mode.valueOf(args[0].toUpperCase());
+    int maxInFlight = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+    batchRecognize(mode, args[1], Paths.get(args[2]), maxInFlight);
+  }
+
+  /**
+   * Transcribes every file in {@code source}, a local directory or a gs://bucket/prefix URI, and
+   * writes one JSON line per file to {@code output}.
+   */
+  static void batchRecognize(Mode mode, String source, Path output, int maxInFlight)
+      throws IOException, InterruptedException {
+    if (mode == Mode.STREAMING && source.startsWith("gs://")) {
+      throw new IllegalArgumentException("Streaming recognition requires local files");
+    }
+    List<String> audioFiles = listAudioFiles(source);
+
+    // A fixed pool bounds the number of files in flight, and the client is shared by all of them.
+    ExecutorService executor = Executors.newFixedThreadPool(maxInFlight);
+    List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+    long start = System.nanoTime();
+    int failures = 0;
+    try (SpeechClient speech = SpeechClient.create();
+        BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+      List<Future<Boolean>> futures = new ArrayList<>();
+      for (String audioFile : audioFiles) {
+        futures.add(
+            executor.submit(() -> transcribe(speech, mode, audioFile, writer, latencies)));
+      }
+      for (Future<Boolean> future : futures) {
+        try {
+          if (!future.get()) {
+            failures++;
+          }
+        } catch (ExecutionException e) {
+          failures++;
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    List<Long> sorted = new ArrayList<>(latencies);
+    Collections.sort(sorted);
+    System.out.printf(
+        "Transcribed %d files (%d failed) in %d ms: %.2f files/s%n",
+        audioFiles.size(),
+        failures,
+        elapsedMillis,
+        elapsedMillis == 0 ? 0.0 : audioFiles.size() * 1000.0 / elapsedMillis);
+    if (!sorted.isEmpty()) {
+      System.out.printf(
+          "Latency per file: p50 %d ms, p95 %d ms, max %d ms%n",
+          percentile(sorted, 50), percentile(sorted, 95), sorted.get(sorted.size() - 1));
+    }
+  }
+
+  private static List<String> listAudioFiles(String source) throws IOException {
+    if (source.startsWith("gs://")) {
+      String path = source.substring("gs://".length());
+      int slash = path.indexOf('/');
+      String bucket = slash < 0 ? path : path.substring(0, slash);
+      String prefix = slash < 0 ? "" : path.substring(slash + 1);
+      Storage storage = StorageOptions.getDefaultInstance().getService();
+      List<String> uris = new ArrayList<>();
+      for (Blob blob :
+          storage.list(bucket, Storage.BlobListOption.prefix(prefix)).iterateAll()) {
+        if (!blob.getName().endsWith("/")) {
+          uris.add("gs://" + bucket + "/" + blob.getName());
+        }
+      }
+      return uris;
+    }
+    try (Stream<Path> paths = Files.walk(Paths.get(source))) {
+      return paths
+          .filter(Files::isRegularFile)
+          .map(Path::toString)
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  /** Transcribes one file, retrying transient errors, and writes its JSON line. */
+  private static boolean transcribe(
+      SpeechClient speech, Mode mode, String audioFile, Writer writer, List<Long> latencies)
+      throws IOException, InterruptedException {
+    JsonObject line = new JsonObject();
+    line.addProperty("file", audioFile);
+    long start = System.nanoTime();
+    long backoffMillis = INITIAL_BACKOFF_MILLIS;
+    boolean succeeded = false;
+    for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+      line.addProperty("attempts", attempt);
+      try {
+        line.addProperty("transcript", recognize(speech, mode, audioFile));
+        line.remove("error");
+        succeeded = true;
+        break;
+      } catch (ApiException e) {
+        line.addProperty("error", e.getStatusCode().getCode() + ": " + e.getMessage());
+        if (!isRetryable(e) || attempt == MAX_ATTEMPTS) {
+          break;
+        }
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        line.addProperty("error", String.valueOf(cause));
+        if (!(cause instanceof ApiException && isRetryable((ApiException) cause))
+            || attempt == MAX_ATTEMPTS) {
+          break;
+        }
+      } catch (IOException e) {
+        // The file could not be read, which retrying does not fix.
+        line.addProperty("error", String.valueOf(e));
+        break;
+      }
+      // Back off with jitter, so that throttled requests do not all retry at the same time.
+      Thread.sleep(backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2));
+      backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+    }
+    long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    line.addProperty("latencyMs", latencyMillis);
+    latencies.add(latencyMillis);
+    synchronized (writer) {
+      writer.write(line.toString());
+      writer.write('\n');
+      writer.flush();
+    }
+    return succeeded;
+  }
+
+  private static boolean isRetryable(ApiException e) {
+    StatusCode.Code code = e.getStatusCode().getCode();
+    return e.isRetryable()
+        || code == StatusCode.Code.RESOURCE_EXHAUSTED
+        || code == StatusCode.Code.UNAVAILABLE
+        || code == StatusCode.Code.DEADLINE_EXCEEDED;
+  }
+
+  private static String recognize(SpeechClient speech, Mode mode, String audioFile)
+      throws IOException, InterruptedException, ExecutionException {
+    RecognitionConfig.Builder config = RecognitionConfig.newBuilder().setLanguageCode("en-US");
+    if (audioFile.endsWith(".raw")) {
+      config.setEncoding(AudioEncoding.LINEAR16).setSampleRateHertz(RAW_SAMPLE_RATE);
+    }
+    // Other formats, such as WAV and FLAC, carry their encoding and sample rate in their header.
+
+    StringBuilder transcript = new StringBuilder();
+    if (mode == Mode.STREAMING) {
+      StreamingRecognitionConfig streamingConfig =
+          StreamingRecognitionConfig.newBuilder().setConfig(config).build();
+      new StreamingFileRecognizer(speech, streamingConfig, RAW_BYTES_PER_SECOND, false)
+          .recognize(
+              Paths.get(audioFile),
+              (result, requestOffsetMillis) -> {
+                if (result.getIsFinal() && result.getAlternativesCount() > 0) {
+                  append(transcript, result.getAlternatives(0));
+                }
+              });
+      return transcript.toString();
+    }
+
+    RecognitionAudio audio;
+    if (audioFile.startsWith("gs://")) {
+      audio = RecognitionAudio.newBuilder().setUri(audioFile).build();
+    } else {
+      audio =
+          RecognitionAudio.newBuilder()
+              .setContent(ByteString.copyFrom(Files.readAllBytes(Paths.get(audioFile))))
+              .build();
+    }
+    List<SpeechRecognitionResult> results =
+        mode == Mode.SYNC
+            ? speech.recognize(config.build(), audio).getResultsList()
+            : speech.longRunningRecognizeAsync(config.build(), audio).get().getResultsList();
+    for (SpeechRecognitionResult result : results) {
+      if (result.getAlternativesCount() > 0) {
+        append(transcript, result.getAlternatives(0));
+      }
+    }
+    return transcript.toString();
+  }
+
+  private static void append(StringBuilder transcript, SpeechRecognitionAlternative alternative) {
+    if (transcript.length() > 0) {
+      transcript.append(' ');
+    }
+    transcript.append(alternative.getTranscript().trim());
+  }
+
+  private static long percentile(List<Long> sorted, int percentile) {
+    int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+    return sorted.get(Math.max(index, 0));
+  }
+}
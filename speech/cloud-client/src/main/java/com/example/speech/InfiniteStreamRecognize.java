@@ -31,11 +31,15 @@ import com.google.cloud.speech.v1p1beta1.StreamingRecognizeResponse;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Duration;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.Math;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
@@ -51,14 +55,28 @@ public class InfiniteStreamRecognize {
   public static final String GREEN = "\033[0;32m";
   public static final String YELLOW = "\033[0;33m";
 
-  // Creating shared object
-  private static volatile BlockingQueue<byte[]> sharedQueue = new LinkedBlockingQueue();
   private static TargetDataLine targetDataLine;
   private static int BYTES_PER_BUFFER = 6400; // buffer size in bytes
+  private static final int BUFFER_MS = 200; // 6400 bytes of 16 bit mono audio at 16000Hz
+
+  // Frames are handed from the microphone thread to the sender through a preallocated ring.
+  // Frames that cannot be sent within LATE_FRAME_MS are reported as late, and frames that arrive
+  // while the ring is full are dropped.
+  private static final int RING_CAPACITY = 50; // 10 seconds of audio
+  private static final int LATE_FRAME_MS = 1000;
+  private static AudioRingBuffer audioBuffer =
+      new AudioRingBuffer(BYTES_PER_BUFFER, RING_CAPACITY, LATE_FRAME_MS);
+
+  // Only the most recent audio of a stream can be resent when bridging to the next stream, so the
+  // history is capped instead of holding the whole ~5 minutes.
+  private static final int MAX_BRIDGING_FRAMES = 30000 / BUFFER_MS; // 30 seconds of audio
 
   private static int restartCounter = 0;
-  private static ArrayList<ByteString> audioInput = new ArrayList<ByteString>();
-  private static ArrayList<ByteString> lastAudioInput = new ArrayList<ByteString>();
+  private static ArrayDeque<ByteString> audioInput = new ArrayDeque<ByteString>();
+  private static ArrayDeque<ByteString> lastAudioInput = new ArrayDeque<ByteString>();
+  // Number of frames sent on the current and previous stream, including those no longer retained.
+  private static int audioInputFrames = 0;
+  private static int lastAudioInputFrames = 0;
   private static int resultEndTimeInMS = 0;
   private static int isFinalEndTime = 0;
   private static int finalRequestEndTime = 0;
@@ -67,6 +85,7 @@ public class InfiniteStreamRecognize {
   private static boolean lastTranscriptWasFinal = false;
   private static StreamController referenceToStreamController;
   private static ByteString tempByteString;
+  private static CountDownLatch streamDone = new CountDownLatch(1);
 
   public static void main(String... args) {
     InfiniteStreamRecognizeOptions options = InfiniteStreamRecognizeOptions.fromFlags(args);
@@ -77,7 +96,7 @@ public class InfiniteStreamRecognize {
     }
 
     try {
-      infiniteStreamingRecognize(options.langCode);
+      infiniteStreamingRecognize(options.langCode, options.audioFile);
     } catch (Exception e) {
       System.out.println("Exception caught: " + e);
     }
@@ -96,6 +115,15 @@ public class InfiniteStreamRecognize {
 
   /** Performs infinite streaming speech recognition */
   public static void infiniteStreamingRecognize(String languageCode) throws Exception {
+    infiniteStreamingRecognize(languageCode, null);
+  }
+
+  /**
+   * Performs infinite streaming speech recognition, reading audio from the microphone, or from a
+   * raw 16000Hz LINEAR16 file paced to real time when {@code audioFile} is set.
+   */
+  public static void infiniteStreamingRecognize(String languageCode, String audioFile)
+      throws Exception {
 
     // Microphone Input buffering
     class MicBuffer implements Runnable {
@@ -105,24 +133,41 @@ public class InfiniteStreamRecognize {
         System.out.println(YELLOW);
         System.out.println("Start speaking...Press Ctrl-C to stop");
         targetDataLine.start();
-        byte[] data = new byte[BYTES_PER_BUFFER];
         while (targetDataLine.isOpen()) {
           try {
-            int numBytesRead = targetDataLine.read(data, 0, data.length);
-            if ((numBytesRead <= 0) && (targetDataLine.isOpen())) {
-              continue;
-            }
-            sharedQueue.put(data.clone());
-          } catch (InterruptedException e) {
+            audioBuffer.offer(targetDataLine::read);
+          } catch (IOException e) {
             System.out.println("Microphone input buffering interrupted : " + e.getMessage());
           }
         }
+        audioBuffer.close();
       }
     }
 
-    // Creating microphone input buffer thread
-    MicBuffer micrunnable = new MicBuffer();
-    Thread micThread = new Thread(micrunnable);
+    // Recorded audio buffering, feeding one buffer every BUFFER_MS like a microphone would
+    class FileBuffer implements Runnable {
+
+      @Override
+      public void run() {
+        try (InputStream audio = new FileInputStream(audioFile)) {
+          long nextFrameAt = System.nanoTime();
+          while (audioBuffer.offer(audio::read)) {
+            nextFrameAt += TimeUnit.MILLISECONDS.toNanos(BUFFER_MS);
+            long sleepNanos = nextFrameAt - System.nanoTime();
+            if (sleepNanos > 0) {
+              TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            }
+          }
+        } catch (IOException | InterruptedException e) {
+          System.out.println("Audio file buffering interrupted : " + e.getMessage());
+        } finally {
+          audioBuffer.close();
+        }
+      }
+    }
+
+    // Creating audio input buffer thread
+    Thread micThread = new Thread(audioFile == null ? new MicBuffer() : new FileBuffer());
     ResponseObserver<StreamingRecognizeResponse> responseObserver = null;
     try (SpeechClient client = SpeechClient.create()) {
       ClientStream<StreamingRecognizeRequest> clientStream;
@@ -166,9 +211,11 @@ public class InfiniteStreamRecognize {
             }
 
             public void onComplete() {
+              streamDone.countDown();
             }
 
             public void onError(Throwable t) {
+              streamDone.countDown();
             }
           };
       clientStream = client.streamingRecognizeCallable().splitCall(responseObserver);
@@ -194,23 +241,27 @@ public class InfiniteStreamRecognize {
       clientStream.send(request);
 
       try {
-        // SampleRate:16000Hz, SampleSizeInBits: 16, Number of channels: 1, Signed: true,
-        // bigEndian: false
-        AudioFormat audioFormat = new AudioFormat(16000, 16, 1, true, false);
-        DataLine.Info targetInfo =
-            new Info(
-                TargetDataLine.class,
-                audioFormat); // Set the system information to read from the microphone audio
-        // stream
-
-        if (!AudioSystem.isLineSupported(targetInfo)) {
-          System.out.println("Microphone not supported");
-          System.exit(0);
+        if (audioFile != null) {
+          micThread.start();
+        } else {
+          // SampleRate:16000Hz, SampleSizeInBits: 16, Number of channels: 1, Signed: true,
+          // bigEndian: false
+          AudioFormat audioFormat = new AudioFormat(16000, 16, 1, true, false);
+          DataLine.Info targetInfo =
+              new Info(
+                  TargetDataLine.class,
+                  audioFormat); // Set the system information to read from the microphone audio
+          // stream
+
+          if (!AudioSystem.isLineSupported(targetInfo)) {
+            System.out.println("Microphone not supported");
+            System.exit(0);
+          }
+          // Target data line captures the audio stream the microphone produces.
+          targetDataLine = (TargetDataLine) AudioSystem.getLine(targetInfo);
+          targetDataLine.open(audioFormat);
+          micThread.start();
         }
-        // Target data line captures the audio stream the microphone produces.
-        targetDataLine = (TargetDataLine) AudioSystem.getLine(targetInfo);
-        targetDataLine.open(audioFormat);
-        micThread.start();
 
         long startTime = System.currentTimeMillis();
 
@@ -228,9 +279,10 @@ public class InfiniteStreamRecognize {
             }
             resultEndTimeInMS = 0;
 
-            lastAudioInput = null;
             lastAudioInput = audioInput;
-            audioInput = new ArrayList<ByteString>();
+            lastAudioInputFrames = audioInputFrames;
+            audioInput = new ArrayDeque<ByteString>();
+            audioInputFrames = 0;
 
             restartCounter++;
 
@@ -249,16 +301,18 @@ public class InfiniteStreamRecognize {
 
             System.out.println(YELLOW);
             System.out.printf("%d: RESTARTING REQUEST\n", restartCounter * STREAMING_LIMIT);
+            System.out.printf("Dropped frames: %d, late frames: %d\n",
+                audioBuffer.getDroppedFrames(), audioBuffer.getLateFrames());
 
             startTime = System.currentTimeMillis();
 
           } else {
 
-            if ((newStream) && (lastAudioInput.size() > 0)) {
+            if ((newStream) && (lastAudioInputFrames > 0)) {
               // if this is the first audio from a new request
               // calculate amount of unfinalized audio from last request
               // resend the audio to the speech client before incoming audio
-              double chunkTime = STREAMING_LIMIT / lastAudioInput.size();
+              double chunkTime = STREAMING_LIMIT / lastAudioInputFrames;
               // ms length of each chunk in previous request audio arrayList
               if (chunkTime != 0) {
                 if (bridgingOffset < 0) {
@@ -272,13 +326,21 @@ public class InfiniteStreamRecognize {
                 int chunksFromMS = (int) Math.floor((finalRequestEndTime
                         - bridgingOffset) / chunkTime);
                 // chunks from MS is number of chunks to resend
-                bridgingOffset = (int) Math.floor((lastAudioInput.size()
+                bridgingOffset = (int) Math.floor((lastAudioInputFrames
                         - chunksFromMS) * chunkTime);
                 // set bridging offset for next request
-                for (int i = chunksFromMS; i < lastAudioInput.size(); i++) {
+                // only the last lastAudioInput.size() chunks are retained, skip to the first one
+                // that needs to be resent
+                int firstRetainedChunk = lastAudioInputFrames - lastAudioInput.size();
+                Iterator<ByteString> chunks = lastAudioInput.iterator();
+                for (int i = firstRetainedChunk; chunks.hasNext(); i++) {
+                  ByteString chunk = chunks.next();
+                  if (i < chunksFromMS) {
+                    continue;
+                  }
                   request =
                       StreamingRecognizeRequest.newBuilder()
-                          .setAudioContent(lastAudioInput.get(i))
+                          .setAudioContent(chunk)
                           .build();
                   clientStream.send(request);
                 }
@@ -286,14 +348,27 @@ public class InfiniteStreamRecognize {
               newStream = false;
             }
 
-            tempByteString = ByteString.copyFrom(sharedQueue.take());
+            tempByteString = audioBuffer.take();
+            if (tempByteString == null) {
+              // the recorded audio has been fully sent, wait for the last results
+              streamDone = new CountDownLatch(1);
+              clientStream.closeSend();
+              streamDone.await(STREAMING_LIMIT, TimeUnit.MILLISECONDS);
+              System.out.printf("Dropped frames: %d, late frames: %d\n",
+                  audioBuffer.getDroppedFrames(), audioBuffer.getLateFrames());
+              break;
+            }
 
             request =
                 StreamingRecognizeRequest.newBuilder()
                     .setAudioContent(tempByteString)
                     .build();
 
-            audioInput.add(tempByteString);
+            audioInput.addLast(tempByteString);
+            audioInputFrames++;
+            if (audioInput.size() > MAX_BRIDGING_FRAMES) {
+              audioInput.removeFirst();
+            }
 
           }
 
@@ -25,6 +25,7 @@ import org.apache.commons.cli.ParseException;
 
 public class InfiniteStreamRecognizeOptions {
   String langCode = "en-US";  //by default english US
+  String audioFile = null;  //by default read from the microphone
 
   /** Construct an InfiniteStreamRecognizeOptions class from command line flags. */
   public static InfiniteStreamRecognizeOptions fromFlags(String[] args) {
@@ -36,6 +37,13 @@ public class InfiniteStreamRecognizeOptions {
                     .hasArg()
                     .desc("Language code")
                     .build());
+    options.addOption(
+            Option.builder()
+                    .type(String.class)
+                    .longOpt("audio_file")
+                    .hasArg()
+                    .desc("Raw 16000Hz LINEAR16 audio file to stream instead of the microphone")
+                    .build());
 
     CommandLineParser parser = new DefaultParser();
     CommandLine commandLine;
@@ -46,6 +54,9 @@ public class InfiniteStreamRecognizeOptions {
       if (commandLine.hasOption("lang_code")) {
         res.langCode = commandLine.getOptionValue("lang_code");
       }
+      if (commandLine.hasOption("audio_file")) {
+        res.audioFile = commandLine.getOptionValue("audio_file");
+      }
       return res;
     } catch (ParseException e) {
       System.err.println(e.getMessage());
@@ -62,8 +62,8 @@ public class Recognize {
       System.out.printf(
           "\tjava %s \"<command>\" \"<path-to-image>\"\n"
               + "Commands:\n"
-              + "\tsyncrecognize | asyncrecognize | streamrecognize | micstreamrecognize \n"
-              + "\t| wordoffsets | auto-punctuation | stream-punctuation \n"
+              + "\tsyncrecognize | asyncrecognize | streamrecognize | largefilerecognize\n"
+              + "\t| micstreamrecognize | wordoffsets | auto-punctuation | stream-punctuation \n"
               + "\t| enhanced-model | model-selection | multi-channel\n"
               + "Path:\n\tA file path (ex: ./resources/audio.raw) or a URI "
               + "for a Cloud Storage resource (gs://...)\n",
@@ -94,6 +94,8 @@ public class Recognize {
       }
     } else if (command.equals("streamrecognize")) {
       streamingRecognizeFile(path);
+    } else if (command.equals("largefilerecognize")) {
+      recognizeLargeFile(path);
     } else if (command.equals("micstreamrecognize")) {
       streamingMicRecognize();
     } else if (command.equals("auto-punctuation")) {
@@ -452,6 +454,60 @@ public class Recognize {
   }
   // [END speech_transcribe_streaming]
 
+  // [START speech_transcribe_streaming_large_file]
+  /**
+   * Transcribes a raw PCM file of any length. Recordings short enough for a synchronous request are
+   * sent in a single request, and longer ones are streamed in small chunks, printing each result
+   * as soon as it arrives.
+   *
+   * @param fileName the path to a 16000Hz LINEAR16 PCM audio file to transcribe.
+   */
+  public static void recognizeLargeFile(String fileName) throws Exception {
+    // 16000Hz LINEAR16 mono audio takes 32000 bytes per second.
+    int bytesPerSecond = 32000;
+    // Synchronous requests only accept about one minute of audio, keep a small margin.
+    long maxSyncBytes = 55L * bytesPerSecond;
+    Path path = Paths.get(fileName);
+
+    // Instantiates a client with GOOGLE_APPLICATION_CREDENTIALS
+    try (SpeechClient speech = SpeechClient.create()) {
+      RecognitionConfig recConfig =
+          RecognitionConfig.newBuilder()
+              .setEncoding(AudioEncoding.LINEAR16)
+              .setLanguageCode("en-US")
+              .setSampleRateHertz(bytesPerSecond / 2)
+              .build();
+
+      if (Files.size(path) <= maxSyncBytes) {
+        ByteString audioBytes = ByteString.copyFrom(Files.readAllBytes(path));
+        RecognitionAudio audio = RecognitionAudio.newBuilder().setContent(audioBytes).build();
+        RecognizeResponse response = speech.recognize(recConfig, audio);
+        for (SpeechRecognitionResult result : response.getResultsList()) {
+          System.out.printf(
+              "Transcription: %s%n", result.getAlternativesList().get(0).getTranscript());
+        }
+        return;
+      }
+
+      // The file is memory-mapped and streamed in ~100 ms chunks, so it is never read into memory
+      // as a whole. Files longer than the ~5 minute streaming limit are sent over several
+      // streaming requests.
+      StreamingRecognitionConfig config =
+          StreamingRecognitionConfig.newBuilder().setConfig(recConfig).build();
+      StreamingFileRecognizer recognizer =
+          new StreamingFileRecognizer(speech, config, bytesPerSecond, false);
+      recognizer.recognize(
+          path,
+          (result, requestOffsetMillis) -> {
+            // There can be several alternative transcripts for a given chunk of speech. Just use
+            // the first (most likely) one here.
+            SpeechRecognitionAlternative alternative = result.getAlternativesList().get(0);
+            System.out.printf("Transcription: %s%n", alternative.getTranscript());
+          });
+    }
+  }
+  // [END speech_transcribe_streaming_large_file]
+
   // [START speech_sync_recognize_punctuation]
   /**
    * Performs transcription with automatic punctuation on raw PCM audio data.
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.speech;
+
+// [START speech_transcribe_streaming_file_chunks]
+
+import com.google.api.gax.rpc.ClientStream;
+import com.google.api.gax.rpc.ResponseObserver;
+import com.google.api.gax.rpc.StreamController;
+import com.google.cloud.speech.v1.SpeechClient;
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams an audio file of any size to the streaming recognition API.
+ *
+ * <p>The file is memory-mapped a window at a time and sent as successive {@link
+ * StreamingRecognizeRequest}s of about 100 ms of audio each, so only one chunk is ever copied
+ * onto the heap. A single streaming request only accepts about five minutes of audio, so longer
+ * files are sent over consecutive requests. Results are delivered to a listener as they arrive,
+ * with their offset in the file, rather than being collected into one list.
+ */
+public class StreamingFileRecognizer {
+
+  /** Receives the results of a file as they arrive. */
+  public interface ResultListener {
+    /**
+     * Called for every result. Result times are relative to the start of the streaming request,
+     * which starts {@code requestOffsetMillis} into the file.
+     */
+    void onResult(StreamingRecognitionResult result, long requestOffsetMillis);
+  }
+
+  // Audio sent on one streaming request, which is limited to ~5 minutes.
+  private static final long STREAMING_LIMIT_MILLIS = 290000;
+  // Recommended frame size for streaming requests.
+  private static final long CHUNK_MILLIS = 100;
+  // Size of the file window mapped into memory at a time.
+  private static final long MAP_WINDOW_BYTES = 64L * 1024 * 1024;
+
+  private final SpeechClient client;
+  private final StreamingRecognitionConfig config;
+  private final int bytesPerSecond;
+  private final boolean realTime;
+  private final long streamingLimitMillis;
+  private final long mapWindowBytes;
+
+  /**
+   * Creates a recognizer for audio that takes {@code bytesPerSecond} bytes per second (32000 for
+   * 16000Hz LINEAR16 mono). When {@code realTime} is true the audio is paced as if it came from a
+   * live source, otherwise it is sent as fast as the stream allows.
+   */
+  public StreamingFileRecognizer(
+      SpeechClient client,
+      StreamingRecognitionConfig config,
+      int bytesPerSecond,
+      boolean realTime) {
+    this(client, config, bytesPerSecond, realTime, STREAMING_LIMIT_MILLIS, MAP_WINDOW_BYTES);
+  }
+
+  StreamingFileRecognizer(
+      SpeechClient client,
+      StreamingRecognitionConfig config,
+      int bytesPerSecond,
+      boolean realTime,
+      long streamingLimitMillis,
+      long mapWindowBytes) {
+    this.client = client;
+    this.config = config;
+    this.bytesPerSecond = bytesPerSecond;
+    this.realTime = realTime;
+    this.streamingLimitMillis = streamingLimitMillis;
+    this.mapWindowBytes = mapWindowBytes;
+  }
+
+  /** Streams {@code file} and waits until its last result has been delivered to the listener. */
+  public void recognize(Path file, ResultListener listener)
+      throws IOException, InterruptedException, ExecutionException {
+    long chunkBytes = Math.max(bytesPerSecond * CHUNK_MILLIS / 1000, 1);
+    long requestBytes = bytesPerSecond * streamingLimitMillis / 1000;
+    // Keep chunks whole within a mapped window.
+    long windowBytes = mapWindowBytes - mapWindowBytes % chunkBytes;
+    long startNanos = System.nanoTime();
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      long requestStart = 0;
+      do {
+        long requestEnd = Math.min(requestStart + requestBytes, size);
+        long requestOffsetMillis = requestStart * 1000 / bytesPerSecond;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        ResponseObserver<StreamingRecognizeResponse> responseObserver =
+            observer(listener, requestOffsetMillis, done);
+        ClientStream<StreamingRecognizeRequest> stream =
+            client.streamingRecognizeCallable().splitCall(responseObserver);
+        // The first request must **only** contain the audio configuration:
+        stream.send(StreamingRecognizeRequest.newBuilder().setStreamingConfig(config).build());
+
+        // Stop sending early if the stream fails, the error is reported below.
+        for (long windowStart = requestStart; windowStart < requestEnd && !done.isDone();
+            windowStart += windowBytes) {
+          long windowEnd = Math.min(windowStart + windowBytes, requestEnd);
+          MappedByteBuffer window =
+              channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+          while (window.hasRemaining() && !done.isDone()) {
+            long chunkStart = windowStart + window.position();
+            if (realTime) {
+              long dueNanos =
+                  startNanos + TimeUnit.MILLISECONDS.toNanos(chunkStart * 1000 / bytesPerSecond);
+              long sleepNanos = dueNanos - System.nanoTime();
+              if (sleepNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+              }
+            }
+            window.limit((int) Math.min(window.position() + chunkBytes, window.capacity()));
+            // Subsequent requests must **only** contain the audio data.
+            stream.send(
+                StreamingRecognizeRequest.newBuilder()
+                    .setAudioContent(ByteString.copyFrom(window))
+                    .build());
+            window.limit(window.capacity());
+          }
+        }
+
+        // Mark transmission as completed after sending the data.
+        stream.closeSend();
+        done.get();
+        requestStart = requestEnd;
+      } while (requestStart < size);
+    }
+  }
+
+  private static ResponseObserver<StreamingRecognizeResponse> observer(
+      ResultListener listener, long requestOffsetMillis, CompletableFuture<Void> done) {
+    return new ResponseObserver<StreamingRecognizeResponse>() {
+      @Override
+      public void onStart(StreamController controller) {}
+
+      @Override
+      public void onResponse(StreamingRecognizeResponse response) {
+        for (StreamingRecognitionResult result : response.getResultsList()) {
+          listener.onResult(result, requestOffsetMillis);
+        }
+      }
+
+      @Override
+      public void onComplete() {
+        done.complete(null);
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        done.completeExceptionally(t);
+      }
+    };
+  }
+}
+// [END speech_transcribe_streaming_file_chunks]
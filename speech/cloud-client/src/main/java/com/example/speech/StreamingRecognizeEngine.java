@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.speech;
+
+// [START speech_transcribe_streaming_engine]
+
+import com.google.cloud.speech.v1p1beta1.SpeechClient;
+import com.google.cloud.speech.v1p1beta1.StreamingRecognitionConfig;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many {@link StreamingRecognizeSession}s on one shared {@link SpeechClient} and executor.
+ *
+ * <p>Sessions do not own a thread. Each one is polled on the executor a couple of times per audio
+ * frame and sends whatever audio its ring buffer has accumulated, so a small pool can serve
+ * hundreds of concurrent streams. The engine does not own the client or the executor, and closing
+ * it only cancels the sessions that are still running.
+ */
+public class StreamingRecognizeEngine implements AutoCloseable {
+
+  public static final int STREAMING_LIMIT = 290000; // ~5 minutes
+  public static final int MAX_BRIDGING_MILLIS = 30000;
+
+  private final SpeechClient client;
+  private final ScheduledExecutorService executor;
+  private final StreamingRecognitionConfig streamingConfig;
+  private final int frameMillis;
+  private final int streamingLimitMillis;
+  private final Map<String, StreamingRecognizeSession> sessions = new ConcurrentHashMap<>();
+
+  /**
+   * Creates an engine for audio delivered in frames of {@code frameMillis} milliseconds, restarting
+   * each streaming request after about five minutes.
+   */
+  public StreamingRecognizeEngine(
+      SpeechClient client,
+      ScheduledExecutorService executor,
+      StreamingRecognitionConfig streamingConfig,
+      int frameMillis) {
+    this(client, executor, streamingConfig, frameMillis, STREAMING_LIMIT);
+  }
+
+  /** Creates an engine that restarts each streaming request after {@code streamingLimitMillis}. */
+  public StreamingRecognizeEngine(
+      SpeechClient client,
+      ScheduledExecutorService executor,
+      StreamingRecognitionConfig streamingConfig,
+      int frameMillis,
+      int streamingLimitMillis) {
+    this.client = client;
+    this.executor = executor;
+    this.streamingConfig = streamingConfig;
+    this.frameMillis = frameMillis;
+    this.streamingLimitMillis = streamingLimitMillis;
+  }
+
+  /**
+   * Starts transcribing {@code audio}. The session completes once the audio has been closed and
+   * the last results have been delivered to {@code listener}.
+   */
+  public StreamingRecognizeSession startSession(
+      String id, AudioRingBuffer audio, StreamingRecognizeSession.TranscriptListener listener) {
+    StreamingRecognizeSession session =
+        new StreamingRecognizeSession(
+            id,
+            client,
+            streamingConfig,
+            audio,
+            listener,
+            frameMillis,
+            streamingLimitMillis,
+            Math.min(MAX_BRIDGING_MILLIS, streamingLimitMillis));
+    if (sessions.putIfAbsent(id, session) != null) {
+      throw new IllegalArgumentException("Session already running: " + id);
+    }
+    session.getDone().whenComplete((result, t) -> sessions.remove(id, session));
+    long pollMillis = Math.max(frameMillis / 2, 1);
+    session.setPumpFuture(
+        executor.scheduleWithFixedDelay(session::pump, 0, pollMillis, TimeUnit.MILLISECONDS));
+    return session;
+  }
+
+  /** The sessions that are still running. */
+  public Collection<StreamingRecognizeSession> getSessions() {
+    return new ArrayList<>(sessions.values());
+  }
+
+  @Override
+  public void close() {
+    for (StreamingRecognizeSession session : getSessions()) {
+      session.cancel();
+    }
+  }
+}
+// [END speech_transcribe_streaming_engine]
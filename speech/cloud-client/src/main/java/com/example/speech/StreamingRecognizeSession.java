@@ -0,0 +1,436 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.speech;
+
+// [START speech_transcribe_streaming_session]
+
+import com.google.api.gax.rpc.ClientStream;
+import com.google.api.gax.rpc.ResponseObserver;
+import com.google.api.gax.rpc.StreamController;
+import com.google.cloud.speech.v1p1beta1.SpeechClient;
+import com.google.cloud.speech.v1p1beta1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1p1beta1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1p1beta1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1p1beta1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1p1beta1.StreamingRecognizeResponse;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Duration;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One audio stream transcribed over as many consecutive streaming requests as needed.
+ *
+ * <p>Each streaming request is limited to about five minutes, so the session closes the request
+ * before the limit, opens a new one and resends the audio that had not been finalized yet
+ * ("bridging"), correcting the result times so that they are relative to the start of the audio.
+ * All the state lives in the session, so any number of sessions can share one {@link SpeechClient}
+ * and one executor. The session is driven by {@link #pump()}, which must not run concurrently with
+ * itself.
+ */
+public class StreamingRecognizeSession {
+
+  /** Receives the transcripts of a session. */
+  public interface TranscriptListener {
+    /**
+     * Called for every result. {@code audioTimeMillis} is the end of the result relative to the
+     * start of the session's audio.
+     */
+    void onTranscript(
+        StreamingRecognizeSession session,
+        double audioTimeMillis,
+        SpeechRecognitionAlternative alternative,
+        boolean isFinal);
+
+    /** Called when the streaming request is replaced by a new one. */
+    default void onRestart(StreamingRecognizeSession session, int restartCounter) {}
+  }
+
+  /** Latency and audio statistics of a session. */
+  public static class Stats {
+    private final LongAdder results = new LongAdder();
+    private final LongAdder finalResults = new LongAdder();
+    private final LongAdder totalLatencyMillis = new LongAdder();
+    private final LongAccumulator maxLatencyMillis = new LongAccumulator(Long::max, 0);
+    private final LongAdder restarts = new LongAdder();
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder framesResent = new LongAdder();
+
+    void recordResult(long latencyMillis, boolean isFinal) {
+      results.increment();
+      if (isFinal) {
+        finalResults.increment();
+      }
+      totalLatencyMillis.add(latencyMillis);
+      maxLatencyMillis.accumulate(latencyMillis);
+    }
+
+    public long getResults() {
+      return results.sum();
+    }
+
+    public long getFinalResults() {
+      return finalResults.sum();
+    }
+
+    /** Average time between sending a frame of audio and receiving the result ending in it. */
+    public double getMeanLatencyMillis() {
+      long count = results.sum();
+      return count == 0 ? 0 : (double) totalLatencyMillis.sum() / count;
+    }
+
+    public long getMaxLatencyMillis() {
+      return maxLatencyMillis.get();
+    }
+
+    public long getRestarts() {
+      return restarts.sum();
+    }
+
+    public long getFramesSent() {
+      return framesSent.sum();
+    }
+
+    public long getFramesResent() {
+      return framesResent.sum();
+    }
+  }
+
+  private final String id;
+  private final SpeechClient client;
+  private final StreamingRecognitionConfig streamingConfig;
+  private final AudioRingBuffer audio;
+  private final TranscriptListener listener;
+  private final int frameMillis;
+  private final int streamingLimitMillis;
+  private final int maxBridgingFrames;
+  private final Stats stats = new Stats();
+  private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+  // Owned by pump(), which never runs concurrently with itself.
+  private ClientStream<StreamingRecognizeRequest> clientStream;
+  private volatile StreamObserver currentObserver;
+  private long streamStartMillis;
+  private boolean newStream = true;
+  private volatile boolean finishing = false;
+  // Set when the server ends the current streaming request before the session is finishing, for
+  // example when the request reaches its time limit early.
+  private volatile boolean streamEnded = false;
+  private ArrayDeque<ByteString> audioInput = new ArrayDeque<>();
+  private ArrayDeque<ByteString> lastAudioInput = new ArrayDeque<>();
+  // Number of frames sent on the current and previous stream, including those no longer retained.
+  private int audioInputFrames = 0;
+  private int lastAudioInputFrames = 0;
+  // When each frame of the current stream was sent, to measure result latency.
+  private final AtomicLongArray frameSentAtMillis;
+
+  // Shared between pump() and the response callbacks.
+  private volatile int restartCounter = 0;
+  private volatile double bridgingOffset = 0;
+  private volatile int resultEndTimeInMS = 0;
+  private volatile int isFinalEndTime = 0;
+  private volatile int finalRequestEndTime = 0;
+  private volatile boolean lastTranscriptWasFinal = false;
+
+  private volatile ScheduledFuture<?> pumpFuture;
+
+  StreamingRecognizeSession(
+      String id,
+      SpeechClient client,
+      StreamingRecognitionConfig streamingConfig,
+      AudioRingBuffer audio,
+      TranscriptListener listener,
+      int frameMillis,
+      int streamingLimitMillis,
+      int maxBridgingMillis) {
+    this.id = id;
+    this.client = client;
+    this.streamingConfig = streamingConfig;
+    this.audio = audio;
+    this.listener = listener;
+    this.frameMillis = frameMillis;
+    this.streamingLimitMillis = streamingLimitMillis;
+    this.maxBridgingFrames = maxBridgingMillis / frameMillis;
+    // Leave room for the bridged audio that is resent at the start of a stream.
+    this.frameSentAtMillis =
+        new AtomicLongArray((streamingLimitMillis + maxBridgingMillis) / frameMillis);
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public Stats getStats() {
+    return stats;
+  }
+
+  /** The audio feeding this session, which also reports dropped and late frames. */
+  public AudioRingBuffer getAudio() {
+    return audio;
+  }
+
+  /** Completes once the audio has been closed and the last results have been received. */
+  public CompletableFuture<Void> getDone() {
+    return done;
+  }
+
+  void setPumpFuture(ScheduledFuture<?> pumpFuture) {
+    this.pumpFuture = pumpFuture;
+    // The first run may already have finished the session before the future was known.
+    if (finishing || done.isDone()) {
+      pumpFuture.cancel(false);
+    }
+  }
+
+  /** Stops the session without waiting for the remaining results. */
+  public void cancel() {
+    done.cancel(false);
+    stopPumping();
+    StreamObserver observer = currentObserver;
+    if (observer != null) {
+      observer.cancel();
+    }
+  }
+
+  /** Sends any audio that is available, restarting the streaming request when it is too old. */
+  void pump() {
+    if (finishing || done.isDone()) {
+      return;
+    }
+    try {
+      if (clientStream == null) {
+        openStream();
+      } else if (streamEnded
+          || System.currentTimeMillis() - streamStartMillis >= streamingLimitMillis) {
+        restartStream();
+      }
+
+      if (newStream) {
+        resendUnfinalizedAudio();
+        newStream = false;
+      }
+
+      ByteString frame;
+      while ((frame = audio.poll()) != null) {
+        send(frame);
+        audioInput.addLast(frame);
+        if (audioInput.size() > maxBridgingFrames) {
+          audioInput.removeFirst();
+        }
+        stats.framesSent.increment();
+      }
+
+      if (audio.isFinished()) {
+        // Stop sending, the session completes when the last results have been received.
+        finishing = true;
+        stopPumping();
+        clientStream.closeSend();
+        if (streamEnded) {
+          // The server ended the request just before the audio finished, nothing else will come.
+          done.complete(null);
+        }
+      }
+    } catch (RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  private void openStream() {
+    currentObserver = new StreamObserver();
+    clientStream = client.streamingRecognizeCallable().splitCall(currentObserver);
+    // The first request in a streaming call has to be a config
+    clientStream.send(
+        StreamingRecognizeRequest.newBuilder().setStreamingConfig(streamingConfig).build());
+    streamStartMillis = System.currentTimeMillis();
+    audioInputFrames = 0;
+  }
+
+  private void restartStream() {
+    // Detach the observer first, so the cancellation error it receives is ignored.
+    StreamObserver lastObserver = currentObserver;
+    currentObserver = null;
+    if (!streamEnded) {
+      clientStream.closeSend();
+      lastObserver.cancel(); // remove Observer
+    }
+    streamEnded = false;
+
+    if (resultEndTimeInMS > 0) {
+      finalRequestEndTime = isFinalEndTime;
+    }
+    resultEndTimeInMS = 0;
+
+    lastAudioInput = audioInput;
+    lastAudioInputFrames = audioInputFrames;
+    audioInput = new ArrayDeque<>();
+
+    restartCounter++;
+    stats.restarts.increment();
+    newStream = true;
+
+    openStream();
+    listener.onRestart(this, restartCounter);
+  }
+
+  private void resendUnfinalizedAudio() {
+    if (lastAudioInputFrames == 0) {
+      return;
+    }
+    // calculate amount of unfinalized audio from last request
+    // resend the audio to the speech client before incoming audio
+    double chunkTime = streamingLimitMillis / lastAudioInputFrames;
+    // ms length of each chunk in previous request audio
+    if (chunkTime == 0) {
+      return;
+    }
+    double offset = bridgingOffset;
+    if (offset < 0) {
+      // bridging Offset accounts for time of resent audio
+      // calculated from last request
+      offset = 0;
+    }
+    if (offset > finalRequestEndTime) {
+      offset = finalRequestEndTime;
+    }
+    int chunksFromMS = (int) Math.floor((finalRequestEndTime - offset) / chunkTime);
+    // chunks from MS is number of chunks to resend
+    bridgingOffset = (int) Math.floor((lastAudioInputFrames - chunksFromMS) * chunkTime);
+    // only the last lastAudioInput.size() chunks are retained, skip to the first one that needs
+    // to be resent
+    int firstRetainedChunk = lastAudioInputFrames - lastAudioInput.size();
+    Iterator<ByteString> chunks = lastAudioInput.iterator();
+    for (int i = firstRetainedChunk; chunks.hasNext(); i++) {
+      ByteString chunk = chunks.next();
+      if (i < chunksFromMS) {
+        continue;
+      }
+      send(chunk);
+      stats.framesResent.increment();
+    }
+  }
+
+  private void send(ByteString frame) {
+    if (audioInputFrames < frameSentAtMillis.length()) {
+      frameSentAtMillis.set(audioInputFrames, System.currentTimeMillis());
+    }
+    audioInputFrames++;
+    clientStream.send(StreamingRecognizeRequest.newBuilder().setAudioContent(frame).build());
+  }
+
+  private void stopPumping() {
+    ScheduledFuture<?> future = pumpFuture;
+    if (future != null) {
+      future.cancel(false);
+    }
+  }
+
+  private void fail(Throwable t) {
+    stopPumping();
+    done.completeExceptionally(t);
+  }
+
+  private void onResponse(StreamingRecognizeResponse response) {
+    if (response.getResultsCount() == 0) {
+      return;
+    }
+    StreamingRecognitionResult result = response.getResultsList().get(0);
+    Duration resultEndTime = result.getResultEndTime();
+    resultEndTimeInMS =
+        (int) ((resultEndTime.getSeconds() * 1000) + (resultEndTime.getNanos() / 1000000));
+    double correctedTime =
+        resultEndTimeInMS - bridgingOffset + (streamingLimitMillis * restartCounter);
+
+    // The result ends in the frame sent at this index of the current stream.
+    int frameIndex =
+        Math.min(Math.max(resultEndTimeInMS / frameMillis - 1, 0), frameSentAtMillis.length() - 1);
+    long latencyMillis =
+        Math.max(System.currentTimeMillis() - frameSentAtMillis.get(frameIndex), 0);
+    stats.recordResult(latencyMillis, result.getIsFinal());
+
+    if (result.getIsFinal()) {
+      isFinalEndTime = resultEndTimeInMS;
+      lastTranscriptWasFinal = true;
+    } else {
+      lastTranscriptWasFinal = false;
+    }
+    if (result.getAlternativesCount() > 0) {
+      listener.onTranscript(
+          this, correctedTime, result.getAlternativesList().get(0), result.getIsFinal());
+    }
+  }
+
+  /** True if the last result received was final, rather than an interim one. */
+  public boolean isLastTranscriptFinal() {
+    return lastTranscriptWasFinal;
+  }
+
+  /**
+   * Observer of one streaming request. Callbacks from requests that have since been replaced, such
+   * as the cancellation error of a restarted request, are ignored.
+   */
+  private class StreamObserver implements ResponseObserver<StreamingRecognizeResponse> {
+    private volatile StreamController controller;
+
+    @Override
+    public void onStart(StreamController controller) {
+      this.controller = controller;
+    }
+
+    void cancel() {
+      if (controller != null) {
+        controller.cancel();
+      }
+    }
+
+    @Override
+    public void onResponse(StreamingRecognizeResponse response) {
+      if (this == currentObserver) {
+        StreamingRecognizeSession.this.onResponse(response);
+      }
+    }
+
+    @Override
+    public void onComplete() {
+      if (this != currentObserver) {
+        return;
+      }
+      if (finishing) {
+        done.complete(null);
+      } else {
+        // The server ended the request early, pump() replaces it with a new one unless the audio
+        // finished in the meantime.
+        streamEnded = true;
+        if (finishing) {
+          done.complete(null);
+        }
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      if (this == currentObserver) {
+        fail(t);
+      }
+    }
+  }
+}
+// [END speech_transcribe_streaming_session]
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.speech;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the audio ring buffer, fed with recorded PCM instead of a microphone. */
+@RunWith(JUnit4.class)
+public class AudioRingBufferTest {
+  private static final int FRAME_BYTES = 6400;
+
+  // The path to the recorded 16000Hz LINEAR16 audio
+  private String audioFileName = "./resources/audio.raw";
+
+  @Test
+  public void testRecordedAudioPassesThroughUnchanged() throws Exception {
+    AudioRingBuffer ring = new AudioRingBuffer(FRAME_BYTES, 4, 60000);
+    AtomicReference<Exception> producerError = new AtomicReference<>();
+    Thread producer =
+        new Thread(
+            () -> {
+              try (InputStream audio = new FileInputStream(audioFileName)) {
+                while (ring.offer(audio::read)) {
+                  // Wait for the consumer rather than dropping, so every frame is delivered.
+                  while (ring.size() == 4) {
+                    Thread.yield();
+                  }
+                }
+              } catch (IOException e) {
+                producerError.set(e);
+              } finally {
+                ring.close();
+              }
+            });
+    producer.start();
+
+    ByteString received = ByteString.EMPTY;
+    ByteString frame;
+    while ((frame = ring.take()) != null) {
+      assertThat(frame.size()).isAtMost(FRAME_BYTES);
+      received = received.concat(frame);
+    }
+    producer.join();
+
+    assertThat(producerError.get()).isNull();
+    assertThat(received.toByteArray()).isEqualTo(Files.readAllBytes(Paths.get(audioFileName)));
+    assertThat(ring.getDroppedFrames()).isEqualTo(0);
+    assertThat(ring.getLateFrames()).isEqualTo(0);
+  }
+
+  @Test
+  public void testFullRingDropsFrames() throws Exception {
+    byte[] audio = Files.readAllBytes(Paths.get(audioFileName));
+    AudioRingBuffer ring = new AudioRingBuffer(FRAME_BYTES, 2, 60000);
+    InputStream input = new ByteArrayInputStream(audio);
+    int frames = 0;
+    while (ring.offer(input::read)) {
+      frames++;
+    }
+    ring.close();
+
+    assertThat(frames).isGreaterThan(2);
+    assertThat(ring.size()).isEqualTo(2);
+    assertThat(ring.getDroppedFrames()).isEqualTo(frames - 2);
+    // The frames that made it into the ring are the oldest ones.
+    assertThat(ring.take()).isEqualTo(ByteString.copyFrom(audio, 0, FRAME_BYTES));
+    assertThat(ring.take()).isEqualTo(ByteString.copyFrom(audio, FRAME_BYTES, FRAME_BYTES));
+    assertThat(ring.take()).isNull();
+  }
+
+  @Test
+  public void testSlowConsumerReportsLateFrames() throws Exception {
+    AudioRingBuffer ring = new AudioRingBuffer(FRAME_BYTES, 4, 1);
+    try (InputStream audio = new FileInputStream(audioFileName)) {
+      ring.offer(audio::read);
+    }
+    Thread.sleep(10);
+
+    assertThat(ring.take()).isNotNull();
+    assertThat(ring.getLateFrames()).isEqualTo(1);
+  }
+}
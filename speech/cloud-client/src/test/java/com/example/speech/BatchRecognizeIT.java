@@ -0,0 +1,69 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.speech;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the batch speech recognition sample. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("checkstyle:abbreviationaswordinname")
+public class BatchRecognizeIT {
+  private ByteArrayOutputStream bout;
+  private PrintStream out;
+  private Path output;
+
+  // The directory of audio files to transcribe
+  private String audioDirectory = "./resources";
+
+  @Before
+  public void setUp() throws Exception {
+    bout = new ByteArrayOutputStream();
+    out = new PrintStream(bout);
+    System.setOut(out);
+    output = Files.createTempFile("batch-recognize", ".jsonl");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    System.setOut(null);
+    Files.deleteIfExists(output);
+  }
+
+  @Test
+  public void testBatchRecognizeDirectory() throws Exception {
+    BatchRecognize.batchRecognize(BatchRecognize.Mode.SYNC, audioDirectory, output, 2);
+
+    List<String> lines = Files.readAllLines(output, StandardCharsets.UTF_8);
+    assertThat(lines).hasSize(3);
+    assertThat(String.join("\n", lines)).contains("how old is the Brooklyn Bridge");
+    String got = bout.toString();
+    assertThat(got).contains("Transcribed 3 files (0 failed)");
+    assertThat(got).contains("Latency per file: p50");
+  }
+}
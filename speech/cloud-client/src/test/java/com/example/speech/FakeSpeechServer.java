@@ -0,0 +1,184 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.speech;
+
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.cloud.speech.v1p1beta1.SpeechClient;
+import com.google.cloud.speech.v1p1beta1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1p1beta1.SpeechSettings;
+import com.google.cloud.speech.v1p1beta1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1p1beta1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1p1beta1.StreamingRecognizeResponse;
+import com.google.protobuf.Duration;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the Speech API streaming endpoint, used to load test the streaming
+ * samples without network access or quota.
+ *
+ * <p>For 16000Hz LINEAR16 audio it returns an interim result after every frame and a final result
+ * "second N" for every second of audio received, with result end times measured from the start
+ * of each streaming request like the real service.
+ */
+class FakeSpeechServer implements AutoCloseable {
+  private static final String SERVICE_NAME = "google.cloud.speech.v1p1beta1.Speech";
+  private static final int BYTES_PER_SECOND = 32000;
+
+  private static final MethodDescriptor<StreamingRecognizeRequest, StreamingRecognizeResponse>
+      STREAMING_RECOGNIZE =
+          MethodDescriptor.<StreamingRecognizeRequest, StreamingRecognizeResponse>newBuilder()
+              .setType(MethodDescriptor.MethodType.BIDI_STREAMING)
+              .setFullMethodName(
+                  MethodDescriptor.generateFullMethodName(SERVICE_NAME, "StreamingRecognize"))
+              .setRequestMarshaller(
+                  ProtoUtils.marshaller(StreamingRecognizeRequest.getDefaultInstance()))
+              .setResponseMarshaller(
+                  ProtoUtils.marshaller(StreamingRecognizeResponse.getDefaultInstance()))
+              .build();
+
+  private final String name = InProcessServerBuilder.generateName();
+  private final Server server;
+  private final AtomicLong streams = new AtomicLong();
+  private final AtomicLong audioBytes = new AtomicLong();
+  private volatile long maxStreamBytes = Long.MAX_VALUE;
+
+  FakeSpeechServer() throws IOException {
+    server =
+        InProcessServerBuilder.forName(name)
+            .addService(
+                ServerServiceDefinition.builder(SERVICE_NAME)
+                    .addMethod(
+                        STREAMING_RECOGNIZE,
+                        ServerCalls.asyncBidiStreamingCall(this::streamingRecognize))
+                    .build())
+            .build()
+            .start();
+  }
+
+  /** Creates a client talking to this server. Closing the client closes its channel. */
+  SpeechClient createClient() throws IOException {
+    ManagedChannel channel = InProcessChannelBuilder.forName(name).build();
+    SpeechSettings settings =
+        SpeechSettings.newBuilder()
+            .setTransportChannelProvider(
+                FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel)))
+            .setCredentialsProvider(NoCredentialsProvider.create())
+            .build();
+    return SpeechClient.create(settings);
+  }
+
+  /**
+   * Ends every streaming request once it has received this many audio bytes, like the real
+   * service does when a request reaches its time limit. Audio sent after that is ignored.
+   */
+  void setMaxStreamBytes(long maxStreamBytes) {
+    this.maxStreamBytes = maxStreamBytes;
+  }
+
+  /** Number of streaming requests received so far. */
+  long getStreams() {
+    return streams.get();
+  }
+
+  /** Number of audio bytes received so far, over all streams. */
+  long getAudioBytes() {
+    return audioBytes.get();
+  }
+
+  @Override
+  public void close() {
+    server.shutdownNow();
+  }
+
+  private StreamObserver<StreamingRecognizeRequest> streamingRecognize(
+      StreamObserver<StreamingRecognizeResponse> responseObserver) {
+    streams.incrementAndGet();
+    return new StreamObserver<StreamingRecognizeRequest>() {
+      private long streamBytes = 0;
+      private long finalizedSeconds = 0;
+      private boolean ended = false;
+
+      @Override
+      public void onNext(StreamingRecognizeRequest request) {
+        if (!ended && !request.hasStreamingConfig()) {
+          int size = request.getAudioContent().size();
+          streamBytes += size;
+          audioBytes.addAndGet(size);
+          while (streamBytes / BYTES_PER_SECOND > finalizedSeconds) {
+            finalizedSeconds++;
+            responseObserver.onNext(
+                response("second " + finalizedSeconds, finalizedSeconds * 1000, true));
+          }
+          responseObserver.onNext(
+              response("second " + (finalizedSeconds + 1), streamBytes * 1000 / BYTES_PER_SECOND,
+                  false));
+          if (streamBytes >= maxStreamBytes) {
+            onCompleted();
+          }
+        }
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        // The client cancelled the stream, as it does on every restart.
+      }
+
+      @Override
+      public void onCompleted() {
+        if (ended) {
+          return;
+        }
+        ended = true;
+        if (streamBytes > finalizedSeconds * BYTES_PER_SECOND) {
+          responseObserver.onNext(
+              response("second " + (finalizedSeconds + 1), streamBytes * 1000 / BYTES_PER_SECOND,
+                  true));
+        }
+        responseObserver.onCompleted();
+      }
+    };
+  }
+
+  private static StreamingRecognizeResponse response(
+      String transcript, long endTimeMillis, boolean isFinal) {
+    return StreamingRecognizeResponse.newBuilder()
+        .addResults(
+            StreamingRecognitionResult.newBuilder()
+                .addAlternatives(
+                    SpeechRecognitionAlternative.newBuilder()
+                        .setTranscript(transcript)
+                        .setConfidence(1.0f))
+                .setIsFinal(isFinal)
+                .setResultEndTime(
+                    Duration.newBuilder()
+                        .setSeconds(endTimeMillis / 1000)
+                        .setNanos((int) (endTimeMillis % 1000) * 1000000)))
+        .build();
+  }
+}
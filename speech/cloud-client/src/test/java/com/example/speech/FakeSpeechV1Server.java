@@ -0,0 +1,151 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.speech;
+
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.cloud.speech.v1.SpeechClient;
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.SpeechSettings;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import com.google.protobuf.Duration;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An in-process stand-in for the v1 Speech API streaming endpoint, which records the size of every
+ * audio request it receives.
+ *
+ * <p>When a streaming request is closed it returns a single final result "request N", ending
+ * after the audio received on that request, for 16000Hz LINEAR16 audio.
+ */
+class FakeSpeechV1Server implements AutoCloseable {
+  private static final String SERVICE_NAME = "google.cloud.speech.v1.Speech";
+  private static final int BYTES_PER_SECOND = 32000;
+
+  private static final MethodDescriptor<StreamingRecognizeRequest, StreamingRecognizeResponse>
+      STREAMING_RECOGNIZE =
+          MethodDescriptor.<StreamingRecognizeRequest, StreamingRecognizeResponse>newBuilder()
+              .setType(MethodDescriptor.MethodType.BIDI_STREAMING)
+              .setFullMethodName(
+                  MethodDescriptor.generateFullMethodName(SERVICE_NAME, "StreamingRecognize"))
+              .setRequestMarshaller(
+                  ProtoUtils.marshaller(StreamingRecognizeRequest.getDefaultInstance()))
+              .setResponseMarshaller(
+                  ProtoUtils.marshaller(StreamingRecognizeResponse.getDefaultInstance()))
+              .build();
+
+  private final String name = InProcessServerBuilder.generateName();
+  private final Server server;
+  // The audio request sizes of each streaming request, in the order the streams were opened.
+  private final List<List<Integer>> streams = Collections.synchronizedList(new ArrayList<>());
+
+  FakeSpeechV1Server() throws IOException {
+    server =
+        InProcessServerBuilder.forName(name)
+            .addService(
+                ServerServiceDefinition.builder(SERVICE_NAME)
+                    .addMethod(
+                        STREAMING_RECOGNIZE,
+                        ServerCalls.asyncBidiStreamingCall(this::streamingRecognize))
+                    .build())
+            .build()
+            .start();
+  }
+
+  /** Creates a client talking to this server. Closing the client closes its channel. */
+  SpeechClient createClient() throws IOException {
+    ManagedChannel channel = InProcessChannelBuilder.forName(name).build();
+    SpeechSettings settings =
+        SpeechSettings.newBuilder()
+            .setTransportChannelProvider(
+                FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel)))
+            .setCredentialsProvider(NoCredentialsProvider.create())
+            .build();
+    return SpeechClient.create(settings);
+  }
+
+  /** The size of every audio request received, for each streaming request. */
+  List<List<Integer>> getStreams() {
+    synchronized (streams) {
+      return new ArrayList<>(streams);
+    }
+  }
+
+  @Override
+  public void close() {
+    server.shutdownNow();
+  }
+
+  private StreamObserver<StreamingRecognizeRequest> streamingRecognize(
+      StreamObserver<StreamingRecognizeResponse> responseObserver) {
+    List<Integer> chunks = Collections.synchronizedList(new ArrayList<>());
+    int streamNumber;
+    synchronized (streams) {
+      streams.add(chunks);
+      streamNumber = streams.size();
+    }
+    return new StreamObserver<StreamingRecognizeRequest>() {
+      private long streamBytes = 0;
+
+      @Override
+      public void onNext(StreamingRecognizeRequest request) {
+        if (!request.hasStreamingConfig()) {
+          chunks.add(request.getAudioContent().size());
+          streamBytes += request.getAudioContent().size();
+        }
+      }
+
+      @Override
+      public void onError(Throwable t) {}
+
+      @Override
+      public void onCompleted() {
+        long endTimeMillis = streamBytes * 1000 / BYTES_PER_SECOND;
+        responseObserver.onNext(
+            StreamingRecognizeResponse.newBuilder()
+                .addResults(
+                    StreamingRecognitionResult.newBuilder()
+                        .addAlternatives(
+                            SpeechRecognitionAlternative.newBuilder()
+                                .setTranscript("request " + streamNumber)
+                                .setConfidence(1.0f))
+                        .setIsFinal(true)
+                        .setResultEndTime(
+                            Duration.newBuilder()
+                                .setSeconds(endTimeMillis / 1000)
+                                .setNanos((int) (endTimeMillis % 1000) * 1000000)))
+                .build());
+        responseObserver.onCompleted();
+      }
+    };
+  }
+}
@@ -110,6 +110,13 @@ public class RecognizeIT {
     assertThat(got).contains("how old is the Brooklyn Bridge");
   }
 
+  @Test
+  public void testRecognizeLargeFile() throws Exception {
+    Recognize.recognizeLargeFile(audioFileName);
+    String got = bout.toString();
+    assertThat(got).contains("how old is the Brooklyn Bridge");
+  }
+
   @Test
   public void testAutoPunctuation() throws Exception {
     Recognize.transcribeFileWithAutomaticPunctuation(audioFileName);
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.speech;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.SpeechClient;
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link StreamingFileRecognizer}, run against a local fake Speech server. */
+@RunWith(JUnit4.class)
+public class StreamingFileRecognizerTest {
+  private static final int BYTES_PER_SECOND = 32000;
+
+  private static final StreamingRecognitionConfig CONFIG =
+      StreamingRecognitionConfig.newBuilder()
+          .setConfig(
+              RecognitionConfig.newBuilder()
+                  .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
+                  .setLanguageCode("en-US")
+                  .setSampleRateHertz(16000))
+          .build();
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private FakeSpeechV1Server server;
+  private SpeechClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FakeSpeechV1Server();
+    client = server.createClient();
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+    server.close();
+  }
+
+  @Test
+  public void testSplitsFileIntoStreamingRequests() throws Exception {
+    // 2.5 seconds of audio and a little more, sent over requests of one second each.
+    File file = folder.newFile("audio.raw");
+    Files.write(file.toPath(), new byte[80100]);
+    List<String> results = Collections.synchronizedList(new ArrayList<>());
+    // Windows of 10000 bytes hold three whole 3200 byte chunks, so the last window of every
+    // request is shorter.
+    StreamingFileRecognizer recognizer =
+        new StreamingFileRecognizer(client, CONFIG, BYTES_PER_SECOND, false, 1000, 10000);
+
+    recognizer.recognize(
+        file.toPath(),
+        (result, requestOffsetMillis) ->
+            results.add(
+                result.getAlternatives(0).getTranscript() + " at " + requestOffsetMillis));
+
+    List<Integer> fullRequest = Collections.nCopies(10, 3200);
+    assertThat(server.getStreams())
+        .containsExactly(
+            fullRequest,
+            fullRequest,
+            Arrays.asList(3200, 3200, 3200, 3200, 3200, 100))
+        .inOrder();
+    assertThat(results).containsExactly("request 1 at 0", "request 2 at 1000", "request 3 at 2000")
+        .inOrder();
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.speech;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.speech.v1p1beta1.RecognitionConfig;
+import com.google.cloud.speech.v1p1beta1.SpeechClient;
+import com.google.cloud.speech.v1p1beta1.StreamingRecognitionConfig;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Load tests for the streaming session engine, run against a local fake Speech server. */
+@RunWith(JUnit4.class)
+public class StreamingRecognizeEngineTest {
+  private static final int FRAME_BYTES = 6400;
+  private static final int FRAME_MILLIS = 200;
+
+  private static final StreamingRecognitionConfig CONFIG =
+      StreamingRecognitionConfig.newBuilder()
+          .setConfig(
+              RecognitionConfig.newBuilder()
+                  .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
+                  .setLanguageCode("en-US")
+                  .setSampleRateHertz(16000))
+          .setInterimResults(true)
+          .build();
+
+  // The path to the recorded 16000Hz LINEAR16 audio
+  private String audioFileName = "./resources/audio.raw";
+
+  private byte[] audio;
+  private FakeSpeechServer server;
+  private SpeechClient client;
+  private ScheduledExecutorService executor;
+
+  @Before
+  public void setUp() throws Exception {
+    audio = Files.readAllBytes(Paths.get(audioFileName));
+    server = new FakeSpeechServer();
+    client = server.createClient();
+    executor = Executors.newScheduledThreadPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    client.close();
+    server.close();
+  }
+
+  @Test
+  public void testManyConcurrentSessions() throws Exception {
+    int sessionCount = 200;
+    Map<String, AtomicInteger> finalTranscripts = new ConcurrentHashMap<>();
+    List<StreamingRecognizeSession> sessions = new ArrayList<>();
+    try (StreamingRecognizeEngine engine =
+        new StreamingRecognizeEngine(client, executor, CONFIG, FRAME_MILLIS)) {
+      for (int i = 0; i < sessionCount; i++) {
+        String id = "session-" + i;
+        finalTranscripts.put(id, new AtomicInteger());
+        sessions.add(
+            engine.startSession(
+                id,
+                recordedAudio(),
+                (session, audioTimeMillis, alternative, isFinal) -> {
+                  if (isFinal) {
+                    finalTranscripts.get(session.getId()).incrementAndGet();
+                  }
+                }));
+      }
+      CompletableFuture.allOf(
+              sessions.stream().map(StreamingRecognizeSession::getDone)
+                  .toArray(CompletableFuture[]::new))
+          .get(60, TimeUnit.SECONDS);
+      assertThat(engine.getSessions()).isEmpty();
+    }
+
+    assertThat(server.getStreams()).isEqualTo(sessionCount);
+    assertThat(server.getAudioBytes()).isEqualTo((long) sessionCount * audio.length);
+    for (StreamingRecognizeSession session : sessions) {
+      // audio.raw is a little under 2 seconds long, so each session gets two final results.
+      assertThat(finalTranscripts.get(session.getId()).get()).isEqualTo(2);
+      assertThat(session.getStats().getFinalResults()).isEqualTo(2);
+      assertThat(session.getStats().getRestarts()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testRestartResendsUnfinalizedAudio() throws Exception {
+    AudioRingBuffer ring = new AudioRingBuffer(FRAME_BYTES, 16, 60000);
+    List<Double> finalTimes = new ArrayList<>();
+    StreamingRecognizeSession session;
+    try (StreamingRecognizeEngine engine =
+        new StreamingRecognizeEngine(client, executor, CONFIG, FRAME_MILLIS, 500)) {
+      session =
+          engine.startSession(
+              "restarting",
+              ring,
+              (s, audioTimeMillis, alternative, isFinal) -> {
+                if (isFinal) {
+                  synchronized (finalTimes) {
+                    finalTimes.add(audioTimeMillis);
+                  }
+                }
+              });
+      // Feed the audio at real time, so the 500 ms streaming limit is reached before the first
+      // stream has a full second of audio, and none of its audio has been finalized.
+      InputStream input = new ByteArrayInputStream(audio);
+      while (ring.offer(input::read)) {
+        Thread.sleep(FRAME_MILLIS);
+      }
+      ring.close();
+      session.getDone().get(30, TimeUnit.SECONDS);
+    }
+
+    assertThat(session.getStats().getRestarts()).isGreaterThan(0);
+    assertThat(server.getStreams()).isEqualTo(session.getStats().getRestarts() + 1);
+    assertThat(ring.getDroppedFrames()).isEqualTo(0);
+    assertThat(session.getStats().getFramesSent()).isEqualTo(10);
+    assertThat(session.getStats().getFramesResent()).isGreaterThan(0);
+    assertThat(finalTimes).isNotEmpty();
+  }
+
+  @Test
+  public void testRestartsWhenServerEndsStreamEarly() throws Exception {
+    // End each streaming request after a second of audio, long before the session's own limit.
+    server.setMaxStreamBytes(32000);
+    AudioRingBuffer ring = new AudioRingBuffer(FRAME_BYTES, 16, 60000);
+    StreamingRecognizeSession session;
+    try (StreamingRecognizeEngine engine =
+        new StreamingRecognizeEngine(client, executor, CONFIG, FRAME_MILLIS)) {
+      session = engine.startSession("ended-early", ring, (s, audioTimeMillis, alt, isFinal) -> {});
+      InputStream input = new ByteArrayInputStream(audio);
+      while (ring.offer(input::read)) {
+        Thread.sleep(FRAME_MILLIS);
+      }
+      ring.close();
+      session.getDone().get(30, TimeUnit.SECONDS);
+    }
+
+    assertThat(session.getStats().getRestarts()).isGreaterThan(0);
+    assertThat(server.getStreams()).isEqualTo(session.getStats().getRestarts() + 1);
+    assertThat(session.getStats().getFramesSent()).isEqualTo(10);
+  }
+
+  private AudioRingBuffer recordedAudio() throws Exception {
+    AudioRingBuffer ring = new AudioRingBuffer(FRAME_BYTES, 16, 60000);
+    InputStream input = new ByteArrayInputStream(audio);
+    while (ring.offer(input::read)) {
+      // Queue the whole recording up front.
+    }
+    ring.close();
+    return ring;
+  }
+}
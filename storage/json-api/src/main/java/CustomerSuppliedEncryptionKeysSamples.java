@@ -21,6 +21,8 @@ import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.RewriteResponse;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 /**
  * Demonstrates the use of GCS's CSEK features via the Java API client library
@@ -97,6 +99,34 @@ class CustomerSuppliedEncryptionKeysSamples {
     }
   }
 
+  /**
+   * Downloads a CSEK-protected object from GCS to a file, as byte ranges fetched in parallel, and
+   * verifies its CRC32C checksum.
+   *
+   * @param storage A Storage object, ready for use
+   * @param bucketName The name of the destination bucket
+   * @param objectName The name of the destination object
+   * @param base64CseKey An AES256 key, encoded as a base64 string.
+   * @param base64CseKeyHash The SHA-256 hash of the above key, also encoded as a base64 string.
+   * @param destination The file to write the decrypted contents of the object to.
+   *
+   * @throws IOException if there was some error download from GCS.
+   */
+  public static void downloadObjectParallel(
+      Storage storage,
+      String bucketName,
+      String objectName,
+      String base64CseKey,
+      String base64CseKeyHash,
+      Path destination)
+      throws IOException, InterruptedException {
+    ParallelDownloader downloader =
+        new ParallelDownloader(storage, ParallelDownloader.DEFAULT_RANGE_BYTES, 8)
+            .setEncryptionKey(base64CseKey, base64CseKeyHash);
+    downloader.download(bucketName, objectName, destination);
+    downloader.printStats(System.out);
+  }
+
   /**
    * Uploads an object to GCS, to be stored with a customer-supplied key (CSEK). The upload may
    * continue in the background after this method returns. The caller of this method is responsible
@@ -201,6 +231,49 @@ class CustomerSuppliedEncryptionKeysSamples {
     }
   }
 
+  /**
+   * Changes the key of every CSEK-protected object under a prefix of a bucket, rewriting several
+   * objects at a time. Progress is saved to a checkpoint file, so an interrupted rotation can be
+   * run again and resume where it stopped.
+   *
+   * @param storage A Storage object, ready for use
+   * @param bucketName The name of the bucket
+   * @param prefix The prefix of the names of the objects to rotate
+   * @param originalBase64Key The AES256 key currently associated with the objects,
+   *     encoded as a base64 string.
+   * @param originalBase64KeyHash The SHA-256 hash of the above key,
+   *     also encoded as a base64 string.
+   * @param newBase64Key An AES256 key which will replace the existing key,
+   *     encoded as a base64 string.
+   * @param newBase64KeyHash The SHA-256 hash of the above key, also encoded as a base64 string.
+   * @param checkpoint The file to save progress to.
+   * @return the number of objects rotated.
+   * @throws IOException if there was some error listing the objects.
+   */
+  public static long rotateKeys(
+      Storage storage,
+      String bucketName,
+      String prefix,
+      String originalBase64Key,
+      String originalBase64KeyHash,
+      String newBase64Key,
+      String newBase64KeyHash,
+      Path checkpoint)
+      throws IOException, InterruptedException {
+    KeyRotator rotator =
+        new KeyRotator(
+                storage,
+                originalBase64Key,
+                originalBase64KeyHash,
+                newBase64Key,
+                newBase64KeyHash,
+                16)
+            .setCheckpoint(checkpoint);
+    long rotated = rotator.rotate(bucketName, prefix);
+    rotator.printStats(System.out);
+    return rotated;
+  }
+
   public static void main(String[] args) throws Exception {
     if (args.length != 1) {
       System.out.println("\nPlease run this with one argument: "
@@ -222,6 +295,13 @@ class CustomerSuppliedEncryptionKeysSamples {
         downloadObject(storage, bucketName, OBJECT_NAME, CSEK_KEY, CSEK_KEY_HASH);
     StorageUtils.readStream(objectData);
 
+    System.out.format(
+        "Downloading object gs://%s/%s in parallel using CSEK.\n", bucketName, OBJECT_NAME);
+    Path downloaded = Files.createTempFile("encrypted_file", ".txt");
+    downloaded.toFile().deleteOnExit();
+    downloadObjectParallel(
+        storage, bucketName, OBJECT_NAME, CSEK_KEY, CSEK_KEY_HASH, downloaded);
+
     System.out.println("Rotating object to use a different CSEK.");
     rotateKey(storage, bucketName, OBJECT_NAME, CSEK_KEY, CSEK_KEY_HASH,
         ANOTHER_CESK_KEY, ANOTHER_CSEK_KEY_HASH);
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.RewriteResponse;
+import com.google.api.services.storage.model.StorageObject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rotates the customer-supplied encryption key (CSEK) of every object under a prefix of a bucket.
+ *
+ * <p>The objects are listed lazily, with only the fields needed to pick the ones to rotate, and
+ * each object encrypted with the old key is rewritten in place with the new key. Up to {@code
+ * maxInFlight} objects are rewritten at a time. A large object takes several rewrite calls, and
+ * the rewrite token returned by each call is kept as the progress of that object.
+ *
+ * <p>With a checkpoint file, a rotation can be interrupted and run again. The checkpoint records
+ * where the listing can resume, every object before that point being rotated or skipped, and the
+ * latest rewrite token of each object in progress, so a large rewrite continues where it stopped
+ * instead of starting over. Objects already encrypted with the new key are skipped in any case.
+ * The checkpoint is deleted once a rotation completes without failures.
+ */
+public class KeyRotator {
+
+  // Fields of the listing needed to pick the objects to rotate.
+  private static final String LIST_FIELDS = "items(name,generation,customerEncryption)";
+  // Save the checkpoint at most this often while objects complete.
+  private static final long CHECKPOINT_INTERVAL_MILLIS = 1000;
+  private static final String RESUME_AFTER = "resume.after";
+  private static final String RESUME_FROM = "resume.from";
+  private static final String TOKEN_PREFIX = "token.";
+
+  private final Storage storage;
+  private final String oldKey;
+  private final String oldKeyHash;
+  private final String newKey;
+  private final String newKeyHash;
+  private final int maxInFlight;
+  private Path checkpoint;
+  private Long maxBytesPerCall;
+
+  private final LongAdder rotated = new LongAdder();
+  private final LongAdder skipped = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder rewriteCalls = new LongAdder();
+  private final LongAdder bytesRewritten = new LongAdder();
+  private long elapsedNanos;
+
+  // The state of the current rotation. Names of the objects listed but not rotated yet, which
+  // includes failed objects, so the checkpoint never moves past them.
+  private final NavigableSet<String> unfinished = new ConcurrentSkipListSet<>();
+  // The latest rewrite token of each object in progress, as generation:token.
+  private final Map<String, String> tokens = new ConcurrentHashMap<>();
+  // Guarded by progress, so a checkpoint never sees an object listed before it is unfinished.
+  private String lastListed;
+  private final Object progress = new Object();
+  private long lastCheckpointMillis;
+
+  /**
+   * Creates a rotator from the AES256 key {@code oldKey} to {@code newKey}, both encoded as base64
+   * strings along with the base64 SHA-256 hashes of the keys.
+   */
+  public KeyRotator(
+      Storage storage,
+      String oldKey,
+      String oldKeyHash,
+      String newKey,
+      String newKeyHash,
+      int maxInFlight) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1");
+    }
+    this.storage = storage;
+    this.oldKey = oldKey;
+    this.oldKeyHash = oldKeyHash;
+    this.newKey = newKey;
+    this.newKeyHash = newKeyHash;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /** Records progress in {@code file}, and resumes from it if it exists. */
+  public KeyRotator setCheckpoint(Path file) {
+    this.checkpoint = file;
+    return this;
+  }
+
+  /**
+   * Limits the bytes rewritten by each call, a multiple of 1MB, so progress is recorded more often
+   * for large objects.
+   */
+  public KeyRotator setMaxBytesPerCall(long maxBytesPerCall) {
+    this.maxBytesPerCall = maxBytesPerCall;
+    return this;
+  }
+
+  /**
+   * Rotates the key of every object in {@code bucketName} whose name starts with {@code prefix},
+   * and returns the number of objects rotated. Objects that fail are reported and counted, and the
+   * rotation goes on with the others.
+   */
+  public long rotate(String bucketName, String prefix) throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    long rotatedBefore = rotated.sum();
+    Properties resume = loadCheckpoint();
+    String resumeAfter = resume.getProperty(RESUME_AFTER);
+    String resumeFrom = resume.getProperty(RESUME_FROM);
+    unfinished.clear();
+    tokens.clear();
+    for (String key : resume.stringPropertyNames()) {
+      if (key.startsWith(TOKEN_PREFIX)) {
+        tokens.put(key.substring(TOKEN_PREFIX.length()), resume.getProperty(key));
+      }
+    }
+    synchronized (progress) {
+      lastListed = resumeAfter;
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(maxInFlight);
+    Semaphore window = new Semaphore(maxInFlight);
+    boolean listed = false;
+    try {
+      ObjectListing listing =
+          new ObjectListing(storage, bucketName).setPrefix(prefix).setFields(LIST_FIELDS);
+      for (StorageObject object : listing) {
+        String name = object.getName();
+        if ((resumeAfter != null && name.compareTo(resumeAfter) <= 0)
+            || (resumeFrom != null && name.compareTo(resumeFrom) < 0)) {
+          continue;
+        }
+        if (object.getCustomerEncryption() == null
+            || !oldKeyHash.equals(object.getCustomerEncryption().getKeySha256())) {
+          // Already rotated, not encrypted, or encrypted with another key.
+          skipped.increment();
+          synchronized (progress) {
+            lastListed = name;
+          }
+          continue;
+        }
+        window.acquire();
+        synchronized (progress) {
+          unfinished.add(name);
+          lastListed = name;
+        }
+        pool.execute(
+            () -> {
+              try {
+                rewrite(bucketName, object);
+                unfinished.remove(name);
+                tokens.remove(name);
+                rotated.increment();
+              } catch (IOException | RuntimeException e) {
+                failed.increment();
+                System.err.printf("Could not rotate the key of %s: %s\n", name, e);
+              } finally {
+                window.release();
+                maybeSaveCheckpoint();
+              }
+            });
+      }
+      window.acquire(maxInFlight);
+      window.release(maxInFlight);
+      listed = true;
+    } finally {
+      pool.shutdown();
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      elapsedNanos += System.nanoTime() - start;
+      if (checkpoint != null) {
+        if (listed && unfinished.isEmpty()) {
+          Files.deleteIfExists(checkpoint);
+        } else {
+          saveCheckpoint();
+        }
+      }
+    }
+    return rotated.sum() - rotatedBefore;
+  }
+
+  /** Number of objects rotated. */
+  public long getRotated() {
+    return rotated.sum();
+  }
+
+  /** Number of objects listed but not encrypted with the old key. */
+  public long getSkipped() {
+    return skipped.sum();
+  }
+
+  /** Number of objects that could not be rotated. */
+  public long getFailed() {
+    return failed.sum();
+  }
+
+  /** Number of bytes rewritten with the new key. */
+  public long getBytesRewritten() {
+    return bytesRewritten.sum();
+  }
+
+  /** Number of rewrite calls made, several for each large object. */
+  public long getRewriteCalls() {
+    return rewriteCalls.sum();
+  }
+
+  /** Prints the number of objects rotated and the rate of rotation. */
+  public void printStats(PrintStream out) {
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    out.printf(
+        "Rotated %d objects (%d skipped, %d failed) in %d rewrite calls, %d bytes, "
+            + "in %d ms: %.2f objects/s\n",
+        getRotated(),
+        getSkipped(),
+        getFailed(),
+        getRewriteCalls(),
+        getBytesRewritten(),
+        elapsedMillis,
+        elapsedMillis == 0 ? 0.0 : getRotated() * 1000.0 / elapsedMillis);
+  }
+
+  /** Rewrites {@code object} in place with the new key, continuing from a saved token if any. */
+  private void rewrite(String bucketName, StorageObject object) throws IOException {
+    String name = object.getName();
+    Storage.Objects.Rewrite rewrite =
+        storage
+            .objects()
+            .rewrite(bucketName, name, bucketName, name, null)
+            // Never replace a newer generation written while the rotation runs.
+            .setIfGenerationMatch(object.getGeneration())
+            .setMaxBytesRewrittenPerCall(maxBytesPerCall);
+    rewrite.setRequestHeaders(newHeaders());
+
+    // A rewrite token is only valid for the generation it was issued for.
+    String generationPrefix = object.getGeneration() + ":";
+    String saved = tokens.get(name);
+    if (saved != null && saved.startsWith(generationPrefix)) {
+      rewrite.setRewriteToken(saved.substring(generationPrefix.length()));
+    }
+    long before = 0;
+    while (true) {
+      RewriteResponse response;
+      try {
+        response = rewrite.execute();
+      } catch (GoogleJsonResponseException e) {
+        if (e.getStatusCode() == 400 && rewrite.getRewriteToken() != null) {
+          // The token expired, start the rewrite over.
+          rewrite.setRewriteToken(null);
+          tokens.remove(name);
+          before = 0;
+          continue;
+        }
+        throw e;
+      }
+      rewriteCalls.increment();
+      long total = response.getTotalBytesRewritten().longValue();
+      bytesRewritten.add(Math.max(0, total - before));
+      before = total;
+      if (response.getDone()) {
+        return;
+      }
+      rewrite.setRewriteToken(response.getRewriteToken());
+      tokens.put(name, generationPrefix + response.getRewriteToken());
+    }
+  }
+
+  private HttpHeaders newHeaders() {
+    HttpHeaders headers = new HttpHeaders();
+    // The key the object is encrypted with now.
+    headers.set("x-goog-copy-source-encryption-algorithm", "AES256");
+    headers.set("x-goog-copy-source-encryption-key", oldKey);
+    headers.set("x-goog-copy-source-encryption-key-sha256", oldKeyHash);
+    // The key to encrypt it with.
+    headers.set("x-goog-encryption-algorithm", "AES256");
+    headers.set("x-goog-encryption-key", newKey);
+    headers.set("x-goog-encryption-key-sha256", newKeyHash);
+    return headers;
+  }
+
+  private Properties loadCheckpoint() throws IOException {
+    Properties properties = new Properties();
+    if (checkpoint != null && Files.exists(checkpoint)) {
+      try (InputStream in = Files.newInputStream(checkpoint)) {
+        properties.load(in);
+      }
+    }
+    return properties;
+  }
+
+  private void maybeSaveCheckpoint() {
+    if (checkpoint == null) {
+      return;
+    }
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      if (now - lastCheckpointMillis < CHECKPOINT_INTERVAL_MILLIS) {
+        return;
+      }
+      lastCheckpointMillis = now;
+    }
+    try {
+      saveCheckpoint();
+    } catch (IOException e) {
+      // The next checkpoint may succeed, and the rotation itself is not affected.
+      System.err.println("Could not save checkpoint: " + e);
+    }
+  }
+
+  /** Writes the checkpoint to a temporary file first, so it is never left half written. */
+  private synchronized void saveCheckpoint() throws IOException {
+    Properties properties = new Properties();
+    // Every object before the first unfinished one, or up to the last one listed, is done.
+    String first;
+    String listedUpTo;
+    synchronized (progress) {
+      // Objects complete without the lock, so the set may empty between two calls.
+      first = unfinished.ceiling("");
+      listedUpTo = lastListed;
+    }
+    if (first != null) {
+      properties.setProperty(RESUME_FROM, first);
+    } else if (listedUpTo != null) {
+      properties.setProperty(RESUME_AFTER, listedUpTo);
+    }
+    for (Map.Entry<String, String> token : tokens.entrySet()) {
+      properties.setProperty(TOKEN_PREFIX + token.getKey(), token.getValue());
+    }
+    Path temp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+    try (OutputStream out = Files.newOutputStream(temp)) {
+      properties.store(out, "Key rotation checkpoint");
+    }
+    Files.move(
+        temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
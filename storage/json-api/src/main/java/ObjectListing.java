@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.StorageObject;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lists the objects in a bucket lazily, one page of results at a time.
+ *
+ * <p>A page is only requested once the previous one has been consumed, so a listing of any size
+ * runs in the memory of a single page and produces its first objects after the first request. A
+ * field projection such as {@link #NAME_AND_SIZE} makes each page much smaller than the full
+ * object metadata. Each call to {@link #iterator()} or {@link #stream()} starts a new listing.
+ *
+ * <p>Errors while fetching a page are thrown as {@link UncheckedIOException}.
+ */
+public class ObjectListing implements Iterable<StorageObject> {
+
+  // The most results the API returns in a single page.
+  public static final long MAX_PAGE_SIZE = 1000;
+  /** Fields of a listing with only the name and size of each object. */
+  public static final String NAME_AND_SIZE = "nextPageToken,items(name,size)";
+
+  private final Storage storage;
+  private final String bucketName;
+  private String prefix;
+  private String fields;
+  private long pageSize = MAX_PAGE_SIZE;
+  private final LongAdder pages = new LongAdder();
+
+  /** Creates a listing of every object in {@code bucketName}, with all their metadata. */
+  public ObjectListing(Storage storage, String bucketName) {
+    this.storage = storage;
+    this.bucketName = bucketName;
+  }
+
+  /** Only lists the objects whose names start with {@code prefix}. */
+  public ObjectListing setPrefix(String prefix) {
+    this.prefix = prefix;
+    return this;
+  }
+
+  /**
+   * Only returns the given fields of each page, in the syntax of the {@code fields} parameter of
+   * the API, for example {@code "items(name,size)"}. The next page token is always requested.
+   */
+  public ObjectListing setFields(String fields) {
+    if (fields != null && !fields.contains("nextPageToken")) {
+      fields = "nextPageToken," + fields;
+    }
+    this.fields = fields;
+    return this;
+  }
+
+  /** Requests up to {@code pageSize} objects per page. */
+  public ObjectListing setPageSize(long pageSize) {
+    if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+      throw new IllegalArgumentException("pageSize must be between 1 and 1000");
+    }
+    this.pageSize = pageSize;
+    return this;
+  }
+
+  /** Number of pages requested so far, over all iterations. */
+  public long getPages() {
+    return pages.sum();
+  }
+
+  @Override
+  public Iterator<StorageObject> iterator() {
+    return new PageIterator();
+  }
+
+  /** A sequential stream of the objects, which requests pages as it is consumed. */
+  public Stream<StorageObject> stream() {
+    return StreamSupport.stream(
+        Spliterators.spliteratorUnknownSize(
+            iterator(), Spliterator.ORDERED | Spliterator.NONNULL),
+        false);
+  }
+
+  private class PageIterator implements Iterator<StorageObject> {
+    private Iterator<StorageObject> page = Collections.emptyIterator();
+    private String pageToken;
+    private boolean lastPage = false;
+
+    @Override
+    public boolean hasNext() {
+      // A page may be empty even when more follow, so keep going until one has items.
+      while (!page.hasNext() && !lastPage) {
+        Objects objects = fetch();
+        if (objects.getItems() != null) {
+          page = objects.getItems().iterator();
+        }
+        pageToken = objects.getNextPageToken();
+        lastPage = pageToken == null;
+      }
+      return page.hasNext();
+    }
+
+    @Override
+    public StorageObject next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return page.next();
+    }
+
+    private Objects fetch() {
+      try {
+        Storage.Objects.List request =
+            storage
+                .objects()
+                .list(bucketName)
+                .setPrefix(prefix)
+                .setMaxResults(pageSize)
+                .setPageToken(pageToken);
+        if (fields != null) {
+          request.setFields(fields);
+        }
+        Objects objects = request.execute();
+        pages.increment();
+        return objects;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Ints;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Downloads large objects as byte ranges fetched in parallel over separate connections.
+ *
+ * <p>The destination file is preallocated to the size of the object, and each range is written to
+ * its place in the file with positional writes as it arrives, so ranges never wait for each other.
+ * Every range is read from the same generation of the object, and a range whose connection fails
+ * is requested again from the last byte written. The CRC32C checksum of each range is computed as
+ * it is written, and the checksums are combined and compared to the one of the object, so the file
+ * is verified without reading it again.
+ *
+ * <p>Objects stored with a customer-supplied encryption key (CSEK) are downloaded by setting the
+ * key with {@link #setEncryptionKey}.
+ */
+public class ParallelDownloader {
+
+  public static final long DEFAULT_RANGE_BYTES = 16 * 1024 * 1024;
+  // Number of times a range is requested before the download fails.
+  private static final int MAX_ATTEMPTS = 3;
+  private static final int BUFFER_BYTES = 64 * 1024;
+
+  private final Storage storage;
+  private final long rangeBytes;
+  private final int threads;
+  private String encryptionKey;
+  private String encryptionKeyHash;
+  private final LongAdder bytes = new LongAdder();
+  private final LongAdder ranges = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private long elapsedNanos;
+
+  /** Creates a downloader that fetches ranges of {@code rangeBytes} on {@code threads} threads. */
+  public ParallelDownloader(Storage storage, long rangeBytes, int threads) {
+    if (rangeBytes < 1) {
+      throw new IllegalArgumentException("rangeBytes must be positive");
+    }
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be at least 1");
+    }
+    this.storage = storage;
+    this.rangeBytes = rangeBytes;
+    this.threads = threads;
+  }
+
+  /**
+   * Sends a customer-supplied AES256 key with every request.
+   *
+   * @param base64CseKey An AES256 key, encoded as a base64 string.
+   * @param base64CseKeyHash The SHA-256 hash of the above key, also encoded as a base64 string.
+   */
+  public ParallelDownloader setEncryptionKey(String base64CseKey, String base64CseKeyHash) {
+    this.encryptionKey = base64CseKey;
+    this.encryptionKeyHash = base64CseKeyHash;
+    return this;
+  }
+
+  /**
+   * Downloads {@code objectName} from {@code bucketName} to {@code destination}, replacing the
+   * file if it exists, and returns the metadata of the generation downloaded. The file is deleted
+   * if the download fails or its checksum does not match.
+   */
+  public StorageObject download(String bucketName, String objectName, Path destination)
+      throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    Storage.Objects.Get getMetadata = storage.objects().get(bucketName, objectName);
+    getMetadata.setRequestHeaders(newHeaders());
+    StorageObject metadata = getMetadata.execute();
+    long size = metadata.getSize().longValue();
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    boolean complete = false;
+    try (RandomAccessFile file = new RandomAccessFile(destination.toFile(), "rw")) {
+      // Allocate the whole file up front, so ranges can be written at any offset.
+      file.setLength(size);
+      FileChannel channel = file.getChannel();
+      List<Future<Integer>> checksums = new ArrayList<>();
+      for (long offset = 0; offset < size; offset += rangeBytes) {
+        long last = Math.min(offset + rangeBytes, size) - 1;
+        checksums.add(pool.submit(new RangeDownload(metadata, offset, last, channel)));
+      }
+
+      // Combine the checksums of the ranges, in order, into the checksum of the whole object.
+      int crc32c = 0;
+      for (int i = 0; i < checksums.size(); i++) {
+        long length = Math.min(rangeBytes, size - i * rangeBytes);
+        crc32c = StorageUtils.crc32cCombine(crc32c, get(checksums.get(i)), length);
+      }
+      if (metadata.getCrc32c() != null) {
+        int expected = Ints.fromByteArray(BaseEncoding.base64().decode(metadata.getCrc32c()));
+        if (crc32c != expected) {
+          throw new IOException(
+              String.format(
+                  "CRC32C mismatch for gs://%s/%s: expected %08x, got %08x",
+                  bucketName, objectName, expected, crc32c));
+        }
+      }
+      complete = true;
+    } finally {
+      pool.shutdownNow();
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      if (!complete) {
+        Files.deleteIfExists(destination);
+      }
+      elapsedNanos += System.nanoTime() - start;
+    }
+    return metadata;
+  }
+
+  /** Number of bytes written to files. */
+  public long getBytes() {
+    return bytes.sum();
+  }
+
+  /** Number of ranges downloaded. */
+  public long getRanges() {
+    return ranges.sum();
+  }
+
+  /** Number of times a range was requested again after a failure. */
+  public long getRetries() {
+    return retries.sum();
+  }
+
+  /** Prints the amount of data downloaded and the throughput. */
+  public void printStats(PrintStream out) {
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    out.printf(
+        "Downloaded %d bytes in %d ranges (%d retries) in %d ms: %.2f MB/s\n",
+        getBytes(),
+        getRanges(),
+        getRetries(),
+        elapsedMillis,
+        elapsedMillis == 0 ? 0.0 : getBytes() / 1048576.0 * 1000 / elapsedMillis);
+  }
+
+  /** One byte range of the object, written to the same offsets of the file. */
+  private class RangeDownload implements Callable<Integer> {
+    private final StorageObject metadata;
+    private final long first;
+    private final long last;
+    private final FileChannel channel;
+    private final Hasher crc32c = Hashing.crc32c().newHasher();
+    private final byte[] buffer = new byte[BUFFER_BYTES];
+    // The next byte to write. Bytes before it have been written and added to the checksum.
+    private long position;
+
+    RangeDownload(StorageObject metadata, long first, long last, FileChannel channel) {
+      this.metadata = metadata;
+      this.first = first;
+      this.last = last;
+      this.channel = channel;
+      this.position = first;
+    }
+
+    /** Downloads the range and returns its CRC32C checksum. */
+    @Override
+    public Integer call() throws IOException {
+      for (int attempt = 1; position <= last; attempt++) {
+        try {
+          resume();
+        } catch (HttpResponseException e) {
+          // Error responses have already been retried, if they can be.
+          throw e;
+        } catch (IOException e) {
+          if (attempt >= MAX_ATTEMPTS) {
+            throw e;
+          }
+        }
+        if (position <= last) {
+          if (attempt >= MAX_ATTEMPTS) {
+            throw new IOException(
+                String.format("Download of bytes %d-%d ended at %d", first, last, position));
+          }
+          retries.increment();
+        }
+      }
+      ranges.increment();
+      return crc32c.hash().asInt();
+    }
+
+    /** Writes as much of the rest of the range as the server sends. */
+    private void resume() throws IOException {
+      Storage.Objects.Get get =
+          storage
+              .objects()
+              .get(metadata.getBucket(), metadata.getName())
+              .setGeneration(metadata.getGeneration());
+      get.setRequestHeaders(newHeaders().setRange("bytes=" + position + "-" + last));
+      // Read the response directly, not through the media downloader, which sets its own ranges.
+      HttpResponse response = get.executeMedia();
+      try (InputStream content = response.getContent()) {
+        if (response.getStatusCode() != 206 && position > 0) {
+          throw new IOException(
+              "Expected a partial response, got status " + response.getStatusCode());
+        }
+        while (position <= last) {
+          int read = content.read(buffer, 0, (int) Math.min(buffer.length, last - position + 1));
+          if (read < 0) {
+            break;
+          }
+          ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+          long offset = position;
+          while (data.hasRemaining()) {
+            offset += channel.write(data, offset);
+          }
+          crc32c.putBytes(buffer, 0, read);
+          bytes.add(read);
+          position = offset;
+        }
+      } finally {
+        response.disconnect();
+      }
+    }
+  }
+
+  private HttpHeaders newHeaders() {
+    HttpHeaders headers = new HttpHeaders();
+    if (encryptionKey != null) {
+      headers.set("x-goog-encryption-algorithm", "AES256");
+      headers.set("x-goog-encryption-key", encryptionKey);
+      headers.set("x-goog-encryption-key-sha256", encryptionKeyHash);
+    }
+    return headers;
+  }
+
+  private static int get(Future<Integer> future) throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+}
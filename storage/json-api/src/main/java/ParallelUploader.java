@@ -0,0 +1,302 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.ComposeRequest;
+import com.google.api.services.storage.model.StorageObject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Uploads large objects in parts that are sent in parallel and composed into one object.
+ *
+ * <p>The data is read in parts of {@code partBytes}, and each part is uploaded to a temporary
+ * object over its own resumable upload session, on up to {@code threads} connections at a time.
+ * When the Storage client retries transient errors, as the one from {@link StorageFactory} does, a
+ * failed request only resends the rest of one chunk of one part. Once every part is uploaded, the
+ * parts are composed into the destination object, in groups of at most 32 sources, and the
+ * temporary objects are deleted.
+ *
+ * <p>About {@code threads} parts are held in memory at once. Data that fits in a single part is
+ * uploaded straight to the destination.
+ */
+public class ParallelUploader {
+
+  public static final int DEFAULT_PART_BYTES = 16 * 1024 * 1024;
+  // A compose request accepts at most 32 source objects.
+  public static final int MAX_COMPOSE_SOURCES = 32;
+  // Resumable uploads are sent in chunks of a multiple of 256KB. Larger chunks mean fewer round
+  // trips, smaller ones less to resend after a failure.
+  private static final int CHUNK_BYTES = 8 * MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+
+  private final Storage storage;
+  private final int partBytes;
+  private final int threads;
+  private final LongAdder bytes = new LongAdder();
+  private final LongAdder parts = new LongAdder();
+  private final LongAdder composes = new LongAdder();
+  private long elapsedNanos;
+
+  /** Creates an uploader that sends parts of {@code partBytes} on up to {@code threads} threads. */
+  public ParallelUploader(Storage storage, int partBytes, int threads) {
+    if (partBytes < MediaHttpUploader.MINIMUM_CHUNK_SIZE) {
+      throw new IllegalArgumentException("partBytes must be at least 256KB");
+    }
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be at least 1");
+    }
+    this.storage = storage;
+    this.partBytes = partBytes;
+    this.threads = threads;
+  }
+
+  /**
+   * Uploads the rest of {@code data} to {@code objectName} in {@code bucketName}, and returns the
+   * metadata of the new object. The caller is responsible for closing {@code data}.
+   */
+  public StorageObject upload(
+      String bucketName, String objectName, String contentType, InputStream data)
+      throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    try {
+      byte[] part = readPart(data);
+      byte[] next = part.length < partBytes ? new byte[0] : readPart(data);
+      if (next.length == 0) {
+        return uploadObject(bucketName, objectName, contentType, part);
+      }
+      return uploadParts(bucketName, objectName, contentType, data, part, next);
+    } finally {
+      elapsedNanos += System.nanoTime() - start;
+    }
+  }
+
+  private StorageObject uploadParts(
+      String bucketName,
+      String objectName,
+      String contentType,
+      InputStream data,
+      byte[] first,
+      byte[] second)
+      throws IOException, InterruptedException {
+    // A unique prefix keeps concurrent uploads of the same object apart.
+    String prefix = String.format("%s.upload-%s.", objectName, UUID.randomUUID());
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    Semaphore window = new Semaphore(threads);
+    // Set before a failed part releases its permit, so the loop stops reading more parts.
+    AtomicBoolean failed = new AtomicBoolean();
+    List<String> temporary = new ArrayList<>();
+    List<Future<StorageObject>> uploads = new ArrayList<>();
+    try {
+      byte[] part = first;
+      byte[] next = second;
+      long expectedBytes = 0;
+      while (part.length > 0) {
+        window.acquire();
+        if (failed.get()) {
+          // The failure is thrown while waiting for the parts below.
+          break;
+        }
+        String partName = String.format("%spart%05d", prefix, uploads.size());
+        byte[] body = part;
+        temporary.add(partName);
+        expectedBytes += body.length;
+        uploads.add(
+            pool.submit(
+                () -> {
+                  try {
+                    return uploadObject(bucketName, partName, contentType, body);
+                  } catch (IOException | RuntimeException e) {
+                    failed.set(true);
+                    throw e;
+                  } finally {
+                    window.release();
+                  }
+                }));
+        part = next;
+        next = part.length < partBytes ? new byte[0] : readPart(data);
+      }
+
+      List<String> sources = new ArrayList<>();
+      for (Future<StorageObject> upload : uploads) {
+        sources.add(get(upload).getName());
+      }
+      // Compose the parts in groups until the remaining objects fit in a single request.
+      int level = 0;
+      while (sources.size() > MAX_COMPOSE_SOURCES) {
+        List<Future<StorageObject>> groups = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i += MAX_COMPOSE_SOURCES) {
+          List<String> group =
+              sources.subList(i, Math.min(i + MAX_COMPOSE_SOURCES, sources.size()));
+          String groupName = String.format("%scompose%d-%05d", prefix, level, groups.size());
+          temporary.add(groupName);
+          groups.add(pool.submit(() -> compose(bucketName, group, groupName, contentType)));
+        }
+        sources = new ArrayList<>();
+        for (Future<StorageObject> group : groups) {
+          sources.add(get(group).getName());
+        }
+        level++;
+      }
+      StorageObject result = compose(bucketName, sources, objectName, contentType);
+      if (result.getSize() != null && result.getSize().longValue() != expectedBytes) {
+        throw new IOException(
+            String.format(
+                "Composed object %s has %s bytes, expected %d",
+                objectName, result.getSize(), expectedBytes));
+      }
+      return result;
+    } finally {
+      // After a failure, skip the parts not started yet and let the others finish before they
+      // are deleted.
+      for (Future<StorageObject> upload : uploads) {
+        upload.cancel(false);
+      }
+      pool.shutdown();
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      deleteAll(bucketName, temporary);
+    }
+  }
+
+  /** Number of bytes uploaded. */
+  public long getBytes() {
+    return bytes.sum();
+  }
+
+  /** Number of objects uploaded, either parts or whole objects that fit in a single part. */
+  public long getParts() {
+    return parts.sum();
+  }
+
+  /** Number of compose requests sent. */
+  public long getComposes() {
+    return composes.sum();
+  }
+
+  /** Prints the amount of data uploaded and the throughput. */
+  public void printStats(PrintStream out) {
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    out.printf(
+        "Uploaded %d bytes in %d parts (%d composes) in %d ms: %.2f MB/s\n",
+        getBytes(),
+        getParts(),
+        getComposes(),
+        elapsedMillis,
+        elapsedMillis == 0 ? 0.0 : getBytes() / 1048576.0 * 1000 / elapsedMillis);
+  }
+
+  /** Reads up to {@code partBytes} from {@code data}, fewer only at the end of the stream. */
+  private byte[] readPart(InputStream data) throws IOException {
+    byte[] buffer = new byte[partBytes];
+    int length = 0;
+    while (length < buffer.length) {
+      int read = data.read(buffer, length, buffer.length - length);
+      if (read < 0) {
+        break;
+      }
+      length += read;
+    }
+    return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+  }
+
+  private StorageObject uploadObject(
+      String bucketName, String name, String contentType, byte[] data) throws IOException {
+    Storage.Objects.Insert insert =
+        storage
+            .objects()
+            .insert(
+                bucketName,
+                new StorageObject().setName(name),
+                new ByteArrayContent(contentType, data));
+    // Always use a resumable session, so a failed chunk is resent on its own.
+    insert.getMediaHttpUploader().setDirectUploadEnabled(false).setChunkSize(CHUNK_BYTES);
+    StorageObject result = insert.execute();
+    bytes.add(data.length);
+    parts.increment();
+    return result;
+  }
+
+  private StorageObject compose(
+      String bucketName, List<String> sources, String destination, String contentType)
+      throws IOException {
+    List<ComposeRequest.SourceObjects> sourceObjects = new ArrayList<>();
+    for (String source : sources) {
+      sourceObjects.add(new ComposeRequest.SourceObjects().setName(source));
+    }
+    ComposeRequest request =
+        new ComposeRequest()
+            .setSourceObjects(sourceObjects)
+            .setDestination(new StorageObject().setContentType(contentType));
+    StorageObject result = storage.objects().compose(bucketName, destination, request).execute();
+    composes.increment();
+    return result;
+  }
+
+  /** Deletes the temporary objects, reporting but otherwise ignoring failures. */
+  private void deleteAll(String bucketName, List<String> names) throws InterruptedException {
+    List<Callable<Void>> deletes = new ArrayList<>();
+    for (String name : names) {
+      deletes.add(
+          () -> {
+            try {
+              storage.objects().delete(bucketName, name).execute();
+            } catch (GoogleJsonResponseException e) {
+              // A part that was never uploaded does not exist.
+              if (e.getStatusCode() != 404) {
+                System.err.printf("Could not delete temporary object %s: %s\n", name, e);
+              }
+            } catch (IOException e) {
+              System.err.printf("Could not delete temporary object %s: %s\n", name, e);
+            }
+            return null;
+          });
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      pool.invokeAll(deletes);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static StorageObject get(Future<StorageObject> future)
+      throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpBackOffIOExceptionHandler;
+import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.Sleeper;
+
+/**
+ * Retries requests that fail with a server error, 429 Too Many Requests or an I/O error, with
+ * exponential backoff, and keeps the token refresh of the credential.
+ *
+ * <p>Resumable uploads retried this way query the upload session for the bytes the server has
+ * already received, and resume from there instead of starting over.
+ */
+public class RetryHttpInitializer implements HttpRequestInitializer {
+
+  private final Credential credential;
+  private final Sleeper sleeper;
+
+  /** Creates an initializer that authorizes requests with {@code credential}. */
+  public RetryHttpInitializer(Credential credential) {
+    this(credential, Sleeper.DEFAULT);
+  }
+
+  /**
+   * Creates an initializer that waits between retries with {@code sleeper}. {@code credential}
+   * may be null for servers that do not need authorization, such as local test servers.
+   */
+  RetryHttpInitializer(Credential credential, Sleeper sleeper) {
+    this.credential = credential;
+    this.sleeper = sleeper;
+  }
+
+  /** Server errors and quota errors (429 Too Many Requests) are retried with backoff. */
+  static boolean isRetryable(HttpResponse response) {
+    return response.getStatusCode() == 429 || response.getStatusCode() / 100 == 5;
+  }
+
+  @Override
+  public void initialize(HttpRequest request) {
+    HttpUnsuccessfulResponseHandler backoffHandler =
+        new HttpBackOffUnsuccessfulResponseHandler(new ExponentialBackOff())
+            .setBackOffRequired(RetryHttpInitializer::isRetryable)
+            .setSleeper(sleeper);
+    if (credential != null) {
+      request.setInterceptor(credential);
+    }
+    request.setUnsuccessfulResponseHandler(
+        (unsuccessfulRequest, response, supportsRetry) ->
+            // An authentication error is handled by refreshing the token, without backoff.
+            (credential != null
+                    && credential.handleResponse(unsuccessfulRequest, response, supportsRetry))
+                || backoffHandler.handleResponse(unsuccessfulRequest, response, supportsRetry));
+    request.setIOExceptionHandler(
+        new HttpBackOffIOExceptionHandler(new ExponentialBackOff()).setSleeper(sleeper));
+  }
+}
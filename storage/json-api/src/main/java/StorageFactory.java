@@ -53,7 +53,8 @@ public class StorageFactory {
       credential = credential.createScoped(scopes);
     }
 
-    return new Storage.Builder(transport, jsonFactory, credential)
+    // Retry transient errors, so resumable uploads resume where they failed.
+    return new Storage.Builder(transport, jsonFactory, new RetryHttpInitializer(credential))
         .setApplicationName("GCS Samples")
         .build();
   }
@@ -20,11 +20,12 @@ import com.google.api.client.http.InputStreamContent;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.Bucket;
 import com.google.api.services.storage.model.ObjectAccessControl;
-import com.google.api.services.storage.model.Objects;
 import com.google.api.services.storage.model.StorageObject;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.GeneralSecurityException;
@@ -47,31 +48,51 @@ public class StorageSample {
   /**
    * Fetch a list of the objects within the given bucket.
    *
+   * <p>This holds the metadata of every object in memory. To go through a large bucket, iterate
+   * over an {@link ObjectListing} instead, as {@link #printBucket} does.
+   *
    * @param bucketName the name of the bucket to list.
    * @return a list of the contents of the specified bucket.
    */
   public static List<StorageObject> listBucket(String bucketName)
       throws IOException, GeneralSecurityException {
     Storage client = StorageFactory.getService();
-    Storage.Objects.List listRequest = client.objects().list(bucketName);
 
     List<StorageObject> results = new ArrayList<StorageObject>();
-
-    Objects objects;
-    // Iterate through each page of results, and add them to our results list.
-    do {
-      objects = listRequest.execute();
-      // Add the items in this page of results to the list we'll return.
-      results.addAll(objects.getItems());
-
-      // Get the next page, in the next iteration of this loop.
-      listRequest.setPageToken(objects.getNextPageToken());
-    } while (null != objects.getNextPageToken());
-
+    // The listing requests each page of results as the previous one is consumed.
+    for (StorageObject object : new ObjectListing(client, bucketName)) {
+      results.add(object);
+    }
     return results;
   }
   // [END list_bucket]
 
+  // [START list_bucket_lazily]
+  /**
+   * Prints the name and size of each object within the given bucket, as the listing is paged in.
+   *
+   * <p>Only the name and size of each object are requested, and only one page of results is held
+   * in memory, so this works for buckets of any size.
+   *
+   * @param bucketName the name of the bucket to list.
+   * @param out where to print the objects.
+   * @return the number of objects in the bucket.
+   */
+  public static long printBucket(String bucketName, PrintStream out)
+      throws IOException, GeneralSecurityException {
+    Storage client = StorageFactory.getService();
+    ObjectListing listing =
+        new ObjectListing(client, bucketName).setFields(ObjectListing.NAME_AND_SIZE);
+
+    long count = 0;
+    for (StorageObject object : listing) {
+      out.println(object.getName() + " (" + object.getSize() + " bytes)");
+      count++;
+    }
+    return count;
+  }
+  // [END list_bucket_lazily]
+
   // [START get_bucket]
   /**
    * Fetches the metadata for the given bucket.
@@ -121,6 +142,31 @@ public class StorageSample {
   }
   // [END upload_stream]
 
+  // [START upload_parallel]
+  /**
+   * Uploads a large file as parts sent in parallel, which are then composed into one object.
+   *
+   * @param name the name of the destination object.
+   * @param contentType the MIME type of the data.
+   * @param file the file to upload.
+   * @param bucketName the name of the bucket to create the object in.
+   * @param threads the number of parts to upload at a time.
+   * @return the metadata of the new object.
+   */
+  public static StorageObject uploadFileParallel(
+      String name, String contentType, File file, String bucketName, int threads)
+      throws IOException, GeneralSecurityException, InterruptedException {
+    Storage client = StorageFactory.getService();
+    ParallelUploader uploader =
+        new ParallelUploader(client, ParallelUploader.DEFAULT_PART_BYTES, threads);
+    try (InputStream data = new FileInputStream(file)) {
+      StorageObject object = uploader.upload(bucketName, name, contentType, data);
+      uploader.printStats(System.out);
+      return object;
+    }
+  }
+  // [END upload_parallel]
+
   // [START delete_object]
   /**
    * Deletes an object in a bucket.
@@ -158,14 +204,10 @@ public class StorageSample {
 
 
       // List the contents of the bucket.
-      List<StorageObject> bucketContents = listBucket(bucketName);
-      if (null == bucketContents) {
+      if (printBucket(bucketName, System.out) == 0) {
         System.out.println(
             "There were no objects in the given bucket; try adding some and re-running.");
       }
-      for (StorageObject object : bucketContents) {
-        System.out.println(object.getName() + " (" + object.getSize() + " bytes)");
-      }
 
       // Create a temp file to upload
       Path tempPath = Files.createTempFile("StorageSample", "txt");
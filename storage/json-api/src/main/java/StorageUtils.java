@@ -16,19 +16,78 @@
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 public class StorageUtils {
 
+  // CRC32C (Castagnoli) polynomial, in reversed bit order.
+  private static final int CRC32C_POLYNOMIAL = 0x82F63B78;
+
   /**
    * Reads the contents of an InputStream and does nothing with it.
    */
   public static void readStream(InputStream is) throws IOException {
-    byte[] inputBuffer = new byte[256];
+    // Large reads keep the per-call overhead small compared to the data copied.
+    byte[] inputBuffer = new byte[64 * 1024];
     while (is.read(inputBuffer) != -1) {}
     // The caller is responsible for closing this InputStream.
     is.close();
   }
 
+  /**
+   * Combines the CRC32C checksums of two consecutive pieces of data into the checksum of both,
+   * given the length of the second piece, as zlib's {@code crc32_combine} does for CRC32. This lets
+   * pieces downloaded in parallel be checked against the checksum of the whole object without
+   * reading them again.
+   */
+  public static int crc32cCombine(int crc1, int crc2, long length2) {
+    if (length2 <= 0) {
+      return crc1;
+    }
+    // Operators that append one, then two and four zero bits to a checksum.
+    int[] even = new int[32];
+    int[] odd = new int[32];
+    odd[0] = CRC32C_POLYNOMIAL;
+    for (int n = 1; n < 32; n++) {
+      odd[n] = 1 << (n - 1);
+    }
+    gf2MatrixSquare(even, odd);
+    gf2MatrixSquare(odd, even);
+    // Append length2 zero bytes to crc1, squaring the operator for each bit of the length.
+    do {
+      gf2MatrixSquare(even, odd);
+      if ((length2 & 1) != 0) {
+        crc1 = gf2MatrixTimes(even, crc1);
+      }
+      length2 >>= 1;
+      if (length2 == 0) {
+        break;
+      }
+      gf2MatrixSquare(odd, even);
+      if ((length2 & 1) != 0) {
+        crc1 = gf2MatrixTimes(odd, crc1);
+      }
+      length2 >>= 1;
+    } while (length2 != 0);
+    return crc1 ^ crc2;
+  }
+
+  private static int gf2MatrixTimes(int[] matrix, int vector) {
+    int sum = 0;
+    for (int i = 0; vector != 0; i++, vector >>>= 1) {
+      if ((vector & 1) != 0) {
+        sum ^= matrix[i];
+      }
+    }
+    return sum;
+  }
+
+  private static void gf2MatrixSquare(int[] square, int[] matrix) {
+    for (int n = 0; n < 32; n++) {
+      square[n] = gf2MatrixTimes(matrix, matrix[n]);
+    }
+  }
+
   /**
    * A helper class to provide input streams of any size.
    * The input streams will be full of null bytes.
@@ -51,6 +110,20 @@ public class StorageUtils {
       bytesRead++;
       return 0;
     }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (bytesRead >= streamSize) {
+        return -1;
+      }
+      int count = (int) Math.min(len, streamSize - bytesRead);
+      Arrays.fill(b, off, off + count, (byte) 0);
+      bytesRead += count;
+      return count;
+    }
   }
 }
 
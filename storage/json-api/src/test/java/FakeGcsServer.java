@@ -0,0 +1,629 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.ComposeRequest;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.RewriteResponse;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * A local stand-in for the Cloud Storage JSON API that keeps objects in memory.
+ *
+ * <p>Supports resumable uploads, compose, get, delete and paged listing with simple field
+ * projection of the listed objects. Media downloads honor byte ranges and generations, and objects
+ * uploaded with a customer-supplied encryption key can only be read with the same key. Every
+ * request can be delayed to simulate network latency, upload chunks can be made to fail with 503
+ * Service Unavailable, and downloads can be cut off halfway through. Rewrites copy objects in
+ * steps of {@code maxBytesRewrittenPerCall}, and can change their customer-supplied key.
+ */
+class FakeGcsServer implements AutoCloseable {
+
+  private static final JsonFactory JSON = JacksonFactory.getDefaultInstance();
+  private static final String UPLOAD_PREFIX = "/upload/storage/v1/b/";
+  private static final String API_PREFIX = "/storage/v1/b/";
+  private static final Pattern ITEMS_FIELDS = Pattern.compile("items\\(([^)]*)\\)");
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)?");
+  private static final Pattern CONTENT_RANGE =
+      Pattern.compile("bytes (\\*|(\\d+)-(\\d+))/(\\*|\\d+)");
+
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final long latencyMillis;
+  // Objects by bucket and name, sorted by name.
+  private final ConcurrentSkipListMap<String, Blob> objects = new ConcurrentSkipListMap<>();
+  private final Map<String, Session> sessions = new ConcurrentSkipListMap<>();
+  private final AtomicLong generations = new AtomicLong();
+  private final AtomicInteger chunkRequests = new AtomicInteger();
+  private final AtomicInteger failedChunks = new AtomicInteger();
+  private final AtomicInteger composes = new AtomicInteger();
+  private final AtomicInteger listRequests = new AtomicInteger();
+  private final AtomicInteger downloads = new AtomicInteger();
+  private final AtomicInteger truncatedDownloads = new AtomicInteger();
+  private final AtomicInteger rewriteCalls = new AtomicInteger();
+  private final Map<String, Integer> rewriteQuotas = new ConcurrentHashMap<>();
+  private volatile int failEvery = 0;
+  private volatile int truncateEvery = 0;
+
+  private static class Blob {
+    final byte[] data;
+    final String contentType;
+    final long generation;
+    // The SHA-256 hash of the customer-supplied key, or null if the object is not encrypted.
+    final String keySha256;
+
+    Blob(byte[] data, String contentType, long generation, String keySha256) {
+      this.data = data;
+      this.contentType = contentType;
+      this.generation = generation;
+      this.keySha256 = keySha256;
+    }
+  }
+
+  private static class Session {
+    final String bucket;
+    final String name;
+    final String contentType;
+    final String keySha256;
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+    Session(String bucket, String name, String contentType, String keySha256) {
+      this.bucket = bucket;
+      this.name = name;
+      this.contentType = contentType;
+      this.keySha256 = keySha256;
+    }
+  }
+
+  /** Starts a server on a free local port that delays every response by {@code latencyMillis}. */
+  FakeGcsServer(long latencyMillis) throws IOException {
+    this.latencyMillis = latencyMillis;
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  String getRootUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  /** Creates a client for this server, which retries transient errors without waiting. */
+  Storage newStorage() {
+    return new Storage.Builder(
+            new NetHttpTransport(),
+            JSON,
+            new RetryHttpInitializer(null, millis -> {}))
+        .setRootUrl(getRootUrl())
+        .setApplicationName("GCS Samples Tests")
+        .build();
+  }
+
+  /** Fails every {@code n}th upload chunk with 503, or none if {@code n} is 0. */
+  void failEveryNthChunk(int n) {
+    failEvery = n;
+  }
+
+  /** Denies rewrites of the object {@code name} after {@code calls} more calls. */
+  void denyRewritesAfter(String name, int calls) {
+    rewriteQuotas.put(name, calls);
+  }
+
+  /** Allows every rewrite again. */
+  void allowRewrites() {
+    rewriteQuotas.clear();
+  }
+
+  /** Closes the connection halfway through every {@code n}th download, or none if 0. */
+  void truncateEveryNthDownload(int n) {
+    truncateEvery = n;
+  }
+
+  void putObject(String bucket, String name, String contentType, byte[] data) {
+    putObject(bucket, name, contentType, data, null);
+  }
+
+  /** Stores an object encrypted with the customer-supplied key of hash {@code keySha256}. */
+  void putObject(String bucket, String name, String contentType, byte[] data, String keySha256) {
+    objects.put(
+        key(bucket, name),
+        new Blob(data, contentType, generations.incrementAndGet(), keySha256));
+  }
+
+  /** The hash of the customer-supplied key of an object, or null if it has none. */
+  String getKeySha256(String bucket, String name) {
+    return objects.get(key(bucket, name)).keySha256;
+  }
+
+  /** The content of an object, or null if it does not exist. */
+  byte[] getObject(String bucket, String name) {
+    Blob blob = objects.get(key(bucket, name));
+    return blob == null ? null : blob.data;
+  }
+
+  /** The names of the objects in {@code bucket}, in order. */
+  List<String> getObjectNames(String bucket) {
+    String prefix = bucket + "/";
+    return objects.keySet().stream()
+        .filter(key -> key.startsWith(prefix))
+        .map(key -> key.substring(prefix.length()))
+        .collect(Collectors.toList());
+  }
+
+  /** Number of upload requests that carried data. */
+  int getChunkRequests() {
+    return chunkRequests.get();
+  }
+
+  /** Number of upload chunks that were failed on purpose. */
+  int getFailedChunks() {
+    return failedChunks.get();
+  }
+
+  int getComposes() {
+    return composes.get();
+  }
+
+  int getListRequests() {
+    return listRequests.get();
+  }
+
+  /** Number of media downloads, including those cut off. */
+  int getDownloads() {
+    return downloads.get();
+  }
+
+  int getTruncatedDownloads() {
+    return truncatedDownloads.get();
+  }
+
+  /** Number of successful rewrite calls. */
+  int getRewriteCalls() {
+    return rewriteCalls.get();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (latencyMillis > 0) {
+        Thread.sleep(latencyMillis);
+      }
+      String path = exchange.getRequestURI().getRawPath();
+      Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+      if (path.startsWith(UPLOAD_PREFIX)) {
+        upload(exchange, segments(path.substring(UPLOAD_PREFIX.length())), query);
+      } else if (path.startsWith(API_PREFIX)) {
+        api(exchange, segments(path.substring(API_PREFIX.length())), query);
+      } else {
+        sendError(exchange, 404, "Not Found");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      sendError(exchange, 500, e.toString());
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void upload(HttpExchange exchange, String[] segments, Map<String, String> query)
+      throws IOException {
+    byte[] body = ByteStreams.toByteArray(exchange.getRequestBody());
+    String method = exchange.getRequestMethod();
+    if (method.equals("POST") && "resumable".equals(query.get("uploadType"))) {
+      StorageObject metadata =
+          body.length == 0
+              ? new StorageObject()
+              : JSON.fromString(new String(body, StandardCharsets.UTF_8), StorageObject.class);
+      String name = query.containsKey("name") ? query.get("name") : metadata.getName();
+      String contentType = exchange.getRequestHeaders().getFirst("X-Upload-Content-Type");
+      String keySha256 = exchange.getRequestHeaders().getFirst("x-goog-encryption-key-sha256");
+      String id = UUID.randomUUID().toString();
+      sessions.put(id, new Session(segments[0], name, contentType, keySha256));
+      exchange
+          .getResponseHeaders()
+          .set(
+              "Location",
+              getRootUrl() + UPLOAD_PREFIX.substring(1) + segments[0]
+                  + "/o?uploadType=resumable&upload_id=" + id);
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+    Session session = method.equals("PUT") ? sessions.get(query.get("upload_id")) : null;
+    if (session == null) {
+      sendError(exchange, 404, "No such upload");
+      return;
+    }
+    String contentRange = exchange.getRequestHeaders().getFirst("Content-Range");
+    Matcher range = CONTENT_RANGE.matcher(contentRange == null ? "" : contentRange);
+    if (!range.matches()) {
+      sendError(exchange, 400, "Bad Content-Range");
+      return;
+    }
+    synchronized (session) {
+      if (body.length > 0) {
+        int chunk = chunkRequests.incrementAndGet();
+        if (failEvery > 0 && chunk % failEvery == 0) {
+          failedChunks.incrementAndGet();
+          sendError(exchange, 503, "Backend Error");
+          return;
+        }
+        long start = Long.parseLong(range.group(2));
+        long received = session.data.size();
+        if (start > received) {
+          sendError(exchange, 400, "Chunk starts after the bytes received");
+          return;
+        }
+        int skip = (int) (received - start);
+        if (skip < body.length) {
+          session.data.write(body, skip, body.length - skip);
+        }
+      }
+      String total = range.group(4);
+      if (!total.equals("*") && Long.parseLong(total) == session.data.size()) {
+        sessions.values().remove(session);
+        putObject(
+            session.bucket,
+            session.name,
+            session.contentType,
+            session.data.toByteArray(),
+            session.keySha256);
+        sendJson(exchange, describe(session.bucket, session.name));
+        return;
+      }
+      if (session.data.size() > 0) {
+        exchange.getResponseHeaders().set("Range", "bytes=0-" + (session.data.size() - 1));
+      }
+      exchange.sendResponseHeaders(308, -1);
+    }
+  }
+
+  private void api(HttpExchange exchange, String[] segments, Map<String, String> query)
+      throws IOException {
+    String method = exchange.getRequestMethod();
+    String bucket = segments[0];
+    if (segments.length == 2 && segments[1].equals("o") && method.equals("GET")) {
+      list(exchange, bucket, query);
+    } else if (segments.length == 8 && segments[3].equals("rewriteTo") && method.equals("POST")) {
+      rewrite(exchange, bucket, segments[2], segments[5], segments[7], query);
+    } else if (segments.length == 4 && segments[3].equals("compose") && method.equals("POST")) {
+      compose(exchange, bucket, segments[2]);
+    } else if (segments.length == 3 && method.equals("GET")) {
+      Blob blob = objects.get(key(bucket, segments[2]));
+      if (blob == null) {
+        sendError(exchange, 404, "Not Found");
+      } else if ("media".equals(query.get("alt"))) {
+        download(exchange, blob, query);
+      } else {
+        sendJson(exchange, describe(bucket, segments[2]));
+      }
+    } else if (segments.length == 3 && method.equals("DELETE")) {
+      if (objects.remove(key(bucket, segments[2])) == null) {
+        sendError(exchange, 404, "Not Found");
+      } else {
+        exchange.sendResponseHeaders(204, -1);
+      }
+    } else {
+      sendError(exchange, 400, "Unsupported request " + method + " " + String.join("/", segments));
+    }
+  }
+
+  private void download(HttpExchange exchange, Blob blob, Map<String, String> query)
+      throws IOException {
+    if (query.containsKey("generation")
+        && Long.parseLong(query.get("generation")) != blob.generation) {
+      sendError(exchange, 404, "No such generation");
+      return;
+    }
+    String keySha256 = exchange.getRequestHeaders().getFirst("x-goog-encryption-key-sha256");
+    if (blob.keySha256 != null && !blob.keySha256.equals(keySha256)) {
+      sendError(exchange, 400, "The object is encrypted with a customer-supplied key");
+      return;
+    }
+    int first = 0;
+    int last = blob.data.length - 1;
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    Matcher matcher = RANGE.matcher(range == null ? "" : range);
+    if (matcher.matches()) {
+      first = Integer.parseInt(matcher.group(1));
+      if (matcher.group(2) != null) {
+        last = Math.min(last, Integer.parseInt(matcher.group(2)));
+      }
+      exchange
+          .getResponseHeaders()
+          .set("Content-Range", "bytes " + first + "-" + last + "/" + blob.data.length);
+    }
+    int length = last - first + 1;
+    exchange.getResponseHeaders().set("Content-Type", blob.contentType);
+    exchange.sendResponseHeaders(matcher.matches() ? 206 : 200, length == 0 ? -1 : length);
+    int download = downloads.incrementAndGet();
+    OutputStream out = exchange.getResponseBody();
+    if (truncateEvery > 0 && download % truncateEvery == 0) {
+      truncatedDownloads.incrementAndGet();
+      out.write(blob.data, first, length / 2);
+      out.flush();
+      try {
+        // Closing the exchange before the whole body is written drops the connection.
+        exchange.close();
+      } catch (IOException expected) {
+        // Insufficient bytes written to stream.
+      }
+      return;
+    }
+    out.write(blob.data, first, length);
+    out.close();
+  }
+
+  private void list(HttpExchange exchange, String bucket, Map<String, String> query)
+      throws IOException {
+    listRequests.incrementAndGet();
+    String prefix = bucket + "/" + query.getOrDefault("prefix", "");
+    int maxResults = Integer.parseInt(query.getOrDefault("maxResults", "1000"));
+    // The page token is the name of the last object of the previous page.
+    boolean firstPage = !query.containsKey("pageToken");
+    String from = firstPage ? prefix : key(bucket, query.get("pageToken"));
+    Matcher items = ITEMS_FIELDS.matcher(query.getOrDefault("fields", ""));
+    Set<String> itemFields =
+        items.find() ? new HashSet<>(Arrays.asList(items.group(1).split(","))) : null;
+
+    List<StorageObject> page = new ArrayList<>();
+    String name = null;
+    String nextPageToken = null;
+    for (String key : objects.tailMap(from, firstPage).keySet()) {
+      if (!key.startsWith(prefix)) {
+        break;
+      }
+      if (page.size() == maxResults) {
+        nextPageToken = name;
+        break;
+      }
+      name = key.substring(bucket.length() + 1);
+      StorageObject object = describe(bucket, name);
+      if (itemFields != null) {
+        StorageObject projected = new StorageObject();
+        for (String field : itemFields) {
+          if (object.get(field) != null) {
+            projected.set(field, object.get(field));
+          }
+        }
+        object = projected;
+      }
+      page.add(object);
+    }
+    Objects result = new Objects().setKind("storage#objects");
+    if (!page.isEmpty()) {
+      result.setItems(page);
+    }
+    if (nextPageToken != null) {
+      result.setNextPageToken(nextPageToken);
+    }
+    sendJson(exchange, result);
+  }
+
+  private void rewrite(
+      HttpExchange exchange,
+      String sourceBucket,
+      String sourceName,
+      String bucket,
+      String name,
+      Map<String, String> query)
+      throws IOException {
+    Headers headers = exchange.getRequestHeaders();
+    Blob source = objects.get(key(sourceBucket, sourceName));
+    if (source == null) {
+      sendError(exchange, 404, "Not Found");
+      return;
+    }
+    Blob destination = objects.get(key(bucket, name));
+    if (query.containsKey("ifGenerationMatch")
+        && (destination == null
+            || destination.generation != Long.parseLong(query.get("ifGenerationMatch")))) {
+      sendError(exchange, 412, "Precondition Failed");
+      return;
+    }
+    Integer remaining = rewriteQuotas.get(sourceName);
+    if (remaining != null && remaining-- <= 0) {
+      sendError(exchange, 403, "Forbidden");
+      return;
+    }
+    if (remaining != null) {
+      rewriteQuotas.put(sourceName, remaining);
+    }
+    String sourceKeySha256 = headers.getFirst("x-goog-copy-source-encryption-key-sha256");
+    if (source.keySha256 != null && !source.keySha256.equals(sourceKeySha256)) {
+      sendError(exchange, 400, "The source object is encrypted with a customer-supplied key");
+      return;
+    }
+    // The token is the generation of the source and the number of bytes copied so far.
+    long copied = 0;
+    String token = query.get("rewriteToken");
+    if (token != null) {
+      String[] parts = token.split(":");
+      if (Long.parseLong(parts[0]) != source.generation) {
+        sendError(exchange, 400, "Invalid rewrite token");
+        return;
+      }
+      copied = Long.parseLong(parts[1]);
+    }
+    rewriteCalls.incrementAndGet();
+    long step =
+        query.containsKey("maxBytesRewrittenPerCall")
+            ? Long.parseLong(query.get("maxBytesRewrittenPerCall"))
+            : Long.MAX_VALUE;
+    copied = Math.min(source.data.length, copied + step);
+    RewriteResponse response =
+        new RewriteResponse()
+            .setKind("storage#rewriteResponse")
+            .setObjectSize(BigInteger.valueOf(source.data.length))
+            .setTotalBytesRewritten(BigInteger.valueOf(copied))
+            .setDone(copied == source.data.length);
+    if (response.getDone()) {
+      putObject(
+          bucket,
+          name,
+          source.contentType,
+          source.data,
+          headers.getFirst("x-goog-encryption-key-sha256"));
+      response.setResource(describe(bucket, name));
+    } else {
+      response.setRewriteToken(source.generation + ":" + copied);
+    }
+    sendJson(exchange, response);
+  }
+
+  private void compose(HttpExchange exchange, String bucket, String destination)
+      throws IOException {
+    ComposeRequest request =
+        JSON.fromInputStream(
+            exchange.getRequestBody(), StandardCharsets.UTF_8, ComposeRequest.class);
+    if (request.getSourceObjects().size() > 32) {
+      sendError(exchange, 400, "Too many source objects");
+      return;
+    }
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    for (ComposeRequest.SourceObjects source : request.getSourceObjects()) {
+      Blob blob = objects.get(key(bucket, source.getName()));
+      if (blob == null) {
+        sendError(exchange, 404, "Source object not found: " + source.getName());
+        return;
+      }
+      data.write(blob.data);
+    }
+    composes.incrementAndGet();
+    putObject(bucket, destination, request.getDestination().getContentType(), data.toByteArray());
+    sendJson(exchange, describe(bucket, destination));
+  }
+
+  private StorageObject describe(String bucket, String name) {
+    Blob blob = objects.get(key(bucket, name));
+    // Cloud Storage sends the CRC32C checksum in big-endian byte order.
+    byte[] crc32c = Ints.toByteArray(Hashing.crc32c().hashBytes(blob.data).asInt());
+    StorageObject object =
+        new StorageObject()
+            .setBucket(bucket)
+            .setName(name)
+            .setSize(BigInteger.valueOf(blob.data.length))
+            .setContentType(blob.contentType)
+            .setGeneration(blob.generation)
+            .setCrc32c(BaseEncoding.base64().encode(crc32c));
+    if (blob.keySha256 != null) {
+      object.setCustomerEncryption(
+          new StorageObject.CustomerEncryption()
+              .setEncryptionAlgorithm("AES256")
+              .setKeySha256(blob.keySha256));
+    }
+    return object;
+  }
+
+  private static void sendJson(HttpExchange exchange, GenericJson json) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    send(exchange, 200, JSON.toByteArray(json));
+  }
+
+  private static void sendError(HttpExchange exchange, int code, String message)
+      throws IOException {
+    String body =
+        String.format("{\"error\": {\"code\": %d, \"message\": %s}}", code, JSON.toString(message));
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    send(exchange, code, body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void send(HttpExchange exchange, int code, byte[] body) throws IOException {
+    exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static String key(String bucket, String name) {
+    return bucket + "/" + name;
+  }
+
+  private static String[] segments(String rawPath) {
+    String[] segments = rawPath.split("/");
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = decode(segments[i]);
+    }
+    return segments;
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery) {
+    Map<String, String> query = new HashMap<>();
+    if (rawQuery != null) {
+      for (String pair : rawQuery.split("&")) {
+        int equals = pair.indexOf('=');
+        if (equals < 0) {
+          query.put(decode(pair), "");
+        } else {
+          query.put(decode(pair.substring(0, equals)), decode(pair.substring(equals + 1)));
+        }
+      }
+    }
+    return query;
+  }
+
+  private static String decode(String encoded) {
+    try {
+      // Object names are percent-encoded, so a plus sign is not a space.
+      return URLDecoder.decode(encoded.replace("+", "%2B"), "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.services.storage.Storage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link KeyRotator}, against a local stand-in for Cloud Storage. */
+@RunWith(JUnit4.class)
+public class KeyRotatorTest {
+  private static final String BUCKET = "test-bucket";
+  private static final String OLD_KEY = "4RzDI0TeWa9M/nAvYH05qbCskPaSU/CFV5HeCxk0IUA=";
+  private static final String OLD_KEY_HASH = "aanjNC2nwso8e2FqcWILC3/Tt1YumvIwEj34kr6PRpI=";
+  private static final String NEW_KEY = "oevtavYZC+TfGtV86kJBKTeytXAm1s2r3xIqam+QPKM=";
+  private static final String NEW_KEY_HASH = "/gd0N3k3MK0SEDxnUiaswl0FFv6+5PHpo+5KD5SBCeA=";
+  private static final int MB = 1024 * 1024;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private FakeGcsServer server;
+  private Storage storage;
+  private Path checkpoint;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FakeGcsServer(0);
+    storage = server.newStorage();
+    checkpoint = folder.getRoot().toPath().resolve("rotation.checkpoint");
+    for (int i = 0; i < 40; i++) {
+      server.putObject(
+          BUCKET, String.format("keys/object-%03d", i), "text/plain", new byte[i], OLD_KEY_HASH);
+    }
+    // Three calls each at 1MB per call.
+    server.putObject(BUCKET, "keys/large", "text/plain", new byte[3 * MB - 1], OLD_KEY_HASH);
+    server.putObject(BUCKET, "keys/plain", "text/plain", new byte[10]);
+    server.putObject(BUCKET, "keys/rotated", "text/plain", new byte[10], NEW_KEY_HASH);
+    server.putObject(BUCKET, "other/object", "text/plain", new byte[10], OLD_KEY_HASH);
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  private KeyRotator newRotator() {
+    return new KeyRotator(storage, OLD_KEY, OLD_KEY_HASH, NEW_KEY, NEW_KEY_HASH, 8)
+        .setMaxBytesPerCall(MB)
+        .setCheckpoint(checkpoint);
+  }
+
+  @Test
+  public void testRotatesEveryObjectUnderPrefix() throws Exception {
+    KeyRotator rotator = newRotator();
+
+    long rotated = rotator.rotate(BUCKET, "keys/");
+
+    assertThat(rotated).isEqualTo(41);
+    assertThat(rotator.getSkipped()).isEqualTo(2);
+    assertThat(rotator.getFailed()).isEqualTo(0);
+    // One call for each small object, three for the large one.
+    assertThat(rotator.getRewriteCalls()).isEqualTo(43);
+    for (String name : server.getObjectNames(BUCKET)) {
+      if (name.startsWith("keys/") && !name.equals("keys/plain")) {
+        assertThat(server.getKeySha256(BUCKET, name)).isEqualTo(NEW_KEY_HASH);
+      }
+    }
+    assertThat(server.getKeySha256(BUCKET, "keys/plain")).isNull();
+    assertThat(server.getKeySha256(BUCKET, "other/object")).isEqualTo(OLD_KEY_HASH);
+    assertThat(server.getObject(BUCKET, "keys/large")).hasLength(3 * MB - 1);
+    assertThat(Files.exists(checkpoint)).isFalse();
+  }
+
+  @Test
+  public void testInterruptedRotationResumesFromCheckpoint() throws Exception {
+    // The large object fails after its first call, the others complete.
+    server.denyRewritesAfter("keys/large", 1);
+    KeyRotator first = newRotator();
+
+    assertThat(first.rotate(BUCKET, "keys/")).isEqualTo(40);
+    assertThat(first.getFailed()).isEqualTo(1);
+    assertThat(Files.exists(checkpoint)).isTrue();
+    assertThat(server.getKeySha256(BUCKET, "keys/large")).isEqualTo(OLD_KEY_HASH);
+
+    server.allowRewrites();
+    int callsBefore = server.getRewriteCalls();
+    KeyRotator second = newRotator();
+
+    assertThat(second.rotate(BUCKET, "keys/")).isEqualTo(1);
+    // The large object continues from its saved rewrite token, with its last two calls.
+    assertThat(server.getRewriteCalls() - callsBefore).isEqualTo(2);
+    assertThat(server.getKeySha256(BUCKET, "keys/large")).isEqualTo(NEW_KEY_HASH);
+    assertThat(Files.exists(checkpoint)).isFalse();
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.services.storage.model.StorageObject;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ObjectListing}, against a local stand-in for Cloud Storage. */
+@RunWith(JUnit4.class)
+public class ObjectListingTest {
+  private static final String BUCKET = "test-bucket";
+
+  private FakeGcsServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FakeGcsServer(0);
+    for (int i = 0; i < 2500; i++) {
+      String name = String.format("%s/object-%05d", i % 2 == 0 ? "even" : "odd", i);
+      server.putObject(BUCKET, name, "text/plain", new byte[i % 10]);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  public void testListsEveryObjectInOrder() {
+    ObjectListing listing = new ObjectListing(server.newStorage(), BUCKET);
+
+    List<String> names = listing.stream().map(StorageObject::getName).collect(Collectors.toList());
+
+    assertThat(names).hasSize(2500);
+    assertThat(names).isInStrictOrder();
+    assertThat(listing.getPages()).isEqualTo(3);
+  }
+
+  @Test
+  public void testPagesAreFetchedAsTheyAreConsumed() {
+    ObjectListing listing = new ObjectListing(server.newStorage(), BUCKET).setPageSize(100);
+    Iterator<StorageObject> objects = listing.iterator();
+
+    assertThat(server.getListRequests()).isEqualTo(0);
+    for (int i = 0; i < 100; i++) {
+      objects.next();
+    }
+    assertThat(server.getListRequests()).isEqualTo(1);
+    objects.next();
+    assertThat(server.getListRequests()).isEqualTo(2);
+  }
+
+  @Test
+  public void testPrefixAndFieldProjection() {
+    ObjectListing listing =
+        new ObjectListing(server.newStorage(), BUCKET)
+            .setPrefix("odd/")
+            .setFields("items(name,size)");
+
+    List<StorageObject> objects = listing.stream().collect(Collectors.toList());
+
+    assertThat(objects).hasSize(1250);
+    StorageObject first = objects.get(0);
+    assertThat(first.getName()).isEqualTo("odd/object-00001");
+    assertThat(first.getSize().longValue()).isEqualTo(1);
+    assertThat(first.getContentType()).isNull();
+    assertThat(first.getBucket()).isNull();
+  }
+
+  @Test
+  public void testEmptyBucket() {
+    ObjectListing listing = new ObjectListing(server.newStorage(), "empty-bucket");
+
+    assertThat(listing.iterator().hasNext()).isFalse();
+    assertThat(listing.getPages()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.storage.Storage;
+import com.google.common.hash.Hashing;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ParallelDownloader}, against a local stand-in for Cloud Storage. */
+@RunWith(JUnit4.class)
+public class ParallelDownloaderTest {
+  private static final String BUCKET = "test-bucket";
+  private static final int RANGE_BYTES = 1024 * 1024;
+  private static final String KEY = "4RzDI0TeWa9M/nAvYH05qbCskPaSU/CFV5HeCxk0IUA=";
+  private static final String KEY_HASH = "aanjNC2nwso8e2FqcWILC3/Tt1YumvIwEj34kr6PRpI=";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private FakeGcsServer server;
+  private Storage storage;
+  private Path destination;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FakeGcsServer(0);
+    storage = server.newStorage();
+    destination = folder.getRoot().toPath().resolve("download.bin");
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+
+  @Test
+  public void testDownloadsRangesInParallel() throws Exception {
+    byte[] data = randomBytes(5 * RANGE_BYTES + 123);
+    server.putObject(BUCKET, "big.bin", "application/octet-stream", data);
+    ParallelDownloader downloader = new ParallelDownloader(storage, RANGE_BYTES, 4);
+
+    downloader.download(BUCKET, "big.bin", destination);
+
+    assertThat(Files.readAllBytes(destination)).isEqualTo(data);
+    assertThat(downloader.getRanges()).isEqualTo(6);
+    assertThat(downloader.getBytes()).isEqualTo(data.length);
+    assertThat(server.getDownloads()).isEqualTo(6);
+  }
+
+  @Test
+  public void testEmptyObject() throws Exception {
+    server.putObject(BUCKET, "empty.bin", "application/octet-stream", new byte[0]);
+    ParallelDownloader downloader = new ParallelDownloader(storage, RANGE_BYTES, 4);
+
+    downloader.download(BUCKET, "empty.bin", destination);
+
+    assertThat(Files.size(destination)).isEqualTo(0);
+    assertThat(server.getDownloads()).isEqualTo(0);
+  }
+
+  @Test
+  public void testTruncatedRangesAreResumed() throws Exception {
+    byte[] data = randomBytes(8 * RANGE_BYTES);
+    server.putObject(BUCKET, "flaky.bin", "application/octet-stream", data);
+    server.truncateEveryNthDownload(3);
+    // On a single thread, a range is never cut off twice in a row.
+    ParallelDownloader downloader = new ParallelDownloader(storage, RANGE_BYTES, 1);
+
+    downloader.download(BUCKET, "flaky.bin", destination);
+
+    assertThat(server.getTruncatedDownloads()).isGreaterThan(0);
+    assertThat(downloader.getRetries()).isAtLeast(server.getTruncatedDownloads());
+    assertThat(Files.readAllBytes(destination)).isEqualTo(data);
+  }
+
+  @Test
+  public void testEncryptedObjectNeedsItsKey() throws Exception {
+    byte[] data = randomBytes(3 * RANGE_BYTES);
+    server.putObject(BUCKET, "secret.bin", "application/octet-stream", data, KEY_HASH);
+
+    try {
+      new ParallelDownloader(storage, RANGE_BYTES, 4).download(BUCKET, "secret.bin", destination);
+      fail("Expected the download to fail without the key");
+    } catch (HttpResponseException e) {
+      assertThat(e.getStatusCode()).isEqualTo(400);
+    }
+    assertThat(Files.exists(destination)).isFalse();
+
+    new ParallelDownloader(storage, RANGE_BYTES, 4)
+        .setEncryptionKey(KEY, KEY_HASH)
+        .download(BUCKET, "secret.bin", destination);
+    assertThat(Files.readAllBytes(destination)).isEqualTo(data);
+  }
+
+  @Test
+  public void testCrc32cCombine() {
+    byte[] data = randomBytes(100000);
+    int whole = Hashing.crc32c().hashBytes(data).asInt();
+    for (int split : new int[] {0, 1, 4096, 65537, 99999, 100000}) {
+      int first = Hashing.crc32c().hashBytes(data, 0, split).asInt();
+      int second = Hashing.crc32c().hashBytes(data, split, data.length - split).asInt();
+      assertThat(StorageUtils.crc32cCombine(first, second, data.length - split)).isEqualTo(whole);
+    }
+  }
+}
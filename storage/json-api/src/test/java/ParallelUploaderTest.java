@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.io.CountingInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ParallelUploader}, against a local stand-in for Cloud Storage. */
+@RunWith(JUnit4.class)
+public class ParallelUploaderTest {
+  private static final String BUCKET = "test-bucket";
+  private static final int PART_BYTES = 256 * 1024;
+
+  private FakeGcsServer server;
+  private Storage storage;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FakeGcsServer(0);
+    storage = server.newStorage();
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+
+  @Test
+  public void testSmallObjectIsUploadedDirectly() throws Exception {
+    byte[] data = randomBytes(100 * 1024);
+    ParallelUploader uploader = new ParallelUploader(storage, PART_BYTES, 4);
+
+    StorageObject object =
+        uploader.upload(BUCKET, "small.bin", "application/octet-stream", stream(data));
+
+    assertThat(object.getSize().longValue()).isEqualTo(data.length);
+    assertThat(server.getObject(BUCKET, "small.bin")).isEqualTo(data);
+    assertThat(uploader.getParts()).isEqualTo(1);
+    assertThat(uploader.getComposes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testPartsAreComposedAndDeleted() throws Exception {
+    byte[] data = randomBytes(10 * PART_BYTES + 1234);
+    ParallelUploader uploader = new ParallelUploader(storage, PART_BYTES, 4);
+
+    StorageObject object = uploader.upload(BUCKET, "dir/big.bin", "text/plain", stream(data));
+
+    assertThat(object.getName()).isEqualTo("dir/big.bin");
+    assertThat(object.getContentType()).isEqualTo("text/plain");
+    assertThat(server.getObject(BUCKET, "dir/big.bin")).isEqualTo(data);
+    assertThat(uploader.getParts()).isEqualTo(11);
+    assertThat(uploader.getComposes()).isEqualTo(1);
+    assertThat(server.getObjectNames(BUCKET)).containsExactly("dir/big.bin");
+  }
+
+  @Test
+  public void testManyPartsAreComposedInGroups() throws Exception {
+    // 70 parts take three intermediate compose requests of at most 32 sources, then a final one.
+    long size = 70L * PART_BYTES;
+    ParallelUploader uploader = new ParallelUploader(storage, PART_BYTES, 8);
+
+    StorageObject object =
+        uploader.upload(
+            BUCKET,
+            "zeros.bin",
+            "application/octet-stream",
+            new StorageUtils.ArbitrarilyLargeInputStream(size));
+
+    assertThat(object.getSize().longValue()).isEqualTo(size);
+    assertThat(server.getObject(BUCKET, "zeros.bin")).hasLength((int) size);
+    assertThat(uploader.getParts()).isEqualTo(70);
+    assertThat(uploader.getComposes()).isEqualTo(4);
+    assertThat(server.getObjectNames(BUCKET)).containsExactly("zeros.bin");
+  }
+
+  @Test
+  public void testUploadResumesAfterTransientErrors() throws Exception {
+    // Parts of several chunks each, so failed chunks are resumed within their upload session.
+    byte[] data = randomBytes(5 * 1024 * 1024);
+    server.failEveryNthChunk(3);
+    ParallelUploader uploader = new ParallelUploader(storage, 4 * 1024 * 1024, 2);
+
+    uploader.upload(BUCKET, "flaky.bin", "application/octet-stream", stream(data));
+
+    assertThat(server.getFailedChunks()).isGreaterThan(0);
+    assertThat(server.getObject(BUCKET, "flaky.bin")).isEqualTo(data);
+    assertThat(server.getObjectNames(BUCKET)).containsExactly("flaky.bin");
+  }
+
+  @Test
+  public void testStopsReadingAfterAPartFails() throws Exception {
+    // Every chunk fails, so every part fails once its retries run out.
+    server.failEveryNthChunk(1);
+    long size = 100L * PART_BYTES;
+    CountingInputStream data =
+        new CountingInputStream(new StorageUtils.ArbitrarilyLargeInputStream(size));
+    ParallelUploader uploader = new ParallelUploader(storage, PART_BYTES, 2);
+
+    try {
+      uploader.upload(BUCKET, "failed.bin", "application/octet-stream", data);
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+      // The parts could not be uploaded.
+    }
+
+    // Only the parts in flight, and the ones read ahead of them, were read.
+    assertThat(data.getCount()).isLessThan(10L * PART_BYTES);
+    assertThat(server.getObjectNames(BUCKET)).isEmpty();
+  }
+
+  private static InputStream stream(byte[] data) {
+    return new ByteArrayInputStream(data);
+  }
+}
@@ -24,19 +24,16 @@ import com.google.api.client.http.HttpTransport;
 import com.google.api.client.util.Preconditions;
 
 import java.io.IOException;
-import java.io.StringReader;
-import java.io.StringWriter;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.net.URLEncoder;
 import java.security.GeneralSecurityException;
 import java.util.Collections;
 
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * Sample code used in the Cloud Storage Java documentation.
@@ -54,6 +51,9 @@ public final class StorageSample {
   /**
    * Fetches the listing of the given bucket.
    *
+   * <p>This reads the first page of the listing into a single string. To go through every object
+   * of a large bucket, use {@link #printBucket} instead.
+   *
    * @param bucketName the name of the bucket to list.
    *
    * @return the raw XML containing the listing of the bucket.
@@ -85,33 +85,121 @@ public final class StorageSample {
   }
 
   /**
-   * Prints out the contents of the given xml, in a more readable form.
+   * Prints the name and size of each object in the given bucket, one page of the listing at a
+   * time.
+   *
+   * <p>Each page is parsed as it is read from the connection and printed before the next page is
+   * requested, so memory use does not grow with the size of the bucket, and output starts after
+   * the first page.
+   *
+   * @param bucketName the name of the bucket to list.
+   * @param maxKeys the number of objects to request per page, at most 1000.
+   * @param out where to print the objects.
    *
-   * @param bucketName the name of the bucket you're listing.
-   * @param content the raw XML string.
+   * @return the number of objects in the bucket.
+   * @throws IOException if there's an error communicating with Cloud Storage.
+   * @throws GeneralSecurityException for errors creating https connection.
+   * @throws XMLStreamException if a listing cannot be parsed.
    */
-  private static void prettyPrintXml(
-      final String bucketName, final String content) {
-    // Instantiate transformer input.
-    Source xmlInput = new StreamSource(new StringReader(content));
-    StreamResult xmlOutput = new StreamResult(new StringWriter());
+  public static long printBucket(
+      final String bucketName, final int maxKeys, final PrintStream out)
+      throws IOException, GeneralSecurityException, XMLStreamException {
+    GoogleCredential credential = GoogleCredential.getApplicationDefault()
+        .createScoped(Collections.singleton(STORAGE_SCOPE));
+    HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+    HttpRequestFactory requestFactory = httpTransport.createRequestFactory(
+        credential);
+
+    long count = 0;
+    String marker = null;
+    do {
+      GenericUrl url = new GenericUrl("https://storage.googleapis.com/"
+          + URLEncoder.encode(bucketName, "UTF-8"));
+      url.set("max-keys", maxKeys);
+      if (marker != null) {
+        url.set("marker", marker);
+      }
+      HttpResponse response = requestFactory.buildGetRequest(url).execute();
+      ListingPage page;
+      try (InputStream content = response.getContent()) {
+        page = printPage(content, out);
+      } finally {
+        response.disconnect();
+      }
+      count += page.getCount();
+      marker = page.getNextMarker();
+    } while (marker != null);
+    return count;
+  }
+
+  /** The number of objects in one page of a listing, and where the next page starts. */
+  static final class ListingPage {
+    private final long count;
+    private final String nextMarker;
 
-    // Configure transformer.
+    ListingPage(final long count, final String nextMarker) {
+      this.count = count;
+      this.nextMarker = nextMarker;
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    /** The marker to request the next page with, or null if this is the last page. */
+    String getNextMarker() {
+      return nextMarker;
+    }
+  }
+
+  /**
+   * Prints the name and size of each object in a page of a bucket listing, as the XML is parsed
+   * from {@code content}.
+   *
+   * @param content the XML of a page of the listing.
+   * @param out where to print the objects.
+   *
+   * @return the number of objects in the page, and where the next page starts.
+   * @throws XMLStreamException if the listing cannot be parsed.
+   */
+  static ListingPage printPage(final InputStream content, final PrintStream out)
+      throws XMLStreamException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    // A listing has no DTD, and external entities must never be resolved.
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    XMLStreamReader reader = factory.createXMLStreamReader(content);
     try {
-      Transformer transformer = TransformerFactory.newInstance()
-          .newTransformer(); // An identity transformer
-      transformer.setOutputProperty(OutputKeys.DOCTYPE_SYSTEM, "testing.dtd");
-      transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-      transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-      transformer.setOutputProperty(
-          "{http://xml.apache.org/xslt}indent-amount", "2");
-      transformer.transform(xmlInput, xmlOutput);
-
-      // Pretty print the output XML.
-      System.out.println("\nBucket listing for " + bucketName + ":\n");
-      System.out.println(xmlOutput.getWriter().toString());
-    } catch (TransformerException e) {
-      e.printStackTrace();
+      long count = 0;
+      boolean truncated = false;
+      String nextMarker = null;
+      String key = null;
+      String size = null;
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          String element = reader.getLocalName();
+          if (element.equals("Key")) {
+            key = reader.getElementText();
+          } else if (element.equals("Size")) {
+            size = reader.getElementText();
+          } else if (element.equals("IsTruncated")) {
+            truncated = Boolean.parseBoolean(reader.getElementText());
+          } else if (element.equals("NextMarker")) {
+            nextMarker = reader.getElementText();
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT
+            && reader.getLocalName().equals("Contents")) {
+          out.println(key + " (" + size + " bytes)");
+          count++;
+        }
+      }
+      if (!truncated) {
+        return new ListingPage(count, null);
+      }
+      // The next page starts after the last object of this one, unless the server says otherwise.
+      return new ListingPage(count, nextMarker != null ? nextMarker : key);
+    } finally {
+      reader.close();
     }
   }
 
@@ -128,9 +216,8 @@ public final class StorageSample {
           "Please pass in the Google Cloud Storage bucket name to display");
       String bucketName = args[0];
 
-      String content = listBucket(bucketName);
-
-      prettyPrintXml(bucketName, content);
+      System.out.println("\nBucket listing for " + bucketName + ":\n");
+      printBucket(bucketName, 1000, System.out);
       System.exit(0);
 
     } catch (IOException e) {
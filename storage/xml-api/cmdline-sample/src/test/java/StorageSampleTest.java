@@ -17,6 +17,10 @@
 // [START StorageSampleTest]
 import static com.google.common.truth.Truth.assertThat;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import org.junit.Test;
 
 public class StorageSampleTest {
@@ -31,6 +35,40 @@ public class StorageSampleTest {
             + "<Name>" + PROJECT_ID + "</Name>.*"
             + "</ListBucketResult>.*");
   }
+
+  @Test
+  public void testPrintPage() throws Exception {
+    String page = "<?xml version='1.0' encoding='UTF-8'?>"
+        + "<ListBucketResult xmlns='http://doc.s3.amazonaws.com/2006-03-01'>"
+        + "<Name>bucket</Name><Prefix></Prefix><Marker></Marker>"
+        + "<IsTruncated>true</IsTruncated>"
+        + "<Contents><Key>a.txt</Key><Size>12</Size></Contents>"
+        + "<Contents><Key>b.txt</Key><Size>0</Size></Contents>"
+        + "</ListBucketResult>";
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+
+    StorageSample.ListingPage result = StorageSample.printPage(
+        new ByteArrayInputStream(page.getBytes(StandardCharsets.UTF_8)), new PrintStream(bout));
+
+    assertThat(result.getCount()).isEqualTo(2);
+    // Without a NextMarker, the next page starts after the last key.
+    assertThat(result.getNextMarker()).isEqualTo("b.txt");
+    assertThat(bout.toString()).contains("a.txt (12 bytes)");
+    assertThat(bout.toString()).contains("b.txt (0 bytes)");
+  }
+
+  @Test
+  public void testPrintLastPage() throws Exception {
+    String page = "<ListBucketResult><IsTruncated>false</IsTruncated>"
+        + "<Contents><Key>c.txt</Key><Size>3</Size></Contents></ListBucketResult>";
+
+    StorageSample.ListingPage result = StorageSample.printPage(
+        new ByteArrayInputStream(page.getBytes(StandardCharsets.UTF_8)),
+        new PrintStream(new ByteArrayOutputStream()));
+
+    assertThat(result.getCount()).isEqualTo(1);
+    assertThat(result.getNextMarker()).isNull();
+  }
 }
 
 // [END StorageSampleTest]
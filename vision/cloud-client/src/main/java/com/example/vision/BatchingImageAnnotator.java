@@ -0,0 +1,247 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vision;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.BatchAnnotateImagesRequest;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends image annotation requests from many callers in shared {@code batchAnnotateImages} calls.
+ *
+ * <p>Requests are queued and packed into batches of at most {@code maxBatchImages} images and
+ * {@code maxBatchBytes} bytes of request payload. A batch is sent as soon as it is full, or once
+ * its oldest request has waited {@code lingerMillis}. Up to {@code maxInFlight} batches are sent at
+ * a time without blocking a thread each, and every caller gets a future for its own response.
+ *
+ * <p>Per-image errors are returned in the response, as they are by {@code batchAnnotateImages}. If
+ * a whole batch fails, the futures of all its images fail with the same exception. The annotator
+ * does not own the client or the executor.
+ */
+public class BatchingImageAnnotator implements AutoCloseable {
+
+  // The API accepts at most 16 images per batchAnnotateImages call.
+  public static final int MAX_BATCH_IMAGES = 16;
+  // Stay well under the 10MB request size limit, which includes encoding overhead.
+  public static final long MAX_BATCH_BYTES = 8L * 1024 * 1024;
+
+  private final ImageAnnotatorClient client;
+  private final ScheduledExecutorService executor;
+  private final int maxBatchImages;
+  private final long maxBatchBytes;
+  private final int maxInFlight;
+  private final long lingerMillis;
+
+  // Guarded by this.
+  private List<Pending> current = new ArrayList<>();
+  private long currentBytes = 0;
+  private ScheduledFuture<?> lingerFuture;
+  private final Deque<List<Pending>> ready = new ArrayDeque<>();
+  private int inFlight = 0;
+  private boolean closed = false;
+  private long batchesSent = 0;
+  private long imagesSent = 0;
+
+  private static class Pending {
+    final AnnotateImageRequest request;
+    final CompletableFuture<AnnotateImageResponse> response = new CompletableFuture<>();
+
+    Pending(AnnotateImageRequest request) {
+      this.request = request;
+    }
+  }
+
+  /** Creates an annotator that uses the API batch limits and sends up to 4 batches at a time. */
+  public BatchingImageAnnotator(ImageAnnotatorClient client, ScheduledExecutorService executor) {
+    this(client, executor, MAX_BATCH_IMAGES, MAX_BATCH_BYTES, 4, 10);
+  }
+
+  /**
+   * Creates an annotator with the given batch limits. {@code lingerMillis} is how long a partial
+   * batch waits for more requests before it is sent.
+   */
+  public BatchingImageAnnotator(
+      ImageAnnotatorClient client,
+      ScheduledExecutorService executor,
+      int maxBatchImages,
+      long maxBatchBytes,
+      int maxInFlight,
+      long lingerMillis) {
+    if (maxBatchImages < 1 || maxBatchImages > MAX_BATCH_IMAGES) {
+      throw new IllegalArgumentException("maxBatchImages must be between 1 and 16");
+    }
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1");
+    }
+    this.client = client;
+    this.executor = executor;
+    this.maxBatchImages = maxBatchImages;
+    this.maxBatchBytes = maxBatchBytes;
+    this.maxInFlight = maxInFlight;
+    this.lingerMillis = lingerMillis;
+  }
+
+  /**
+   * Queues {@code request} and returns a future for its response. An image larger than the byte
+   * limit is sent in a batch of its own.
+   */
+  public CompletableFuture<AnnotateImageResponse> annotate(AnnotateImageRequest request) {
+    Pending pending = new Pending(request);
+    long size = request.getSerializedSize();
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("Annotator is closed");
+      }
+      if (!current.isEmpty() && currentBytes + size > maxBatchBytes) {
+        seal();
+      }
+      current.add(pending);
+      currentBytes += size;
+      if (current.size() >= maxBatchImages || currentBytes >= maxBatchBytes) {
+        seal();
+      } else if (lingerFuture == null) {
+        lingerFuture = executor.schedule(this::flush, lingerMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    dispatch();
+    return pending.response;
+  }
+
+  /** Sends the current partial batch without waiting for it to fill up. */
+  public void flush() {
+    synchronized (this) {
+      if (!current.isEmpty()) {
+        seal();
+      }
+    }
+    dispatch();
+  }
+
+  /** Number of {@code batchAnnotateImages} calls made so far. */
+  public synchronized long getBatchesSent() {
+    return batchesSent;
+  }
+
+  /** Number of images sent so far. */
+  public synchronized long getImagesSent() {
+    return imagesSent;
+  }
+
+  /** Sends any queued requests and waits until every batch has completed. */
+  @Override
+  public void close() throws InterruptedException {
+    synchronized (this) {
+      closed = true;
+    }
+    flush();
+    synchronized (this) {
+      while (inFlight > 0 || !ready.isEmpty()) {
+        wait();
+      }
+    }
+  }
+
+  // Moves the current batch to the ready queue. Must hold the lock.
+  private void seal() {
+    ready.add(current);
+    current = new ArrayList<>();
+    currentBytes = 0;
+    if (lingerFuture != null) {
+      lingerFuture.cancel(false);
+      lingerFuture = null;
+    }
+  }
+
+  private void dispatch() {
+    while (true) {
+      List<Pending> batch;
+      synchronized (this) {
+        if (inFlight >= maxInFlight || ready.isEmpty()) {
+          return;
+        }
+        batch = ready.poll();
+        inFlight++;
+        batchesSent++;
+        imagesSent += batch.size();
+      }
+      send(batch);
+    }
+  }
+
+  private void send(List<Pending> batch) {
+    BatchAnnotateImagesRequest.Builder request = BatchAnnotateImagesRequest.newBuilder();
+    for (Pending pending : batch) {
+      request.addRequests(pending.request);
+    }
+    ApiFuture<BatchAnnotateImagesResponse> future;
+    try {
+      future = client.batchAnnotateImagesCallable().futureCall(request.build());
+    } catch (RuntimeException e) {
+      future = ApiFutures.immediateFailedFuture(e);
+    }
+    ApiFutures.addCallback(
+        future,
+        new ApiFutureCallback<BatchAnnotateImagesResponse>() {
+          @Override
+          public void onSuccess(BatchAnnotateImagesResponse response) {
+            if (response.getResponsesCount() != batch.size()) {
+              onFailure(
+                  new IllegalStateException(
+                      String.format(
+                          "Expected %d responses, got %d",
+                          batch.size(), response.getResponsesCount())));
+              return;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+              batch.get(i).response.complete(response.getResponses(i));
+            }
+            completed();
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            for (Pending pending : batch) {
+              pending.response.completeExceptionally(t);
+            }
+            completed();
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private void completed() {
+    synchronized (this) {
+      inFlight--;
+      notifyAll();
+    }
+    dispatch();
+  }
+}
@@ -69,15 +69,43 @@ import com.google.protobuf.util.JsonFormat;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class Detect {
 
+  // The features that can be combined in a single request by the "features" command.
+  private static final Map<String, Type> FEATURE_COMMANDS = new LinkedHashMap<>();
+
+  static {
+    FEATURE_COMMANDS.put("faces", Type.FACE_DETECTION);
+    FEATURE_COMMANDS.put("labels", Type.LABEL_DETECTION);
+    FEATURE_COMMANDS.put("landmarks", Type.LANDMARK_DETECTION);
+    FEATURE_COMMANDS.put("logos", Type.LOGO_DETECTION);
+    FEATURE_COMMANDS.put("text", Type.TEXT_DETECTION);
+    FEATURE_COMMANDS.put("safe-search", Type.SAFE_SEARCH_DETECTION);
+    FEATURE_COMMANDS.put("properties", Type.IMAGE_PROPERTIES);
+    FEATURE_COMMANDS.put("crop", Type.CROP_HINTS);
+    FEATURE_COMMANDS.put("object-localization", Type.OBJECT_LOCALIZATION);
+  }
+
   /**
    * Detects entities, sentiment, and syntax in a document using the Vision API.
    *
@@ -101,12 +129,14 @@ public class Detect {
           "\tmvn exec:java -DDetect -Dexec.args=\"<command> <path-to-image>\"\n"
               + "\tmvn exec:java -DDetect -Dexec.args=\"ocr <path-to-file> <path-to-destination>\""
               + "\n"
+              + "\tmvn exec:java -DDetect -Dexec.args=\"features <command,...> <path> [<path>...]\""
+              + "\n"
               + "Commands:\n"
               + "\tfaces | labels | landmarks | logos | text | safe-search | properties"
               + "| web | web-entities | web-entities-include-geo | crop | ocr \n"
-              + "| object-localization \n"
+              + "| object-localization | labels-batch \n"
               + "Path:\n\tA file path (ex: ./resources/wakeupcat.jpg) or a URI for a Cloud Storage "
-              + "resource (gs://...)\n"
+              + "resource (gs://...), or a directory of images for labels-batch\n"
               + "Path to File:\n\tA path to the remote file on Cloud Storage (gs://...)\n"
               + "Path to Destination\n\tA path to the remote destination on Cloud Storage for the"
               + " file to be saved. (gs://BUCKET_NAME/PREFIX/)\n");
@@ -198,6 +228,19 @@ public class Detect {
       } else {
         detectLocalizedObjects(path, out);
       }
+    } else if (command.equals("labels-batch")) {
+      detectLabelsBatch(path, out);
+    } else if (command.equals("features")) {
+      Set<Type> features = EnumSet.noneOf(Type.class);
+      for (String name : path.split(",")) {
+        Type type = FEATURE_COMMANDS.get(name);
+        if (type == null) {
+          out.printf("Unknown feature: %s\n", name);
+          return;
+        }
+        features.add(type);
+      }
+      detectFeatures(Arrays.asList(args).subList(2, args.length), features, out);
     }
   }
 
@@ -1549,4 +1592,179 @@ public class Detect {
     }
   }
   // [END vision_localize_objects_gcs]
+
+  /**
+   * Detects labels in every image in a local directory, sending the images in shared batches.
+   *
+   * @param dirPath The directory containing the images to perform label detection on.
+   * @param out A {@link PrintStream} to write detected labels to.
+   * @throws Exception on errors while closing the client.
+   * @throws IOException on Input/Output errors.
+   */
+  public static void detectLabelsBatch(String dirPath, PrintStream out)
+      throws Exception, IOException {
+    List<Path> files;
+    try (Stream<Path> paths = Files.list(Paths.get(dirPath))) {
+      files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    try (ImageAnnotatorClient client = ImageAnnotatorClient.create()) {
+      // Images are queued as they are read, and sent up to 16 at a time.
+      List<CompletableFuture<AnnotateImageResponse>> responses = new ArrayList<>();
+      try (BatchingImageAnnotator annotator = new BatchingImageAnnotator(client, executor)) {
+        for (Path file : files) {
+          Image img = Image.newBuilder().setContent(ByteString.copyFrom(Files.readAllBytes(file)))
+              .build();
+          Feature feat = Feature.newBuilder().setType(Type.LABEL_DETECTION).build();
+          responses.add(
+              annotator.annotate(
+                  AnnotateImageRequest.newBuilder().addFeatures(feat).setImage(img).build()));
+        }
+      }
+
+      for (int i = 0; i < files.size(); i++) {
+        out.printf("%s:\n", files.get(i).getFileName());
+        AnnotateImageResponse res;
+        try {
+          res = responses.get(i).get();
+        } catch (ExecutionException e) {
+          out.printf("Error: %s\n", e.getCause().getMessage());
+          continue;
+        }
+        if (res.hasError()) {
+          out.printf("Error: %s\n", res.getError().getMessage());
+          continue;
+        }
+        for (EntityAnnotation annotation : res.getLabelAnnotationsList()) {
+          out.printf("%s : %s\n", annotation.getDescription(), annotation.getScore());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Detects several features in each of the specified images, reading and sending each image only
+   * once. An image that appears more than once, under any path, is only annotated once.
+   *
+   * @param paths The local files or remote files on Google Cloud Storage to annotate.
+   * @param features The features to detect.
+   * @param out A {@link PrintStream} to write detected features to.
+   * @throws Exception on errors while closing the client.
+   * @throws IOException on Input/Output errors.
+   */
+  public static void detectFeatures(List<String> paths, Set<Type> features, PrintStream out)
+      throws Exception, IOException {
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    try (ImageAnnotatorClient client = ImageAnnotatorClient.create()) {
+      List<CompletableFuture<AnnotateImageResponse>> responses = new ArrayList<>();
+      ImageAnnotationCache cache;
+      try (BatchingImageAnnotator annotator = new BatchingImageAnnotator(client, executor)) {
+        cache = new ImageAnnotationCache(annotator, 1000);
+        for (String path : paths) {
+          if (path.startsWith("gs://")) {
+            responses.add(cache.annotateGcs(path, features));
+          } else {
+            ByteString imgBytes = ByteString.copyFrom(Files.readAllBytes(Paths.get(path)));
+            responses.add(cache.annotate(imgBytes, features));
+          }
+        }
+      }
+
+      for (int i = 0; i < paths.size(); i++) {
+        out.printf("%s:\n", paths.get(i));
+        AnnotateImageResponse res;
+        try {
+          res = responses.get(i).get();
+        } catch (ExecutionException e) {
+          out.printf("Error: %s\n", e.getCause().getMessage());
+          continue;
+        }
+        if (res.hasError()) {
+          out.printf("Error: %s\n", res.getError().getMessage());
+          continue;
+        }
+        for (Type type : features) {
+          printFeature(type, res, out);
+        }
+      }
+      out.printf("Annotated %d images with %d cache misses\n", paths.size(), cache.getMisses());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void printFeature(Type type, AnnotateImageResponse res, PrintStream out) {
+    switch (type) {
+      case FACE_DETECTION:
+        for (FaceAnnotation annotation : res.getFaceAnnotationsList()) {
+          out.printf(
+              "anger: %s\njoy: %s\nsurprise: %s\nposition: %s\n",
+              annotation.getAngerLikelihood(),
+              annotation.getJoyLikelihood(),
+              annotation.getSurpriseLikelihood(),
+              annotation.getBoundingPoly());
+        }
+        break;
+      case LABEL_DETECTION:
+        for (EntityAnnotation annotation : res.getLabelAnnotationsList()) {
+          out.printf("Label: %s : %s\n", annotation.getDescription(), annotation.getScore());
+        }
+        break;
+      case LANDMARK_DETECTION:
+        for (EntityAnnotation annotation : res.getLandmarkAnnotationsList()) {
+          for (LocationInfo info : annotation.getLocationsList()) {
+            out.printf("Landmark: %s\n %s\n", annotation.getDescription(), info.getLatLng());
+          }
+        }
+        break;
+      case LOGO_DETECTION:
+        for (EntityAnnotation annotation : res.getLogoAnnotationsList()) {
+          out.printf("Logo: %s\n", annotation.getDescription());
+        }
+        break;
+      case TEXT_DETECTION:
+        for (EntityAnnotation annotation : res.getTextAnnotationsList()) {
+          out.printf("Text: %s\n", annotation.getDescription());
+          out.printf("Position : %s\n", annotation.getBoundingPoly());
+        }
+        break;
+      case SAFE_SEARCH_DETECTION:
+        SafeSearchAnnotation safeSearch = res.getSafeSearchAnnotation();
+        out.printf(
+            "adult: %s\nmedical: %s\nspoofed: %s\nviolence: %s\nracy: %s\n",
+            safeSearch.getAdult(),
+            safeSearch.getMedical(),
+            safeSearch.getSpoof(),
+            safeSearch.getViolence(),
+            safeSearch.getRacy());
+        break;
+      case IMAGE_PROPERTIES:
+        DominantColorsAnnotation colors = res.getImagePropertiesAnnotation().getDominantColors();
+        for (ColorInfo color : colors.getColorsList()) {
+          out.printf(
+              "fraction: %f\nr: %f, g: %f, b: %f\n",
+              color.getPixelFraction(),
+              color.getColor().getRed(),
+              color.getColor().getGreen(),
+              color.getColor().getBlue());
+        }
+        break;
+      case CROP_HINTS:
+        for (CropHint hint : res.getCropHintsAnnotation().getCropHintsList()) {
+          out.println(hint.getBoundingPoly());
+        }
+        break;
+      case OBJECT_LOCALIZATION:
+        for (LocalizedObjectAnnotation entity : res.getLocalizedObjectAnnotationsList()) {
+          out.format("Object name: %s\n", entity.getName());
+          out.format("Confidence: %s\n", entity.getScore());
+        }
+        break;
+      default:
+        break;
+    }
+  }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vision;
+
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.Feature;
+import com.google.cloud.vision.v1.Feature.Type;
+import com.google.cloud.vision.v1.Image;
+import com.google.cloud.vision.v1.ImageSource;
+import com.google.protobuf.ByteString;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Requests several features of an image in a single {@link AnnotateImageRequest}, and caches the
+ * responses by image content so a repeated image is only uploaded once.
+ *
+ * <p>Local images are keyed by the SHA-256 hash of their content and Cloud Storage images by their
+ * URI, together with the requested features. The cache holds futures, so concurrent requests for
+ * the same image share one call. Failed calls are not cached, and the least recently used entries
+ * are evicted once the cache is full.
+ */
+public class ImageAnnotationCache {
+
+  private final BatchingImageAnnotator annotator;
+  private final int maxEntries;
+  private final Map<String, CompletableFuture<AnnotateImageResponse>> cache;
+  private long hits = 0;
+  private long misses = 0;
+
+  /** Creates a cache of up to {@code maxEntries} responses, sent through {@code annotator}. */
+  public ImageAnnotationCache(BatchingImageAnnotator annotator, int maxEntries) {
+    this.annotator = annotator;
+    this.maxEntries = maxEntries;
+    this.cache =
+        new LinkedHashMap<String, CompletableFuture<AnnotateImageResponse>>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(
+              Map.Entry<String, CompletableFuture<AnnotateImageResponse>> eldest) {
+            return size() > ImageAnnotationCache.this.maxEntries;
+          }
+        };
+  }
+
+  /** Annotates a local image, given its content, with all of {@code features}. */
+  public CompletableFuture<AnnotateImageResponse> annotate(ByteString content, Set<Type> features) {
+    return annotate(
+        "sha256:" + sha256(content), Image.newBuilder().setContent(content).build(), features);
+  }
+
+  /** Annotates a remote image on Google Cloud Storage with all of {@code features}. */
+  public CompletableFuture<AnnotateImageResponse> annotateGcs(String gcsPath, Set<Type> features) {
+    Image img =
+        Image.newBuilder()
+            .setSource(ImageSource.newBuilder().setGcsImageUri(gcsPath))
+            .build();
+    return annotate(gcsPath, img, features);
+  }
+
+  /** Number of images answered from the cache. */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Number of images sent to the annotator. Several of them may share one batch request to the
+   * API.
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  private CompletableFuture<AnnotateImageResponse> annotate(
+      String imageKey, Image img, Set<Type> features) {
+    // EnumSet iterates in a fixed order, so equal feature sets give equal keys.
+    Set<Type> sorted = EnumSet.copyOf(features);
+    String key = imageKey + sorted;
+    CompletableFuture<AnnotateImageResponse> response;
+    synchronized (this) {
+      response = cache.get(key);
+      if (response != null) {
+        hits++;
+        return response;
+      }
+      misses++;
+      AnnotateImageRequest.Builder request = AnnotateImageRequest.newBuilder().setImage(img);
+      for (Type type : sorted) {
+        request.addFeatures(Feature.newBuilder().setType(type));
+      }
+      response = annotator.annotate(request.build());
+      cache.put(key, response);
+    }
+    CompletableFuture<AnnotateImageResponse> cached = response;
+    // Drop failures before the caller sees them, so a retry goes back to the API.
+    return response.whenComplete(
+        (res, t) -> {
+          if (t != null || res.hasError()) {
+            synchronized (this) {
+              cache.remove(key, cached);
+            }
+          }
+        });
+  }
+
+  private static String sha256(ByteString content) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(content.asReadOnlyByteBuffer());
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest()) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vision;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.Feature;
+import com.google.cloud.vision.v1.Feature.Type;
+import com.google.cloud.vision.v1.Image;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.protobuf.ByteString;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the batching annotator, run against a local fake annotator. */
+@RunWith(JUnit4.class)
+public class BatchingImageAnnotatorTest {
+  private static final long LATENCY_MILLIS = 20;
+  private static final int CALLERS = 8;
+  private static final int IMAGES_PER_CALLER = 40;
+
+  private FakeImageAnnotatorServer server;
+  private ImageAnnotatorClient client;
+  private ScheduledExecutorService executor;
+  private ExecutorService callers;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FakeImageAnnotatorServer(LATENCY_MILLIS);
+    client = server.createClient();
+    executor = Executors.newSingleThreadScheduledExecutor();
+    callers = Executors.newFixedThreadPool(CALLERS);
+  }
+
+  @After
+  public void tearDown() {
+    callers.shutdownNow();
+    executor.shutdownNow();
+    client.close();
+    server.close();
+  }
+
+  @Test
+  public void testConcurrentCallersShareBatches() throws Exception {
+    int imageCount = CALLERS * IMAGES_PER_CALLER;
+
+    List<Future<List<String>>> results = new ArrayList<>();
+    BatchingImageAnnotator annotator = new BatchingImageAnnotator(client, executor);
+    for (int c = 0; c < CALLERS; c++) {
+      results.add(
+          callers.submit(
+              () -> {
+                List<CompletableFuture<AnnotateImageResponse>> responses = new ArrayList<>();
+                for (int i = 0; i < IMAGES_PER_CALLER; i++) {
+                  responses.add(annotator.annotate(request(i + 1)));
+                }
+                List<String> labels = new ArrayList<>();
+                for (CompletableFuture<AnnotateImageResponse> response : responses) {
+                  labels.add(response.get().getLabelAnnotations(0).getDescription());
+                }
+                return labels;
+              }));
+    }
+    for (Future<List<String>> result : results) {
+      List<String> labels = result.get(30, TimeUnit.SECONDS);
+      // Each caller gets the responses for its own images, in order.
+      for (int i = 0; i < IMAGES_PER_CALLER; i++) {
+        assertThat(labels.get(i)).isEqualTo(String.valueOf(i + 1));
+      }
+    }
+    annotator.close();
+
+    assertThat(annotator.getImagesSent()).isEqualTo(imageCount);
+    assertThat(annotator.getBatchesSent()).isEqualTo(server.getBatchSizes().size());
+    assertThat(annotator.getBatchesSent()).isLessThan(imageCount / 4);
+    for (int size : server.getBatchSizes()) {
+      assertThat(size).isAtMost(BatchingImageAnnotator.MAX_BATCH_IMAGES);
+    }
+  }
+
+  @Test
+  public void testBatchesAreLimitedByPayloadBytes() throws Exception {
+    List<CompletableFuture<AnnotateImageResponse>> responses = new ArrayList<>();
+    try (BatchingImageAnnotator annotator =
+        new BatchingImageAnnotator(client, executor, 16, 10000, 2, 10)) {
+      for (int i = 0; i < 12; i++) {
+        responses.add(annotator.annotate(request(3000)));
+      }
+      // Larger than the byte limit, so it is sent on its own.
+      responses.add(annotator.annotate(request(20000)));
+    }
+
+    for (CompletableFuture<AnnotateImageResponse> response : responses) {
+      assertThat(response.isDone()).isTrue();
+    }
+    assertThat(server.getBatchSizes()).containsExactly(3, 3, 3, 3, 1);
+  }
+
+  @Test
+  public void testFailedBatchFailsEveryImage() throws Exception {
+    server.close();
+    List<CompletableFuture<AnnotateImageResponse>> responses = new ArrayList<>();
+    try (BatchingImageAnnotator annotator = new BatchingImageAnnotator(client, executor)) {
+      for (int i = 0; i < 3; i++) {
+        responses.add(annotator.annotate(request(i + 1)));
+      }
+    }
+
+    for (CompletableFuture<AnnotateImageResponse> response : responses) {
+      try {
+        response.get();
+        fail("Expected the batch to fail");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause()).isInstanceOf(ApiException.class);
+      }
+    }
+  }
+
+  private static AnnotateImageRequest request(int size) {
+    return AnnotateImageRequest.newBuilder()
+        .addFeatures(Feature.newBuilder().setType(Type.LABEL_DETECTION))
+        .setImage(Image.newBuilder().setContent(ByteString.copyFrom(new byte[size])))
+        .build();
+  }
+}
@@ -95,6 +95,35 @@ public class DetectIT {
     assertThat(got).contains("whiskers");
   }
 
+  @Test
+  public void testLabelsBatch() throws Exception {
+    // Act
+    String[] args = { "labels-batch", "./resources/" };
+    Detect.argsHelper(args, out);
+
+    // Assert
+    String got = bout.toString().toLowerCase();
+    assertThat(got).contains("wakeupcat.jpg:");
+    assertThat(got).contains("whiskers");
+    assertThat(got).doesNotContain("error");
+  }
+
+  @Test
+  public void testFeatures() throws Exception {
+    // Act
+    String[] args = {
+      "features", "faces,labels", "./resources/face_no_surprise.jpg", "./resources/wakeupcat.jpg",
+      "./resources/wakeupcat.jpg"
+    };
+    Detect.argsHelper(args, out);
+
+    // Assert
+    String got = bout.toString().toLowerCase();
+    assertThat(got).contains("surprise: likely");
+    assertThat(got).contains("whiskers");
+    assertThat(got).contains("annotated 3 images with 2 cache misses");
+  }
+
   @Test
   public void testLabelsGcs() throws Exception {
     // Act
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vision;
+
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.BatchAnnotateImagesRequest;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import com.google.cloud.vision.v1.EntityAnnotation;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.cloud.vision.v1.ImageAnnotatorSettings;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process stand-in for the Vision API {@code BatchAnnotateImages} method, used to benchmark
+ * the samples without network access or quota.
+ *
+ * <p>Every call takes a fixed latency, like a round trip to the service. Each image gets a single
+ * label whose description is the size of its content, so responses can be matched to requests.
+ * Calls with more than 16 images fail with INVALID_ARGUMENT, like the real service.
+ */
+class FakeImageAnnotatorServer implements AutoCloseable {
+  private static final String SERVICE_NAME = "google.cloud.vision.v1.ImageAnnotator";
+
+  private static final MethodDescriptor<BatchAnnotateImagesRequest, BatchAnnotateImagesResponse>
+      BATCH_ANNOTATE_IMAGES =
+          MethodDescriptor.<BatchAnnotateImagesRequest, BatchAnnotateImagesResponse>newBuilder()
+              .setType(MethodDescriptor.MethodType.UNARY)
+              .setFullMethodName(
+                  MethodDescriptor.generateFullMethodName(SERVICE_NAME, "BatchAnnotateImages"))
+              .setRequestMarshaller(
+                  ProtoUtils.marshaller(BatchAnnotateImagesRequest.getDefaultInstance()))
+              .setResponseMarshaller(
+                  ProtoUtils.marshaller(BatchAnnotateImagesResponse.getDefaultInstance()))
+              .build();
+
+  private final String name = InProcessServerBuilder.generateName();
+  private final Server server;
+  private final long latencyMillis;
+  private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+  private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+  private final List<AnnotateImageRequest> images = new CopyOnWriteArrayList<>();
+
+  FakeImageAnnotatorServer(long latencyMillis) throws IOException {
+    this.latencyMillis = latencyMillis;
+    server =
+        InProcessServerBuilder.forName(name)
+            .addService(
+                ServerServiceDefinition.builder(SERVICE_NAME)
+                    .addMethod(
+                        BATCH_ANNOTATE_IMAGES,
+                        ServerCalls.asyncUnaryCall(this::batchAnnotateImages))
+                    .build())
+            .build()
+            .start();
+  }
+
+  /** Creates a client talking to this server. Closing the client closes its channel. */
+  ImageAnnotatorClient createClient() throws IOException {
+    ManagedChannel channel = InProcessChannelBuilder.forName(name).build();
+    ImageAnnotatorSettings settings =
+        ImageAnnotatorSettings.newBuilder()
+            .setTransportChannelProvider(
+                FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel)))
+            .setCredentialsProvider(NoCredentialsProvider.create())
+            .build();
+    return ImageAnnotatorClient.create(settings);
+  }
+
+  /** The number of images in each call received so far. */
+  List<Integer> getBatchSizes() {
+    return batchSizes;
+  }
+
+  /** Every image request received so far. */
+  List<AnnotateImageRequest> getImages() {
+    return images;
+  }
+
+  @Override
+  public void close() {
+    server.shutdownNow();
+    scheduler.shutdownNow();
+  }
+
+  private void batchAnnotateImages(
+      BatchAnnotateImagesRequest request,
+      StreamObserver<BatchAnnotateImagesResponse> responseObserver) {
+    batchSizes.add(request.getRequestsCount());
+    images.addAll(request.getRequestsList());
+    if (request.getRequestsCount() > BatchingImageAnnotator.MAX_BATCH_IMAGES) {
+      responseObserver.onError(
+          Status.INVALID_ARGUMENT.withDescription("Too many images").asRuntimeException());
+      return;
+    }
+    BatchAnnotateImagesResponse.Builder response = BatchAnnotateImagesResponse.newBuilder();
+    for (AnnotateImageRequest image : request.getRequestsList()) {
+      response.addResponses(
+          AnnotateImageResponse.newBuilder()
+              .addLabelAnnotations(
+                  EntityAnnotation.newBuilder()
+                      .setDescription(String.valueOf(image.getImage().getContent().size()))
+                      .setScore(1.0f)));
+    }
+    scheduler.schedule(
+        () -> {
+          responseObserver.onNext(response.build());
+          responseObserver.onCompleted();
+        },
+        latencyMillis,
+        TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.vision;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.Feature;
+import com.google.cloud.vision.v1.Feature.Type;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the multi-feature annotation cache, run against a local fake annotator. */
+@RunWith(JUnit4.class)
+public class ImageAnnotationCacheTest {
+  private static final Set<Type> FEATURES =
+      EnumSet.of(Type.FACE_DETECTION, Type.LABEL_DETECTION, Type.LOGO_DETECTION);
+
+  private FakeImageAnnotatorServer server;
+  private ImageAnnotatorClient client;
+  private ScheduledExecutorService executor;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FakeImageAnnotatorServer(0);
+    client = server.createClient();
+    executor = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    client.close();
+    server.close();
+  }
+
+  @Test
+  public void testRepeatedImageIsSentOnceWithAllFeatures() throws Exception {
+    ByteString cat = readImage("./resources/wakeupcat.jpg");
+    // The same content read again, as a different ByteString.
+    ByteString sameCat = readImage("./resources/wakeupcat.jpg");
+    ByteString logos = readImage("./resources/logos.png");
+
+    ImageAnnotationCache cache;
+    CompletableFuture<AnnotateImageResponse> first;
+    CompletableFuture<AnnotateImageResponse> second;
+    CompletableFuture<AnnotateImageResponse> other;
+    try (BatchingImageAnnotator annotator = new BatchingImageAnnotator(client, executor)) {
+      cache = new ImageAnnotationCache(annotator, 10);
+      first = cache.annotate(cat, FEATURES);
+      second = cache.annotate(sameCat, EnumSet.copyOf(FEATURES));
+      other = cache.annotate(logos, FEATURES);
+    }
+
+    assertThat(second.get()).isEqualTo(first.get());
+    assertThat(other.get().getLabelAnnotations(0).getDescription())
+        .isEqualTo(String.valueOf(logos.size()));
+    assertThat(cache.getHits()).isEqualTo(1);
+    assertThat(cache.getMisses()).isEqualTo(2);
+    assertThat(server.getImages()).hasSize(2);
+    for (int i = 0; i < 2; i++) {
+      assertThat(server.getImages().get(i).getFeaturesList())
+          .containsExactly(
+              Feature.newBuilder().setType(Type.FACE_DETECTION).build(),
+              Feature.newBuilder().setType(Type.LABEL_DETECTION).build(),
+              Feature.newBuilder().setType(Type.LOGO_DETECTION).build());
+    }
+  }
+
+  @Test
+  public void testDifferentFeaturesAreSentSeparately() throws Exception {
+    ByteString cat = readImage("./resources/wakeupcat.jpg");
+
+    ImageAnnotationCache cache;
+    try (BatchingImageAnnotator annotator = new BatchingImageAnnotator(client, executor)) {
+      cache = new ImageAnnotationCache(annotator, 10);
+      cache.annotate(cat, FEATURES);
+      cache.annotate(cat, EnumSet.of(Type.LABEL_DETECTION));
+    }
+
+    assertThat(cache.getMisses()).isEqualTo(2);
+    assertThat(server.getImages()).hasSize(2);
+  }
+
+  @Test
+  public void testFailuresAreNotCached() throws Exception {
+    ByteString cat = readImage("./resources/wakeupcat.jpg");
+    server.close();
+
+    ImageAnnotationCache cache;
+    try (BatchingImageAnnotator annotator = new BatchingImageAnnotator(client, executor)) {
+      cache = new ImageAnnotationCache(annotator, 10);
+      CompletableFuture<AnnotateImageResponse> failed = cache.annotate(cat, FEATURES);
+      annotator.flush();
+      while (!failed.isDone()) {
+        Thread.sleep(10);
+      }
+      cache.annotate(cat, FEATURES);
+    }
+
+    assertThat(cache.getHits()).isEqualTo(0);
+    assertThat(cache.getMisses()).isEqualTo(2);
+  }
+
+  private static ByteString readImage(String path) throws IOException {
+    return ByteString.copyFrom(Files.readAllBytes(Paths.get(path)));
+  }
+}
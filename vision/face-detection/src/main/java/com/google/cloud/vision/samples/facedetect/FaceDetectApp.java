@@ -59,26 +59,42 @@ public class FaceDetectApp {
 
   private static final int MAX_RESULTS = 4;
 
+  // Number of images annotated and rendered at a time when processing a directory.
+  private static final int WORKERS = 8;
+
   // [START vision_face_detection_tutorial_run_application]
   /**
    * Annotates an image using the Vision API.
    */
-  public static void main(String[] args) throws IOException, GeneralSecurityException {
+  public static void main(String[] args)
+      throws IOException, GeneralSecurityException, InterruptedException {
     if (args.length != 2) {
       System.err.println("Usage:");
       System.err.printf(
-          "\tjava %s inputImagePath outputImagePath\n",
+          "\tjava %s inputImagePath outputImagePath\n"
+              + "\tjava %s inputDirectory outputDirectory\n",
+          FaceDetectApp.class.getCanonicalName(),
           FaceDetectApp.class.getCanonicalName());
       System.exit(1);
     }
     Path inputPath = Paths.get(args[0]);
     Path outputPath = Paths.get(args[1]);
+    FaceDetectApp app = new FaceDetectApp(getVisionService());
+
+    if (Files.isDirectory(inputPath)) {
+      Files.createDirectories(outputPath);
+      FaceDetectPipeline pipeline =
+          new FaceDetectPipeline(data -> app.detectFaces(data, MAX_RESULTS), WORKERS);
+      pipeline.run(inputPath, outputPath);
+      pipeline.printStats(System.out);
+      return;
+    }
+
     if (!outputPath.toString().toLowerCase().endsWith(".jpg")) {
       System.err.println("outputImagePath must have the file extension 'jpg'.");
       System.exit(1);
     }
 
-    FaceDetectApp app = new FaceDetectApp(getVisionService());
     List<FaceAnnotation> faces = app.detectFaces(inputPath, MAX_RESULTS);
     System.out.printf("Found %d face%s\n", faces.size(), faces.size() == 1 ? "" : "s");
     System.out.printf("Writing to file %s\n", outputPath);
@@ -114,8 +130,13 @@ public class FaceDetectApp {
    * Gets up to {@code maxResults} faces for an image stored at {@code path}.
    */
   public List<FaceAnnotation> detectFaces(Path path, int maxResults) throws IOException {
-    byte[] data = Files.readAllBytes(path);
+    return detectFaces(Files.readAllBytes(path), maxResults);
+  }
 
+  /**
+   * Gets up to {@code maxResults} faces for an image whose encoded content is {@code data}.
+   */
+  public List<FaceAnnotation> detectFaces(byte[] data, int maxResults) throws IOException {
     AnnotateImageRequest request =
         new AnnotateImageRequest()
             .setImage(new Image().encodeContent(data))
@@ -157,22 +178,27 @@ public class FaceDetectApp {
    * Annotates an image {@code img} with a polygon around each face in {@code faces}.
    */
   public static void annotateWithFaces(BufferedImage img, List<FaceAnnotation> faces) {
-    for (FaceAnnotation face : faces) {
-      annotateWithFace(img, face);
+    // One graphics context draws every face, and is released as soon as it is done.
+    Graphics2D gfx = img.createGraphics();
+    try {
+      gfx.setStroke(new BasicStroke(5));
+      gfx.setColor(new Color(0x00ff00));
+      for (FaceAnnotation face : faces) {
+        annotateWithFace(gfx, face);
+      }
+    } finally {
+      gfx.dispose();
     }
   }
 
   /**
-   * Annotates an image {@code img} with a polygon defined by {@code face}.
+   * Draws a polygon defined by {@code face} with {@code gfx}.
    */
-  private static void annotateWithFace(BufferedImage img, FaceAnnotation face) {
-    Graphics2D gfx = img.createGraphics();
+  private static void annotateWithFace(Graphics2D gfx, FaceAnnotation face) {
     Polygon poly = new Polygon();
     for (Vertex vertex : face.getFdBoundingPoly().getVertices()) {
       poly.addPoint(vertex.getX(), vertex.getY());
     }
-    gfx.setStroke(new BasicStroke(5));
-    gfx.setColor(new Color(0x00ff00));
     gfx.draw(poly);
   }
   // [END vision_face_detection_tutorial_process_response]
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.vision.samples.facedetect;
+
+import com.google.api.services.vision.v1.model.FaceAnnotation;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Outlines the faces in every image of a directory.
+ *
+ * <p>Each image is read once. Its bytes are sent to the Vision API on one pool while they are
+ * decoded on another, so network round trips overlap with local decoding and rendering. Faces are
+ * drawn with a single graphics context per image, and the result is encoded straight to the output
+ * file. The time spent in each stage is recorded.
+ */
+public class FaceDetectPipeline {
+
+  /** Detects the faces in an encoded image. */
+  public interface FaceDetector {
+    List<FaceAnnotation> detectFaces(byte[] data) throws IOException;
+  }
+
+  /** The stages of the pipeline, in order. */
+  public enum Stage {
+    READ,
+    ANNOTATE,
+    DECODE,
+    RENDER,
+    ENCODE
+  }
+
+  private final FaceDetector detector;
+  private final int workers;
+  private final Map<Stage, LongAdder> stageNanos = new EnumMap<>(Stage.class);
+  private final AtomicInteger images = new AtomicInteger();
+  private final AtomicInteger faces = new AtomicInteger();
+  private final AtomicInteger failures = new AtomicInteger();
+  private long elapsedNanos;
+
+  /** Creates a pipeline that processes up to {@code workers} images at a time. */
+  public FaceDetectPipeline(FaceDetector detector, int workers) {
+    this.detector = detector;
+    this.workers = workers;
+    for (Stage stage : Stage.values()) {
+      stageNanos.put(stage, new LongAdder());
+    }
+  }
+
+  /**
+   * Writes a copy of every image in {@code inputDir}, with its faces outlined, to a JPEG file in
+   * {@code outputDir}. The output keeps the name of its input, with {@code .jpg} appended unless it
+   * already ends with it. Returns the number of images written.
+   */
+  public int run(Path inputDir, Path outputDir) throws IOException, InterruptedException {
+    List<Path> inputs;
+    try (Stream<Path> paths = Files.list(inputDir)) {
+      inputs = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+
+    // Annotation waits on the network, so it gets its own threads. Decoding and rendering are
+    // CPU bound and share a pool sized to the machine.
+    ExecutorService network = Executors.newFixedThreadPool(workers);
+    ExecutorService cpu = Executors.newFixedThreadPool(
+        Math.min(workers, Runtime.getRuntime().availableProcessors()));
+    // Bound the number of images held in memory at once.
+    Semaphore inFlight = new Semaphore(workers * 2);
+    List<CompletableFuture<Void>> results = new ArrayList<>();
+    long start = System.nanoTime();
+    try {
+      for (Path input : inputs) {
+        inFlight.acquire();
+        Path output = outputDir.resolve(jpegName(input));
+        CompletableFuture<Void> result;
+        try {
+          byte[] data = timed(Stage.READ, () -> Files.readAllBytes(input));
+          CompletableFuture<List<FaceAnnotation>> annotated =
+              CompletableFuture.supplyAsync(
+                  () -> timed(Stage.ANNOTATE, () -> detector.detectFaces(data)), network);
+          CompletableFuture<BufferedImage> decoded =
+              CompletableFuture.supplyAsync(() -> timed(Stage.DECODE, () -> decode(data)), cpu);
+          result =
+              annotated.thenAcceptBothAsync(
+                  decoded, (found, img) -> renderAndWrite(img, found, output), cpu);
+        } catch (UncheckedIOException e) {
+          result = new CompletableFuture<>();
+          result.completeExceptionally(e);
+        }
+        results.add(
+            result.whenComplete(
+                (ignored, t) -> {
+                  inFlight.release();
+                  if (t != null) {
+                    failures.incrementAndGet();
+                    Throwable cause = t.getCause() != null ? t.getCause() : t;
+                    System.err.printf("Failed to process %s: %s\n", input, cause);
+                  } else {
+                    images.incrementAndGet();
+                  }
+                }));
+      }
+      for (CompletableFuture<Void> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          // Already reported.
+        }
+      }
+    } finally {
+      network.shutdownNow();
+      cpu.shutdownNow();
+    }
+    elapsedNanos = System.nanoTime() - start;
+    return images.get();
+  }
+
+  /** Total time spent in {@code stage}, summed over all images. */
+  public long getStageMillis(Stage stage) {
+    return TimeUnit.NANOSECONDS.toMillis(stageNanos.get(stage).sum());
+  }
+
+  /** Number of faces found over all images. */
+  public int getFaces() {
+    return faces.get();
+  }
+
+  /** Number of images that could not be processed. */
+  public int getFailures() {
+    return failures.get();
+  }
+
+  /** Prints throughput and the time spent in each stage. */
+  public void printStats(PrintStream out) {
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    out.printf(
+        "Processed %d images (%d failed, %d faces) in %d ms: %.2f images/s\n",
+        images.get(),
+        failures.get(),
+        faces.get(),
+        elapsedMillis,
+        elapsedMillis == 0 ? 0.0 : images.get() * 1000.0 / elapsedMillis);
+    for (Stage stage : Stage.values()) {
+      out.printf("\t%s: %d ms\n", stage, getStageMillis(stage));
+    }
+  }
+
+  private void renderAndWrite(BufferedImage img, List<FaceAnnotation> found, Path output) {
+    faces.addAndGet(found.size());
+    BufferedImage rgb = timed(Stage.RENDER, () -> render(img, found));
+    timed(
+        Stage.ENCODE,
+        () -> {
+          writeJpeg(rgb, output);
+          return null;
+        });
+  }
+
+  private static BufferedImage decode(byte[] data) throws IOException {
+    BufferedImage img = ImageIO.read(new ByteArrayInputStream(data));
+    if (img == null) {
+      throw new IOException("Unsupported image format");
+    }
+    return img;
+  }
+
+  /** Outlines the faces, on an opaque copy if the image has alpha, which JPEG cannot encode. */
+  private static BufferedImage render(BufferedImage img, List<FaceAnnotation> found) {
+    BufferedImage rgb = img;
+    if (img.getColorModel().hasAlpha()) {
+      rgb = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+      Graphics2D gfx = rgb.createGraphics();
+      try {
+        gfx.drawImage(img, 0, 0, null);
+      } finally {
+        gfx.dispose();
+      }
+    }
+    FaceDetectApp.annotateWithFaces(rgb, found);
+    return rgb;
+  }
+
+  /** Encodes {@code img} as it is written, without buffering the whole JPEG in memory. */
+  private static void writeJpeg(BufferedImage img, Path output) throws IOException {
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+    try (OutputStream out = Files.newOutputStream(output);
+        ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(img, null, null), writer.getDefaultWriteParam());
+    } finally {
+      writer.dispose();
+    }
+  }
+
+  // Keeps the source extension, so that a.png and a.jpg do not both become a.jpg.
+  private static String jpegName(Path input) {
+    String name = input.getFileName().toString();
+    return name.toLowerCase().endsWith(".jpg") ? name : name + ".jpg";
+  }
+
+  private interface IoSupplier<T> {
+    T get() throws IOException;
+  }
+
+  private <T> T timed(Stage stage, IoSupplier<T> supplier) {
+    long start = System.nanoTime();
+    try {
+      return supplier.get();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      stageNanos.get(stage).add(System.nanoTime() - start);
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.vision.samples.facedetect;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import com.google.api.services.vision.v1.model.BoundingPoly;
+import com.google.api.services.vision.v1.model.FaceAnnotation;
+import com.google.api.services.vision.v1.model.Vertex;
+import com.google.common.collect.ImmutableList;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import javax.imageio.ImageIO;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Unit tests for {@link FaceDetectPipeline}, with a fake detector in place of the Vision API.
+ */
+@RunWith(JUnit4.class)
+public class FaceDetectPipelineTest {
+  private static final List<FaceAnnotation> FACES =
+      ImmutableList.of(
+          new FaceAnnotation()
+              .setFdBoundingPoly(
+                  new BoundingPoly().setVertices(ImmutableList.of(
+                      new Vertex().setX(10).setY(10),
+                      new Vertex().setX(40).setY(10),
+                      new Vertex().setX(40).setY(40),
+                      new Vertex().setX(10).setY(40)))));
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void run_directory_outlinesFacesInEveryImage() throws Exception {
+    // Arrange
+    File input = folder.newFolder("input");
+    File output = folder.newFolder("output");
+    int imageCount = 20;
+    for (int i = 0; i < imageCount; i++) {
+      // PNGs with alpha, which have to be flattened before they can be written as JPEG.
+      BufferedImage img = new BufferedImage(100, 100, BufferedImage.TYPE_INT_ARGB);
+      ImageIO.write(img, "png", new File(input, "image" + i + ".png"));
+    }
+    FaceDetectPipeline pipeline =
+        new FaceDetectPipeline(
+            data -> {
+              // Stand in for a network round trip.
+              try {
+                Thread.sleep(50);
+              } catch (InterruptedException e) {
+                throw new IOException(e);
+              }
+              return FACES;
+            },
+            4);
+
+    // Act
+    int written = pipeline.run(input.toPath(), output.toPath());
+
+    // Assert
+    assertThat(written).isEqualTo(imageCount);
+    assertThat(pipeline.getFailures()).isEqualTo(0);
+    assertThat(pipeline.getFaces()).isEqualTo(imageCount);
+    // Stage times are summed over images, even though the round trips overlap.
+    assertThat(pipeline.getStageMillis(FaceDetectPipeline.Stage.ANNOTATE)).isAtLeast(1000L);
+    for (int i = 0; i < imageCount; i++) {
+      Path result = output.toPath().resolve("image" + i + ".png.jpg");
+      BufferedImage img = ImageIO.read(result.toFile());
+      // JPEG is lossy, so only check that green dominates on the outline.
+      int rgb = img.getRGB(10, 25);
+      assertWithMessage("image%s outline", i)
+          .that((rgb >> 8) & 0xff)
+          .isGreaterThan(0x80);
+      assertWithMessage("image%s outline", i)
+          .that((rgb >> 16) & 0xff)
+          .isLessThan(0x80);
+    }
+  }
+
+  @Test public void run_badImage_isCountedAsFailure() throws Exception {
+    // Arrange
+    File input = folder.newFolder("input");
+    File output = folder.newFolder("output");
+    Files.write(input.toPath().resolve("bad.txt"), "not an image".getBytes("UTF-8"));
+    BufferedImage img = new BufferedImage(100, 100, BufferedImage.TYPE_3BYTE_BGR);
+    ImageIO.write(img, "jpg", new File(input, "good.jpg"));
+    FaceDetectPipeline pipeline = new FaceDetectPipeline(data -> FACES, 2);
+
+    // Act
+    int written = pipeline.run(input.toPath(), output.toPath());
+
+    // Assert
+    assertThat(written).isEqualTo(1);
+    assertThat(pipeline.getFailures()).isEqualTo(1);
+    assertThat(Files.exists(output.toPath().resolve("good.jpg"))).isTrue();
+  }
+
+  @Test public void run_sameBaseName_keepsBothImages() throws Exception {
+    // Arrange
+    File input = folder.newFolder("input");
+    File output = folder.newFolder("output");
+    BufferedImage img = new BufferedImage(100, 100, BufferedImage.TYPE_3BYTE_BGR);
+    ImageIO.write(img, "jpg", new File(input, "face.jpg"));
+    ImageIO.write(img, "png", new File(input, "face.png"));
+    FaceDetectPipeline pipeline = new FaceDetectPipeline(data -> FACES, 2);
+
+    // Act
+    int written = pipeline.run(input.toPath(), output.toPath());
+
+    // Assert
+    assertThat(written).isEqualTo(2);
+    assertThat(Files.exists(output.toPath().resolve("face.jpg"))).isTrue();
+    assertThat(Files.exists(output.toPath().resolve("face.png.jpg"))).isTrue();
+  }
+}